@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.moscona.util.benchmarks;
+
+import com.moscona.exceptions.InvalidArgumentException;
+import com.moscona.util.transformation.ByteArrayHelper;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the ByteArrayHelper conversions, including the padding path taken for arrays shorter than an int.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ByteArrayHelperBenchmark {
+    private int value;
+    private float price;
+    private byte[] fourBytes;
+    private byte[] threeBytes;
+
+    @Setup(Level.Trial)
+    public void setUp() throws InvalidArgumentException {
+        value = 0x00123456;
+        price = 123.45f;
+        fourBytes = ByteArrayHelper.intToBytes(value, 4);
+        threeBytes = ByteArrayHelper.intToBytes(value, 3);
+    }
+
+    @Benchmark
+    public byte[] intToBytes() throws InvalidArgumentException {
+        return ByteArrayHelper.intToBytes(value, 4);
+    }
+
+    @Benchmark
+    public int byteArrayToInt() throws InvalidArgumentException {
+        return ByteArrayHelper.byteArrayToInt(fourBytes);
+    }
+
+    @Benchmark
+    public int byteArrayToIntPadded() throws InvalidArgumentException {
+        return ByteArrayHelper.byteArrayToInt(threeBytes);
+    }
+
+    @Benchmark
+    public byte[] floatToBytes() throws InvalidArgumentException {
+        return ByteArrayHelper.floatToBytes(price, 4, 100);
+    }
+
+    @Benchmark
+    public float bytesToFloat() throws InvalidArgumentException {
+        return ByteArrayHelper.bytesToFloat(fourBytes, 100);
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.moscona.util.benchmarks;
+
+import com.moscona.util.collections.CappedArrayBuffer;
+import com.moscona.util.collections.CappedRingBuffer;
+import com.moscona.util.collections.ICappedBuffer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures appending to a CappedArrayBuffer that is already at capacity, so that every add also evicts the oldest
+ * element - the steady state of a history buffer.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CappedArrayBufferBenchmark {
+    @Param({"16", "1024", "65536"})
+    public int capacity;
+
+    @Param({"array", "ring"})
+    public String implementation;
+
+    private ICappedBuffer<Integer> buffer;
+    private Integer element;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        buffer = "ring".equals(implementation) ? new CappedRingBuffer<>(capacity) : new CappedArrayBuffer<>(capacity);
+        for (int i = 0; i < capacity; i++) {
+            buffer.add(i);
+        }
+        element = capacity; // boxed once, so that the benchmark does not measure boxing
+    }
+
+    @Benchmark
+    public boolean addAtCapacity() {
+        return buffer.add(element);
+    }
+}
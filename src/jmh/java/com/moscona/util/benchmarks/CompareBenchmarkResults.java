@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.moscona.util.benchmarks;
+
+import groovy.json.JsonSlurper;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * Compares two JMH result files (as written with -rf json) benchmark by benchmark.
+ * Usage: CompareBenchmarkResults baseline.json current.json
+ * A change is only flagged as faster or slower when it is larger than the combined error of the two scores.
+ */
+public class CompareBenchmarkResults {
+    private CompareBenchmarkResults() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2) {
+            System.err.println("usage: CompareBenchmarkResults <baseline.json> <current.json>");
+            System.exit(2);
+        }
+        Map<String, Map<?, ?>> baseline = load(new File(args[0]));
+        Map<String, Map<?, ?>> current = load(new File(args[1]));
+
+        System.out.println(String.format("%-90s %16s %16s %9s  %s", "benchmark", "baseline", "current", "change", ""));
+        for (Map.Entry<String, Map<?, ?>> entry : current.entrySet()) {
+            Map<?, ?> now = entry.getValue();
+            Map<?, ?> before = baseline.get(entry.getKey());
+            Map<?, ?> nowMetric = (Map<?, ?>) now.get("primaryMetric");
+            double nowScore = number(nowMetric.get("score"));
+            String unit = String.valueOf(nowMetric.get("scoreUnit"));
+            if (before == null) {
+                System.out.println(String.format("%-90s %16s %16.3f %9s  %s", entry.getKey(), "-", nowScore, "", unit));
+                continue;
+            }
+            Map<?, ?> beforeMetric = (Map<?, ?>) before.get("primaryMetric");
+            double beforeScore = number(beforeMetric.get("score"));
+            double error = number(beforeMetric.get("scoreError")) + number(nowMetric.get("scoreError"));
+            double change = beforeScore == 0.0 ? 0.0 : (nowScore - beforeScore) / beforeScore * 100.0;
+            boolean higherIsBetter = "thrpt".equals(now.get("mode"));
+            String verdict = "";
+            if (Math.abs(nowScore - beforeScore) > error) {
+                verdict = (nowScore > beforeScore) == higherIsBetter ? "faster" : "SLOWER";
+            }
+            System.out.println(String.format("%-90s %16.3f %16.3f %+8.1f%%  %s %s", entry.getKey(), beforeScore, nowScore,
+                    change, unit, verdict));
+        }
+        for (String key : baseline.keySet()) {
+            if (!current.containsKey(key)) {
+                System.out.println(String.format("%-90s (missing from the current results)", key));
+            }
+        }
+    }
+
+    private static Map<String, Map<?, ?>> load(File file) {
+        List<?> results = (List<?>) new JsonSlurper().parse(file);
+        Map<String, Map<?, ?>> retval = new TreeMap<>();
+        for (Object result : results) {
+            Map<?, ?> benchmark = (Map<?, ?>) result;
+            retval.put(keyOf(benchmark), benchmark);
+        }
+        return retval;
+    }
+
+    /**
+     * The key of a result is the benchmark, its mode, its thread count and its parameters - the things that must be
+     * equal for two scores to be comparable.
+     */
+    private static String keyOf(Map<?, ?> benchmark) {
+        StringBuilder key = new StringBuilder();
+        key.append(benchmark.get("benchmark")).append(" ").append(benchmark.get("mode"))
+                .append(" t=").append(benchmark.get("threads"));
+        Object params = benchmark.get("params");
+        if (params instanceof Map) {
+            for (Map.Entry<?, ?> param : new TreeMap<>((Map<?, ?>) params).entrySet()) {
+                key.append(" ").append(param.getKey()).append("=").append(param.getValue());
+            }
+        }
+        return key.toString();
+    }
+
+    private static double number(Object value) {
+        return value instanceof Number ? ((Number) value).doubleValue() : Double.NaN;
+    }
+}
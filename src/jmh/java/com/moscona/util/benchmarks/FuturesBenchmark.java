@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.moscona.util.benchmarks;
+
+import com.moscona.util.async.furtures.ExtendedCompletionStage;
+import com.moscona.util.async.furtures.Futures;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the overhead Futures and ExtendedCompletionStage add on top of plain CompletableFuture.
+ * The "direct" variants run the function on the calling thread, which isolates the wrapper cost from the cost of
+ * handing the work to the common pool.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FuturesBenchmark {
+    private static final Executor DIRECT = Runnable::run;
+
+    private CompletableFuture<Integer> completed;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        completed = CompletableFuture.completedFuture(42);
+    }
+
+    @Benchmark
+    public Integer plainSupplyAsync() {
+        return CompletableFuture.supplyAsync(() -> 42).join();
+    }
+
+    @Benchmark
+    public Integer eagerAsyncCompletableFuture() {
+        return Futures.newEagerAsyncCompletableFuture(() -> 42).toCompletableFuture().join();
+    }
+
+    @Benchmark
+    public Integer plainSupplyDirect() {
+        return CompletableFuture.supplyAsync(() -> 42, DIRECT).join();
+    }
+
+    @Benchmark
+    public Integer eagerAsyncCompletableFutureDirect() {
+        return Futures.newEagerAsyncCompletableFuture(DIRECT, () -> 42).toCompletableFuture().join();
+    }
+
+    @Benchmark
+    public Integer plainThenApply() {
+        return completed.thenApply(x -> x + 1).join();
+    }
+
+    @Benchmark
+    public Integer extendedThenApply() throws ExecutionException, InterruptedException {
+        ExtendedCompletionStage<Integer> extended = Futures.extend(completed);
+        return extended.thenApply(x -> x + 1).toCompletableFuture().get();
+    }
+
+    @Benchmark
+    public Integer extendedGet() throws ExecutionException, InterruptedException {
+        return Futures.extend(completed).get();
+    }
+}
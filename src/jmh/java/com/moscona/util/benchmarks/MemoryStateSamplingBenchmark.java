@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.moscona.util.benchmarks;
+
+import com.moscona.util.monitoring.MemoryStateHistory;
+import com.moscona.util.monitoring.MemoryStateMarker;
+import com.moscona.util.monitoring.MemoryStateSampler;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the cost of one memory state sample taken by constructing a MemoryStateMarker (as MemoryStateHistory does)
+ * with one taken by MemoryStateSampler. Run with -prof gc to see the allocation per sample.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MemoryStateSamplingBenchmark {
+    private String[] garbageCollectors;
+    private MemoryStateSampler sampler;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        garbageCollectors = new MemoryStateHistory(1).getGarbageCollectors();
+        sampler = new MemoryStateSampler(1024);
+    }
+
+    @Benchmark
+    public MemoryStateMarker marker() {
+        return new MemoryStateMarker(garbageCollectors);
+    }
+
+    @Benchmark
+    public void sampler() {
+        sampler.sample();
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.moscona.util.benchmarks;
+
+import com.moscona.util.monitoring.stats.ConcurrentStatsService;
+import com.moscona.util.monitoring.stats.IStatCounter;
+import com.moscona.util.monitoring.stats.SimpleStatsService;
+import com.moscona.util.monitoring.stats.StripedDelegatingStatsService;
+import com.moscona.util.monitoring.stats.SynchronizedDelegatingStatsService;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the cost of incrementing a single hot counter through the different stats service implementations, as the
+ * number of threads hitting it grows. The benchmarks are inherited by the nested classes, one per thread count.
+ * Note that SimpleStatsService is not thread safe: with more than one thread it loses updates, and is only here as the
+ * lower bound for what an unsynchronized increment costs.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public abstract class StatsServiceBenchmark {
+    private static final String STAT = "benchmark.counter";
+
+    private SimpleStatsService simple;
+    private SynchronizedDelegatingStatsService synchronizedService;
+    private StripedDelegatingStatsService striped;
+    private ConcurrentStatsService concurrent;
+    private IStatCounter concurrentCounter;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        simple = new SimpleStatsService();
+        simple.setStat(STAT, 0L);
+        synchronizedService = new SynchronizedDelegatingStatsService(new SimpleStatsService());
+        synchronizedService.setStat(STAT, 0L);
+        striped = new StripedDelegatingStatsService(new SimpleStatsService());
+        striped.setStat(STAT, 0L);
+        concurrent = new ConcurrentStatsService();
+        concurrent.setStat(STAT, 0L);
+        concurrentCounter = concurrent.counter(STAT);
+    }
+
+    @Benchmark
+    public void simpleIncStat() {
+        simple.incStat(STAT);
+    }
+
+    @Benchmark
+    public void synchronizedIncStat() {
+        synchronizedService.incStat(STAT);
+    }
+
+    @Benchmark
+    public void stripedIncStat() {
+        striped.incStat(STAT);
+    }
+
+    @Benchmark
+    public void stripedIncDistinctStat(ThreadStat stat) {
+        striped.incStat(stat.name);
+    }
+
+    @Benchmark
+    public void concurrentIncStat() {
+        concurrent.incStat(STAT);
+    }
+
+    @Benchmark
+    public void concurrentCounterHandle() {
+        concurrentCounter.inc();
+    }
+
+    /**
+     * A stat of its own for each benchmark thread, to show how writers of unrelated stats scale
+     */
+    @State(Scope.Thread)
+    public static class ThreadStat {
+        private static final AtomicInteger NEXT = new AtomicInteger();
+        public String name;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            name = STAT + "." + NEXT.getAndIncrement();
+        }
+    }
+
+    @Threads(1)
+    public static class OneThread extends StatsServiceBenchmark {
+    }
+
+    @Threads(4)
+    public static class FourThreads extends StatsServiceBenchmark {
+    }
+
+    @Threads(16)
+    public static class SixteenThreads extends StatsServiceBenchmark {
+    }
+
+    @Threads(64)
+    public static class SixtyFourThreads extends StatsServiceBenchmark {
+    }
+}
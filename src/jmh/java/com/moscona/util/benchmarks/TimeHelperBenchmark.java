@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.moscona.util.benchmarks;
+
+import com.moscona.exceptions.InvalidArgumentException;
+import com.moscona.util.TimeHelper;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Calendar;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the TimeHelper calls that are made on hot paths: taking an internal time stamp, and parsing and formatting
+ * time stamps.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TimeHelperBenchmark {
+    private String timestamp;
+    private int internalTs;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        timestamp = "2010-07-08 09:31:00";
+        internalTs = TimeHelper.now();
+    }
+
+    @Benchmark
+    public int now() {
+        return TimeHelper.now();
+    }
+
+    @Benchmark
+    public Calendar parse() throws InvalidArgumentException {
+        return TimeHelper.parse(timestamp);
+    }
+
+    @Benchmark
+    public String convertToString() {
+        return TimeHelper.convertToString(internalTs);
+    }
+}
@@ -17,13 +17,19 @@
 
 package com.moscona.exceptions;
 
+import com.moscona.util.collections.ConcurrentCappedBuffer;
+import com.moscona.util.collections.ICappedBuffer;
+import com.moscona.util.collections.IRecordCodec;
+
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 
 /**
  * Created: Apr 6, 2010 5:33:10 PM
@@ -32,6 +38,7 @@ import java.util.Date;
  */
 public class StackTraceHelper {
     final private ArrayList<StackTraceSequenceElement> debugSequence;
+    private volatile ICappedBuffer<StackTraceSequenceElement> debugBuffer; // if not null, used instead of debugSequence
     private String tag = null; // if not null will auto-filter
     private static StackTraceHelper instance = null;
     private String[] filterSubstrings = {
@@ -116,19 +123,72 @@ public class StackTraceHelper {
         }
     }
 
+    /**
+     * Switches debugMark() to a lock-free buffer that keeps only the most recent marks, so that marking from many
+     * threads does not serialize them. Marks collected so far are dropped.
+     * @param capacity the number of marks to keep (rounded up to a power of two)
+     */
+    public void useCappedDebugSequence(int capacity) {
+        useDebugSequence(new ConcurrentCappedBuffer<StackTraceSequenceElement>(capacity));
+    }
+
+    /**
+     * Switches debugMark() to the given capped buffer, e.g. a MappedCappedBuffer using SequenceElementCodec so that
+     * the marks survive a crash. Marks collected so far are dropped.
+     * @param buffer the buffer to keep the marks in
+     */
+    public void useDebugSequence(ICappedBuffer<StackTraceSequenceElement> buffer) {
+        debugBuffer = buffer;
+        debugClearList();
+    }
+
     public void debugMark(String context, String tag) {
         StackTraceSequenceElement element = new StackTraceSequenceElement(context, tag);
+        ICappedBuffer<StackTraceSequenceElement> buffer = debugBuffer;
+        if (buffer != null) {
+            buffer.add(element);
+            return;
+        }
         synchronized (debugSequence) {
             debugSequence.add(element);
         }
     }
 
     public void debugClearList() {
+        ICappedBuffer<StackTraceSequenceElement> buffer = debugBuffer;
+        if (buffer != null) {
+            buffer.clear();
+        }
         synchronized (debugSequence) {
             debugSequence.clear();
         }
     }
 
+    /**
+     * @param andClear whether to remove the marks that are returned
+     * @return the marks collected so far, oldest first
+     */
+    private List<StackTraceSequenceElement> debugSequenceCopy(boolean andClear) {
+        ArrayList<StackTraceSequenceElement> retval = new ArrayList<>();
+        ICappedBuffer<StackTraceSequenceElement> buffer = debugBuffer;
+        if (buffer != null) {
+            if (andClear) {
+                buffer.drainTo(retval);
+            }
+            else {
+                retval.addAll(buffer.snapshot());
+            }
+            return retval;
+        }
+        synchronized (debugSequence) {
+            retval.addAll(debugSequence);
+            if (andClear) {
+                debugSequence.clear();
+            }
+        }
+        return retval;
+    }
+
     public void debugDump(String tag, boolean andClear) {
         debugDump(tag, andClear, System.err);
     }
@@ -157,36 +217,32 @@ public class StackTraceHelper {
         }
     }
     public void debugDump(String tag, boolean andClear, PrintStream out) {
-        synchronized (debugSequence) {
-            out.println("\n\n=====================================================");
-            out.println("Dump of stack trace history: ");
-            out.println("=====================================================\n\n");
+        List<StackTraceSequenceElement> sequence = debugSequenceCopy(andClear);
+        out.println("\n\n=====================================================");
+        out.println("Dump of stack trace history: ");
+        out.println("=====================================================\n\n");
 
-            if (debugSequence.size()==0) {
-                out.println("Nothing to print...");
-                return;
-            }
+        if (sequence.size()==0) {
+            out.println("Nothing to print...");
+            return;
+        }
 
-            int i=0;
-            long start = debugSequence.get(0).timestamp;
-            for (StackTraceSequenceElement element: debugSequence) {
-                if (tag==null || element.tag != null && element.tag.equals(tag)) {
-                    out.println("........................");
-                    out.println(Integer.toString(i++)+": "+element.context+"  tag "+element.tag+"\n");
-                    out.println("at "+(element.timestamp-start)+"  thread: "+element.thread);
-                    for (StackTraceElement e: element.trace) {
-                        String clazz = e.getClassName();
-                        if (passesStandardFilter(clazz)) {
-                            out.println("  at "+clazz+"."+e.getMethodName()+"("+e.getFileName()+":"+e.getLineNumber()+")");
-                        }
+        int i=0;
+        long start = sequence.get(0).timestamp;
+        for (StackTraceSequenceElement element: sequence) {
+            if (tag==null || element.tag != null && element.tag.equals(tag)) {
+                out.println("........................");
+                out.println(Integer.toString(i++)+": "+element.context+"  tag "+element.tag+"\n");
+                out.println("at "+(element.timestamp-start)+"  thread: "+element.thread);
+                for (StackTraceElement e: element.trace) {
+                    String clazz = e.getClassName();
+                    if (passesStandardFilter(clazz)) {
+                        out.println("  at "+clazz+"."+e.getMethodName()+"("+e.getFileName()+":"+e.getLineNumber()+")");
                     }
                 }
             }
-            out.println("\n\n\n");
-            if(andClear) {
-                debugClearList();
-            }
         }
+        out.println("\n\n\n");
     }
 
     private boolean passesStandardFilter(String clazz) {
@@ -223,5 +279,77 @@ public class StackTraceHelper {
             timestamp = System.currentTimeMillis();
             thread = Thread.currentThread().toString()+" ("+Thread.currentThread().getId()+")";
         }
+
+        private StackTraceSequenceElement(String context, String tag, long timestamp, String thread, StackTraceElement[] trace) {
+            this.context = context;
+            this.tag = tag;
+            this.timestamp = timestamp;
+            this.thread = thread;
+            this.trace = trace;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder retval = new StringBuilder();
+            retval.append(new Date(timestamp)).append(": ").append(context).append("  tag ").append(tag)
+                    .append("  thread: ").append(thread);
+            for (StackTraceElement e: trace) {
+                retval.append("\n  at ").append(e);
+            }
+            return retval.toString();
+        }
+    }
+
+    /**
+     * Records debug marks in a MappedCappedBuffer. The context, tag and thread are truncated to a third of the record
+     * each, and the stack trace to the frames that fit whole in what is left, innermost frames first.
+     */
+    public static class SequenceElementCodec implements IRecordCodec<StackTraceSequenceElement> {
+        private static final int FIXED_SIZE = 8 + 3 * 2 + 2; // time stamp, three string lengths and the frame count
+
+        @Override
+        public void encode(StackTraceSequenceElement value, ByteBuffer record) {
+            int maxChars = (record.remaining() - FIXED_SIZE) / 6;
+            record.putLong(value.timestamp);
+            IRecordCodec.putString(record, value.context, maxChars);
+            IRecordCodec.putString(record, value.tag, maxChars);
+            IRecordCodec.putString(record, value.thread, maxChars);
+            int countPosition = record.position();
+            record.putShort((short) 0);
+            short count = 0;
+            for (StackTraceElement e: value.trace) {
+                if (record.remaining() < frameSize(e) || count == Short.MAX_VALUE) {
+                    break;
+                }
+                record.putInt(e.getLineNumber());
+                IRecordCodec.putString(record, e.getClassName());
+                IRecordCodec.putString(record, e.getMethodName());
+                IRecordCodec.putString(record, e.getFileName());
+                count++;
+            }
+            record.putShort(countPosition, count);
+        }
+
+        private static int frameSize(StackTraceElement e) {
+            String fileName = e.getFileName();
+            return 4 + 3 * 2 + 2 * (e.getClassName().length() + e.getMethodName().length() + (fileName == null ? 0 : fileName.length()));
+        }
+
+        @Override
+        public StackTraceSequenceElement decode(ByteBuffer record) {
+            long timestamp = record.getLong();
+            String context = IRecordCodec.getString(record);
+            String tag = IRecordCodec.getString(record);
+            String thread = IRecordCodec.getString(record);
+            StackTraceElement[] trace = new StackTraceElement[record.getShort()];
+            for (int i = 0; i < trace.length; i++) {
+                int line = record.getInt();
+                String className = IRecordCodec.getString(record);
+                String methodName = IRecordCodec.getString(record);
+                String fileName = IRecordCodec.getString(record);
+                trace[i] = new StackTraceElement(className == null ? "?" : className, methodName == null ? "?" : methodName, fileName, line);
+            }
+            return new StackTraceSequenceElement(context, tag, timestamp, thread, trace);
+        }
     }
 }
@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.util;
+
+/**
+ * Descriptive statistics that can also answer percentile (quantile) queries, typically from a histogram, so the
+ * answers may be approximate.
+ */
+public interface IPercentileStatistic extends ISimpleDescriptiveStatistic {
+    /**
+     * Returns the value at the given percentile: the smallest value such that at least the given percent of the
+     * samples are at or below it.
+     * @param percentile a number between 0.0 and 100.0 (e.g. 99.9)
+     * @return the value at the percentile, or 0.0 if there are no samples
+     */
+    double percentile(double percentile);
+}
@@ -41,6 +41,7 @@ public abstract class EventBase {
     }
 
     protected EventBase(String name, String description, String key, Object value) {
+        this(name, description);
         HashMap<String, Object> metaData  = new HashMap<>();
         metaData.put(key, value);
         attachMetadata(metaData);
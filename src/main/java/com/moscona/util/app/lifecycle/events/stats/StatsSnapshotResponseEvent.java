@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.util.app.lifecycle.events.stats;
+
+import com.moscona.util.monitoring.stats.IStatsService;
+import com.moscona.util.monitoring.stats.StatsSnapshot;
+
+/**
+ * A StatsUpdateResponseEvent whose stats object is an immutable StatsSnapshot of an IStatsService.
+ * A component that keeps its stats in an IStatsService answers a StatsUpdateRequestEvent by publishing
+ * StatsSnapshotResponseEvent.of("my component", stats, false).
+ */
+public class StatsSnapshotResponseEvent extends StatsUpdateResponseEvent {
+    private final String statsObjectIdentifier;
+    private final StatsSnapshot snapshot;
+
+    /**
+     * @param statsObjectIdentifier identifies the stats object ("name"), as in StatsUpdateResponseEvent
+     * @param snapshot the snapshot to publish
+     */
+    public StatsSnapshotResponseEvent(String statsObjectIdentifier, StatsSnapshot snapshot) {
+        super(statsObjectIdentifier, snapshot);
+        this.statsObjectIdentifier = statsObjectIdentifier;
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Takes a snapshot of a stats service and wraps it in a response event
+     * @param statsObjectIdentifier identifies the stats object ("name")
+     * @param stats the stats service
+     * @param resetDeltas whether to reset the stats after copying them (see IStatsService.snapshot(boolean))
+     * @return the event to publish
+     */
+    public static StatsSnapshotResponseEvent of(String statsObjectIdentifier, IStatsService stats, boolean resetDeltas) {
+        return new StatsSnapshotResponseEvent(statsObjectIdentifier, stats.snapshot(resetDeltas));
+    }
+
+    public String getStatsObjectIdentifier() {
+        return statsObjectIdentifier;
+    }
+
+    public StatsSnapshot getSnapshot() {
+        return snapshot;
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.moscona.util.async;
+
+import com.moscona.exceptions.InvalidStateException;
+import com.moscona.util.concurrent.DaemonThread;
+import com.moscona.util.monitoring.stats.IStatCounter;
+import com.moscona.util.monitoring.stats.IStatGauge;
+import com.moscona.util.monitoring.stats.IStatTimer;
+import com.moscona.util.monitoring.stats.IStatsService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges the asynchronous calls of many signatures into batches, so that a backend that supports multi-get is called
+ * once per batch instead of once per signature. Signatures are collected (see add(), or BatchedAsyncFunctionCall) and
+ * a batch is dispatched through the IBatchCall when the first signature in it has waited for the batch window, or as
+ * soon as the batch reaches the maximum size. The batch call returns the results through the results store, as a
+ * single call would, so callers are not aware of the batching.
+ * <p>
+ * Batches are dispatched one at a time by a single daemon thread, so the batch call should return quickly and let the
+ * backend answer asynchronously. A signature that the backend does not answer stays pending in the results store. If
+ * the batch call throws, all the calls in the batch fail with what it threw and dispatching goes on. If the
+ * dispatching thread is interrupted, the dispatcher stops and the signatures still waiting for a batch fail with an
+ * InterruptedException. A VirtualMachineError (e.g. OutOfMemoryError) thrown by the batch call stops the dispatcher
+ * the same way, failing the batch and the waiting signatures with it, and then ends the dispatching thread.
+ * Each batch call gets a list of its own, which it may keep until it has answered all of its signatures.
+ * </p>
+ * <p>
+ * If a stats service is given, each batch is reported under "async_batch_" + name + "_": the number of batches and
+ * of signatures dispatched, the size of the last batch, how long the oldest signature in the batch waited, and how
+ * long the batch call took.
+ * </p>
+ */
+public class AsyncBatchDispatcher<V> implements Runnable {
+    public static final int DEFAULT_MAX_BATCH_SIZE = 100;
+    public static final long DEFAULT_WINDOW_MILLIS = 5L;
+
+    private final AsyncFunctionFutureResults<V> results;
+    private final IBatchCall<V> batchCall;
+    private final String name;
+    private final int maxBatchSize;
+    private final long windowNanos;
+    private final LinkedHashMap<String, Long> pending = new LinkedHashMap<String, Long>(); // signature -> when added
+    private boolean running = false;
+    private DaemonThread thread = null;
+    private long batchCount = 0L;
+    private long signatureCount = 0L;
+    private int largestBatch = 0;
+
+    private final IStatCounter batchesStat;
+    private final IStatCounter signaturesStat;
+    private final IStatGauge batchSizeStat;
+    private final IStatTimer batchDelayStat;
+    private final IStatTimer dispatchTimeStat;
+
+    public AsyncBatchDispatcher(String name, AsyncFunctionFutureResults<V> results, IBatchCall<V> batchCall) {
+        this(name, results, batchCall, DEFAULT_MAX_BATCH_SIZE, DEFAULT_WINDOW_MILLIS, null);
+    }
+
+    /**
+     * @param name the name of the dispatcher, used for its thread and its stats
+     * @param results the results store the batched calls use
+     * @param batchCall the body of the batched call
+     * @param maxBatchSize the maximum number of signatures in a batch
+     * @param windowMillis how long the first signature of a batch waits for others to join it (msec)
+     * @param stats where to report the batches, or null
+     */
+    public AsyncBatchDispatcher(String name, AsyncFunctionFutureResults<V> results, IBatchCall<V> batchCall,
+                                int maxBatchSize, long windowMillis, IStatsService stats) {
+        this.name = name;
+        this.results = results;
+        this.batchCall = batchCall;
+        this.maxBatchSize = maxBatchSize;
+        windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        String prefix = "async_batch_" + name + "_";
+        batchesStat = stats == null ? null : stats.counter(prefix + "batches");
+        signaturesStat = stats == null ? null : stats.counter(prefix + "signatures");
+        batchSizeStat = stats == null ? null : stats.gauge(prefix + "last_batch_size");
+        batchDelayStat = stats == null ? null : stats.timer(prefix + "batch_delay", TimeUnit.MICROSECONDS);
+        dispatchTimeStat = stats == null ? null : stats.timer(prefix + "dispatch_time", TimeUnit.MICROSECONDS);
+    }
+
+    public AsyncFunctionFutureResults<V> getResults() {
+        return results;
+    }
+
+    /**
+     * Starts the dispatching thread. Does nothing if already started.
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        running = true;
+        thread = new DaemonThread(this, "batch dispatcher " + name);
+        thread.start();
+    }
+
+    /**
+     * Dispatches whatever is pending and stops the dispatching thread
+     * @throws InterruptedException if interrupted while waiting for the thread to finish
+     */
+    public void stop() throws InterruptedException {
+        DaemonThread stopping;
+        synchronized (this) {
+            stopping = thread;
+            running = false;
+            thread = null;
+            notifyAll();
+        }
+        if (stopping != null) {
+            stopping.join();
+        }
+    }
+
+    /**
+     * Adds a signature to the next batch. A signature already waiting for a batch is not added again.
+     * @param signature the signature of the call
+     * @throws InvalidStateException if the dispatcher is not running
+     */
+    public synchronized void add(String signature) throws InvalidStateException {
+        if (!running) {
+            throw new InvalidStateException("Batch dispatcher " + name + " is not running");
+        }
+        if (pending.containsKey(signature)) {
+            return;
+        }
+        pending.put(signature, System.nanoTime());
+        if (pending.size() == 1 || pending.size() >= maxBatchSize) {
+            notifyAll(); // a batch was started or is full
+        }
+    }
+
+    @Override
+    public void run() {
+        for (;;) {
+            long waited;
+            List<String> batch;
+            try {
+                synchronized (this) {
+                    waited = awaitBatch();
+                    if (pending.isEmpty()) {
+                        return; // stopped
+                    }
+                    batch = takeBatch();
+                }
+            }
+            catch (InterruptedException e) {
+                abandon(e);
+                Thread.currentThread().interrupt();
+                return;
+            }
+            dispatch(batch, waited);
+        }
+    }
+
+    /**
+     * Waits, holding the monitor, until a batch is due or the dispatcher is stopped
+     * @return how long the oldest signature in the batch waited (nsec)
+     */
+    private long awaitBatch() throws InterruptedException {
+        for (;;) {
+            if (pending.isEmpty()) {
+                if (!running) {
+                    return 0L;
+                }
+                wait();
+                continue;
+            }
+            long waited = System.nanoTime() - pending.values().iterator().next();
+            if (!running || pending.size() >= maxBatchSize || waited >= windowNanos) {
+                return waited;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, windowNanos - waited);
+        }
+    }
+
+    /**
+     * @return the oldest pending signatures, up to a full batch, in a new unmodifiable list that the batch call may
+     * keep
+     */
+    private List<String> takeBatch() {
+        List<String> batch = new ArrayList<String>(Math.min(pending.size(), maxBatchSize));
+        Iterator<String> signatures = pending.keySet().iterator();
+        while (signatures.hasNext() && batch.size() < maxBatchSize) {
+            batch.add(signatures.next());
+            signatures.remove();
+        }
+        return Collections.unmodifiableList(batch);
+    }
+
+    /**
+     * Stops the dispatcher when its thread cannot go on, and fails the signatures that were waiting for a batch,
+     * which would otherwise never be dispatched
+     * @param cause why the thread is ending: an interruption or a VirtualMachineError
+     */
+    private void abandon(Throwable cause) {
+        List<String> abandoned;
+        synchronized (this) {
+            running = false;
+            if (thread == Thread.currentThread()) {
+                thread = null;
+            }
+            abandoned = new ArrayList<String>(pending.keySet());
+            pending.clear();
+        }
+        for (String signature: abandoned) { // outside the monitor, as the callers' callbacks run here
+            results.throwException(signature, cause);
+        }
+    }
+
+    private void dispatch(List<String> batch, long waited) {
+        long started = System.nanoTime();
+        try {
+            batchCall.asyncCall(batch, results);
+        }
+        catch (VirtualMachineError e) {
+            fail(batch, e);
+            abandon(e);
+            throw e;
+        }
+        catch (Throwable e) { // anything else is the batch call's failure, and dispatching goes on
+            fail(batch, e);
+        }
+        long dispatchTime = System.nanoTime() - started;
+
+        synchronized (this) {
+            batchCount++;
+            signatureCount += batch.size();
+            largestBatch = Math.max(largestBatch, batch.size());
+        }
+        if (batchesStat != null) {
+            batchesStat.inc();
+            signaturesStat.inc(batch.size());
+            batchSizeStat.set(batch.size());
+            batchDelayStat.record(waited, TimeUnit.NANOSECONDS);
+            dispatchTimeStat.record(dispatchTime, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void fail(List<String> batch, Throwable cause) {
+        for (String signature: batch) {
+            results.throwException(signature, cause);
+        }
+    }
+
+    public synchronized long getBatchCount() {
+        return batchCount;
+    }
+
+    /**
+     * @return the number of signatures dispatched in all the batches
+     */
+    public synchronized long getSignatureCount() {
+        return signatureCount;
+    }
+
+    public synchronized int getLargestBatch() {
+        return largestBatch;
+    }
+
+    /**
+     * @return the number of signatures waiting for a batch
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.util.async;
+
+import com.moscona.util.monitoring.stats.IStatCounter;
+import com.moscona.util.monitoring.stats.IStatTimer;
+import com.moscona.util.monitoring.stats.IStatsService;
+
+/**
+ * The stat handles FutureValueWithTimeStamps reports a completed call to, resolved once per stats service and prefix
+ * rather than by concatenating and looking up "async_call_" + prefix + "_..." names on every call.
+ */
+public class AsyncCallStats {
+    private static volatile AsyncCallStats last = null; // the handles handed out last by of()
+
+    private final IStatsService stats;
+    private final String prefix;
+    final IStatTimer totalResponseTime;
+    final IStatTimer firstResponseTime;
+    final IStatTimer responseProcessingTime;
+    final IStatTimer remoteResponseTime;
+    final IStatTimer firstByteToFinishTime;
+    final IStatCounter totalDataSize;
+
+    public AsyncCallStats(IStatsService stats, String prefix) {
+        this.stats = stats;
+        this.prefix = prefix;
+        String p = "async_call_" + prefix + "_";
+        totalResponseTime = stats.timer(p + "total_response_time");
+        firstResponseTime = stats.timer(p + "first_response_time");
+        responseProcessingTime = stats.timer(p + "response_processing_time");
+        remoteResponseTime = stats.timer(p + "remote_response_time");
+        firstByteToFinishTime = stats.timer(p + "first_byte_to_finish_time");
+        totalDataSize = stats.counter(p + "total_data_size");
+    }
+
+    /**
+     * Callers almost always pass the same stats service and prefix, so the handles for the last pair are kept.
+     * @param stats a stats service
+     * @param prefix a stat name prefix
+     * @return the stat handles for the given service and prefix
+     */
+    public static AsyncCallStats of(IStatsService stats, String prefix) {
+        AsyncCallStats retval = last;
+        if (retval == null || !retval.isFor(stats, prefix)) {
+            retval = new AsyncCallStats(stats, prefix);
+            last = retval;
+        }
+        return retval;
+    }
+
+    /**
+     * @param stats a stats service
+     * @param prefix a stat name prefix
+     * @return true if these handles report to the given service under the given prefix
+     */
+    public boolean isFor(IStatsService stats, String prefix) {
+        return this.stats == stats && this.prefix.equals(prefix);
+    }
+}
@@ -18,8 +18,10 @@
 package com.moscona.util.async;
 
 import com.moscona.exceptions.InvalidStateException;
+import com.moscona.util.async.furtures.ExtendedCompletionStage;
+import com.moscona.util.async.furtures.Futures;
 
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -86,6 +88,10 @@ public abstract class AsyncFunctionCall<V> {
     public V call(AsyncFunctionFutureResults<V> results) throws Exception {
         //noinspection AssignmentToCollectionOrArrayFieldFromParameter
         resultsStore = results;
+        AsyncResultCache.Entry<V> cached = lookUpCache();
+        if (cached != null) {
+            return cached.getValue();
+        }
         performAsyncCall();
         return future.get();
     }
@@ -95,7 +101,64 @@ public abstract class AsyncFunctionCall<V> {
     }
 
     /**
-     * Performs the async call, but first makes sure that there is a future available in the pending calls list
+     * Performs a non blocking call: invokes the async call and returns a stage that completes when returnToCallers()
+     * or throwException() is called for the signature of this call. No thread waits for the result, so any number of
+     * calls can be in flight. The stage shares the future of any pending call with the same signature, and the
+     * callbacks of all those callers run when it completes.
+     *
+     * @param results the results store to use
+     * @return a stage for the computed result, which should be considered immutable for the same reasons as with
+     * call(). If the async call could not be made, the stage is already completed with its exception.
+     */
+    public ExtendedCompletionStage<V> callAsync(AsyncFunctionFutureResults<V> results) {
+        //noinspection AssignmentToCollectionOrArrayFieldFromParameter
+        resultsStore = results;
+        try {
+            AsyncResultCache.Entry<V> cached = lookUpCache();
+            if (cached != null) {
+                return Futures.extend(CompletableFuture.completedFuture(cached.getValue()));
+            }
+            performAsyncCall();
+        } catch (Exception e) {
+            CompletableFuture<V> failed = new CompletableFuture<V>();
+            failed.completeExceptionally(e);
+            return Futures.extend(failed);
+        }
+        return future.toCompletionStage();
+    }
+
+    public ExtendedCompletionStage<V> callAsync() {
+        return callAsync(resultsStore);
+    }
+
+    /**
+     * Looks up the result in the cache of the results store, if it has one. If the result is due for a refresh (in
+     * the refresh ahead window or stale) the async call is made without waiting for it, unless another caller
+     * already started the refresh. If the refresh cannot be started the cached result is still returned, and the
+     * next call tries again.
+     *
+     * @return the cached result, or null if the call has to be made
+     */
+    private AsyncResultCache.Entry<V> lookUpCache() {
+        AsyncResultCache<V> cache = resultsStore == null ? null : resultsStore.getCache();
+        if (cache == null) {
+            return null;
+        }
+        AsyncResultCache.Entry<V> entry = cache.get(getArgumentsSignature());
+        if (entry != null && cache.claimRefresh(entry)) {
+            try {
+                performAsyncCall();
+            } catch (Exception e) {
+                cache.refreshFailed(getArgumentsSignature()); // performAsyncCall() already failed any joined callers
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Performs the async call, but first makes sure that there is a future available in the pending calls list. If a
+     * call with the same signature is already pending this call just shares its future, and asyncCall() is not
+     * invoked again. If asyncCall() fails, the callers that joined the call are failed with the same exception.
      *
      * @throws Exception
      */
@@ -103,18 +166,24 @@ public abstract class AsyncFunctionCall<V> {
         if (resultsStore == null) {
             throw new InvalidStateException("Attempt to call asynchronous function without a results store");
         }
-        ConcurrentHashMap<String, FutureValue<V>> pending = resultsStore;
         StringBuilder name = new StringBuilder();
         String signature = getArgumentsSignature();
         name.append(getClass().getName()).append("(").append(signature).append(")");
         FutureValueWithTimeStamps<V> newFuture = new FutureValueWithTimeStamps<V>(name.toString(), this);
-        future = (FutureValueWithTimeStamps<V>) (pending.putIfAbsent(signature, newFuture));
-        if (future == null) {
-            future = newFuture;
+        FutureValue<V> pending = resultsStore.addPending(signature, newFuture);
+        if (pending != null) {
+            future = (FutureValueWithTimeStamps<V>) pending;
+            return; // joined a pending call, which will answer this caller too
         }
+        future = newFuture;
 
         future.markRequestTimeStamp();
-        asyncCall(); // should return immediately and later call returnToCallers()
+        try {
+            asyncCall(); // should return immediately and later call returnToCallers()
+        } catch (Exception e) {
+            resultsStore.expire(signature, future, e);
+            throw e;
+        }
     }
 
 
@@ -136,6 +205,10 @@ public abstract class AsyncFunctionCall<V> {
         try {
             //noinspection AssignmentToCollectionOrArrayFieldFromParameter
             resultsStore = results;
+            AsyncResultCache.Entry<V> cached = lookUpCache();
+            if (cached != null) {
+                return cached.getValue();
+            }
             performAsyncCall();
         } catch (Exception e) {
             throw new ExecutionException("Exception while performing the asynchronous call: " + e, e);
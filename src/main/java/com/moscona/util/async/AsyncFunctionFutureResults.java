@@ -29,11 +29,106 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public class AsyncFunctionFutureResults<V> extends ConcurrentHashMap<String, FutureValue<V>> {
     private static final long serialVersionUID = 7610198264459502507L;
+    private transient volatile AsyncCallStats callStats = null; // handles for the last stats service and prefix used
+    private transient volatile AsyncResultCache<V> cache = null;
+    private transient volatile PendingCallReaper<V> reaper = null;
 
     public AsyncFunctionFutureResults() {
         super();
     }
 
+    /**
+     * Keeps returned results in the given cache, so that calls with the same signature made later get the result
+     * without calling the backend again
+     *
+     * @param cache the cache to use, or null to stop caching
+     * @return this
+     */
+    public AsyncFunctionFutureResults<V> useCache(AsyncResultCache<V> cache) {
+        this.cache = cache;
+        return this;
+    }
+
+    public AsyncResultCache<V> getCache() {
+        return cache;
+    }
+
+    /**
+     * Called by PendingCallReaper.start() and stop()
+     */
+    void useReaper(PendingCallReaper<V> reaper) {
+        this.reaper = reaper;
+    }
+
+    public PendingCallReaper<V> getReaper() {
+        return reaper;
+    }
+
+    /**
+     * Adds a pending call, unless one with the same signature is already pending. A new call is admitted and tracked
+     * by the reaper, if there is one. A call the reaper expires to make room for the new one is failed only after the
+     * monitor is released, as failing it runs the callbacks of its callers.
+     *
+     * @param signature the signature of the call
+     * @param future the future for the new call
+     * @return the future of the call already pending, or null if the new one was added
+     * @throws java.util.concurrent.RejectedExecutionException if the reaper rejects the new call
+     */
+    FutureValue<V> addPending(String signature, FutureValue<V> future) {
+        PendingCallReaper<V> currentReaper = reaper;
+        if (currentReaper == null) {
+            return putIfAbsent(signature, future);
+        }
+        FutureValue<V> existing;
+        PendingCallReaper.Deadline<V> evicted = null;
+        synchronized (this) { // so that concurrent new calls do not overshoot the limit, and are tracked in order
+            existing = get(signature);
+            if (existing == null) {
+                evicted = currentReaper.admit();
+                existing = putIfAbsent(signature, future);
+                if (existing == null) {
+                    currentReaper.track(signature, future);
+                }
+            }
+        }
+        if (evicted != null) {
+            currentReaper.expireEvicted(evicted);
+        }
+        return existing;
+    }
+
+    /**
+     * Fails a call that is still pending, but not a later call with the same signature
+     *
+     * @param signature the signature of the call
+     * @param future the future of the call
+     * @param ex the exception to fail the call with
+     * @return whether the call was still pending
+     */
+    boolean expire(String signature, FutureValue<V> future, Throwable ex) {
+        if (!remove(signature, future)) {
+            return false;
+        }
+        failRemoved(signature, future, ex);
+        return true;
+    }
+
+    /**
+     * Fails a call that was already removed from the pending calls
+     *
+     * @param signature the signature of the call
+     * @param future the future of the call
+     * @param ex the exception to fail the call with
+     */
+    void failRemoved(String signature, FutureValue<V> future, Throwable ex) {
+        AsyncResultCache<V> currentCache = cache;
+        if (currentCache != null) {
+            currentCache.refreshFailed(signature);
+        }
+        markCompleteTimeStamp(future, null, null);
+        future.setException(ex);
+    }
+
     /**
      * Notifies all callers to retrieve the results and removes the signature and future from the list
      *
@@ -45,6 +140,10 @@ public class AsyncFunctionFutureResults<V> extends ConcurrentHashMap<String, Fut
     }
 
     public void returnToCallers(String signature, V result, IStatsService stats, String prefix) {
+        AsyncResultCache<V> currentCache = cache;
+        if (currentCache != null) {
+            currentCache.put(signature, result); // before the call stops pending, so that later calls find one or the other
+        }
         FutureValue<V> future = getAndRemoveFutureValue(signature);
         if (future != null) {
             future.set(result);
@@ -56,10 +155,26 @@ public class AsyncFunctionFutureResults<V> extends ConcurrentHashMap<String, Fut
     private void markCompleteTimeStamp(FutureValue<V> future, IStatsService stats, String prefix) {
         if (future != null && FutureValueWithTimeStamps.class.isAssignableFrom(future.getClass())) {
             FutureValueWithTimeStamps valueWithTimeStamps = (FutureValueWithTimeStamps) future;
-            valueWithTimeStamps.markCompleteTimeStamp(stats, prefix);
+            valueWithTimeStamps.markCompleteTimeStamp(getCallStats(stats, prefix));
         }
     }
 
+    /**
+     * Callers almost always pass the same stats service and prefix, so the handles for the last pair are kept.
+     * @return the stat handles for the given service and prefix, or null if either is null
+     */
+    private AsyncCallStats getCallStats(IStatsService stats, String prefix) {
+        if (stats == null || prefix == null) {
+            return null;
+        }
+        AsyncCallStats retval = callStats;
+        if (retval == null || !retval.isFor(stats, prefix)) {
+            retval = new AsyncCallStats(stats, prefix);
+            callStats = retval;
+        }
+        return retval;
+    }
+
     private FutureValue<V> getAndRemoveFutureValue(String signature) {
         FutureValue<V> future;
         synchronized (this) {
@@ -76,6 +191,10 @@ public class AsyncFunctionFutureResults<V> extends ConcurrentHashMap<String, Fut
     }
 
     public void throwException(String signature, Throwable ex, IStatsService stats, String prefix) {
+        AsyncResultCache<V> currentCache = cache;
+        if (currentCache != null) {
+            currentCache.refreshFailed(signature);
+        }
         FutureValue<V> future = getAndRemoveFutureValue(signature);
         markCompleteTimeStamp(future, stats, prefix);
         if (future != null) {
@@ -113,6 +232,10 @@ public class AsyncFunctionFutureResults<V> extends ConcurrentHashMap<String, Fut
      * @param signature the call signature
      */
     public synchronized void cancelAll(String signature) {
+        AsyncResultCache<V> currentCache = cache;
+        if (currentCache != null) {
+            currentCache.refreshFailed(signature);
+        }
         FutureValue<V> future = getAndRemoveFutureValue(signature);
         if (future != null) {
             future.cancel(true);
@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.moscona.util.async;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * An optional result cache for AsyncFunctionFutureResults (see AsyncFunctionFutureResults.useCache()).
+ * AsyncFunctionFutureResults coalesces calls that are pending at the same time, but forgets the result as soon as it is
+ * returned. With a cache, the result is kept for a time to live (TTL) per signature, and calls made meanwhile return it
+ * without going to the backend. The cache holds up to maxSize signatures, evicting the least recently used.
+ * <p>
+ * Lookups take no lock, so that hits on any number of signatures do not hold each other up. Each entry remembers when
+ * it was last used, to a millisecond, and when a put takes the cache over maxSize, the put evicts the results that are
+ * too stale to use and then the least recently used ones. A few more than the excess are evicted, so that a full
+ * cache is not scanned on every put. While one put is evicting others do not wait for it, so the cache may briefly
+ * hold a few more than maxSize results.
+ * </p>
+ * <p>
+ * Two options keep hot signatures from ever waiting on the backend while still refreshing them once per TTL:
+ * <ul>
+ *     <li>refresh ahead - a call made within refreshAheadMillis of the expiration returns the cached result and
+ *     starts a refresh in the background</li>
+ *     <li>stale while revalidate - a call made up to staleMillis after the expiration returns the stale result and
+ *     starts a refresh in the background</li>
+ * </ul>
+ * Only one refresh per entry is started, and the refresh is coalesced with any pending call as usual.
+ * </p>
+ */
+public class AsyncResultCache<V> {
+    private static final long ACCESS_RESOLUTION_NANOS = TimeUnit.MILLISECONDS.toNanos(1L);
+    private static final int EVICTION_BATCH_DIVISOR = 16; // a put that evicts makes room for maxSize/16 more
+
+    private final int maxSize;
+    private final long refreshAheadNanos;
+    private final long staleNanos;
+    private final ConcurrentHashMap<String, Entry<V>> entries = new ConcurrentHashMap<String, Entry<V>>();
+    private final AtomicBoolean evicting = new AtomicBoolean(false);
+    private volatile ToLongFunction<String> ttlMillis;
+    private volatile LongSupplier clock = System::nanoTime;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder staleHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder refreshes = new LongAdder();
+
+    /**
+     * A cached result
+     */
+    public static final class Entry<V> {
+        private final V value;
+        private final long refreshAt;
+        private final long expiresAt;
+        private final long staleUntil;
+        private final AtomicBoolean refreshing = new AtomicBoolean(false);
+        private volatile long lastUsed;
+
+        private Entry(V value, long now, long refreshAt, long expiresAt, long staleUntil) {
+            this.value = value;
+            this.refreshAt = refreshAt;
+            this.expiresAt = expiresAt;
+            this.staleUntil = staleUntil;
+            lastUsed = now;
+        }
+
+        /**
+         * Marks the entry used. Writes only once per ACCESS_RESOLUTION_NANOS, so that the hits on a hot entry do not
+         * all write to it.
+         */
+        private void used(long now) {
+            if (now - lastUsed >= ACCESS_RESOLUTION_NANOS) {
+                lastUsed = now;
+            }
+        }
+
+        public V getValue() {
+            return value;
+        }
+
+        /**
+         * @param now the current time (nsec, as System.nanoTime())
+         * @return whether the entry is past its TTL
+         */
+        public boolean isStale(long now) {
+            return now - expiresAt >= 0L;
+        }
+    }
+
+    /**
+     * @param maxSize the maximum number of signatures to keep results for
+     * @param ttlMillis the time to live of every result (msec)
+     */
+    public AsyncResultCache(int maxSize, long ttlMillis) {
+        this(maxSize, ttlMillis, 0L, 0L);
+    }
+
+    /**
+     * @param maxSize the maximum number of signatures to keep results for
+     * @param ttlMillis the time to live of every result (msec)
+     * @param refreshAheadMillis how long before the expiration calls start a refresh (msec), 0 for none
+     * @param staleMillis how long after the expiration stale results are still returned while refreshing (msec), 0 for
+     *                    none
+     */
+    public AsyncResultCache(int maxSize, final long ttlMillis, long refreshAheadMillis, long staleMillis) {
+        this.maxSize = maxSize;
+        this.ttlMillis = signature -> ttlMillis;
+        refreshAheadNanos = TimeUnit.MILLISECONDS.toNanos(refreshAheadMillis);
+        staleNanos = TimeUnit.MILLISECONDS.toNanos(staleMillis);
+    }
+
+    /**
+     * Sets a TTL per signature, replacing the one given to the constructor
+     * @param ttlMillis the TTL of the results of a signature (msec). A TTL of 0 or less means the results of the
+     *                  signature are not cached.
+     * @return this
+     */
+    public AsyncResultCache<V> withTtl(ToLongFunction<String> ttlMillis) {
+        this.ttlMillis = ttlMillis;
+        return this;
+    }
+
+    /**
+     * For testability
+     * @param clock a replacement for System.nanoTime()
+     */
+    void setClock(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Looks up the result for a signature.
+     * @param signature the call signature
+     * @return the entry, which may be stale, or null if there is none or it is too stale to use
+     */
+    public Entry<V> get(String signature) {
+        Entry<V> entry = entries.get(signature);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        long now = clock.getAsLong();
+        if (now - entry.staleUntil >= 0L) {
+            entries.remove(signature, entry);
+            misses.increment();
+            return null;
+        }
+        entry.used(now);
+        (entry.isStale(now) ? staleHits : hits).increment();
+        return entry;
+    }
+
+    /**
+     * Claims the refresh of an entry returned by get(), if it is due and no refresh was claimed already
+     * @param entry the entry
+     * @return true if the caller should refresh the entry
+     */
+    public boolean claimRefresh(Entry<V> entry) {
+        long now = clock.getAsLong();
+        if (now - entry.refreshAt >= 0L && entry.refreshing.compareAndSet(false, true)) {
+            refreshes.increment();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Lets the entry of a signature be refreshed again after a refresh failed
+     * @param signature the call signature
+     */
+    public void refreshFailed(String signature) {
+        Entry<V> entry = entries.get(signature);
+        if (entry != null) {
+            entry.refreshing.set(false);
+        }
+    }
+
+    /**
+     * Caches a result, replacing any previous result for the signature
+     * @param signature the call signature
+     * @param value the result
+     */
+    public void put(String signature, V value) {
+        long ttl = TimeUnit.MILLISECONDS.toNanos(ttlMillis.applyAsLong(signature));
+        if (ttl <= 0L) {
+            entries.remove(signature);
+            return;
+        }
+        long now = clock.getAsLong();
+        long expiresAt = now + ttl;
+        entries.put(signature, new Entry<V>(value, now, expiresAt - Math.min(refreshAheadNanos, ttl), expiresAt,
+                expiresAt + staleNanos));
+        if (entries.size() > maxSize) {
+            evict(now);
+        }
+    }
+
+    /**
+     * Evicts the results that are too stale to use, and then the least recently used ones, down to a little below
+     * maxSize. Does nothing if another thread is already evicting.
+     * @param now the current time (nsec, as System.nanoTime())
+     */
+    private void evict(long now) {
+        if (!evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            List<Map.Entry<String, Entry<V>>> candidates = new ArrayList<Map.Entry<String, Entry<V>>>(entries.size());
+            for (Map.Entry<String, Entry<V>> candidate: entries.entrySet()) {
+                if (now - candidate.getValue().staleUntil >= 0L) {
+                    entries.remove(candidate.getKey(), candidate.getValue());
+                }
+                else {
+                    candidates.add(candidate);
+                }
+            }
+            int excess = candidates.size() - (maxSize - maxSize / EVICTION_BATCH_DIVISOR);
+            if (excess <= 0) {
+                return;
+            }
+            candidates.sort(Comparator.comparingLong(candidate -> candidate.getValue().lastUsed - now));
+            for (int i = 0; i < excess; i++) {
+                entries.remove(candidates.get(i).getKey(), candidates.get(i).getValue());
+            }
+        }
+        finally {
+            evicting.set(false);
+        }
+    }
+
+    public void invalidate(String signature) {
+        entries.remove(signature);
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return the number of lookups that found a result within its TTL
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of lookups that found a result past its TTL but still usable while it is refreshed
+     */
+    public long getStaleHits() {
+        return staleHits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of refreshes claimed
+     */
+    public long getRefreshes() {
+        return refreshes.sum();
+    }
+}
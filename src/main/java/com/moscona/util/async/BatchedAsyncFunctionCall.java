@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.moscona.util.async;
+
+/**
+ * An AsyncFunctionCall whose asynchronous call goes through an AsyncBatchDispatcher: asyncCall() only adds the
+ * signature to the dispatcher, which makes one backend call for a whole batch of signatures.
+ * The dispatcher must use the same results store as the call.
+ */
+public abstract class BatchedAsyncFunctionCall<V> extends AsyncFunctionCall<V> {
+    private final AsyncBatchDispatcher<V> dispatcher;
+
+    protected BatchedAsyncFunctionCall(AsyncBatchDispatcher<V> dispatcher) {
+        this.dispatcher = dispatcher;
+        use(dispatcher.getResults());
+    }
+
+    @Override
+    protected void asyncCall() throws Exception {
+        dispatcher.add(computeArgumentsSignature());
+    }
+}
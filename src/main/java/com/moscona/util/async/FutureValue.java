@@ -17,37 +17,72 @@
 
 package com.moscona.util.async;
 
+import com.moscona.util.async.furtures.ExtendedCompletionStage;
+import com.moscona.util.async.furtures.Futures;
+
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Created: Jun 4, 2010 12:57:19 PM By: Arnon Moscona
+ * <p>
+ * The state of the future is a single volatile int that goes from PENDING to one of SET, FAILED or CANCELLED exactly
+ * once, the way FutureTask does it: the completing thread claims the future with a CAS to COMPLETING, stores the
+ * outcome, and publishes it with a volatile write of the final state. Threads waiting in get() push themselves on a
+ * lock free (Treiber) stack and park; the completing thread pops the whole stack and unparks them. So completing an
+ * uncontended future is wait free, and waiters sleep until they are woken by the completion, the timeout or an
+ * interrupt, rather than waking up periodically to poll.
+ * </p>
+ * <p>
+ * Callers that do not want to block can get a completion stage with toCompletionStage() instead. The stages of all
+ * the callers share one CompletableFuture, created on first use, which the completing thread completes after waking
+ * up the waiters, so their callbacks run on the completing thread (or on an executor, with the *Async variants).
+ * </p>
  */
 public class FutureValue<V> implements Future<V> {
-    // FIXME IT-185 can this be replaced by java.util.concurrent.FutureTask?
-    private V value = null;
-    private AtomicBoolean isCanceled;
-    private AtomicBoolean isDone;
-    private final ReentrantLock lock;
-    private final Condition doneCondition;
-    private String name;
-    private Throwable exception;
-    private AsyncFunctionCall<V> creator;
+    private static final int PENDING = 0;
+    private static final int COMPLETING = 1;
+    private static final int SET = 2;
+    private static final int FAILED = 3;
+    private static final int CANCELLED = 4;
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<FutureValue> STATE =
+            AtomicIntegerFieldUpdater.newUpdater(FutureValue.class, "state");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<FutureValue, WaitNode> WAITERS =
+            AtomicReferenceFieldUpdater.newUpdater(FutureValue.class, WaitNode.class, "waiters");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<FutureValue, CompletableFuture> STAGE =
+            AtomicReferenceFieldUpdater.newUpdater(FutureValue.class, CompletableFuture.class, "stage");
+
+    private volatile int state;
+    private Object outcome; // the value or the exception - published by the volatile write of the final state
+    private volatile WaitNode waiters;
+    private volatile CompletableFuture<V> stage; // created by the first toCompletionStage()
+    private final String name;
+    private final AsyncFunctionCall<V> creator;
+
+    /**
+     * A thread waiting in get(). The thread is cleared when it is woken up or gives up waiting.
+     */
+    private static final class WaitNode {
+        private volatile Thread thread = Thread.currentThread();
+        private volatile WaitNode next;
+    }
 
     protected FutureValue(String name, AsyncFunctionCall<V> creator) {
         this.creator = creator;
-        value = null;
-        exception = null;
-        isCanceled = new AtomicBoolean(false);
-        isDone = new AtomicBoolean(false);
-        lock = new ReentrantLock();
-        doneCondition = lock.newCondition();
         this.name = name;
+        state = PENDING;
+        outcome = null;
+        waiters = null;
     }
 
     /**
@@ -60,16 +95,13 @@ public class FutureValue<V> implements Future<V> {
      * <p>After this method returns, subsequent calls to {@link #isDone} will always return <tt>true</tt>.  Subsequent
      * calls to {@link #isCancelled} will always return <tt>true</tt> if this method returned <tt>true</tt>.
      *
-     * @param mayInterruptIfRunning <tt>true</tt> if the thread executing this task should be interrupted; otherwise,
-     *                              in-progress tasks are allowed to complete
+     * @param mayInterruptIfRunning ignored - the asynchronous call is not running on a thread of ours
      * @return <tt>false</tt> if the task could not be cancelled, typically because it has already completed normally;
      * <tt>true</tt> otherwise
      */
     @Override
-    public synchronized boolean cancel(boolean mayInterruptIfRunning) {
-        isCanceled.set(true);
-        signalDone();
-        return true;
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return complete(CANCELLED, null);
     }
 
     /**
@@ -79,7 +111,7 @@ public class FutureValue<V> implements Future<V> {
      */
     @Override
     public boolean isCancelled() {
-        return isCanceled.get();
+        return state == CANCELLED;
     }
 
     /**
@@ -92,35 +124,23 @@ public class FutureValue<V> implements Future<V> {
      */
     @Override
     public boolean isDone() {
-        return isDone.get();
+        return state > COMPLETING;
     }
 
     /**
      * Waits if necessary for the computation to complete, and then retrieves its result.
      *
-     * @return the computed result
-     * @throws java.util.concurrent.CancellationException if the computation was cancelled
+     * @return the computed result, or null if the computation was cancelled
      * @throws java.util.concurrent.ExecutionException    if the computation threw an exception
      * @throws InterruptedException                       if the current thread was interrupted while waiting
      */
     @Override
-    @SuppressWarnings({"MethodWithMultipleReturnPoints"})
     public V get() throws InterruptedException, ExecutionException {
-        if (isDone()) {
-            return getValueOrThrowException();
-        }
-
-        lock.lock();
-        try {
-            while (!isDone()) {
-                if (doneCondition.await(100, TimeUnit.MILLISECONDS) || isDone()) {
-                    return getValueOrThrowException();
-                }
-            }
-            return getValueOrThrowException();
-        } finally {
-            lock.unlock();
+        int s = state;
+        if (s <= COMPLETING) {
+            s = awaitDone(false, 0L);
         }
+        return getValueOrThrowException(s);
     }
 
     /**
@@ -129,61 +149,40 @@ public class FutureValue<V> implements Future<V> {
      *
      * @param timeout the maximum time to wait
      * @param unit    the time unit of the timeout argument
-     * @return the computed result
-     * @throws java.util.concurrent.CancellationException if the computation was cancelled
+     * @return the computed result, or null if the computation was cancelled
      * @throws java.util.concurrent.ExecutionException    if the computation threw an exception
      * @throws InterruptedException                       if the current thread was interrupted while waiting
      * @throws java.util.concurrent.TimeoutException      if the wait timed out
      */
     @Override
     public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
-        if (isDone()) {
-            return getValueOrThrowException();
-        }
-
-        lock.lock();
-        try {
-            if (doneCondition.await(timeout, unit)) {
-                return getValueOrThrowException();
-            } else {
-                throw new TimeoutException("Timeout while waiting for return value in " + name);
-            }
-        } finally {
-            lock.unlock();
+        int s = state;
+        if (s <= COMPLETING && (s = awaitDone(true, unit.toNanos(timeout))) <= COMPLETING) {
+            throw new TimeoutException("Timeout while waiting for return value in " + name);
         }
+        return getValueOrThrowException(s);
     }
 
-    private V getValueOrThrowException() throws ExecutionException {
-        if (exception != null) {
+    @SuppressWarnings("unchecked")
+    private V getValueOrThrowException(int s) throws ExecutionException {
+        if (s == FAILED) {
+            Throwable exception = (Throwable) outcome;
             throw new ExecutionException("Exception while executing asynchronous function " + name + " :" + exception, exception);
         }
-        if (isCancelled()) {
+        if (s == CANCELLED) {
             return null;
         }
-        return value;
+        return (V) outcome;
     }
 
     /**
-     * Sets the value of the instance and then signals waiters that the value is ready
+     * Sets the value of the instance and then signals waiters that the value is ready, unless this Future has already
+     * been set or has been cancelled.
      *
      * @param result the Future result
      */
     public void set(V result) {
-        isDone.set(true);
-        synchronized (this) {
-            value = result;
-        }
-        signalDone();
-    }
-
-    private void signalDone() {
-        lock.lock();
-        try {
-            isDone.set(true);
-            doneCondition.signalAll();
-        } finally {
-            lock.unlock();
-        }
+        complete(SET, result);
     }
 
     /**
@@ -193,10 +192,155 @@ public class FutureValue<V> implements Future<V> {
      * @param ex the exception that the caller should get
      */
     public void setException(Throwable ex) {
-        if (!isDone.get()) {
-            exception = ex;
+        complete(FAILED, ex);
+    }
+
+    /**
+     * @return true if this call completed the future, false if it was already completed
+     */
+    private boolean complete(int finalState, Object result) {
+        if (!STATE.compareAndSet(this, PENDING, COMPLETING)) {
+            return false;
+        }
+        outcome = result;
+        state = finalState;
+        releaseWaiters();
+        CompletableFuture<V> current = stage;
+        if (current != null) {
+            completeStage(current, finalState);
+        }
+        return true;
+    }
+
+    /**
+     * Returns a completion stage for this future, for callers that would rather be called back than wait in get().
+     * The stage completes with the value when the future is set, exceptionally with the exception when it fails, and
+     * is cancelled when the future is cancelled. Each call returns a new stage, so cancelling or completing it does not
+     * affect this future or any other caller's stage.
+     * @return a stage that completes when this future does
+     */
+    @SuppressWarnings("unchecked")
+    public ExtendedCompletionStage<V> toCompletionStage() {
+        CompletableFuture<V> shared = stage;
+        if (shared == null) {
+            STAGE.compareAndSet(this, null, new CompletableFuture<V>());
+            shared = stage;
+            int s = state;
+            if (s > COMPLETING) {
+                completeStage(shared, s); // completed before the stage was seen
+            }
+        }
+        return Futures.extend(shared.thenApply(value -> value));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void completeStage(CompletableFuture<V> shared, int finalState) {
+        if (finalState == SET) {
+            shared.complete((V) outcome);
+        }
+        else if (finalState == FAILED) {
+            shared.completeExceptionally((Throwable) outcome);
+        }
+        else {
+            shared.cancel(false);
+        }
+    }
+
+    private void releaseWaiters() {
+        for (WaitNode q; (q = waiters) != null; ) {
+            if (WAITERS.compareAndSet(this, q, null)) {
+                while (q != null) {
+                    Thread thread = q.thread;
+                    if (thread != null) {
+                        q.thread = null;
+                        LockSupport.unpark(thread);
+                    }
+                    WaitNode next = q.next;
+                    q.next = null; // help GC
+                    q = next;
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Waits for completion, an interrupt or the timeout, whichever comes first.
+     * The state is checked again after the waiter is pushed, so a completion racing with the push is never missed.
+     * @return the state on completion or timeout
+     */
+    private int awaitDone(boolean timed, long nanos) throws InterruptedException {
+        final long deadline = timed ? System.nanoTime() + nanos : 0L;
+        WaitNode node = null;
+        boolean queued = false;
+        for (;;) {
+            if (Thread.interrupted()) {
+                removeWaiter(node);
+                throw new InterruptedException();
+            }
+            int s = state;
+            if (s > COMPLETING) {
+                if (node != null) {
+                    node.thread = null;
+                }
+                return s;
+            }
+            else if (s == COMPLETING) {
+                Thread.yield(); // the outcome is being stored, it will not be long
+            }
+            else if (node == null) {
+                if (timed && nanos <= 0L) {
+                    return s;
+                }
+                node = new WaitNode();
+            }
+            else if (!queued) {
+                WaitNode head = waiters;
+                node.next = head;
+                queued = WAITERS.compareAndSet(this, head, node);
+            }
+            else if (timed) {
+                nanos = deadline - System.nanoTime();
+                if (nanos <= 0L) {
+                    removeWaiter(node);
+                    return state;
+                }
+                LockSupport.parkNanos(this, nanos);
+            }
+            else {
+                LockSupport.park(this);
+            }
+        }
+    }
+
+    /**
+     * Unlinks a waiter that timed out or was interrupted, so that the stack does not fill up with dead nodes.
+     * Any node whose thread is cleared is unlinked on the way, and the traversal restarts on a race.
+     */
+    private void removeWaiter(WaitNode node) {
+        if (node == null) {
+            return;
+        }
+        node.thread = null;
+        retry:
+        for (;;) {
+            for (WaitNode pred = null, q = waiters, s; q != null; q = s) {
+                s = q.next;
+                if (q.thread != null) {
+                    pred = q;
+                }
+                else if (pred != null) {
+                    pred.next = s;
+                    if (pred.thread == null) {
+                        continue retry; // pred was removed meanwhile
+                    }
+                }
+                else if (!WAITERS.compareAndSet(this, q, s)) {
+                    continue retry;
+                }
+            }
+            return;
         }
-        signalDone();
     }
 
     @Override
@@ -207,4 +351,4 @@ public class FutureValue<V> implements Future<V> {
     public AsyncFunctionCall getCreator() {
         return creator;
     }
-}
\ No newline at end of file
+}
@@ -17,7 +17,6 @@
 
 package com.moscona.util.async;
 
-import com.moscona.exceptions.InvalidStateException;
 import com.moscona.util.monitoring.stats.IStatsService;
 
 /**
@@ -43,31 +42,34 @@ public class FutureValueWithTimeStamps<V> extends FutureValue<V> {
     }
 
     public void markCompleteTimeStamp(IStatsService stats, String prefix) {
+        markCompleteTimeStamp(stats != null && prefix != null ? AsyncCallStats.of(stats, prefix) : null);
+    }
+
+    /**
+     * Marks the completion time and reports the timings of the call to the given stat handles
+     * @param stats the handles to report to (may be null, in which case nothing is reported)
+     */
+    public void markCompleteTimeStamp(AsyncCallStats stats) {
         markCompleteTimeStamp();
-        if (stats != null && prefix != null && requestTimeStamp >= 0 && completeTimeStamp >= 0) {
+        if (stats != null && requestTimeStamp >= 0 && completeTimeStamp >= 0) {
             synchronized (this) {
-                try {
-                    long totalResponseTime = completeTimeStamp - requestTimeStamp;
-                    String p = "async_call_" + prefix + "_";
-                    stats.addTimingSampleFor(p + "total_response_time", totalResponseTime);
-                    if (firstResponseTimeStamp >= 0) {
-                        stats.addTimingSampleFor(p + "first_response_time", firstResponseTimeStamp - requestTimeStamp);
-                    }
-                    if (postResponseProcessingTime < 0 && lastByteTimeStamp >= 0) {
-                        postResponseProcessingTime = completeTimeStamp - lastByteTimeStamp;
-                    }
-                    if (postResponseProcessingTime >= 0) {
-                        stats.addTimingSampleFor(p + "response_processing_time", postResponseProcessingTime);
-                        stats.addTimingSampleFor(p + "remote_response_time", totalResponseTime - postResponseProcessingTime);
-                    } else if (firstResponseTimeStamp >= 0) {
-                        // post response processing time was not reported but we can estimate it without knowing exactly when the last byte was received
-                        stats.addTimingSampleFor(p + "first_byte_to_finish_time", completeTimeStamp - firstResponseTimeStamp);
-                    }
-                    if (dataSize >= 0) {
-                        stats.incStat(p + "total_data_size", dataSize);
-                    }
-                } catch (InvalidStateException e) {
-                    // do nothing
+                long totalResponseTime = completeTimeStamp - requestTimeStamp;
+                stats.totalResponseTime.record(totalResponseTime);
+                if (firstResponseTimeStamp >= 0) {
+                    stats.firstResponseTime.record(firstResponseTimeStamp - requestTimeStamp);
+                }
+                if (postResponseProcessingTime < 0 && lastByteTimeStamp >= 0) {
+                    postResponseProcessingTime = completeTimeStamp - lastByteTimeStamp;
+                }
+                if (postResponseProcessingTime >= 0) {
+                    stats.responseProcessingTime.record(postResponseProcessingTime);
+                    stats.remoteResponseTime.record(totalResponseTime - postResponseProcessingTime);
+                } else if (firstResponseTimeStamp >= 0) {
+                    // post response processing time was not reported but we can estimate it without knowing exactly when the last byte was received
+                    stats.firstByteToFinishTime.record(completeTimeStamp - firstResponseTimeStamp);
+                }
+                if (dataSize >= 0) {
+                    stats.totalDataSize.inc(dataSize);
                 }
             }
         }
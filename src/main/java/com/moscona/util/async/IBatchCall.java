@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.moscona.util.async;
+
+import java.util.List;
+
+/**
+ * The body of a batched asynchronous call (see AsyncBatchDispatcher): a single backend request for many signatures,
+ * e.g. a multi-get.
+ */
+public interface IBatchCall<V> {
+    /**
+     * Performs the asynchronous call for a batch of signatures. Should return immediately, and later call
+     * returnToCallers() (or throwException()) on the results store for each of the signatures.
+     *
+     * @param signatures the signatures in the batch, each appearing once
+     * @param results the results store to return the results to
+     * @throws Exception if the call could not be made, which fails all the calls in the batch
+     */
+    void asyncCall(List<String> signatures, AsyncFunctionFutureResults<V> results) throws Exception;
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.moscona.util.async;
+
+import com.moscona.util.concurrent.DaemonThread;
+import com.moscona.util.monitoring.stats.IStatGauge;
+import com.moscona.util.monitoring.stats.IStatsService;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounds the pending calls of an AsyncFunctionFutureResults, so that a backend that never answers does not leave
+ * callers blocked forever and the results store growing without limit.
+ * <ul>
+ *     <li>Every new pending call gets a deadline. A call that is still pending at its deadline is expired: removed from
+ *     the results store and failed with a TimeoutException, which callers get wrapped in an ExecutionException
+ *     as with any other failure.</li>
+ *     <li>The number of pending calls is limited. A new call over the limit is handled according to the
+ *     RejectionPolicy. Calls that join a call already pending with the same signature are never rejected.</li>
+ * </ul>
+ * The deadlines are kept in a hashed timer wheel that is advanced by a single daemon thread, so tracking a call only
+ * costs a queue insert on the calling thread, and finding the overdue calls only looks at one slot of the wheel per
+ * tick. Deadlines are therefore only accurate to one tick. Completed calls are dropped from the wheel when their slot
+ * comes around. With the EXPIRE_OLDEST policy the calls are also kept in the order they were added, so the oldest one
+ * is found without scanning the results store.
+ * <p>
+ * If a stats service is given, the number of pending calls and the number of calls expired and rejected so far are
+ * reported every tick as gauges under "async_pending_" + name + "_".
+ * </p>
+ */
+public class PendingCallReaper<V> implements Runnable {
+    public static final long DEFAULT_TICK_MILLIS = 100L;
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    /**
+     * What to do with a new call when the maximum number of calls is already pending
+     */
+    public enum RejectionPolicy {
+        /**
+         * The new call fails with a RejectedExecutionException
+         */
+        REJECT,
+        /**
+         * The oldest pending call is expired early to make room for the new one
+         */
+        EXPIRE_OLDEST
+    }
+
+    private final String name;
+    private final AsyncFunctionFutureResults<V> results;
+    private final long timeoutNanos;
+    private final int maxPending;
+    private final RejectionPolicy rejectionPolicy;
+    private final long tickNanos;
+    private final ArrayList<Deadline<V>>[] wheel; // only touched by the reaper thread
+    private final int mask;
+    private final ConcurrentLinkedQueue<Deadline<V>> added = new ConcurrentLinkedQueue<Deadline<V>>();
+    private final ArrayDeque<Deadline<V>> oldestFirst = new ArrayDeque<Deadline<V>>(); // guarded by the results store
+    private final AtomicLong expiredCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private volatile boolean running = false;
+    private DaemonThread thread = null;
+    private long startedAt = 0L;
+    private long tick = 0L;
+
+    private final IStatGauge pendingStat;
+    private final IStatGauge expiredStat;
+    private final IStatGauge rejectedStat;
+
+    /**
+     * @param name the name of the reaper, used for its thread and its stats
+     * @param results the results store whose pending calls are bounded
+     * @param timeoutMillis how long a call may be pending (msec)
+     * @param maxPending the maximum number of pending calls
+     * @param rejectionPolicy what to do with a new call when maxPending calls are pending
+     * @param stats where to report the gauges, or null
+     */
+    public PendingCallReaper(String name, AsyncFunctionFutureResults<V> results, long timeoutMillis, int maxPending,
+                             RejectionPolicy rejectionPolicy, IStatsService stats) {
+        this(name, results, timeoutMillis, maxPending, rejectionPolicy, stats, DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * @param tickMillis how often the wheel advances, which is also how accurate the deadlines are (msec)
+     * @param wheelSize the number of slots in the wheel, rounded up to a power of 2. Ideally enough slots for the
+     *                  timeout, so that the slots do not hold calls that are due in later turns of the wheel.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public PendingCallReaper(String name, AsyncFunctionFutureResults<V> results, long timeoutMillis, int maxPending,
+                             RejectionPolicy rejectionPolicy, IStatsService stats, long tickMillis, int wheelSize) {
+        if (timeoutMillis <= 0 || maxPending <= 0 || tickMillis <= 0 || wheelSize <= 0) {
+            throw new IllegalArgumentException("The timeout, maximum pending calls, tick and wheel size must be positive");
+        }
+        this.name = name;
+        this.results = results;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.maxPending = maxPending;
+        this.rejectionPolicy = rejectionPolicy;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        int size = Integer.highestOneBit(wheelSize);
+        if (size < wheelSize) {
+            size <<= 1;
+        }
+        wheel = new ArrayList[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new ArrayList<Deadline<V>>();
+        }
+        mask = size - 1;
+        String prefix = "async_pending_" + name + "_";
+        pendingStat = stats == null ? null : stats.gauge(prefix + "pending");
+        expiredStat = stats == null ? null : stats.gauge(prefix + "expired");
+        rejectedStat = stats == null ? null : stats.gauge(prefix + "rejected");
+    }
+
+    /**
+     * Starts tracking the calls made through the results store. Calls that were already pending are not tracked, even
+     * if this reaper tracked them before it was stopped. Does nothing if already started.
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        added.clear();
+        for (ArrayList<Deadline<V>> slot : wheel) {
+            slot.clear();
+        }
+        synchronized (results) {
+            oldestFirst.clear();
+        }
+        startedAt = System.nanoTime();
+        tick = 0L;
+        running = true;
+        results.useReaper(this);
+        thread = new DaemonThread(this, "pending call reaper " + name);
+        thread.start();
+    }
+
+    /**
+     * Stops tracking calls. Calls that are still pending are left as they are.
+     * @throws InterruptedException if interrupted while waiting for the thread to finish
+     */
+    public void stop() throws InterruptedException {
+        DaemonThread stopping;
+        synchronized (this) {
+            stopping = thread;
+            thread = null;
+            running = false;
+            notifyAll();
+        }
+        if (stopping != null) {
+            results.useReaper(null);
+            stopping.join();
+        }
+    }
+
+    /**
+     * Called by the results store before a new call is added, with the store's monitor held. With the EXPIRE_OLDEST
+     * policy the oldest call may be removed from the store to make room; the store fails it with expireEvicted() once
+     * the monitor is released.
+     * @return the call removed to make room, or null
+     * @throws RejectedExecutionException if the call is rejected
+     */
+    Deadline<V> admit() {
+        if (results.size() < maxPending) {
+            return null;
+        }
+        if (rejectionPolicy == RejectionPolicy.EXPIRE_OLDEST) {
+            Deadline<V> oldest;
+            while ((oldest = oldestFirst.poll()) != null) {
+                if (results.remove(oldest.signature, oldest.future)) { // not if it was just answered or expired
+                    return oldest;
+                }
+            }
+        }
+        rejectedCount.incrementAndGet();
+        throw new RejectedExecutionException("Too many pending asynchronous calls in " + name + " (" + maxPending + ")");
+    }
+
+    /**
+     * Called by the results store after a new call was added, with the store's monitor held
+     */
+    void track(String signature, FutureValue<V> future) {
+        Deadline<V> deadline = new Deadline<V>(signature, future, System.nanoTime() + timeoutNanos);
+        added.add(deadline);
+        if (rejectionPolicy == RejectionPolicy.EXPIRE_OLDEST) {
+            oldestFirst.add(deadline);
+        }
+    }
+
+    /**
+     * Fails a call that admit() removed to make room, without holding the store's monitor
+     */
+    void expireEvicted(Deadline<V> evicted) {
+        expiredCount.incrementAndGet();
+        results.failRemoved(evicted.signature, evicted.future,
+                timeoutException(evicted.signature, "was expired to make room for a new call"));
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                awaitTick();
+                if (!running) {
+                    return;
+                }
+                addNewDeadlines();
+                expireDue(wheel[(int) (tick & mask)]);
+                dropCompletedOldest();
+                tick++;
+                reportStats();
+            }
+        }
+        catch (InterruptedException e) {
+            // stopped
+        }
+    }
+
+    private synchronized void awaitTick() throws InterruptedException {
+        long remaining;
+        while (running && (remaining = startedAt + (tick + 1) * tickNanos - System.nanoTime()) > 0) {
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+    }
+
+    private void addNewDeadlines() {
+        Deadline<V> deadline;
+        while ((deadline = added.poll()) != null) {
+            // the tick at the end of which the call is overdue, but never one that has already passed
+            long due = Math.max(tick, (deadline.deadlineNanos - startedAt) / tickNanos);
+            deadline.rounds = (due - tick) / wheel.length;
+            wheel[(int) (due & mask)].add(deadline);
+        }
+    }
+
+    private void expireDue(ArrayList<Deadline<V>> slot) {
+        Iterator<Deadline<V>> deadlines = slot.iterator();
+        while (deadlines.hasNext()) {
+            Deadline<V> deadline = deadlines.next();
+            if (deadline.future.isDone()) {
+                deadlines.remove();
+            }
+            else if (deadline.rounds > 0) {
+                deadline.rounds--;
+            }
+            else {
+                deadlines.remove();
+                expire(deadline.signature, deadline.future, "did not complete within " +
+                        TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + " msec");
+            }
+        }
+    }
+
+    /**
+     * Completed calls are dropped from the front of the oldest first order, so that it does not hold on to them
+     */
+    private void dropCompletedOldest() {
+        if (rejectionPolicy != RejectionPolicy.EXPIRE_OLDEST) {
+            return;
+        }
+        synchronized (results) {
+            Deadline<V> oldest;
+            while ((oldest = oldestFirst.peek()) != null && oldest.future.isDone()) {
+                oldestFirst.poll();
+            }
+        }
+    }
+
+    private void expire(String signature, FutureValue<V> future, String reason) {
+        if (results.expire(signature, future, timeoutException(signature, reason))) {
+            expiredCount.incrementAndGet();
+        }
+    }
+
+    private TimeoutException timeoutException(String signature, String reason) {
+        return new TimeoutException("Asynchronous call " + signature + " " + reason);
+    }
+
+    private void reportStats() {
+        if (pendingStat != null) {
+            pendingStat.set(results.size());
+            expiredStat.set(expiredCount.get());
+            rejectedStat.set(rejectedCount.get());
+        }
+    }
+
+    /**
+     * @return the number of calls expired, including those expired to make room for new calls
+     */
+    public long getExpiredCount() {
+        return expiredCount.get();
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public int getMaxPending() {
+        return maxPending;
+    }
+
+    public long getTimeoutMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(timeoutNanos);
+    }
+
+    static class Deadline<V> {
+        private final String signature;
+        private final FutureValue<V> future;
+        private final long deadlineNanos;
+        private long rounds = 0L; // full turns of the wheel left before the call is due
+
+        private Deadline(String signature, FutureValue<V> future, long deadlineNanos) {
+            this.signature = signature;
+            this.future = future;
+            this.deadlineNanos = deadlineNanos;
+        }
+    }
+}
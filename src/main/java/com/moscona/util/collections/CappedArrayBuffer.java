@@ -19,13 +19,16 @@ package com.moscona.util.collections;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Created: Aug 3, 2010 12:40:36 PM
  * By: Arnon Moscona
- * A simple, not super-efficient limited array buffer that caps at a specific capacity
+ * A simple, not super-efficient limited array buffer that caps at a specific capacity.
+ * Once it is full, every add shifts the whole array - use CappedRingBuffer where that matters.
  */
-public class CappedArrayBuffer<T> extends ArrayList<T> {
+public class CappedArrayBuffer<T> extends ArrayList<T> implements ICappedBuffer<T> {
     private static final long serialVersionUID = 1334376019533747683L;
     private int capacity;
 
@@ -115,6 +118,34 @@ public class CappedArrayBuffer<T> extends ArrayList<T> {
         return capacity;
     }
 
+    @Override
+    public synchronized T getNewest() {
+        return isEmpty() ? null : get(size() - 1);
+    }
+
+    @Override
+    public synchronized List<T> snapshot() {
+        return Collections.unmodifiableList(new ArrayList<T>(this));
+    }
+
+    @Override
+    public int drainTo(Collection<? super T> target) {
+        return drainTo(target, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public synchronized int drainTo(Collection<? super T> target, int maxElements) {
+        if (target == this) {
+            throw new IllegalArgumentException("cannot drain a buffer into itself");
+        }
+        int count = Math.min(size(), Math.max(maxElements, 0));
+        if (count > 0) {
+            target.addAll(subList(0, count));
+            removeRange(0, count);
+        }
+        return count;
+    }
+
     private synchronized void enforceCapacity() {
         if (size()>capacity) {
             int fromIndex = 0;
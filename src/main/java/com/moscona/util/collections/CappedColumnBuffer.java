@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.moscona.util.collections;
+
+import java.util.Arrays;
+
+/**
+ * A capped ring of rows of longs, kept as one primitive array per column (struct of arrays). Meant for histories of
+ * multi-valued samples, such as memory state, that would otherwise cost an object per sample.
+ * Appending a row to a full buffer overwrites the oldest row in O(1). Row 0 is always the oldest row in the buffer.
+ * Double values can be stored as their raw long bits (Double.doubleToRawLongBits) and read with getDouble().
+ * All the methods are synchronized, so a row is always read and written whole.
+ */
+public class CappedColumnBuffer {
+    private final String[] columnNames;
+    private final long[][] columns;
+    private final int capacity;
+    private int head; // the index of the oldest row
+    private int size;
+    private long sequence; // the number of rows ever added
+
+    /**
+     * @param capacity the number of rows to keep
+     * @param columnNames the names of the columns, which also determines their number
+     */
+    public CappedColumnBuffer(int capacity, String... columnNames) {
+        if (columnNames.length == 0) {
+            throw new IllegalArgumentException("a column buffer needs at least one column");
+        }
+        this.capacity = capacity <= 0 ? 1 : capacity;
+        this.columnNames = Arrays.copyOf(columnNames, columnNames.length);
+        columns = new long[columnNames.length][this.capacity];
+    }
+
+    private int physicalIndex(int row) {
+        int retval = head + row;
+        return retval >= capacity ? retval - capacity : retval;
+    }
+
+    private int nextRow() {
+        int retval;
+        if (size == capacity) {
+            retval = head;
+            head = physicalIndex(1);
+        }
+        else {
+            retval = physicalIndex(size);
+            size++;
+        }
+        sequence++;
+        return retval;
+    }
+
+    /**
+     * Appends a row, overwriting the oldest one if the buffer is at capacity. The row array is copied, so the caller
+     * may reuse it for the next row.
+     * @param row one value per column
+     */
+    public synchronized void add(long[] row) {
+        if (row.length != columns.length) {
+            throw new IllegalArgumentException("expected " + columns.length + " values but got " + row.length);
+        }
+        int index = nextRow();
+        for (int column = 0; column < columns.length; column++) {
+            columns[column][index] = row[column];
+        }
+    }
+
+    /**
+     * Appends a row of two columns without an intermediate array
+     */
+    public synchronized void add(long value0, long value1) {
+        if (columns.length != 2) {
+            throw new IllegalArgumentException("expected " + columns.length + " values but got 2");
+        }
+        int index = nextRow();
+        columns[0][index] = value0;
+        columns[1][index] = value1;
+    }
+
+    /**
+     * Appends a row of three columns without an intermediate array
+     */
+    public synchronized void add(long value0, long value1, long value2) {
+        if (columns.length != 3) {
+            throw new IllegalArgumentException("expected " + columns.length + " values but got 3");
+        }
+        int index = nextRow();
+        columns[0][index] = value0;
+        columns[1][index] = value1;
+        columns[2][index] = value2;
+    }
+
+    private void checkRow(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("Row: " + row + ", Size: " + size);
+        }
+    }
+
+    /**
+     * @param row the row, 0 being the oldest
+     * @param column the column
+     * @return the value
+     * @throws IndexOutOfBoundsException if the row is not in [0, size()) or the column does not exist
+     */
+    public synchronized long get(int row, int column) {
+        checkRow(row);
+        return columns[column][physicalIndex(row)];
+    }
+
+    /**
+     * Reads a value that was stored as the raw bits of a double
+     */
+    public synchronized double getDouble(int row, int column) {
+        return Double.longBitsToDouble(get(row, column));
+    }
+
+    /**
+     * Copies a whole row into the target array without allocating
+     * @param row the row, 0 being the oldest
+     * @param target an array with room for at least getColumnCount() values
+     */
+    public synchronized void copyRow(int row, long[] target) {
+        checkRow(row);
+        int index = physicalIndex(row);
+        for (int column = 0; column < columns.length; column++) {
+            target[column] = columns[column][index];
+        }
+    }
+
+    /**
+     * Copies the newest values of one column, oldest first, into the target array without allocating
+     * @param column the column
+     * @param count the maximum number of values to copy
+     * @param target the array to copy to
+     * @param offset where in the target to start
+     * @return the number of values copied: the smallest of count, size() and the room left in the target
+     */
+    public synchronized int copyColumn(int column, int count, long[] target, int offset) {
+        long[] values = columns[column];
+        int n = Math.min(Math.min(count, size), target.length - offset);
+        if (n <= 0) {
+            return 0;
+        }
+        int start = physicalIndex(size - n);
+        int firstPart = Math.min(n, capacity - start);
+        System.arraycopy(values, start, target, offset, firstPart);
+        System.arraycopy(values, 0, target, offset + firstPart, n - firstPart);
+        return n;
+    }
+
+    /**
+     * @param column the column
+     * @return a copy of all the values of the column, oldest first
+     */
+    public synchronized long[] columnToArray(int column) {
+        long[] retval = new long[size];
+        copyColumn(column, size, retval, 0);
+        return retval;
+    }
+
+    /**
+     * @param name the name of a column
+     * @return the index of the column, or -1 if there is no such column
+     */
+    public int columnIndex(String name) {
+        for (int i = 0; i < columnNames.length; i++) {
+            if (columnNames[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public String[] getColumnNames() {
+        return Arrays.copyOf(columnNames, columnNames.length);
+    }
+
+    public int getColumnCount() {
+        return columns.length;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized boolean isAtCapacity() {
+        return size == capacity;
+    }
+
+    /**
+     * @return the number of rows ever added, including ones that were overwritten or cleared
+     */
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    public synchronized void clear() {
+        head = 0;
+        size = 0;
+    }
+}
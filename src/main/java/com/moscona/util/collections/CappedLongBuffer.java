@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.moscona.util.collections;
+
+import java.util.Arrays;
+
+/**
+ * A capped ring of primitive longs, for time series samples. Costs 8 bytes per sample, with no boxing and no
+ * per-sample objects. Adding to a full buffer overwrites the oldest sample in O(1).
+ * Index 0 is always the oldest sample still in the buffer. All the methods are synchronized.
+ */
+public class CappedLongBuffer {
+    private final long[] values;
+    private int head; // the index of the oldest sample
+    private int size;
+    private long sequence; // the number of samples ever added
+
+    public CappedLongBuffer(int capacity) {
+        values = new long[capacity <= 0 ? 1 : capacity];
+    }
+
+    private int physicalIndex(int index) {
+        int retval = head + index;
+        return retval >= values.length ? retval - values.length : retval;
+    }
+
+    /**
+     * Appends a sample, overwriting the oldest one if the buffer is at capacity
+     * @param value the sample
+     */
+    public synchronized void add(long value) {
+        if (size == values.length) {
+            values[head] = value;
+            head = physicalIndex(1);
+        }
+        else {
+            values[physicalIndex(size)] = value;
+            size++;
+        }
+        sequence++;
+    }
+
+    /**
+     * @param index the position of the sample, 0 being the oldest
+     * @return the sample
+     * @throws IndexOutOfBoundsException if the index is not in [0, size())
+     */
+    public synchronized long get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        return values[physicalIndex(index)];
+    }
+
+    /**
+     * Unlike ICappedBuffer.getNewest(), which returns null for an empty buffer, a primitive sample has no null, so
+     * this throws. Use getNewest(ifEmpty) to get a sentinel value instead.
+     * @return the most recent sample
+     * @throws IndexOutOfBoundsException if the buffer is empty
+     */
+    public synchronized long getNewest() {
+        return get(size - 1);
+    }
+
+    /**
+     * @param ifEmpty the value to return if the buffer is empty
+     * @return the most recent sample, or ifEmpty if there are none
+     */
+    public synchronized long getNewest(long ifEmpty) {
+        return size == 0 ? ifEmpty : values[physicalIndex(size - 1)];
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int getCapacity() {
+        return values.length;
+    }
+
+    public synchronized boolean isAtCapacity() {
+        return size == values.length;
+    }
+
+    /**
+     * @return the number of samples ever added, including ones that were overwritten or cleared
+     */
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    public synchronized void clear() {
+        head = 0;
+        size = 0;
+    }
+
+    /**
+     * @return a copy of the samples, oldest first
+     */
+    public synchronized long[] toArray() {
+        long[] retval = new long[size];
+        copyLast(size, retval, 0);
+        return retval;
+    }
+
+    /**
+     * Copies the newest samples, oldest first, into the target array without allocating
+     * @param count the maximum number of samples to copy
+     * @param target the array to copy to
+     * @param offset where in the target to start
+     * @return the number of samples copied: the smallest of count, size() and the room left in the target
+     */
+    public synchronized int copyLast(int count, long[] target, int offset) {
+        int n = Math.min(Math.min(count, size), target.length - offset);
+        if (n <= 0) {
+            return 0;
+        }
+        int start = physicalIndex(size - n);
+        int firstPart = Math.min(n, values.length - start);
+        System.arraycopy(values, start, target, offset, firstPart);
+        System.arraycopy(values, 0, target, offset + firstPart, n - firstPart);
+        return n;
+    }
+
+    /**
+     * Copies all the samples, oldest first, into the target array and removes them from the buffer.
+     * If the target does not have room for all of them, the oldest ones are moved and the rest stay in the buffer.
+     * @param target the array to copy to
+     * @param offset where in the target to start
+     * @return the number of samples moved
+     */
+    public synchronized int drainTo(long[] target, int offset) {
+        int n = Math.min(size, target.length - offset);
+        if (n <= 0) {
+            return 0;
+        }
+        int firstPart = Math.min(n, values.length - head);
+        System.arraycopy(values, head, target, offset, firstPart);
+        System.arraycopy(values, 0, target, offset + firstPart, n - firstPart);
+        head = physicalIndex(n);
+        size -= n;
+        return n;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(toArray());
+    }
+}
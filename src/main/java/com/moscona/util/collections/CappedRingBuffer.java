@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.moscona.util.collections;
+
+import java.util.*;
+
+/**
+ * A capped buffer over a circular array: appending and evicting are O(1) regardless of the capacity, whereas
+ * CappedArrayBuffer shifts the whole array on every add once it is full.
+ * All the methods, reads included, are synchronized. Iteration is over a snapshot taken when the iterator is created,
+ * so it is consistent and never throws ConcurrentModificationException, but does not see later changes.
+ * Only appending is supported - inserting or removing at an index throws UnsupportedOperationException.
+ * @param <T> the element type
+ */
+public class CappedRingBuffer<T> extends AbstractList<T> implements ICappedBuffer<T>, RandomAccess {
+    private final Object[] elements;
+    private int head; // the index of the oldest element
+    private int size;
+
+    public CappedRingBuffer(int capacity) {
+        elements = new Object[capacity <= 0 ? 1 : capacity];
+        head = 0;
+        size = 0;
+    }
+
+    private int physicalIndex(int index) {
+        int retval = head + index;
+        return retval >= elements.length ? retval - elements.length : retval;
+    }
+
+    /**
+     * Appends the specified element, evicting the oldest one if the buffer is at capacity
+     *
+     * @param element element to be appended to this buffer
+     * @return <tt>true</tt> (as specified by {@link java.util.Collection#add})
+     */
+    @Override
+    public synchronized boolean add(T element) {
+        if (size == elements.length) {
+            elements[head] = element; // the tail is where the oldest element was
+            head = physicalIndex(1);
+        }
+        else {
+            elements[physicalIndex(size)] = element;
+            size++;
+        }
+        modCount++;
+        return true;
+    }
+
+    /**
+     * Appends all of the elements in the specified collection, in the order its iterator returns them.
+     * Only the elements that would survive are actually copied.
+     *
+     * @param c collection containing elements to be added to this buffer
+     * @return <tt>true</tt> if this buffer changed as a result of the call
+     */
+    @Override
+    public boolean addAll(Collection<? extends T> c) {
+        Object[] added = c.toArray(); // outside the lock - c may be this buffer
+        synchronized (this) {
+            int from = Math.max(0, added.length - elements.length);
+            for (int i = from; i < added.length; i++) {
+                @SuppressWarnings("unchecked")
+                T element = (T) added[i];
+                add(element);
+            }
+        }
+        return added.length > 0;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized T get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        return (T) elements[physicalIndex(index)];
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized T getNewest() {
+        return size == 0 ? null : (T) elements[physicalIndex(size - 1)];
+    }
+
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public synchronized void clear() {
+        Arrays.fill(elements, null);
+        head = 0;
+        size = 0;
+        modCount++;
+    }
+
+    @Override
+    public int getCapacity() {
+        return elements.length;
+    }
+
+    @Override
+    public synchronized boolean isAtCapacity() {
+        return size == elements.length;
+    }
+
+    @Override
+    public synchronized Object[] toArray() {
+        Object[] retval = new Object[size];
+        int firstPart = Math.min(size, elements.length - head);
+        System.arraycopy(elements, head, retval, 0, firstPart);
+        System.arraycopy(elements, 0, retval, firstPart, size - firstPart);
+        return retval;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<T> snapshot() {
+        return Collections.unmodifiableList(Arrays.asList((T[]) toArray()));
+    }
+
+    /**
+     * @return an iterator over a snapshot of the buffer
+     */
+    @Override
+    public Iterator<T> iterator() {
+        return snapshot().iterator();
+    }
+
+    @Override
+    public int drainTo(Collection<? super T> target) {
+        return drainTo(target, Integer.MAX_VALUE);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized int drainTo(Collection<? super T> target, int maxElements) {
+        if (target == this) {
+            throw new IllegalArgumentException("cannot drain a buffer into itself");
+        }
+        int count = Math.min(size, Math.max(maxElements, 0));
+        for (int i = 0; i < count; i++) {
+            target.add((T) elements[head]);
+            elements[head] = null;
+            head = physicalIndex(1);
+            size--;
+        }
+        if (count > 0) {
+            modCount++;
+        }
+        return count;
+    }
+}
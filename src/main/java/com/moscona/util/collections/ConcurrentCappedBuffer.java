@@ -0,0 +1,310 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.moscona.util.collections;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free, multi-producer buffer that overwrites its oldest entries, for capturing events from many
+ * threads without making them queue up on a monitor as CappedArrayBuffer and CappedRingBuffer do.
+ * <p>
+ * Every append claims the next sequence number with a single atomic increment, and publishes the element together
+ * with its sequence number, as a small immutable entry, into slot (sequence mod capacity) with a compare and set.
+ * Appends are lock-free rather than wait-free: the compare and set is retried only if a producer a whole capacity
+ * ahead races for the same slot. Readers never lock: they keep the entries whose slot still holds the sequence they
+ * expect, so they see each entry whole or not at all. An entry whose producer has claimed its sequence but not yet
+ * published it is not seen, and neither is one that has been overwritten while the reader was looking.
+ * </p><p>
+ * The positional methods (size(), get(), getNewest()) only count entries up to the first one that is still being
+ * written, so get(i) is valid for every i &lt; size(). Producers advance this published mark as they publish. As with
+ * any concurrent buffer, positions shift while producers evict old entries, so a loop over get() should be used only
+ * when the producers are quiet; otherwise use snapshot() or readFrom().
+ * </p><p>
+ * drainTo() consumes entries (in sequence order, stopping at the first one that is still being written) and clear()
+ * drops everything appended so far. Both are serialized among themselves, but never block producers - this is meant
+ * for many producers and one consumer.
+ * </p>
+ * @param <T> the element type
+ */
+public class ConcurrentCappedBuffer<T> implements ICappedBuffer<T> {
+    private final AtomicReferenceArray<Entry> slots;
+    private final int mask;
+    private final AtomicLong cursor; // the next sequence to claim
+    private final AtomicLong published; // every sequence below this is published (or was lapped)
+    private volatile long floor; // sequences below this were drained or cleared
+    private final Object consumerLock;
+
+    /**
+     * @param capacity the number of entries to keep, rounded up to a power of two
+     */
+    public ConcurrentCappedBuffer(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        slots = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+        cursor = new AtomicLong();
+        published = new AtomicLong();
+        floor = 0L;
+        consumerLock = new Object();
+    }
+
+    /**
+     * Appends an element. Never blocks: the only retry is when a producer that is a whole capacity ahead races for
+     * the same slot, in which case the older element is the one that is dropped, as it would have been overwritten.
+     * @param element the element to append
+     * @return true
+     */
+    @Override
+    public boolean add(T element) {
+        long sequence = cursor.getAndIncrement();
+        int index = (int) sequence & mask;
+        Entry entry = new Entry(sequence, element);
+        while (true) {
+            Entry current = slots.get(index);
+            if (current != null && current.sequence > sequence) {
+                break; // lapped by a newer entry
+            }
+            if (slots.compareAndSet(index, current, entry)) {
+                break;
+            }
+        }
+        advancePublished();
+        return true;
+    }
+
+    /**
+     * Moves the published mark past every entry that is published, so that whichever producer publishes the last
+     * entry of a gap moves the mark past the gap.
+     */
+    private void advancePublished() {
+        long mark = published.get();
+        while (mark < cursor.get()) {
+            Entry entry = slots.get((int) mark & mask);
+            if (entry == null || entry.sequence < mark) {
+                return; // still being written - its producer will advance the mark
+            }
+            if (published.compareAndSet(mark, mark + 1)) {
+                mark++;
+            }
+            else {
+                mark = published.get();
+            }
+        }
+    }
+
+    /**
+     * @return the sequence number the next append will get, i.e. the number of appends so far
+     */
+    public long getSequence() {
+        return cursor.get();
+    }
+
+    private long oldestRetained(long next) {
+        return Math.max(floor, next - slots.length());
+    }
+
+    /**
+     * Adds the newest entries, up to count of them, to the target collection, oldest first. Does not consume them.
+     * @param count the maximum number of entries to read
+     * @param target the collection to add the entries to
+     * @return the number of entries added
+     */
+    @SuppressWarnings("unchecked")
+    public int readLast(int count, Collection<? super T> target) {
+        long next = cursor.get();
+        long oldest = oldestRetained(next);
+        Object[] found = new Object[(int) Math.min(Math.max(count, 0), next - oldest)];
+        int n = 0;
+        for (long sequence = next - 1; sequence >= oldest && n < found.length; sequence--) {
+            Entry entry = slots.get((int) sequence & mask);
+            if (entry == null || entry.sequence < sequence) {
+                continue; // claimed but not published yet
+            }
+            if (entry.sequence > sequence) {
+                break; // overwritten while we were reading - everything older is gone too
+            }
+            found[n++] = entry.element;
+        }
+        for (int i = n - 1; i >= 0; i--) {
+            target.add((T) found[i]);
+        }
+        return n;
+    }
+
+    /**
+     * Adds the entries from the given sequence number on to the target collection, oldest first, without consuming
+     * them. Meant for incremental readers: pass the returned value in on the next call. Entries that were
+     * overwritten before they could be read are skipped, so the caller can tell how many it missed from the gap
+     * between fromSequence and the oldest sequence still retained.
+     * @param fromSequence the first sequence number to read
+     * @param target the collection to add the entries to
+     * @return the sequence number to read from next time
+     */
+    @SuppressWarnings("unchecked")
+    public long readFrom(long fromSequence, Collection<? super T> target) {
+        long next = cursor.get();
+        long sequence = Math.max(fromSequence, oldestRetained(next));
+        for (; sequence < next; sequence++) {
+            Entry entry = slots.get((int) sequence & mask);
+            if (entry == null || entry.sequence < sequence) {
+                break; // not published yet - resume from here next time
+            }
+            if (entry.sequence == sequence) {
+                target.add((T) entry.element);
+            }
+        }
+        return sequence;
+    }
+
+    /**
+     * Goes straight to the slot of the entry, by its sequence number.
+     * @param index the position of the element, 0 being the oldest
+     * @return the element
+     * @throws IndexOutOfBoundsException if the index is not in [0, size())
+     * @throws ConcurrentModificationException if the entry was overwritten by producers that lapped the buffer since
+     * the index was obtained
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public T get(int index) {
+        long mark = published.get();
+        long oldest = oldestRetained(cursor.get());
+        if (index < 0 || index >= mark - oldest) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + Math.max(0L, mark - oldest));
+        }
+        long sequence = oldest + index;
+        Entry entry = slots.get((int) sequence & mask);
+        if (entry.sequence != sequence) {
+            throw new ConcurrentModificationException("Entry " + sequence + " was overwritten while reading it");
+        }
+        return (T) entry.element;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T getNewest() {
+        while (true) {
+            long mark = published.get();
+            if (mark <= oldestRetained(cursor.get())) {
+                return null;
+            }
+            Entry entry = slots.get((int) (mark - 1) & mask);
+            if (entry.sequence == mark - 1) {
+                return (T) entry.element;
+            }
+            // overwritten since we read the mark, so there is a newer one
+        }
+    }
+
+    /**
+     * @return the number of retained entries, up to the first one that is still being written
+     */
+    @Override
+    public int size() {
+        long mark = published.get();
+        return (int) Math.max(0L, mark - oldestRetained(cursor.get()));
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public void clear() {
+        synchronized (consumerLock) {
+            floor = cursor.get();
+        }
+    }
+
+    @Override
+    public int getCapacity() {
+        return slots.length();
+    }
+
+    @Override
+    public boolean isAtCapacity() {
+        return size() == slots.length();
+    }
+
+    @Override
+    public List<T> snapshot() {
+        ArrayList<T> retval = new ArrayList<>(size());
+        readLast(Integer.MAX_VALUE, retval);
+        return Collections.unmodifiableList(retval);
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return snapshot().iterator();
+    }
+
+    @Override
+    public int drainTo(Collection<? super T> target) {
+        return drainTo(target, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Consumes entries oldest first, stopping at the first one that is claimed but not yet published so that it is
+     * not lost. Entries overwritten before they could be drained are skipped.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public int drainTo(Collection<? super T> target, int maxElements) {
+        if (target == this) {
+            throw new IllegalArgumentException("cannot drain a buffer into itself");
+        }
+        synchronized (consumerLock) {
+            long next = cursor.get();
+            long sequence = oldestRetained(next);
+            int count = 0;
+            for (; sequence < next && count < maxElements; sequence++) {
+                Entry entry = slots.get((int) sequence & mask);
+                if (entry == null || entry.sequence < sequence) {
+                    break; // not published yet
+                }
+                if (entry.sequence == sequence) {
+                    target.add((T) entry.element);
+                    count++;
+                }
+            }
+            floor = sequence;
+            return count;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return snapshot().toString();
+    }
+
+    private static final class Entry {
+        private final long sequence;
+        private final Object element;
+
+        private Entry(long sequence, Object element) {
+            this.sequence = sequence;
+            this.element = element;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.moscona.util.collections;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A buffer that keeps the most recent elements added to it, up to a fixed capacity. Adding to a full buffer evicts the
+ * oldest element. Index 0 is always the oldest element still in the buffer.
+ * @param <T> the element type
+ */
+public interface ICappedBuffer<T> extends Iterable<T> {
+    /**
+     * Appends an element, evicting the oldest one if the buffer is at capacity
+     * @param element the element to append
+     * @return true
+     */
+    boolean add(T element);
+
+    /**
+     * @param index the position of the element, 0 being the oldest
+     * @return the element
+     * @throws IndexOutOfBoundsException if the index is not in [0, size())
+     */
+    T get(int index);
+
+    /**
+     * @return the most recently added element, or null if the buffer is empty
+     */
+    T getNewest();
+
+    int size();
+
+    boolean isEmpty();
+
+    void clear();
+
+    int getCapacity();
+
+    boolean isAtCapacity();
+
+    /**
+     * A copy of the contents, oldest first, taken atomically with respect to writers
+     * @return a list that does not change when the buffer does
+     */
+    List<T> snapshot();
+
+    /**
+     * Removes all the elements, oldest first, and adds them to the target collection
+     * @param target the collection to add the elements to
+     * @return the number of elements transferred
+     */
+    int drainTo(Collection<? super T> target);
+
+    /**
+     * Removes up to maxElements elements, oldest first, and adds them to the target collection
+     * @param target the collection to add the elements to
+     * @param maxElements the maximum number of elements to transfer
+     * @return the number of elements transferred
+     */
+    int drainTo(Collection<? super T> target, int maxElements);
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.moscona.util.collections;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes values into fixed-size records and decodes them back, for MappedCappedBuffer.
+ * The record buffer is positioned at the start of the record and limited to its end, and codecs must only use
+ * relative gets and puts on it. A value that does not fit should be truncated rather than overflow the record.
+ * Codecs used with MappedCappedBufferReader need a public no-argument constructor.
+ * @param <T> the type of the values
+ */
+public interface IRecordCodec<T> {
+    /**
+     * @param value the value to encode
+     * @param record the record to write to
+     */
+    void encode(T value, ByteBuffer record);
+
+    /**
+     * @param record the record to read from
+     * @return the decoded value
+     */
+    T decode(ByteBuffer record);
+
+    /**
+     * Writes a string as a length followed by its chars, truncating it to what fits in the rest of the record.
+     * Does not allocate. A null string is written as length -1.
+     * @param record the record to write to
+     * @param value the string
+     */
+    static void putString(ByteBuffer record, String value) {
+        putString(record, value, Short.MAX_VALUE);
+    }
+
+    /**
+     * Writes a string as a length followed by its chars, truncating it to maxChars or to what fits in the rest of the
+     * record, whichever is shorter. Does not allocate. A null string is written as length -1.
+     * @param record the record to write to (which needs room for at least the two byte length)
+     * @param value the string
+     * @param maxChars the maximum number of chars to write
+     */
+    static void putString(ByteBuffer record, String value, int maxChars) {
+        if (value == null) {
+            record.putShort((short) -1);
+            return;
+        }
+        int room = Math.max(0, (record.remaining() - 2) / 2);
+        int length = Math.min(value.length(), Math.min(Math.min(maxChars, Short.MAX_VALUE), room));
+        record.putShort((short) length);
+        for (int i = 0; i < length; i++) {
+            record.putChar(value.charAt(i));
+        }
+    }
+
+    /**
+     * Reads a string written by putString()
+     * @param record the record to read from
+     * @return the string, possibly truncated, or null
+     */
+    static String getString(ByteBuffer record) {
+        int length = record.getShort();
+        if (length < 0) {
+            return null;
+        }
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = record.getChar();
+        }
+        return new String(chars);
+    }
+
+    /**
+     * A codec for raw records, which decodes to a copy of the whole record
+     */
+    IRecordCodec<byte[]> RAW = new IRecordCodec<byte[]>() {
+        @Override
+        public void encode(byte[] value, ByteBuffer record) {
+            record.put(value, 0, Math.min(value.length, record.remaining()));
+        }
+
+        @Override
+        public byte[] decode(ByteBuffer record) {
+            byte[] retval = new byte[record.remaining()];
+            record.get(retval);
+            return retval;
+        }
+    };
+}
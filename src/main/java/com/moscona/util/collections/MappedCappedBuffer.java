@@ -0,0 +1,383 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.moscona.util.collections;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * A capped buffer kept in a memory-mapped file of fixed-size records, so that the history survives the process:
+ * after an OutOfMemoryError or a JVM crash the file still holds the most recent records, and
+ * MappedCappedBufferReader (or read()) decodes them. The records live off-heap, so heap usage does not depend on the
+ * capacity, and add() encodes straight into the mapped file without an intermediate copy.
+ * <p>
+ * File layout: a 64 byte header (magic, version, capacity, record size, next sequence, floor, creation time) followed
+ * by capacity slots. Each slot is the record's sequence number plus one (0 for an empty or half written slot) followed
+ * by recordSize bytes of payload. A slot is invalidated before its payload is written, so a record interrupted by a
+ * crash is never decoded.
+ * </p>
+ * <p>
+ * A process that restarts on the same file should use open(), which continues the records of the previous run. The
+ * constructor always starts a new file, and renames an existing one to the same name plus ".prev" first, so that it
+ * can still be read (e.g. by MappedCappedBufferReader) rather than being lost.
+ * </p>
+ * All the methods are synchronized. Data reaches the operating system as it is written, so it survives the death of
+ * the process; call force() if it needs to survive the machine too.
+ * @param <T> the element type
+ */
+public class MappedCappedBuffer<T> implements ICappedBuffer<T>, Closeable {
+    static final int MAGIC = 0x4D434231; // "MCB1"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int MAGIC_OFFSET = 0;
+    static final int VERSION_OFFSET = 4;
+    static final int CAPACITY_OFFSET = 8;
+    static final int RECORD_SIZE_OFFSET = 12;
+    static final int NEXT_OFFSET = 16;
+    static final int FLOOR_OFFSET = 24;
+    static final int CREATED_OFFSET = 32;
+    static final int SEQUENCE_SIZE = 8;
+    static final String PREVIOUS_SUFFIX = ".prev";
+
+    private final File file;
+    private final int capacity;
+    private final int recordSize;
+    private final int slotSize;
+    private final IRecordCodec<T> codec;
+    private final MappedByteBuffer buffer;
+    private long next; // the sequence of the next record to add
+    private long floor; // records below this sequence were drained or cleared
+
+    /**
+     * Creates the file and maps it. A non empty file at the path is first renamed to the path plus ".prev",
+     * replacing any older one.
+     * @param file the file to keep the records in
+     * @param capacity the number of records to keep
+     * @param recordSize the size of each record in bytes
+     * @param codec converts elements to and from records
+     * @throws IOException if the file cannot be moved aside, created or mapped
+     */
+    public MappedCappedBuffer(File file, int capacity, int recordSize, IRecordCodec<T> codec) throws IOException {
+        this(file, capacity, recordSize, codec, false);
+    }
+
+    /**
+     * Reopens the file of a previous run, e.g. after a crash, and goes on adding records after the ones it holds.
+     * If there is no such file, or it is not a mapped buffer file of the same capacity and record size, a new file is
+     * created as by the constructor (so an incompatible file is moved aside to the path plus ".prev").
+     * @param file the file to keep the records in
+     * @param capacity the number of records to keep
+     * @param recordSize the size of each record in bytes
+     * @param codec converts elements to and from records
+     * @param <T> the element type
+     * @return the buffer
+     * @throws IOException if the file cannot be moved aside, created or mapped
+     */
+    public static <T> MappedCappedBuffer<T> open(File file, int capacity, int recordSize, IRecordCodec<T> codec)
+            throws IOException {
+        return new MappedCappedBuffer<T>(file, capacity, recordSize, codec, isReopenable(file, capacity, recordSize));
+    }
+
+    private static boolean isReopenable(File file, int capacity, int recordSize) {
+        if (!file.isFile() || file.length() == 0L) {
+            return false;
+        }
+        try {
+            ByteBuffer header = mapForReading(file);
+            long next = header.getLong(NEXT_OFFSET);
+            long floor = header.getLong(FLOOR_OFFSET);
+            return header.getInt(CAPACITY_OFFSET) == capacity && header.getInt(RECORD_SIZE_OFFSET) == recordSize &&
+                    next >= 0L && floor >= 0L && floor <= next;
+        }
+        catch (IOException e) {
+            return false; // not a mapped buffer file, moved aside
+        }
+    }
+
+    private MappedCappedBuffer(File file, int capacity, int recordSize, IRecordCodec<T> codec, boolean reopen)
+            throws IOException {
+        if (capacity <= 0 || recordSize <= 0) {
+            throw new IllegalArgumentException("capacity and record size must be positive");
+        }
+        long fileSize = HEADER_SIZE + (long) capacity * (SEQUENCE_SIZE + recordSize);
+        if (fileSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("a mapped buffer is limited to 2GB, " + fileSize + " bytes requested");
+        }
+        this.file = file;
+        this.capacity = capacity;
+        this.recordSize = recordSize;
+        this.slotSize = SEQUENCE_SIZE + recordSize;
+        this.codec = codec;
+        if (!reopen) {
+            moveAside(file);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (!reopen) {
+                raf.setLength(0L); // make sure no stale records survive
+                raf.setLength(fileSize);
+            }
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0L, fileSize);
+        }
+        if (reopen) {
+            next = buffer.getLong(NEXT_OFFSET);
+            floor = buffer.getLong(FLOOR_OFFSET);
+            return;
+        }
+        buffer.putInt(MAGIC_OFFSET, MAGIC);
+        buffer.putInt(VERSION_OFFSET, VERSION);
+        buffer.putInt(CAPACITY_OFFSET, capacity);
+        buffer.putInt(RECORD_SIZE_OFFSET, recordSize);
+        buffer.putLong(NEXT_OFFSET, 0L);
+        buffer.putLong(FLOOR_OFFSET, 0L);
+        buffer.putLong(CREATED_OFFSET, System.currentTimeMillis());
+        next = 0L;
+        floor = 0L;
+    }
+
+    /**
+     * Renames a non empty file to its name plus ".prev", replacing any older one
+     */
+    private static void moveAside(File file) throws IOException {
+        if (!file.isFile() || file.length() == 0L) {
+            return;
+        }
+        File previous = new File(file.getPath() + PREVIOUS_SUFFIX);
+        if (previous.exists() && !previous.delete()) {
+            throw new IOException("could not delete " + previous);
+        }
+        if (!file.renameTo(previous)) {
+            throw new IOException("could not move " + file + " aside to " + previous);
+        }
+    }
+
+    private static int slotOffset(long sequence, int capacity, int slotSize) {
+        return HEADER_SIZE + (int) (sequence % capacity) * slotSize;
+    }
+
+    private long oldestRetained() {
+        return Math.max(floor, next - capacity);
+    }
+
+    /**
+     * Encodes the element into the slot of the oldest record. If the codec throws, the slot is left empty and the
+     * exception propagates.
+     * @param element the element to append
+     * @return true
+     */
+    @Override
+    public synchronized boolean add(T element) {
+        int offset = slotOffset(next, capacity, slotSize);
+        buffer.putLong(offset, 0L); // invalid until the payload is complete
+        buffer.limit(offset + slotSize).position(offset + SEQUENCE_SIZE);
+        try {
+            codec.encode(element, buffer);
+        }
+        finally {
+            buffer.clear();
+        }
+        buffer.putLong(offset, next + 1);
+        next++;
+        buffer.putLong(NEXT_OFFSET, next);
+        return true;
+    }
+
+    private T decode(long sequence) {
+        return decode(buffer, sequence, capacity, slotSize, codec);
+    }
+
+    /**
+     * @return the decoded record, or null if the slot does not hold it
+     */
+    private static <T> T decode(ByteBuffer source, long sequence, int capacity, int slotSize, IRecordCodec<T> codec) {
+        int offset = slotOffset(sequence, capacity, slotSize);
+        if (source.getLong(offset) != sequence + 1) {
+            return null;
+        }
+        source.limit(offset + slotSize).position(offset + SEQUENCE_SIZE);
+        try {
+            return codec.decode(source);
+        }
+        finally {
+            source.clear();
+        }
+    }
+
+    /**
+     * @param index the position of the record, 0 being the oldest
+     * @return the element, or null if its record was lost to a failed encode
+     */
+    @Override
+    public synchronized T get(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+        }
+        return decode(oldestRetained() + index);
+    }
+
+    @Override
+    public synchronized T getNewest() {
+        return next > oldestRetained() ? decode(next - 1) : null;
+    }
+
+    @Override
+    public synchronized int size() {
+        return (int) (next - oldestRetained());
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public synchronized void clear() {
+        floor = next;
+        buffer.putLong(FLOOR_OFFSET, floor);
+    }
+
+    @Override
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getRecordSize() {
+        return recordSize;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public synchronized boolean isAtCapacity() {
+        return size() == capacity;
+    }
+
+    @Override
+    public synchronized List<T> snapshot() {
+        ArrayList<T> retval = new ArrayList<>(size());
+        decodeRange(buffer, oldestRetained(), next, capacity, slotSize, codec, retval);
+        return Collections.unmodifiableList(retval);
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return snapshot().iterator();
+    }
+
+    @Override
+    public int drainTo(Collection<? super T> target) {
+        return drainTo(target, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public synchronized int drainTo(Collection<? super T> target, int maxElements) {
+        if (target == this) {
+            throw new IllegalArgumentException("cannot drain a buffer into itself");
+        }
+        long from = oldestRetained();
+        long to = from + Math.min(next - from, Math.max(maxElements, 0));
+        int count = decodeRange(buffer, from, to, capacity, slotSize, codec, target);
+        floor = to;
+        buffer.putLong(FLOOR_OFFSET, floor);
+        return count;
+    }
+
+    private static <T> int decodeRange(ByteBuffer source, long from, long to, int capacity, int slotSize,
+                                       IRecordCodec<T> codec, Collection<? super T> target) {
+        int count = 0;
+        for (long sequence = from; sequence < to; sequence++) {
+            T value = decode(source, sequence, capacity, slotSize, codec);
+            if (value != null) {
+                target.add(value);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Flushes the records to the storage device
+     */
+    public synchronized void force() {
+        buffer.force();
+    }
+
+    /**
+     * Flushes the records. The mapping itself is released when the buffer is garbage collected.
+     */
+    @Override
+    public void close() {
+        force();
+    }
+
+    @Override
+    public String toString() {
+        return snapshot().toString();
+    }
+
+    /**
+     * Decodes the records kept in a file, e.g. after the process that wrote it died
+     * @param file a file written by a MappedCappedBuffer
+     * @param codec the codec the records were written with
+     * @param <T> the type of the records
+     * @return the retained records, oldest first. Records that were half written are skipped.
+     * @throws IOException if the file cannot be read or is not a mapped buffer file
+     */
+    public static <T> List<T> read(File file, IRecordCodec<T> codec) throws IOException {
+        ByteBuffer source = mapForReading(file);
+        int capacity = source.getInt(CAPACITY_OFFSET);
+        int recordSize = source.getInt(RECORD_SIZE_OFFSET);
+        long next = source.getLong(NEXT_OFFSET);
+        long floor = source.getLong(FLOOR_OFFSET);
+        ArrayList<T> retval = new ArrayList<>();
+        decodeRange(source, Math.max(floor, next - capacity), next, capacity, SEQUENCE_SIZE + recordSize, codec, retval);
+        return retval;
+    }
+
+    /**
+     * Maps a file read-only and checks its header
+     */
+    static ByteBuffer mapForReading(File file) throws IOException {
+        ByteBuffer source;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (raf.length() < HEADER_SIZE) {
+                throw new IOException(file + " is too short to be a mapped buffer file");
+            }
+            source = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0L, raf.length());
+        }
+        if (source.getInt(MAGIC_OFFSET) != MAGIC) {
+            throw new IOException(file + " is not a mapped buffer file");
+        }
+        if (source.getInt(VERSION_OFFSET) != VERSION) {
+            throw new IOException("unsupported mapped buffer version " + source.getInt(VERSION_OFFSET) + " in " + file);
+        }
+        long expectedSize = HEADER_SIZE + (long) source.getInt(CAPACITY_OFFSET) * (SEQUENCE_SIZE + source.getInt(RECORD_SIZE_OFFSET));
+        if (source.capacity() < expectedSize) {
+            throw new IOException(file + " is truncated: " + source.capacity() + " bytes instead of " + expectedSize);
+        }
+        return source;
+    }
+}
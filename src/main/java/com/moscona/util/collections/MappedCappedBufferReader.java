@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.moscona.util.collections;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A command line tool that decodes the file of a MappedCappedBuffer, typically after the process that wrote it died.
+ * <pre>
+ * usage: MappedCappedBufferReader &lt;file&gt; [codec class]
+ * </pre>
+ * With a codec class (which needs a public no-argument constructor) each record is decoded and printed with its
+ * toString(). Without one the records are printed in hex.
+ */
+public class MappedCappedBufferReader {
+    private MappedCappedBufferReader() {
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("usage: MappedCappedBufferReader <file> [codec class]");
+            System.exit(2);
+        }
+        try {
+            IRecordCodec<?> codec = args.length == 2
+                    ? (IRecordCodec<?>) Class.forName(args[1]).getDeclaredConstructor().newInstance()
+                    : null;
+            dump(new File(args[0]), codec, System.out);
+        }
+        catch (IOException | ReflectiveOperationException | ClassCastException e) {
+            System.err.println("Failed to read " + args[0] + ": " + e);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Prints the header of the file and its retained records, oldest first
+     * @param file a file written by a MappedCappedBuffer
+     * @param codec the codec to decode the records with, or null to print them in hex
+     * @param out where to print
+     * @throws IOException if the file cannot be read or is not a mapped buffer file
+     */
+    public static void dump(File file, IRecordCodec<?> codec, PrintStream out) throws IOException {
+        ByteBuffer header = MappedCappedBuffer.mapForReading(file);
+        int capacity = header.getInt(MappedCappedBuffer.CAPACITY_OFFSET);
+        long next = header.getLong(MappedCappedBuffer.NEXT_OFFSET);
+        long floor = header.getLong(MappedCappedBuffer.FLOOR_OFFSET);
+        out.println("file:        " + file);
+        out.println("created:     " + new Date(header.getLong(MappedCappedBuffer.CREATED_OFFSET)));
+        out.println("capacity:    " + capacity);
+        out.println("record size: " + header.getInt(MappedCappedBuffer.RECORD_SIZE_OFFSET));
+        out.println("written:     " + next);
+        out.println("retained:    " + (next - Math.max(floor, next - capacity)));
+
+        if (codec == null) {
+            List<byte[]> records = MappedCappedBuffer.read(file, IRecordCodec.RAW);
+            for (byte[] record : records) {
+                out.println(toHex(record));
+            }
+        }
+        else {
+            List<?> records = MappedCappedBuffer.read(file, codec);
+            for (Object record : records) {
+                out.println(record);
+            }
+        }
+    }
+
+    /**
+     * @return the bytes in hex, without trailing zeros
+     */
+    private static String toHex(byte[] record) {
+        int length = record.length;
+        while (length > 0 && record[length - 1] == 0) {
+            length--;
+        }
+        StringBuilder retval = new StringBuilder(length * 2);
+        for (int i = 0; i < length; i++) {
+            retval.append(Character.forDigit((record[i] >> 4) & 0xF, 16)).append(Character.forDigit(record[i] & 0xF, 16));
+        }
+        return retval.toString();
+    }
+}
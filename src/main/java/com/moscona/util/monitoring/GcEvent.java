@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.moscona.util.monitoring;
+
+import java.lang.management.MemoryUsage;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A single garbage collection, as reported by a GC notification (see GcNotificationListener).
+ * Unlike the polled counters in MemoryStateMarker, every collection gets its own event, with its exact start time,
+ * duration and cause, and the memory usage of every pool before and after it.
+ */
+public class GcEvent {
+    private final long id;
+    private final String collectorName;
+    private final boolean youngCollection;
+    private final String action;
+    private final String cause;
+    private final long startedAt;
+    private final long startTime;
+    private final long duration;
+    private final long heapUsedBefore;
+    private final long heapUsedAfter;
+    private final Map<String, MemoryUsage> usageBeforeGc;
+    private final Map<String, MemoryUsage> usageAfterGc;
+
+    GcEvent(long id, String collectorName, boolean youngCollection, String action, String cause, long startedAt,
+            long startTime, long duration, long heapUsedBefore, long heapUsedAfter,
+            Map<String, MemoryUsage> usageBeforeGc, Map<String, MemoryUsage> usageAfterGc) {
+        this.id = id;
+        this.collectorName = collectorName;
+        this.youngCollection = youngCollection;
+        this.action = action;
+        this.cause = cause;
+        this.startedAt = startedAt;
+        this.startTime = startTime;
+        this.duration = duration;
+        this.heapUsedBefore = heapUsedBefore;
+        this.heapUsedAfter = heapUsedAfter;
+        this.usageBeforeGc = Collections.unmodifiableMap(usageBeforeGc);
+        this.usageAfterGc = Collections.unmodifiableMap(usageAfterGc);
+    }
+
+    /**
+     * @return the collector's own sequence number for the collection
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * @return the name of the collector, e.g. G1 Young Generation
+     */
+    public String getCollectorName() {
+        return collectorName;
+    }
+
+    /**
+     * @return whether the collector only collects the young generation
+     */
+    public boolean isYoungCollection() {
+        return youngCollection;
+    }
+
+    /**
+     * @return the action, e.g. "end of minor GC"
+     */
+    public String getAction() {
+        return action;
+    }
+
+    /**
+     * @return the cause, e.g. "Allocation Failure" or "System.gc()"
+     */
+    public String getCause() {
+        return cause;
+    }
+
+    /**
+     * @return the wall clock time the collection started at (msec since the epoch)
+     */
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    /**
+     * @return the time the collection started at (msec since the JVM started)
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * @return the duration of the collection (msec). For a concurrent cycle (see isConcurrentCycle()) this is mostly
+     * not pause time.
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * @return whether the event reports a concurrent collection cycle, e.g. of ZGC Cycles, rather than a pause
+     */
+    public boolean isConcurrentCycle() {
+        return GcLayout.isConcurrentCycle(collectorName, action);
+    }
+
+    /**
+     * @return the used memory of the heap pools before the collection
+     */
+    public long getHeapUsedBefore() {
+        return heapUsedBefore;
+    }
+
+    /**
+     * @return the used memory of the heap pools after the collection
+     */
+    public long getHeapUsedAfter() {
+        return heapUsedAfter;
+    }
+
+    /**
+     * @return the heap memory the collection freed, which is negative if it only promoted
+     */
+    public long getHeapFreed() {
+        return heapUsedBefore - heapUsedAfter;
+    }
+
+    /**
+     * @return the usage of every memory pool, heap or not, before the collection, by pool name
+     */
+    public Map<String, MemoryUsage> getUsageBeforeGc() {
+        return usageBeforeGc;
+    }
+
+    /**
+     * @return the usage of every memory pool, heap or not, after the collection, by pool name
+     */
+    public Map<String, MemoryUsage> getUsageAfterGc() {
+        return usageAfterGc;
+    }
+
+    @Override
+    public String toString() {
+        return collectorName + " #" + id + " (" + action + ", " + cause + ") at " + startTime + " took " + duration +
+                " msec, heap " + heapUsedBefore + " -> " + heapUsedAfter;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.moscona.util.monitoring;
+
+import java.lang.management.GarbageCollectorMXBean;
+
+/**
+ * Classifies garbage collectors and memory pools by the generation they deal with, going by the names HotSpot gives
+ * them (Serial, Parallel, CMS, G1, and the single generation ZGC and Shenandoah, which have neither).
+ */
+final class GcLayout {
+    private static final String[] YOUNG_COLLECTOR_NAMES = {"Young", "Scavenge", "ParNew", "Copy", "Minor"};
+
+    private GcLayout() {
+    }
+
+    static boolean isEdenPool(String poolName) {
+        return poolName.contains("Eden");
+    }
+
+    static boolean isSurvivorPool(String poolName) {
+        return poolName.contains("Survivor");
+    }
+
+    static boolean isOldPool(String poolName) {
+        return poolName.contains("Old Gen") || poolName.contains("Tenured");
+    }
+
+    /**
+     * A collector is young if its name says so, or failing that, if it collects an eden pool but no old one
+     * @param collector the collector bean
+     * @return whether the collector only collects the young generation
+     */
+    static boolean isYoungCollector(GarbageCollectorMXBean collector) {
+        String name = collector.getName();
+        for (String youngName : YOUNG_COLLECTOR_NAMES) {
+            if (name.contains(youngName)) {
+                return true;
+            }
+        }
+        boolean eden = false;
+        for (String pool : collector.getMemoryPoolNames()) {
+            if (isOldPool(pool)) {
+                return false;
+            }
+            eden |= isEdenPool(pool);
+        }
+        return eden;
+    }
+
+    /**
+     * A concurrent collector reports the length of whole collection cycles, most of which run alongside the
+     * application, rather than the time it stopped the application: the Cycles beans of ZGC and Shenandoah (whose
+     * pauses are reported by their Pauses beans), and CMS. G1 reports its concurrent cycle only through the remark and
+     * cleanup pauses of its G1 Concurrent GC bean, which are real pauses.
+     * @param collectorName the name of the collector, e.g. ZGC Cycles, or its MBean object name
+     * @return whether the collector's durations are concurrent cycles rather than pauses
+     */
+    static boolean isConcurrentCollector(String collectorName) {
+        return collectorName.contains("Cycles") || collectorName.endsWith("ConcurrentMarkSweep");
+    }
+
+    /**
+     * @param collectorName the name of the collector that sent a GC notification
+     * @param gcAction the action of the notification, e.g. end of minor GC or end of GC cycle
+     * @return whether the notification reports a concurrent cycle rather than a pause
+     */
+    static boolean isConcurrentCycle(String collectorName, String gcAction) {
+        return isConcurrentCollector(collectorName) || gcAction.contains("cycle");
+    }
+
+    /**
+     * @param objectName a collector's MBean object name, e.g. java.lang:type=GarbageCollector,name=PS Scavenge
+     * @return the name of the collector, e.g. PS Scavenge
+     */
+    static String shortName(String objectName) {
+        return objectName.replaceAll(".*name=", "").replaceAll(",.*", "");
+    }
+}
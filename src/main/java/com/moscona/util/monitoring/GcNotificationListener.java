@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.moscona.util.monitoring;
+
+import com.moscona.util.collections.CappedRingBuffer;
+import com.moscona.util.collections.ICappedBuffer;
+import com.moscona.util.monitoring.stats.IStatTimer;
+import com.moscona.util.monitoring.stats.IStatsService;
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.GcInfo;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records every garbage collection as it happens, by subscribing to the GC notifications of the platform collectors,
+ * rather than by diffing polled counters as MemoryStateHistory.getGcTimeStats() does (which cannot tell two
+ * collections between samples apart, and only estimates when they happened).
+ * Each collection is kept as a GcEvent in a bounded buffer, and if a stats service is given, its duration is recorded
+ * in a timing stat per collector and in one for all the collectors, which gives pause time histograms.
+ * Concurrent cycles (e.g. of ZGC Cycles, Shenandoah Cycles or CMS, see GcEvent.isConcurrentCycle()) mostly run
+ * alongside the application, so their durations are kept out of the pause stats and recorded in a cycle timing stat
+ * per collector instead.
+ * The notifications are delivered on a JMX thread, so the work done per collection is kept small.
+ */
+public class GcNotificationListener implements NotificationListener {
+    public static final String DEFAULT_STAT_PREFIX = "GC pause";
+    public static final String DEFAULT_CYCLE_STAT_PREFIX = "GC cycle";
+
+    private final ICappedBuffer<GcEvent> events;
+    private final IStatsService stats;
+    private final String statPrefix;
+    private final String cycleStatPrefix;
+    private final AtomicLong eventCount = new AtomicLong();
+    private final String[] heapPoolNames;
+    private final long jvmStartTime;
+    private IStatTimer allCollectorsTimer = null;
+    private List<Subscription> subscriptions = null;
+
+    /**
+     * What a subscription to one collector knows, passed back with each of its notifications
+     */
+    private static final class Subscription {
+        private final NotificationEmitter emitter;
+        private final boolean young;
+        private final boolean concurrent;
+        private final IStatTimer timer;
+
+        private Subscription(NotificationEmitter emitter, boolean young, boolean concurrent, IStatTimer timer) {
+            this.emitter = emitter;
+            this.young = young;
+            this.concurrent = concurrent;
+            this.timer = timer;
+        }
+    }
+
+    /**
+     * @param capacity the number of most recent events to keep
+     * @param stats the service to record the durations in, or null to only keep the events
+     */
+    public GcNotificationListener(int capacity, IStatsService stats) {
+        this(new CappedRingBuffer<GcEvent>(capacity), stats, DEFAULT_STAT_PREFIX);
+    }
+
+    /**
+     * @param events an empty buffer to keep the events in
+     * @param stats the service to record the durations in, or null to only keep the events
+     * @param statPrefix the name of the stat for all the collectors, which followed by ": " and the collector name is
+     *                   also the name of the stat of each collector
+     */
+    public GcNotificationListener(ICappedBuffer<GcEvent> events, IStatsService stats, String statPrefix) {
+        this(events, stats, statPrefix, DEFAULT_CYCLE_STAT_PREFIX);
+    }
+
+    /**
+     * @param events an empty buffer to keep the events in
+     * @param stats the service to record the durations in, or null to only keep the events
+     * @param statPrefix the name of the pause stat for all the collectors, which followed by ": " and the collector
+     *                   name is also the name of the pause stat of each collector
+     * @param cycleStatPrefix followed by ": " and the collector name, the name of the concurrent cycle stat of each
+     *                        concurrent collector
+     */
+    public GcNotificationListener(ICappedBuffer<GcEvent> events, IStatsService stats, String statPrefix,
+                                  String cycleStatPrefix) {
+        this.events = events;
+        this.stats = stats;
+        this.statPrefix = statPrefix;
+        this.cycleStatPrefix = cycleStatPrefix;
+        MemoryPoolMXBean[] heapPools = MemoryStateMarker.heapPools();
+        heapPoolNames = new String[heapPools.length];
+        for (int i=0; i<heapPools.length; i++) {
+            heapPoolNames[i] = heapPools[i].getName();
+        }
+        jvmStartTime = ManagementFactory.getRuntimeMXBean().getStartTime();
+    }
+
+    /**
+     * Subscribes to the notifications of all the collectors. Does nothing if already started.
+     * @return the number of collectors subscribed to, which is 0 on a JVM that does not send GC notifications
+     */
+    public synchronized int start() {
+        if (subscriptions != null) {
+            return subscriptions.size();
+        }
+        if (stats != null) {
+            allCollectorsTimer = stats.timer(statPrefix);
+        }
+        List<Subscription> subscribed = new ArrayList<Subscription>();
+        for (GarbageCollectorMXBean collector: ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (collector instanceof NotificationEmitter) {
+                boolean concurrent = GcLayout.isConcurrentCollector(collector.getName());
+                String statName = concurrent ? getCycleStatName(collector.getName()) : getStatName(collector.getName());
+                IStatTimer timer = stats == null ? null : stats.timer(statName);
+                Subscription subscription = new Subscription((NotificationEmitter) collector,
+                        GcLayout.isYoungCollector(collector), concurrent, timer);
+                subscription.emitter.addNotificationListener(this, null, subscription);
+                subscribed.add(subscription);
+            }
+        }
+        subscriptions = subscribed;
+        return subscribed.size();
+    }
+
+    /**
+     * Unsubscribes from all the collectors. The events recorded so far are kept.
+     */
+    public synchronized void stop() {
+        if (subscriptions == null) {
+            return;
+        }
+        for (Subscription subscription: subscriptions) {
+            try {
+                subscription.emitter.removeNotificationListener(this, null, subscription);
+            }
+            catch (ListenerNotFoundException e) {
+                // already gone
+            }
+        }
+        subscriptions = null;
+    }
+
+    public synchronized boolean isStarted() {
+        return subscriptions != null;
+    }
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+            return;
+        }
+        GarbageCollectionNotificationInfo info =
+                GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+        Subscription subscription = (Subscription) handback;
+        GcInfo gcInfo = info.getGcInfo();
+        Map<String, MemoryUsage> before = gcInfo.getMemoryUsageBeforeGc();
+        Map<String, MemoryUsage> after = gcInfo.getMemoryUsageAfterGc();
+
+        GcEvent event = new GcEvent(gcInfo.getId(), info.getGcName(), subscription.young, info.getGcAction(),
+                info.getGcCause(), jvmStartTime + gcInfo.getStartTime(), gcInfo.getStartTime(), gcInfo.getDuration(),
+                heapUsed(before), heapUsed(after), before, after);
+        events.add(event);
+        eventCount.incrementAndGet();
+
+        if (subscription.timer == null) {
+            return;
+        }
+        if (!event.isConcurrentCycle()) {
+            subscription.timer.record(gcInfo.getDuration());
+            allCollectorsTimer.record(gcInfo.getDuration());
+        }
+        else if (subscription.concurrent) { // a cycle of any other collector has no cycle stat, and is only kept
+            subscription.timer.record(gcInfo.getDuration());
+        }
+    }
+
+    private long heapUsed(Map<String, MemoryUsage> usage) {
+        long retval = 0L;
+        for (String pool: heapPoolNames) {
+            MemoryUsage poolUsage = usage.get(pool);
+            if (poolUsage != null) {
+                retval += poolUsage.getUsed();
+            }
+        }
+        return retval;
+    }
+
+    /**
+     * @return the most recent events, oldest first
+     */
+    public List<GcEvent> getEvents() {
+        return events.snapshot();
+    }
+
+    /**
+     * @return the buffer the events are kept in, e.g. to drain them
+     */
+    public ICappedBuffer<GcEvent> getEventBuffer() {
+        return events;
+    }
+
+    /**
+     * @return the number of events recorded since the listener was created, including those no longer in the buffer
+     */
+    public long getEventCount() {
+        return eventCount.get();
+    }
+
+    /**
+     * @return the name of the timing stat for all the collectors
+     */
+    public String getStatName() {
+        return statPrefix;
+    }
+
+    /**
+     * @param collectorName the name of a collector, e.g. G1 Young Generation
+     * @return the name of the timing stat for the collector
+     */
+    public String getStatName(String collectorName) {
+        return statPrefix + ": " + collectorName;
+    }
+
+    /**
+     * @param collectorName the name of a concurrent collector, e.g. ZGC Cycles
+     * @return the name of the concurrent cycle timing stat for the collector
+     */
+    public String getCycleStatName(String collectorName) {
+        return cycleStatPrefix + ": " + collectorName;
+    }
+}
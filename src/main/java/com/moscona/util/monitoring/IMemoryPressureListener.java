@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.moscona.util.monitoring;
+
+/**
+ * Notified by a MemoryPressureMonitor when the memory pressure level changes
+ */
+public interface IMemoryPressureListener {
+    /**
+     * Called on the thread that updated the monitor, so implementations should return quickly
+     * @param previous the level before the change
+     * @param current the new level
+     * @param sample the sample that caused the change
+     */
+    void pressureChanged(MemoryPressureMonitor.Level previous, MemoryPressureMonitor.Level current, MemoryStateMarker sample);
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.moscona.util.monitoring;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Turns the samples of a MemoryStateHistory into a memory pressure level that code taking in work (executors,
+ * caches) can check cheaply to shed load before the JVM spirals into back to back collections.
+ * getLevel() is a single volatile read. The level is recalculated by update(), typically called by a
+ * MemorySamplerDaemon after each sample, and listeners are told about every change.
+ * <p>
+ * The level is the higher of two signals. One is the occupancy of the old generation relative to the maximum heap
+ * (the whole heap for collectors without generations) - unlike the occupancy of the whole heap it does not rise and
+ * fall with every young collection. The other is the fraction of the time between the last two samples spent in GC
+ * pauses. The cycles of concurrent collectors (e.g. ZGC or Shenandoah) are left out, as a busy heap keeps them running
+ * without holding up the application.
+ * To keep a value hovering at a threshold from flipping the level back and forth, the level only drops once the
+ * signals are below the lower level's thresholds by the hysteresis (a fraction of the thresholds).
+ * </p>
+ */
+public class MemoryPressureMonitor {
+    public enum Level {NORMAL, ELEVATED, HIGH, CRITICAL}
+
+    public static final double[] DEFAULT_OCCUPANCY_THRESHOLDS = {0.70, 0.85, 0.95};
+    public static final double[] DEFAULT_GC_OVERHEAD_THRESHOLDS = {0.05, 0.15, 0.30};
+    public static final double DEFAULT_HYSTERESIS = 0.1;
+
+    private final MemoryStateHistory history;
+    private final double[] occupancyThresholds;
+    private final double[] gcOverheadThresholds;
+    private final double hysteresis;
+    private final CopyOnWriteArrayList<IMemoryPressureListener> listeners = new CopyOnWriteArrayList<IMemoryPressureListener>();
+    private volatile Level level = Level.NORMAL;
+    private MemoryStateMarker previous = null;
+
+    public MemoryPressureMonitor(MemoryStateHistory history) {
+        this(history, DEFAULT_OCCUPANCY_THRESHOLDS, DEFAULT_GC_OVERHEAD_THRESHOLDS, DEFAULT_HYSTERESIS);
+    }
+
+    /**
+     * @param history the history to take the samples from
+     * @param occupancyThresholds the occupancy (a fraction of the maximum heap) at which each level above NORMAL
+     *                            starts, in ascending order
+     * @param gcOverheadThresholds the fraction of time spent in GC at which each level above NORMAL starts, in
+     *                             ascending order
+     * @param hysteresis how far below a level's thresholds, as a fraction of them, the signals have to fall for the
+     *                   level to drop
+     * @throws IllegalArgumentException if there is not one threshold per level above NORMAL
+     */
+    public MemoryPressureMonitor(MemoryStateHistory history, double[] occupancyThresholds,
+                                 double[] gcOverheadThresholds, double hysteresis) {
+        int levels = Level.values().length - 1;
+        if (occupancyThresholds.length != levels || gcOverheadThresholds.length != levels) {
+            throw new IllegalArgumentException("Expected " + levels + " thresholds per signal");
+        }
+        this.history = history;
+        this.occupancyThresholds = occupancyThresholds.clone();
+        this.gcOverheadThresholds = gcOverheadThresholds.clone();
+        this.hysteresis = hysteresis;
+    }
+
+    /**
+     * @return the current pressure level
+     */
+    public Level getLevel() {
+        return level;
+    }
+
+    /**
+     * @param threshold a level
+     * @return whether the current pressure level is the given one or higher
+     */
+    public boolean isAtLeast(Level threshold) {
+        return level.compareTo(threshold) >= 0;
+    }
+
+    public void addListener(IMemoryPressureListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(IMemoryPressureListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Recalculates the level from the newest sample of the history. Does nothing if there is no new sample since the
+     * last update.
+     * @return the current level
+     */
+    public synchronized Level update() {
+        MemoryStateMarker current = history.getLastSample();
+        if (current == null || current == previous) {
+            return level;
+        }
+        double occupancy = occupancy(current);
+        double gcOverhead = previous == null ? 0.0 : gcOverhead(current, previous);
+        previous = current;
+
+        Level from = level;
+        Level to = levelOf(occupancy, gcOverhead, 1.0);
+        if (to.compareTo(from) < 0) {
+            // dropping: only as far as the signals are clearly below the thresholds
+            Level clearlyBelow = levelOf(occupancy, gcOverhead, 1.0 - hysteresis);
+            to = clearlyBelow.compareTo(from) < 0 ? clearlyBelow : from;
+        }
+        if (to != from) {
+            level = to;
+            for (IMemoryPressureListener listener: listeners) {
+                listener.pressureChanged(from, to, current);
+            }
+        }
+        return to;
+    }
+
+    private Level levelOf(double occupancy, double gcOverhead, double factor) {
+        Level[] levels = Level.values();
+        for (int i = occupancyThresholds.length - 1; i >= 0; i--) {
+            if (occupancy >= occupancyThresholds[i] * factor || gcOverhead >= gcOverheadThresholds[i] * factor) {
+                return levels[i + 1];
+            }
+        }
+        return Level.NORMAL;
+    }
+
+    /**
+     * @param sample a sample
+     * @return the old generation's share of the maximum heap, or the whole heap's for collectors without generations
+     */
+    static double occupancy(MemoryStateMarker sample) {
+        if (sample.getMaxMemory() <= 0) {
+            return 0.0;
+        }
+        long old = sample.getOldUsed();
+        long used = old > 0 ? old : sample.getTotalMemory() - sample.getFreeMemory();
+        return (double) used / sample.getMaxMemory();
+    }
+
+    /**
+     * The time between the samples is taken from their System.nanoTime() stamps. getMeasuredAt() is the time of day
+     * (and simulated time in simulation mode), so it is only used for markers restored without the nano time stamps.
+     * @return the fraction of the time between the samples spent in GC pauses
+     */
+    static double gcOverhead(MemoryStateMarker current, MemoryStateMarker previous) {
+        double elapsedMillis;
+        if (current.getMeasuredAtNanos() != 0L && previous.getMeasuredAtNanos() != 0L) {
+            elapsedMillis = (current.getMeasuredAtNanos() - previous.getMeasuredAtNanos()) / 1.0e6;
+        }
+        else {
+            elapsedMillis = current.getMeasuredAt() - previous.getMeasuredAt();
+        }
+        if (elapsedMillis <= 0.0) {
+            return 0.0;
+        }
+        return Math.min(1.0, (current.getPauseTime() - previous.getPauseTime()) / elapsedMillis);
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.moscona.util.monitoring;
+
+/**
+ * The configuration of a MemorySamplerDaemon. Changes made after the daemon started are not guaranteed to be seen.
+ * A threshold of 0 is disabled.
+ */
+public class MemorySamplerConfig {
+    private long baseIntervalMillis = 1000L;
+    private long highFrequencyIntervalMillis = 100L;
+    private double heapOccupancyThreshold = 0.85;
+    private double allocationRateThreshold = 0.0;
+    private int calmSamplesToSlowDown = 20;
+
+    /**
+     * @return the interval between samples in steady state (msec)
+     */
+    public long getBaseIntervalMillis() {
+        return baseIntervalMillis;
+    }
+
+    public void setBaseIntervalMillis(long baseIntervalMillis) {
+        this.baseIntervalMillis = baseIntervalMillis;
+    }
+
+    /**
+     * @return the interval between samples while a threshold is crossed (msec)
+     */
+    public long getHighFrequencyIntervalMillis() {
+        return highFrequencyIntervalMillis;
+    }
+
+    public void setHighFrequencyIntervalMillis(long highFrequencyIntervalMillis) {
+        this.highFrequencyIntervalMillis = highFrequencyIntervalMillis;
+    }
+
+    /**
+     * @return the fraction of the maximum heap in use above which sampling goes to high frequency
+     */
+    public double getHeapOccupancyThreshold() {
+        return heapOccupancyThreshold;
+    }
+
+    public void setHeapOccupancyThreshold(double heapOccupancyThreshold) {
+        this.heapOccupancyThreshold = heapOccupancyThreshold;
+    }
+
+    /**
+     * @return the allocation rate (bytes per second) above which sampling goes to high frequency
+     */
+    public double getAllocationRateThreshold() {
+        return allocationRateThreshold;
+    }
+
+    public void setAllocationRateThreshold(double allocationRateThreshold) {
+        this.allocationRateThreshold = allocationRateThreshold;
+    }
+
+    /**
+     * @return the number of consecutive high frequency samples below all the thresholds before going back to the
+     * base rate, so that a value hovering around a threshold does not flip the rate back and forth
+     */
+    public int getCalmSamplesToSlowDown() {
+        return calmSamplesToSlowDown;
+    }
+
+    public void setCalmSamplesToSlowDown(int calmSamplesToSlowDown) {
+        this.calmSamplesToSlowDown = calmSamplesToSlowDown;
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.moscona.util.monitoring;
+
+import com.moscona.util.IAlertService;
+import com.moscona.util.concurrent.ConfiguredDaemonThread;
+
+import java.text.DecimalFormat;
+
+/**
+ * Samples a MemoryStateHistory on a daemon thread, so that callers do not have to call sample() themselves.
+ * Sampling is at the base rate until the heap occupancy or the allocation rate crosses its threshold, then at the high
+ * frequency rate until the calmSamplesToSlowDown samples in a row are below all the thresholds.
+ * Each switch is reported through the alert service (which typically publishes it as an ApplicationAlertEvent) with the
+ * message type ALERT_TYPE.
+ * A sample that throws (e.g. a failing pressure listener or alert service) is reported through the alert service with
+ * the same message type, once until a sample succeeds again, and sampling goes on.
+ * In steady state the cost is one sample per base interval: the thresholds are checked against the new sample and the
+ * previous one, without copying the history.
+ */
+public class MemorySamplerDaemon implements Runnable {
+    public static final String ALERT_TYPE = "MEMORY_SAMPLING_RATE";
+    public static final String DEFAULT_THREAD_NAME = "memory sampler";
+
+    private final MemoryStateHistory history;
+    private final MemorySamplerConfig config;
+    private final IAlertService alertService;
+    private final String threadName;
+    private volatile MemoryPressureMonitor pressureMonitor = null;
+    private ConfiguredDaemonThread<MemorySamplerConfig> thread = null;
+    private volatile boolean running = false;
+    private volatile boolean highFrequency = false;
+    private volatile long sampleCount = 0L;
+    private MemoryStateMarker previous = null;
+    private int calmSamples = 0;
+    private boolean failing = false;
+
+    /**
+     * @param history the history to sample into
+     * @param config the sampling rates and thresholds
+     * @param alertService where to report rate switches, or null not to report them
+     */
+    public MemorySamplerDaemon(MemoryStateHistory history, MemorySamplerConfig config, IAlertService alertService) {
+        this(history, config, alertService, DEFAULT_THREAD_NAME);
+    }
+
+    public MemorySamplerDaemon(MemoryStateHistory history, MemorySamplerConfig config, IAlertService alertService,
+                               String threadName) {
+        this.history = history;
+        this.config = config;
+        this.alertService = alertService;
+        this.threadName = threadName;
+    }
+
+    /**
+     * Starts sampling. Does nothing if already started.
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        running = true;
+        thread = new ConfiguredDaemonThread<MemorySamplerConfig>(this, threadName, config, true);
+        thread.start();
+    }
+
+    /**
+     * Stops sampling and waits for the sampling thread to finish its current sample
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void stop() throws InterruptedException {
+        ConfiguredDaemonThread<MemorySamplerConfig> stopping;
+        synchronized (this) {
+            stopping = thread;
+            if (stopping == null) {
+                return;
+            }
+            running = false;
+            thread = null;
+        }
+        stopping.interrupt();
+        stopping.join();
+    }
+
+    /**
+     * @param pressureMonitor a monitor to update after each sample, or null for none
+     */
+    public void setPressureMonitor(MemoryPressureMonitor pressureMonitor) {
+        this.pressureMonitor = pressureMonitor;
+    }
+
+    public MemoryPressureMonitor getPressureMonitor() {
+        return pressureMonitor;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return whether sampling is currently at the high frequency rate
+     */
+    public boolean isHighFrequency() {
+        return highFrequency;
+    }
+
+    /**
+     * @return the number of samples taken so far
+     */
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * @return the current interval between samples (msec)
+     */
+    public long getCurrentIntervalMillis() {
+        return highFrequency ? config.getHighFrequencyIntervalMillis() : config.getBaseIntervalMillis();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                try {
+                    sampleOnce();
+                    failing = false;
+                }
+                catch (RuntimeException e) {
+                    if (!failing) {
+                        failing = true;
+                        alert("Memory sampling failed: " + e, e);
+                    }
+                }
+                try {
+                    Thread.sleep(getCurrentIntervalMillis());
+                }
+                catch (InterruptedException e) {
+                    return; // stopped
+                }
+            }
+        }
+        finally {
+            synchronized (this) { // if the thread ends for any other reason, the daemon can be started again
+                if (thread == Thread.currentThread()) {
+                    running = false;
+                    thread = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes a sample and adjusts the rate. Only called on the sampling thread (or by tests, when not started).
+     */
+    void sampleOnce() {
+        history.sample();
+        sampleCount++;
+        MemoryStateMarker current = history.getLastSample();
+        if (current == null) {
+            return; // no garbage collectors, nothing is sampled
+        }
+        MemoryPressureMonitor monitor = pressureMonitor;
+        if (monitor != null) {
+            monitor.update();
+        }
+
+        double occupancy = current.getMaxMemory() > 0 ?
+                (double) (current.getTotalMemory() - current.getFreeMemory()) / current.getMaxMemory() : 0.0;
+        double allocationRate = previous == null ? Double.NaN : current.allocationRateSince(previous);
+        previous = current;
+
+        boolean heapCrossed = config.getHeapOccupancyThreshold() > 0 && occupancy >= config.getHeapOccupancyThreshold();
+        boolean allocationCrossed = config.getAllocationRateThreshold() > 0 && !Double.isNaN(allocationRate) &&
+                allocationRate >= config.getAllocationRateThreshold();
+
+        if (heapCrossed || allocationCrossed) {
+            calmSamples = 0;
+            if (!highFrequency) {
+                highFrequency = true;
+                alert("Memory sampling switched to high frequency: " + describe(occupancy, allocationRate));
+            }
+        }
+        else if (highFrequency && ++calmSamples >= config.getCalmSamplesToSlowDown()) {
+            highFrequency = false;
+            calmSamples = 0;
+            alert("Memory sampling back to the base rate: " + describe(occupancy, allocationRate));
+        }
+    }
+
+    private String describe(double occupancy, double allocationRate) {
+        DecimalFormat format = new DecimalFormat("#,##0.#");
+        return "heap occupancy " + format.format(occupancy * 100.0) + "%" +
+                (Double.isNaN(allocationRate) ? "" : ", allocation rate " + format.format(allocationRate / (1024.0 * 1024.0)) + " MB/sec");
+    }
+
+    private void alert(String message) {
+        if (alertService != null) {
+            alertService.sendAlert(message, ALERT_TYPE);
+        }
+    }
+
+    private void alert(String message, Throwable ex) {
+        if (alertService != null) {
+            alertService.sendAlert(message, ALERT_TYPE, ex);
+        }
+    }
+}
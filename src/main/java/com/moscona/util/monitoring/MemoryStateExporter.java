@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.moscona.util.monitoring;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Appends the samples of a MemoryStateHistory to a file incrementally: each export() writes only the samples taken
+ * since the previous one. Unlike MemoryStateHistory.print(), no string is built per sample and the file is not
+ * rewritten - the samples are encoded straight into a reused buffer and written through a file channel that stays
+ * open between exports.
+ * <p>
+ * Once the file reaches the size limit it is rotated: file becomes file.1, file.1 becomes file.2 and so on, keeping
+ * up to maxBackups old files.
+ * </p>
+ * <p>
+ * The CSV format has a header line per file, with the columns of MemoryStateMarker.toString() without the last GC
+ * details. The binary format is a sequence of MemoryStateMarkerCodec records, without the per-collector and per-pool
+ * values, and can be read back with readBinary().
+ * </p>
+ */
+public class MemoryStateExporter implements Closeable {
+    public enum Format {CSV, BINARY}
+
+    public static final long DEFAULT_MAX_FILE_BYTES = 10L * 1024L * 1024L;
+    public static final int DEFAULT_MAX_BACKUPS = 5;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_CSV_VALUE_BYTES = 21; // digits and sign of a long, and a delimiter
+
+    private final MemoryStateHistory history;
+    private final File file;
+    private final Format format;
+    private final long maxFileBytes;
+    private final int maxBackups;
+    private final MemoryStateMarkerCodec codec = new MemoryStateMarkerCodec();
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final byte[] digits = new byte[20];
+    private final List<MemoryStateMarker> pending = new ArrayList<MemoryStateMarker>();
+    private FileChannel channel = null;
+    private long fileBytes = 0L;
+    private long nextSequence = 0L;
+    private long exportedSamples = 0L;
+    private long missedSamples = 0L;
+
+    public MemoryStateExporter(MemoryStateHistory history, File file, Format format) {
+        this(history, file, format, DEFAULT_MAX_FILE_BYTES, DEFAULT_MAX_BACKUPS);
+    }
+
+    /**
+     * @param history the history to export
+     * @param file the file to append to. Rotated files are next to it.
+     * @param format the format to write in
+     * @param maxFileBytes the size at which the file is rotated
+     * @param maxBackups the number of rotated files to keep
+     */
+    public MemoryStateExporter(MemoryStateHistory history, File file, Format format, long maxFileBytes, int maxBackups) {
+        this.history = history;
+        this.file = file;
+        this.format = format;
+        this.maxFileBytes = maxFileBytes;
+        this.maxBackups = maxBackups;
+    }
+
+    /**
+     * Appends the samples taken since the last export.
+     * @return the number of samples written
+     * @throws IOException if writing or rotating the file failed. The samples of the failed export are not retried.
+     */
+    public synchronized int export() throws IOException {
+        pending.clear();
+        long from = nextSequence;
+        nextSequence = history.readSince(from, pending);
+        missedSamples += nextSequence - from - pending.size();
+        if (pending.isEmpty()) {
+            return 0;
+        }
+
+        try {
+            for (MemoryStateMarker marker: pending) {
+                if (channel == null) {
+                    open(marker);
+                }
+                ensureRoom(format == Format.CSV ? maxCsvBytes(marker) : MemoryStateMarkerCodec.RECORD_SIZE);
+                int before = buffer.position();
+                if (format == Format.CSV) {
+                    putCsv(marker);
+                }
+                else {
+                    codec.encode(marker, buffer);
+                }
+                fileBytes += buffer.position() - before;
+                if (fileBytes >= maxFileBytes) {
+                    rotate();
+                }
+            }
+            flush();
+        }
+        finally {
+            buffer.clear();
+        }
+        exportedSamples += pending.size();
+        int retval = pending.size();
+        pending.clear(); // do not hold on to the samples
+        return retval;
+    }
+
+    /**
+     * @return the number of samples written since the exporter was created
+     */
+    public synchronized long getExportedSamples() {
+        return exportedSamples;
+    }
+
+    /**
+     * @return the number of samples that were evicted from the history before they could be exported
+     */
+    public synchronized long getMissedSamples() {
+        return missedSamples;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private void open(MemoryStateMarker first) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        fileBytes = channel.size();
+        if (fileBytes == 0L && format == Format.CSV) {
+            byte[] header = (headers(first) + "\n").getBytes(StandardCharsets.US_ASCII);
+            ensureRoom(header.length);
+            buffer.put(header);
+            fileBytes += header.length;
+        }
+    }
+
+    private void rotate() throws IOException {
+        flush();
+        close();
+        if (maxBackups <= 0) {
+            Files.delete(file.toPath());
+            return;
+        }
+        File oldest = backup(maxBackups);
+        if (oldest.exists() && !oldest.delete()) {
+            throw new IOException("Could not delete " + oldest);
+        }
+        for (int i = maxBackups - 1; i >= 1; i--) {
+            File backup = backup(i);
+            if (backup.exists()) {
+                Files.move(backup.toPath(), backup(i + 1).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.move(file.toPath(), backup(1).toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private File backup(int i) {
+        return new File(file.getPath() + "." + i);
+    }
+
+    private void ensureRoom(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static String headers(MemoryStateMarker marker) {
+        StringBuilder s = new StringBuilder("measuredAt,totalMemory,freeMemory,maxMemory,performanceIndicator,cumulativeGCTime,cumulativeGCCount");
+        for (int i=0; i<marker.getCollectorCount(); i++) {
+            s.append(",").append(marker.getCollectorName(i)).append(" cumulativeGCTime");
+            s.append(",").append(marker.getCollectorName(i)).append(" cumulativeGCCount");
+        }
+        for (int i=0; i<marker.getPoolCount(); i++) {
+            s.append(",").append(marker.getPoolName(i)).append(" used");
+        }
+        return s.toString();
+    }
+
+    private static int maxCsvBytes(MemoryStateMarker marker) {
+        return MAX_CSV_VALUE_BYTES * (7 + 2 * marker.getCollectorCount() + marker.getPoolCount());
+    }
+
+    private void putCsv(MemoryStateMarker marker) {
+        putValue(marker.getMeasuredAt());
+        putValue(marker.getTotalMemory());
+        putValue(marker.getFreeMemory());
+        putValue(marker.getMaxMemory());
+        putValue(marker.getPerformanceIndicator());
+        putValue(marker.getGcTime());
+        putValue(marker.getGcCount());
+        for (int i=0; i<marker.getCollectorCount(); i++) {
+            putValue(marker.getGcTime(i));
+            putValue(marker.getGcCount(i));
+        }
+        for (int i=0; i<marker.getPoolCount(); i++) {
+            putValue(marker.getPoolUsed(i));
+        }
+        buffer.put(buffer.position() - 1, (byte) '\n'); // replaces the last delimiter
+    }
+
+    /**
+     * Writes a value and a delimiter in ASCII, without going through a string
+     */
+    private void putValue(long value) {
+        if (value == Long.MIN_VALUE) {
+            buffer.put("-9223372036854775808,".getBytes(StandardCharsets.US_ASCII));
+            return;
+        }
+        if (value < 0) {
+            buffer.put((byte) '-');
+            value = -value;
+        }
+        int n = 0;
+        do {
+            digits[n++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        while (n > 0) {
+            buffer.put(digits[--n]);
+        }
+        buffer.put((byte) ',');
+    }
+
+    /**
+     * Reads a file written in the binary format
+     * @param file the file
+     * @return the samples in the file, without the per-collector and per-pool values
+     * @throws IOException if the file could not be read
+     */
+    public static List<MemoryStateMarker> readBinary(File file) throws IOException {
+        ByteBuffer records = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        MemoryStateMarkerCodec codec = new MemoryStateMarkerCodec();
+        List<MemoryStateMarker> retval = new ArrayList<MemoryStateMarker>();
+        while (records.remaining() >= MemoryStateMarkerCodec.RECORD_SIZE) {
+            retval.add(codec.decode(records));
+        }
+        return retval;
+    }
+}
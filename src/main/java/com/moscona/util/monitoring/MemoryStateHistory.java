@@ -19,6 +19,10 @@ package com.moscona.util.monitoring;
 
 import com.moscona.util.monitoring.stats.StatValue;
 import com.moscona.util.collections.CappedArrayBuffer;
+import com.moscona.util.collections.ConcurrentCappedBuffer;
+import com.moscona.util.collections.ICappedBuffer;
+import com.moscona.util.monitoring.stats.IStatsService;
+import com.sun.management.GarbageCollectorMXBean;
 
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
@@ -26,7 +30,9 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.PrintStream;
 import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Created: Aug 4, 2010 11:26:24 AM
@@ -34,13 +40,29 @@ import java.util.ArrayList;
  * A class to help debug GC related problems. Best use in conjunction with jvisualvm, jconsole or another JMX management client
  * although you should be aware that the presence of a JMX client by itself will change application behavior, presumably
  * due to the overhead of communicating with the JMX console.
+ * The collector and memory pool beans are looked up once, when the history is created, and reused by every sample.
  */
 public class MemoryStateHistory {
-    private CappedArrayBuffer<MemoryStateMarker> buffer;
+    private ICappedBuffer<MemoryStateMarker> buffer;
     private String[] garbageCollectors;
+    private GarbageCollectorMXBean[] collectors = null;
+    private boolean[] youngCollectors = null;
+    private MemoryPoolMXBean[] heapPools = null;
+    private volatile GcNotificationListener gcListener = null;
+    private final Object sequenceLock = new Object();
+    private long sampleSequence = 0L; // guarded by sequenceLock, not used with a ConcurrentCappedBuffer
 
     public MemoryStateHistory(int bufferSize) {
-        buffer = new CappedArrayBuffer<MemoryStateMarker>(bufferSize);
+        this(new CappedArrayBuffer<MemoryStateMarker>(bufferSize));
+    }
+
+    /**
+     * Uses the given buffer to keep the history, e.g. a CappedRingBuffer for large histories that are sampled often,
+     * or a ConcurrentCappedBuffer when many threads sample
+     * @param buffer an empty buffer
+     */
+    public MemoryStateHistory(ICappedBuffer<MemoryStateMarker> buffer) {
+        this.buffer = buffer;
         detectGarbageCollectors();
     }
 
@@ -63,35 +85,121 @@ public class MemoryStateHistory {
             e.printStackTrace();
             garbageCollectors = new String[0];
         }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            GarbageCollectorMXBean[] beans = new GarbageCollectorMXBean[garbageCollectors.length];
+            for (int i=0; i<garbageCollectors.length; i++) {
+                beans[i] = ManagementFactory.newPlatformMXBeanProxy(server, garbageCollectors[i], GarbageCollectorMXBean.class);
+            }
+            collectors = beans;
+            youngCollectors = MemoryStateMarker.youngCollectors(beans);
+            heapPools = MemoryStateMarker.heapPools();
+        }
+        catch (Exception e) {
+            e.printStackTrace(); // the samples will not have per collector and per pool values
+        }
     }
 
-    public synchronized void sample() {
+    /**
+     * Samples are taken concurrently. Only adding them to the buffer is serialized, so that each gets a sequence
+     * number (see readSince()), unless the buffer is a ConcurrentCappedBuffer, which numbers them itself.
+     */
+    public void sample() {
         if (garbageCollectors==null ||garbageCollectors.length == 0) {
             return;
         }
-        buffer.add(new MemoryStateMarker(garbageCollectors));
+        add(new MemoryStateMarker(garbageCollectors, collectors, youngCollectors, heapPools, 0L));
     }
 
-    public synchronized void sample(long performanceIndicator) {
+    public void sample(long performanceIndicator) {
         if (garbageCollectors==null ||garbageCollectors.length == 0) {
             return;
         }
-        buffer.add(new MemoryStateMarker(garbageCollectors, performanceIndicator));
+        add(new MemoryStateMarker(garbageCollectors, collectors, youngCollectors, heapPools, performanceIndicator));
+    }
+
+    private void add(MemoryStateMarker marker) {
+        if (buffer instanceof ConcurrentCappedBuffer) {
+            buffer.add(marker);
+            return;
+        }
+        synchronized (sequenceLock) {
+            buffer.add(marker);
+            sampleSequence++;
+        }
+    }
+
+    /**
+     * Adds the samples from the given sequence number on to the target list, oldest first. Meant for incremental
+     * readers such as MemoryStateExporter: pass the returned value in on the next call. Samples that were evicted
+     * before they could be read are skipped, and the gap between the sequence numbers tells how many.
+     * Only copying the references to the samples is done under the lock that sample() takes.
+     * @param sequence the sequence number of the first sample to read (0 for the first sample ever taken)
+     * @param target the list to add the samples to
+     * @return the sequence number to read from next time
+     */
+    @SuppressWarnings("unchecked")
+    public long readSince(long sequence, List<? super MemoryStateMarker> target) {
+        if (buffer instanceof ConcurrentCappedBuffer) {
+            return ((ConcurrentCappedBuffer<MemoryStateMarker>) buffer).readFrom(sequence, target);
+        }
+        synchronized (sequenceLock) {
+            long oldest = sampleSequence - buffer.size();
+            for (long i = Math.max(sequence, oldest); i < sampleSequence; i++) {
+                target.add(buffer.get((int) (i - oldest)));
+            }
+            return sampleSequence;
+        }
+    }
+
+    /**
+     * Starts recording every GC as it happens, in addition to the polled samples. See GcNotificationListener.
+     * Does nothing if already recording.
+     * @param capacity the number of most recent GC events to keep
+     * @param stats the service to record GC durations in, or null to only keep the events
+     * @return the listener recording the events
+     */
+    public synchronized GcNotificationListener listenForGcEvents(int capacity, IStatsService stats) {
+        if (gcListener == null) {
+            GcNotificationListener listener = new GcNotificationListener(capacity, stats);
+            listener.start();
+            gcListener = listener;
+        }
+        return gcListener;
+    }
+
+    /**
+     * Stops recording GC events. The events recorded so far are no longer available from the history.
+     */
+    public synchronized void stopListeningForGcEvents() {
+        if (gcListener != null) {
+            gcListener.stop();
+            gcListener = null;
+        }
+    }
+
+    /**
+     * @return the GC events recorded since listenForGcEvents(), oldest first, or an empty list if not listening
+     */
+    public List<GcEvent> getGcEvents() {
+        GcNotificationListener listener = gcListener;
+        return listener == null ? new ArrayList<GcEvent>() : listener.getEvents();
     }
 
     public String[] getGarbageCollectors() {
         return garbageCollectors;
     }
 
-    public synchronized void print(PrintStream writer) {
-        if (buffer.size() == 0) {
+    public void print(PrintStream writer) {
+        List<MemoryStateMarker> samples = buffer.snapshot();
+        if (samples.size() == 0) {
             return;
         }
 
         PrintStream out = writer==null ? System.out : writer;
         out.println("MEMORY HISTORY (start): ==================================================");
-        out.println(buffer.get(0).headers());
-        for (MemoryStateMarker state: buffer) {
+        out.println(samples.get(0).headers());
+        for (MemoryStateMarker state: samples) {
             out.println(state.toString());
         }
         out.println("MEMORY HISTORY (end):   ==================================================");
@@ -104,8 +212,11 @@ public class MemoryStateHistory {
         print(new PrintStream(dumpFile));
     }
 
-    public synchronized MemoryStateMarker getLastSample() {
-        return buffer.get(buffer.size()-1);
+    /**
+     * @return the most recent sample, or null if there are none
+     */
+    public MemoryStateMarker getLastSample() {
+        return buffer.getNewest();
     }
 
     /**
@@ -115,18 +226,28 @@ public class MemoryStateHistory {
      * two GC examples as the GC times reported are cumulative.
      * @return the stats
      */
-    public synchronized GcTimeStats getGcTimeStats() {
-        MemoryStateMarker first = buffer.get(0);
-        StatValue retval = new StatValue(first.getGcTime());
+    public GcTimeStats getGcTimeStats() {
+        return getGcTimeStats(-1);
+    }
+
+    /**
+     * Like getGcTimeStats(), but for a single collector, so that e.g. young and old collections are not mixed up.
+     * @param collector the index of the collector in getGarbageCollectors()
+     * @return the stats
+     */
+    public GcTimeStats getGcTimeStats(int collector) {
+        List<MemoryStateMarker> samples = buffer.snapshot();
+        MemoryStateMarker first = samples.get(0);
+        StatValue retval = new StatValue(gcTime(first, collector));
         retval.attachDescriptiveStats();
-        long gcCount = first.getGcCount(); // we only accumulate the stat when the GC count changes
-        long lastGCCumulativeTime = first.getGcTime();
+        long gcCount = gcCount(first, collector); // we only accumulate the stat when the GC count changes
+        long lastGCCumulativeTime = gcTime(first, collector);
         long gcEstimatedTimestamp = -1;
         long gcTime = 0;
 
-        for (MemoryStateMarker state: buffer) {
-            long thisCount = state.getGcCount();
-            long thisGCCumulativeTime = state.getGcTime();
+        for (MemoryStateMarker state: samples) {
+            long thisCount = gcCount(state, collector);
+            long thisGCCumulativeTime = gcTime(state, collector);
 
             if (thisCount != gcCount) {
                 gcCount = thisCount;
@@ -145,6 +266,42 @@ public class MemoryStateHistory {
         return (retval==null) ? null : new GcTimeStats(gcEstimatedTimestamp, gcTime, retval);
     }
 
+    private static long gcCount(MemoryStateMarker state, int collector) {
+        if (collector < 0) {
+            return state.getGcCount();
+        }
+        return collector < state.getCollectorCount() ? state.getGcCount(collector) : 0L;
+    }
+
+    private static long gcTime(MemoryStateMarker state, int collector) {
+        if (collector < 0) {
+            return state.getGcTime();
+        }
+        return collector < state.getCollectorCount() ? state.getGcTime(collector) : 0L;
+    }
+
+    /**
+     * @return the estimated allocation rate between the last two samples (bytes per second), or NaN if there are
+     * fewer than two samples
+     * @see MemoryStateMarker#allocatedBytesSince(MemoryStateMarker)
+     */
+    public double getAllocationRate() {
+        List<MemoryStateMarker> samples = buffer.snapshot();
+        int n = samples.size();
+        return n < 2 ? Double.NaN : samples.get(n-1).allocationRateSince(samples.get(n-2));
+    }
+
+    /**
+     * @return the estimated promotion rate between the last two samples (bytes per second), or NaN if there are
+     * fewer than two samples
+     * @see MemoryStateMarker#promotedBytesSince(MemoryStateMarker)
+     */
+    public double getPromotionRate() {
+        List<MemoryStateMarker> samples = buffer.snapshot();
+        int n = samples.size();
+        return n < 2 ? Double.NaN : samples.get(n-1).promotionRateSince(samples.get(n-2));
+    }
+
     public class GcTimeStats {
         private StatValue gcTime;
         private long gcEstimatedTimestamp;
@@ -152,6 +309,7 @@ public class MemoryStateHistory {
 
         public GcTimeStats(long gcEstimatedTimestamp, long lastGcTime, StatValue gcTime) {
             this.gcEstimatedTimestamp = gcEstimatedTimestamp;
+            this.lastCgTime = lastGcTime;
             this.gcTime = gcTime;
         }
 
@@ -15,6 +15,7 @@
  *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 
+
 package com.moscona.util.monitoring;
 
 import com.moscona.util.TimeHelper;
@@ -23,8 +24,12 @@ import com.sun.management.GcInfo;
 
 import javax.management.MBeanServer;
 import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
 import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -33,14 +38,18 @@ import java.util.Map;
  * Helps track memory utilization
  * Normally used via MemoryStateHistory
  * Best use in conjunction with jvisualvm, jconsole or another JMX management client.
+ * <p>
+ * The GC count and time are totals over all the collectors. The counts, times and last GC of each collector, and the
+ * used memory of each heap pool, are kept as well, and allocatedBytesSince()/promotedBytesSince() derive the
+ * allocation and promotion between two markers from them.
+ * </p>
  */
 public class MemoryStateMarker {
-//    private static final String GC_BEAN_NAME = "java.lang:type=GarbageCollector,name=ConcurrentMarkSweep";
-    private static final String GC_BEAN_NAME = "java.lang:type=GarbageCollector,name=ParNew"; // FIXME this should be determined externally or automatically
-//    private static final String GC_BEAN_NAME = "java.lang:type=GarbageCollector,name=PS MarkSweep";
-//    private static final String GC_BEAN_NAME = "java.lang:type=GarbageCollector,name=PS Scavenge";
+    private static final long[] NO_VALUES = new long[0];
+    private static final String[] NO_NAMES = new String[0];
 
     private long measuredAt;
+    private long measuredAtNanos;
     private long freeMemory;
     private long maxMemory;
     private long totalMemory;
@@ -48,31 +57,31 @@ public class MemoryStateMarker {
     private GcInfo[] gci = null;
     private long gcCount = 0;
     private long gcTime = 0;
+    private long pauseTime = 0;
     private String[] garbageCollectors;
+    private long[] gcCounts = NO_VALUES;
+    private long[] gcTimes = NO_VALUES;
+    private boolean[] youngCollectors = new boolean[0];
+    private String[] poolNames = NO_NAMES;
+    private long[] poolUsed = NO_VALUES;
 
     public MemoryStateMarker(String[] garbageCollectors) {
         this.garbageCollectors = garbageCollectors;
-        measuredAt = TimeHelper.now();
-        Runtime runtime = Runtime.getRuntime();
-        freeMemory = runtime.freeMemory();
-        maxMemory = runtime.maxMemory();
-        totalMemory = runtime.totalMemory();
+        GarbageCollectorMXBean[] collectors = null;
         try {
             MBeanServer server = ManagementFactory.getPlatformMBeanServer();
             if (garbageCollectors!=null) {
+                collectors = new GarbageCollectorMXBean[garbageCollectors.length];
                 int i=0;
-                gci = new GcInfo[garbageCollectors.length];
                 for (String gc: garbageCollectors) {
-                    GarbageCollectorMXBean bean = ManagementFactory.newPlatformMXBeanProxy(server,gc,GarbageCollectorMXBean.class);
-                    gcCount = bean.getCollectionCount();
-                    gcTime = bean.getCollectionTime();
-                    gci[i++] = bean.getLastGcInfo();
+                    collectors[i++] = ManagementFactory.newPlatformMXBeanProxy(server,gc,GarbageCollectorMXBean.class);
                 }
             }
         }
         catch(Exception e) {
-            // ignore
+            collectors = null; // ignore
         }
+        sample(collectors, youngCollectors(collectors), heapPools());
     }
 
     public MemoryStateMarker(String[] garbageCollectors, long performanceIndicator) {
@@ -80,6 +89,107 @@ public class MemoryStateMarker {
         this.performanceIndicator = performanceIndicator;
     }
 
+    /**
+     * Samples using beans that were resolved in advance, which is much cheaper than resolving them on every sample
+     * @param garbageCollectors the object names of the collectors
+     * @param collectors the collector beans, in the same order as their names
+     * @param youngCollectors which of the collectors are young generation collectors (see youngCollectors())
+     * @param heapPools the heap memory pool beans
+     * @param performanceIndicator an application specific value to record with the sample
+     */
+    MemoryStateMarker(String[] garbageCollectors, GarbageCollectorMXBean[] collectors, boolean[] youngCollectors,
+                      MemoryPoolMXBean[] heapPools, long performanceIndicator) {
+        this.garbageCollectors = garbageCollectors;
+        this.performanceIndicator = performanceIndicator;
+        sample(collectors, youngCollectors, heapPools);
+    }
+
+    /**
+     * Restores a marker from its recorded values, without the per-collector GC details
+     */
+    MemoryStateMarker(long measuredAt, long totalMemory, long freeMemory, long maxMemory, long performanceIndicator,
+                      long gcTime, long gcCount) {
+        this.measuredAt = measuredAt;
+        this.totalMemory = totalMemory;
+        this.freeMemory = freeMemory;
+        this.maxMemory = maxMemory;
+        this.performanceIndicator = performanceIndicator;
+        this.gcTime = gcTime;
+        this.pauseTime = gcTime;
+        this.gcCount = gcCount;
+    }
+
+    static MemoryPoolMXBean[] heapPools() {
+        List<MemoryPoolMXBean> retval = new ArrayList<MemoryPoolMXBean>();
+        for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                retval.add(pool);
+            }
+        }
+        return retval.toArray(new MemoryPoolMXBean[retval.size()]);
+    }
+
+    /**
+     * Classifies the collectors once, as the classification never changes while the JVM runs
+     * @param collectors the collector beans (may be null)
+     * @return for each collector, whether it is a young generation collector (never null)
+     */
+    static boolean[] youngCollectors(GarbageCollectorMXBean[] collectors) {
+        if (collectors == null) {
+            return new boolean[0];
+        }
+        boolean[] retval = new boolean[collectors.length];
+        try {
+            for (int i=0; i<collectors.length; i++) {
+                retval[i] = GcLayout.isYoungCollector(collectors[i]);
+            }
+        }
+        catch(Exception e) {
+            // ignore - treated as old generation collectors
+        }
+        return retval;
+    }
+
+    private void sample(GarbageCollectorMXBean[] collectors, boolean[] youngCollectors, MemoryPoolMXBean[] heapPools) {
+        measuredAt = TimeHelper.now();
+        measuredAtNanos = System.nanoTime();
+        Runtime runtime = Runtime.getRuntime();
+        freeMemory = runtime.freeMemory();
+        maxMemory = runtime.maxMemory();
+        totalMemory = runtime.totalMemory();
+        try {
+            if (collectors != null) {
+                int n = collectors.length;
+                gci = new GcInfo[n];
+                gcCounts = new long[n];
+                gcTimes = new long[n];
+                this.youngCollectors = youngCollectors; // shared between markers and never modified
+                for (int i=0; i<n; i++) {
+                    GarbageCollectorMXBean bean = collectors[i];
+                    gcCounts[i] = Math.max(0L, bean.getCollectionCount()); // -1 if not supported
+                    gcTimes[i] = Math.max(0L, bean.getCollectionTime());
+                    gcCount += gcCounts[i];
+                    gcTime += gcTimes[i];
+                    if (garbageCollectors == null || !GcLayout.isConcurrentCollector(garbageCollectors[i])) {
+                        pauseTime += gcTimes[i];
+                    }
+                    gci[i] = bean.getLastGcInfo();
+                }
+            }
+        }
+        catch(Exception e) {
+            // ignore
+        }
+        if (heapPools != null) {
+            poolNames = new String[heapPools.length];
+            poolUsed = new long[heapPools.length];
+            for (int i=0; i<heapPools.length; i++) {
+                poolNames[i] = heapPools[i].getName();
+                poolUsed[i] = heapPools[i].isValid() ? heapPools[i].getUsage().getUsed() : 0L;
+            }
+        }
+    }
+
     public long getFreeMemory() {
         return freeMemory;
     }
@@ -92,6 +202,13 @@ public class MemoryStateMarker {
         return measuredAt;
     }
 
+    /**
+     * @return when the sample was taken, as System.nanoTime(), or 0 for a marker restored from its recorded values
+     */
+    long getMeasuredAtNanos() {
+        return measuredAtNanos;
+    }
+
     public long getTotalMemory() {
         return totalMemory;
     }
@@ -100,21 +217,219 @@ public class MemoryStateMarker {
         return performanceIndicator;
     }
 
+    /**
+     * The *cumulative* GC count so far, over all the collectors
+     * @return total GC count
+     */
     public long getGcCount() {
         return gcCount;
     }
 
     /**
-     * The *cumulative* GC time so far
+     * The *cumulative* GC time so far, over all the collectors
      * @return total GC time
      */
     public long getGcTime() {
         return gcTime;
     }
 
+    /**
+     * The *cumulative* GC time so far, over the collectors that stop the application. Unlike getGcTime() it leaves
+     * out concurrent collectors (e.g. ZGC Cycles), whose time is mostly spent alongside the application.
+     * Markers restored without per-collector details only know the total, and return getGcTime().
+     * @return total GC pause time
+     */
+    public long getPauseTime() {
+        return pauseTime;
+    }
+
+    /**
+     * @return the number of collectors that have per-collector values in this marker
+     */
+    public int getCollectorCount() {
+        return gcCounts.length;
+    }
+
+    /**
+     * @param collector the index of the collector, in the order of the garbage collector names
+     * @return the name of the collector, e.g. G1 Young Generation
+     */
+    public String getCollectorName(int collector) {
+        return GcLayout.shortName(garbageCollectors[collector]);
+    }
+
+    /**
+     * @param collector the index of the collector, in the order of the garbage collector names
+     * @return the cumulative collection count of the collector
+     */
+    public long getGcCount(int collector) {
+        return gcCounts[collector];
+    }
+
+    /**
+     * @param collector the index of the collector, in the order of the garbage collector names
+     * @return the cumulative collection time of the collector
+     */
+    public long getGcTime(int collector) {
+        return gcTimes[collector];
+    }
+
+    /**
+     * @param collector the index of the collector, in the order of the garbage collector names
+     * @return the duration of the last collection of the collector (msec), or -1 if it is not known
+     */
+    public long getLastGcDuration(int collector) {
+        GcInfo info = gci == null ? null : gci[collector];
+        return info == null ? -1L : info.getDuration();
+    }
+
+    /**
+     * @param collector the index of the collector, in the order of the garbage collector names
+     * @return whether the collector only collects the young generation
+     */
+    public boolean isYoungCollector(int collector) {
+        return youngCollectors[collector];
+    }
+
+    /**
+     * @return the number of heap memory pools that have values in this marker
+     */
+    public int getPoolCount() {
+        return poolNames.length;
+    }
+
+    public String getPoolName(int pool) {
+        return poolNames[pool];
+    }
+
+    public long getPoolUsed(int pool) {
+        return poolUsed[pool];
+    }
+
+    /**
+     * @return the used memory of the eden pools, which is 0 for collectors without generations
+     */
+    public long getEdenUsed() {
+        long retval = 0L;
+        for (int i=0; i<poolNames.length; i++) {
+            if (GcLayout.isEdenPool(poolNames[i])) {
+                retval += poolUsed[i];
+            }
+        }
+        return retval;
+    }
+
+    public long getSurvivorUsed() {
+        long retval = 0L;
+        for (int i=0; i<poolNames.length; i++) {
+            if (GcLayout.isSurvivorPool(poolNames[i])) {
+                retval += poolUsed[i];
+            }
+        }
+        return retval;
+    }
+
+    public long getOldUsed() {
+        long retval = 0L;
+        for (int i=0; i<poolNames.length; i++) {
+            if (GcLayout.isOldPool(poolNames[i])) {
+                retval += poolUsed[i];
+            }
+        }
+        return retval;
+    }
+
+    /**
+     * @return the used memory of all the heap pools
+     */
+    public long getHeapUsed() {
+        long retval = 0L;
+        for (long used: poolUsed) {
+            retval += used;
+        }
+        return retval;
+    }
+
+    /**
+     * Estimates the bytes allocated between an earlier marker and this one: the growth of the heap plus what the
+     * collections in between freed. Only the last collection of each collector is visible, so the estimate is exact
+     * when each collector ran at most once between the markers, and low otherwise.
+     * @param earlier an earlier marker from the same history
+     * @return the estimated allocation, in bytes
+     */
+    public long allocatedBytesSince(MemoryStateMarker earlier) {
+        long retval = getHeapUsed() - earlier.getHeapUsed();
+        for (int i=0; i<gcCounts.length && i<earlier.gcCounts.length; i++) {
+            if (gcCounts[i] > earlier.gcCounts[i] && gci != null && gci[i] != null) {
+                retval += heapUsed(gci[i].getMemoryUsageBeforeGc()) - heapUsed(gci[i].getMemoryUsageAfterGc());
+            }
+        }
+        return Math.max(0L, retval);
+    }
+
+    /**
+     * Estimates the bytes promoted to the old generation between an earlier marker and this one, as the growth of the
+     * old pools during the young collections in between. As with allocatedBytesSince(), only the last collection of
+     * each collector is visible. Always 0 for collectors without generations.
+     * @param earlier an earlier marker from the same history
+     * @return the estimated promotion, in bytes
+     */
+    public long promotedBytesSince(MemoryStateMarker earlier) {
+        long retval = 0L;
+        for (int i=0; i<gcCounts.length && i<earlier.gcCounts.length; i++) {
+            if (youngCollectors[i] && gcCounts[i] > earlier.gcCounts[i] && gci != null && gci[i] != null) {
+                Map<String, MemoryUsage> before = gci[i].getMemoryUsageBeforeGc();
+                Map<String, MemoryUsage> after = gci[i].getMemoryUsageAfterGc();
+                for (Map.Entry<String, MemoryUsage> pool: after.entrySet()) {
+                    MemoryUsage usedBefore = before.get(pool.getKey());
+                    if (GcLayout.isOldPool(pool.getKey()) && usedBefore != null) {
+                        retval += Math.max(0L, pool.getValue().getUsed() - usedBefore.getUsed());
+                    }
+                }
+            }
+        }
+        return retval;
+    }
+
+    /**
+     * @param earlier an earlier marker from the same history
+     * @return the allocation rate between the markers, in bytes per second, or NaN if they are not apart in time
+     */
+    public double allocationRateSince(MemoryStateMarker earlier) {
+        return perSecond(allocatedBytesSince(earlier), earlier);
+    }
+
+    /**
+     * @param earlier an earlier marker from the same history
+     * @return the promotion rate between the markers, in bytes per second, or NaN if they are not apart in time
+     */
+    public double promotionRateSince(MemoryStateMarker earlier) {
+        return perSecond(promotedBytesSince(earlier), earlier);
+    }
+
+    private double perSecond(long bytes, MemoryStateMarker earlier) {
+        long elapsed = measuredAtNanos - earlier.measuredAtNanos;
+        return elapsed > 0 && measuredAtNanos != 0L && earlier.measuredAtNanos != 0L ? bytes * 1.0e9 / elapsed : Double.NaN;
+    }
+
+    /**
+     * @param usage memory usage by pool name, as reported by GcInfo
+     * @return the used memory of the heap pools of this marker
+     */
+    private long heapUsed(Map<String, MemoryUsage> usage) {
+        long retval = 0L;
+        for (String pool: poolNames) {
+            MemoryUsage poolUsage = usage.get(pool);
+            if (poolUsage != null) {
+                retval += poolUsage.getUsed();
+            }
+        }
+        return retval;
+    }
+
     public Map<String,GcInfo> getGci() {
         HashMap<String,GcInfo> retval = new HashMap<String,GcInfo>();
-        if (garbageCollectors != null) {
+        if (garbageCollectors != null && gci != null) {
             int i=0;
             for (String gc: garbageCollectors) {
                 retval.put(gc,gci[i++]);
@@ -166,6 +481,13 @@ public class MemoryStateMarker {
                 }
             }
         }
+        for (int i=0; i<gcCounts.length; i++) {
+            s.append(gcTimes[i]).append(delimiter);
+            s.append(gcCounts[i]).append(delimiter);
+        }
+        for (long used: poolUsed) {
+            s.append(used).append(delimiter);
+        }
         return s.toString();
     }
 
@@ -174,9 +496,16 @@ public class MemoryStateMarker {
         StringBuilder s = new StringBuilder("measuredAt,totalMemory,freeMemory,maxMemory,performanceIndicator,cumulativeGCTime,cumulativeGCCount");
         if (garbageCollectors != null && garbageCollectors.length>0) {
             for (String gc: garbageCollectors) {
-                s.append(gcHeaders.replaceAll(",",","+gc.replaceAll(".*name=","")+" "));
+                s.append(gcHeaders.replaceAll(",",","+GcLayout.shortName(gc)+" "));
             }
         }
+        for (int i=0; i<gcCounts.length; i++) {
+            s.append(",").append(getCollectorName(i)).append(" cumulativeGCTime");
+            s.append(",").append(getCollectorName(i)).append(" cumulativeGCCount");
+        }
+        for (String pool: poolNames) {
+            s.append(",").append(pool).append(" used");
+        }
         return s.toString();
     }
 }
@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.moscona.util.monitoring;
+
+import com.moscona.util.collections.IRecordCodec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Records the values of a MemoryStateMarker in a MappedCappedBuffer, so that a memory history survives an
+ * OutOfMemoryError or a crash. The per-collector GC details are not recorded.
+ * <pre>
+ * new MemoryStateHistory(MappedCappedBuffer.open(file, size, MemoryStateMarkerCodec.RECORD_SIZE, new MemoryStateMarkerCodec()))
+ * </pre>
+ */
+public class MemoryStateMarkerCodec implements IRecordCodec<MemoryStateMarker> {
+    public static final int RECORD_SIZE = 7 * 8;
+
+    @Override
+    public void encode(MemoryStateMarker value, ByteBuffer record) {
+        record.putLong(value.getMeasuredAt());
+        record.putLong(value.getTotalMemory());
+        record.putLong(value.getFreeMemory());
+        record.putLong(value.getMaxMemory());
+        record.putLong(value.getPerformanceIndicator());
+        record.putLong(value.getGcTime());
+        record.putLong(value.getGcCount());
+    }
+
+    @Override
+    public MemoryStateMarker decode(ByteBuffer record) {
+        return new MemoryStateMarker(record.getLong(), record.getLong(), record.getLong(), record.getLong(),
+                record.getLong(), record.getLong(), record.getLong());
+    }
+}
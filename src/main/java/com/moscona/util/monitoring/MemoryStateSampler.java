@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.moscona.util.monitoring;
+
+import com.moscona.util.TimeHelper;
+import com.moscona.util.collections.CappedColumnBuffer;
+
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A cheap alternative to MemoryStateHistory for sampling at high frequency (up to about 1 kHz).
+ * The garbage collector (and optionally memory pool) beans are resolved once, each sample is read into a reused
+ * primitive row and appended to a CappedColumnBuffer, so sampling does not allocate - except for memory pool usage,
+ * which the JMX API only returns as a new MemoryUsage object, and which is therefore off by default.
+ * <p>
+ * The first columns match the fields of MemoryStateMarker. Unlike MemoryStateMarker, the GC count and time are the
+ * totals over all the collectors, and each collector also gets a count and a time column of its own.
+ * </p>
+ */
+public class MemoryStateSampler {
+    public static final int MEASURED_AT = 0;
+    public static final int TOTAL_MEMORY = 1;
+    public static final int FREE_MEMORY = 2;
+    public static final int MAX_MEMORY = 3;
+    public static final int PERFORMANCE_INDICATOR = 4;
+    public static final int GC_TIME = 5;
+    public static final int GC_COUNT = 6;
+    private static final int FIXED_COLUMNS = 7;
+
+    private final GarbageCollectorMXBean[] collectors;
+    private final MemoryPoolMXBean[] pools;
+    private final CappedColumnBuffer history;
+    private final long[] row;
+    private final Runtime runtime;
+
+    /**
+     * Samples the garbage collectors but not the memory pools
+     * @param capacity the number of samples to keep
+     */
+    public MemoryStateSampler(int capacity) {
+        this(capacity, false);
+    }
+
+    /**
+     * @param capacity the number of samples to keep
+     * @param includePools whether to sample the used memory of each memory pool (which allocates a little per pool)
+     */
+    public MemoryStateSampler(int capacity, boolean includePools) {
+        List<GarbageCollectorMXBean> gcBeans = ManagementFactory.getGarbageCollectorMXBeans();
+        List<MemoryPoolMXBean> poolBeans = includePools ? ManagementFactory.getMemoryPoolMXBeans() : new ArrayList<MemoryPoolMXBean>();
+        collectors = gcBeans.toArray(new GarbageCollectorMXBean[gcBeans.size()]);
+        pools = poolBeans.toArray(new MemoryPoolMXBean[poolBeans.size()]);
+
+        List<String> columns = new ArrayList<>();
+        columns.add("measuredAt");
+        columns.add("totalMemory");
+        columns.add("freeMemory");
+        columns.add("maxMemory");
+        columns.add("performanceIndicator");
+        columns.add("cumulativeGCTime");
+        columns.add("cumulativeGCCount");
+        for (GarbageCollectorMXBean collector : collectors) {
+            columns.add(collector.getName() + " GCTime");
+            columns.add(collector.getName() + " GCCount");
+        }
+        for (MemoryPoolMXBean pool : pools) {
+            columns.add(pool.getName() + " used");
+        }
+        history = new CappedColumnBuffer(capacity, columns.toArray(new String[columns.size()]));
+        row = new long[columns.size()];
+        runtime = Runtime.getRuntime();
+    }
+
+    public void sample() {
+        sample(0L);
+    }
+
+    /**
+     * Takes a sample and appends it to the history
+     * @param performanceIndicator an application specific value to record with the sample
+     */
+    public synchronized void sample(long performanceIndicator) {
+        row[MEASURED_AT] = TimeHelper.now();
+        row[TOTAL_MEMORY] = runtime.totalMemory();
+        row[FREE_MEMORY] = runtime.freeMemory();
+        row[MAX_MEMORY] = runtime.maxMemory();
+        row[PERFORMANCE_INDICATOR] = performanceIndicator;
+        long gcTime = 0L;
+        long gcCount = 0L;
+        int column = FIXED_COLUMNS;
+        for (GarbageCollectorMXBean collector : collectors) {
+            long time = Math.max(0L, collector.getCollectionTime()); // -1 if not supported
+            long count = Math.max(0L, collector.getCollectionCount());
+            row[column++] = time;
+            row[column++] = count;
+            gcTime += time;
+            gcCount += count;
+        }
+        row[GC_TIME] = gcTime;
+        row[GC_COUNT] = gcCount;
+        for (MemoryPoolMXBean pool : pools) {
+            row[column++] = pool.isValid() ? pool.getUsage().getUsed() : 0L;
+        }
+        history.add(row);
+    }
+
+    /**
+     * @return the samples, one row per sample and one column per value. Column names are available from the buffer.
+     */
+    public CappedColumnBuffer getHistory() {
+        return history;
+    }
+
+    public String[] getGarbageCollectorNames() {
+        String[] retval = new String[collectors.length];
+        for (int i = 0; i < collectors.length; i++) {
+            retval[i] = collectors[i].getName();
+        }
+        return retval;
+    }
+
+    /**
+     * @param collector the index of a collector in getGarbageCollectorNames()
+     * @return the column holding the cumulative collection time of the collector
+     */
+    public int gcTimeColumn(int collector) {
+        return FIXED_COLUMNS + 2 * collector;
+    }
+
+    /**
+     * @param collector the index of a collector in getGarbageCollectorNames()
+     * @return the column holding the cumulative collection count of the collector
+     */
+    public int gcCountColumn(int collector) {
+        return FIXED_COLUMNS + 2 * collector + 1;
+    }
+
+    /**
+     * @param pool the index of a memory pool, in the order of ManagementFactory.getMemoryPoolMXBeans()
+     * @return the column holding the used memory of the pool
+     */
+    public int poolUsedColumn(int pool) {
+        return FIXED_COLUMNS + 2 * collectors.length + pool;
+    }
+
+    /**
+     * Converts a sample to a MemoryStateMarker, e.g. for code that works with MemoryStateHistory
+     * @param sample the index of the sample, 0 being the oldest
+     * @return a marker with the values of the sample (but no per-collector GC details)
+     */
+    public MemoryStateMarker toMarker(int sample) {
+        synchronized (history) {
+            return new MemoryStateMarker(history.get(sample, MEASURED_AT), history.get(sample, TOTAL_MEMORY),
+                    history.get(sample, FREE_MEMORY), history.get(sample, MAX_MEMORY),
+                    history.get(sample, PERFORMANCE_INDICATOR), history.get(sample, GC_TIME), history.get(sample, GC_COUNT));
+        }
+    }
+
+    /**
+     * Prints the history as CSV, in the style of MemoryStateHistory.print()
+     * @param writer where to print, System.out if null
+     */
+    public void print(PrintStream writer) {
+        PrintStream out = writer==null ? System.out : writer;
+        long[] values = new long[history.getColumnCount()];
+        synchronized (history) {
+            int size = history.size();
+            if (size == 0) {
+                return;
+            }
+            out.println("MEMORY HISTORY (start): ==================================================");
+            out.println(String.join(",", history.getColumnNames()));
+            StringBuilder line = new StringBuilder();
+            for (int i = 0; i < size; i++) {
+                history.copyRow(i, values);
+                line.setLength(0);
+                for (int column = 0; column < values.length; column++) {
+                    if (column > 0) {
+                        line.append(',');
+                    }
+                    line.append(values[column]);
+                }
+                out.println(line);
+            }
+            out.println("MEMORY HISTORY (end):   ==================================================");
+        }
+    }
+}
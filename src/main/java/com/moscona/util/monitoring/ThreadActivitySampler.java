@@ -0,0 +1,350 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.moscona.util.monitoring;
+
+import com.moscona.util.collections.CappedDoubleBuffer;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Samples the allocation and CPU time of each live thread, to tell which threads are behind the churn that
+ * MemoryStateHistory shows. Keeps a short history of the allocation rate (bytes per second) and CPU usage (the
+ * fraction of one CPU) of every thread between samples, and reports the top threads by either.
+ * Threads are named by their names, so threads created as DaemonThread/ConfiguredDaemonThread show the name given to
+ * them there.
+ * <p>
+ * To keep the cost of a sample bounded, the thread IDs are cached and only looked up again (along with the thread
+ * names) every refreshEvery samples, and at most maxThreads threads are tracked. The state of the tracked threads is
+ * kept in primitive arrays, in ascending ID order, so that state is matched up with the new IDs by a binary search.
+ * A sample is two bulk calls to ThreadMXBean plus a pass over those arrays.
+ * Allocation and CPU time measurement are turned on if supported, and a signal that is not supported reads 0.
+ * </p>
+ */
+public class ThreadActivitySampler {
+    public static final int DEFAULT_HISTORY_SIZE = 60;
+    public static final int DEFAULT_REFRESH_EVERY = 10;
+    public static final int DEFAULT_MAX_THREADS = 1024;
+
+    private final com.sun.management.ThreadMXBean threads;
+    private final int historySize;
+    private final int refreshEvery;
+    private final int maxThreads;
+    private final boolean allocationSupported;
+    private final boolean cpuSupported;
+
+    private long[] ids = new long[0];
+    private String[] names = new String[0];
+    private long[] lastAllocated = new long[0];
+    private long[] lastCpuTime = new long[0];
+    private CappedDoubleBuffer[] allocationRates = new CappedDoubleBuffer[0];
+    private CappedDoubleBuffer[] cpuUsages = new CappedDoubleBuffer[0];
+    private long lastSampleNanos = 0L;
+    private int samplesSinceRefresh = 0;
+    private long sampleCount = 0L;
+
+    public ThreadActivitySampler() {
+        this(DEFAULT_HISTORY_SIZE, DEFAULT_REFRESH_EVERY, DEFAULT_MAX_THREADS);
+    }
+
+    /**
+     * @param historySize the number of rates to keep per thread
+     * @param refreshEvery the number of samples between looking up the live threads again
+     * @param maxThreads the maximum number of threads to track
+     */
+    public ThreadActivitySampler(int historySize, int refreshEvery, int maxThreads) {
+        this.historySize = historySize;
+        this.refreshEvery = refreshEvery;
+        this.maxThreads = maxThreads;
+        threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        allocationSupported = threads.isThreadAllocatedMemorySupported();
+        cpuSupported = threads.isThreadCpuTimeSupported();
+        if (allocationSupported && !threads.isThreadAllocatedMemoryEnabled()) {
+            threads.setThreadAllocatedMemoryEnabled(true);
+        }
+        if (cpuSupported && !threads.isThreadCpuTimeEnabled()) {
+            threads.setThreadCpuTimeEnabled(true);
+        }
+    }
+
+    /**
+     * Measures every tracked thread. The first sample of a thread is its baseline, rates start with the second.
+     */
+    public synchronized void sample() {
+        if (sampleCount == 0L || samplesSinceRefresh >= refreshEvery) {
+            refresh();
+        }
+        samplesSinceRefresh++;
+        long now = System.nanoTime();
+        long[] allocated = allocationSupported ? threads.getThreadAllocatedBytes(ids) : null;
+        long[] cpuTime = cpuSupported ? threads.getThreadCpuTime(ids) : null;
+        long elapsed = now - lastSampleNanos;
+        boolean haveRates = sampleCount > 0L && elapsed > 0L;
+
+        for (int i = 0; i < ids.length; i++) {
+            if (allocated != null && allocated[i] >= 0L) { // -1 if the thread died
+                if (haveRates && lastAllocated[i] >= 0L) {
+                    allocationRates[i].add((allocated[i] - lastAllocated[i]) * 1.0e9 / elapsed);
+                }
+                lastAllocated[i] = allocated[i];
+            }
+            if (cpuTime != null && cpuTime[i] >= 0L) {
+                if (haveRates && lastCpuTime[i] >= 0L) {
+                    cpuUsages[i].add((double) (cpuTime[i] - lastCpuTime[i]) / elapsed);
+                }
+                lastCpuTime[i] = cpuTime[i];
+            }
+        }
+        lastSampleNanos = now;
+        sampleCount++;
+    }
+
+    /**
+     * Looks up the live threads, carrying over the state of those already tracked. Threads that died are dropped.
+     */
+    private void refresh() {
+        samplesSinceRefresh = 0;
+        long[] live = threads.getAllThreadIds();
+        ThreadInfo[] infos = threads.getThreadInfo(live);
+        long[] newIds = new long[Math.min(live.length, maxThreads)];
+        String[] newNames = new String[newIds.length];
+        int n = 0;
+        for (int i = 0; i < live.length && n < newIds.length; i++) {
+            if (infos[i] != null) {
+                newIds[n] = live[i];
+                newNames[n++] = infos[i].getThreadName();
+            }
+        }
+        sortById(newIds, newNames, n);
+
+        long[] newLastAllocated = new long[n];
+        long[] newLastCpuTime = new long[n];
+        CappedDoubleBuffer[] newAllocationRates = new CappedDoubleBuffer[n];
+        CappedDoubleBuffer[] newCpuUsages = new CappedDoubleBuffer[n];
+        for (int i = 0; i < n; i++) {
+            int old = Arrays.binarySearch(ids, newIds[i]);
+            if (old >= 0) {
+                newLastAllocated[i] = lastAllocated[old];
+                newLastCpuTime[i] = lastCpuTime[old];
+                newAllocationRates[i] = allocationRates[old];
+                newCpuUsages[i] = cpuUsages[old];
+            }
+            else {
+                newLastAllocated[i] = -1L;
+                newLastCpuTime[i] = -1L;
+                newAllocationRates[i] = new CappedDoubleBuffer(historySize);
+                newCpuUsages[i] = new CappedDoubleBuffer(historySize);
+            }
+        }
+        ids = Arrays.copyOf(newIds, n);
+        names = Arrays.copyOf(newNames, n);
+        lastAllocated = newLastAllocated;
+        lastCpuTime = newLastCpuTime;
+        allocationRates = newAllocationRates;
+        cpuUsages = newCpuUsages;
+    }
+
+    private static void sortById(long[] ids, String[] names, int n) {
+        // insertion sort: the IDs come mostly sorted already
+        for (int i = 1; i < n; i++) {
+            long id = ids[i];
+            String name = names[i];
+            int j = i - 1;
+            for (; j >= 0 && ids[j] > id; j--) {
+                ids[j + 1] = ids[j];
+                names[j + 1] = names[j];
+            }
+            ids[j + 1] = id;
+            names[j + 1] = name;
+        }
+    }
+
+    /**
+     * @return the number of threads currently tracked
+     */
+    public synchronized int getThreadCount() {
+        return ids.length;
+    }
+
+    public synchronized long getSampleCount() {
+        return sampleCount;
+    }
+
+    public boolean isAllocationSupported() {
+        return allocationSupported;
+    }
+
+    public boolean isCpuSupported() {
+        return cpuSupported;
+    }
+
+    /**
+     * @param count the number of threads to report
+     * @return the threads with the highest average allocation rate over their history, highest first
+     */
+    public List<ThreadActivity> getTopByAllocation(int count) {
+        return top(count, new Comparator<ThreadActivity>() {
+            @Override
+            public int compare(ThreadActivity a, ThreadActivity b) {
+                return Double.compare(b.getAverageAllocationRate(), a.getAverageAllocationRate());
+            }
+        });
+    }
+
+    /**
+     * @param count the number of threads to report
+     * @return the threads with the highest average CPU usage over their history, highest first
+     */
+    public List<ThreadActivity> getTopByCpu(int count) {
+        return top(count, new Comparator<ThreadActivity>() {
+            @Override
+            public int compare(ThreadActivity a, ThreadActivity b) {
+                return Double.compare(b.getAverageCpuUsage(), a.getAverageCpuUsage());
+            }
+        });
+    }
+
+    private synchronized List<ThreadActivity> top(int count, Comparator<ThreadActivity> order) {
+        List<ThreadActivity> all = new ArrayList<ThreadActivity>(ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            if (!allocationRates[i].isEmpty() || !cpuUsages[i].isEmpty()) {
+                all.add(new ThreadActivity(ids[i], names[i], allocationRates[i], cpuUsages[i],
+                        Math.max(0L, lastAllocated[i]), Math.max(0L, lastCpuTime[i])));
+            }
+        }
+        Collections.sort(all, order);
+        return all.size() > count ? new ArrayList<ThreadActivity>(all.subList(0, count)) : all;
+    }
+
+    /**
+     * Prints the top threads by allocation and by CPU usage
+     * @param out where to print, or null for System.out
+     * @param count the number of threads to print in each list
+     */
+    public void print(PrintStream out, int count) {
+        PrintStream writer = out == null ? System.out : out;
+        writer.println("TOP THREADS BY ALLOCATION: ================================================");
+        for (ThreadActivity activity: getTopByAllocation(count)) {
+            writer.println(activity);
+        }
+        writer.println("TOP THREADS BY CPU: =======================================================");
+        for (ThreadActivity activity: getTopByCpu(count)) {
+            writer.println(activity);
+        }
+    }
+
+    /**
+     * The activity of one thread, as of the sample it was reported at
+     */
+    public static class ThreadActivity {
+        private final long id;
+        private final String name;
+        private final double allocationRate;
+        private final double averageAllocationRate;
+        private final double cpuUsage;
+        private final double averageCpuUsage;
+        private final long allocatedBytes;
+        private final long cpuTime;
+
+        ThreadActivity(long id, String name, CappedDoubleBuffer allocationRates, CappedDoubleBuffer cpuUsages,
+                       long allocatedBytes, long cpuTime) {
+            this.id = id;
+            this.name = name;
+            allocationRate = allocationRates.isEmpty() ? 0.0 : allocationRates.getNewest();
+            averageAllocationRate = average(allocationRates);
+            cpuUsage = cpuUsages.isEmpty() ? 0.0 : cpuUsages.getNewest();
+            averageCpuUsage = average(cpuUsages);
+            this.allocatedBytes = allocatedBytes;
+            this.cpuTime = cpuTime;
+        }
+
+        private static double average(CappedDoubleBuffer values) {
+            double[] all = values.toArray();
+            double sum = 0.0;
+            for (double value: all) {
+                sum += value;
+            }
+            return all.length == 0 ? 0.0 : sum / all.length;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the allocation rate between the last two samples (bytes per second)
+         */
+        public double getAllocationRate() {
+            return allocationRate;
+        }
+
+        /**
+         * @return the average allocation rate over the history of the thread (bytes per second)
+         */
+        public double getAverageAllocationRate() {
+            return averageAllocationRate;
+        }
+
+        /**
+         * @return the CPU usage between the last two samples, as a fraction of one CPU
+         */
+        public double getCpuUsage() {
+            return cpuUsage;
+        }
+
+        /**
+         * @return the average CPU usage over the history of the thread, as a fraction of one CPU
+         */
+        public double getAverageCpuUsage() {
+            return averageCpuUsage;
+        }
+
+        /**
+         * @return the bytes the thread allocated since it started
+         */
+        public long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+
+        /**
+         * @return the CPU time the thread used since it started (nsec)
+         */
+        public long getCpuTime() {
+            return cpuTime;
+        }
+
+        @Override
+        public String toString() {
+            DecimalFormat format = new DecimalFormat("#,##0.#");
+            return name + " (" + id + "): allocating " + format.format(averageAllocationRate / (1024.0 * 1024.0)) +
+                    " MB/sec, CPU " + format.format(averageCpuUsage * 100.0) + "%";
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.util.monitoring.stats;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exports stats in a compact binary format into a ByteBuffer, for shipping to a collector that decodes them with
+ * decode(). The layout (big endian, as ByteBuffer defaults to) is:
+ * <pre>
+ * int    MAGIC ("STAT")
+ * byte   VERSION
+ * long   export time (System.currentTimeMillis())
+ * int    number of stats
+ * per stat:
+ *   byte   flags (1: double value, 2: timing, 4: descriptive stats, 8: percentiles)
+ *   byte   time unit ordinal (timing stats only, otherwise 0)
+ *   short  name length, followed by the name in UTF-8
+ *   long   value (the raw bits of double values)
+ *   if descriptive stats: long count, double sum, min, max, stdev
+ *   if percentiles: double p50, p99, p99.9
+ * </pre>
+ * Names are encoded once, when a stat is first seen, so exporting into a reused buffer is garbage free.
+ * If the buffer is too small a BufferOverflowException is thrown and the buffer position is restored, so the caller
+ * may grow the buffer and try again.
+ */
+public class BinaryStatsExporter extends StatsExporterBase<ByteBuffer> {
+    public static final int MAGIC = 0x53544154;
+    public static final byte VERSION = 1;
+    private static final byte FLAG_DOUBLE = 1;
+    private static final byte FLAG_TIMING = 2;
+    private static final byte FLAG_DESCRIPTIVE = 4;
+    private static final byte FLAG_PERCENTILES = 8;
+    private static final TimeUnit[] TIME_UNITS = TimeUnit.values();
+
+    private byte[][] encodedNames = new byte[0][];
+    private int startPosition;
+    private int countPosition;
+    private int count;
+
+    @Override
+    protected void namesChanged(IStatsService stats, String[] names) {
+        encodedNames = new byte[names.length][];
+        for (int i = 0; i < names.length; i++) {
+            byte[] encoded = names[i].getBytes(StandardCharsets.UTF_8);
+            if (encoded.length > Short.MAX_VALUE) {
+                throw new IllegalArgumentException("Stat name too long to export: " + names[i].substring(0, 100) + "...");
+            }
+            encodedNames[i] = encoded;
+        }
+    }
+
+    @Override
+    protected void begin(ByteBuffer target, int statCount) {
+        startPosition = target.position();
+        count = 0;
+        try {
+            target.putInt(MAGIC);
+            target.put(VERSION);
+            target.putLong(System.currentTimeMillis());
+            countPosition = target.position();
+            target.putInt(0); // filled in by end()
+        }
+        catch (RuntimeException e) {
+            target.position(startPosition);
+            throw e;
+        }
+    }
+
+    @Override
+    protected void exportStat(ByteBuffer target, int index, String name, IStatValue value) {
+        try {
+            boolean isDouble = value.getType() == Double.class;
+            TimeUnit timeUnit = value.getTimeUnit();
+            boolean hasDescriptiveStats = readDescriptiveStats(value);
+            byte flags = 0;
+            if (isDouble) {
+                flags |= FLAG_DOUBLE;
+            }
+            if (timeUnit != null) {
+                flags |= FLAG_TIMING;
+            }
+            if (hasDescriptiveStats) {
+                flags |= FLAG_DESCRIPTIVE;
+                if (desc.hasPercentiles) {
+                    flags |= FLAG_PERCENTILES;
+                }
+            }
+            target.put(flags);
+            target.put(timeUnit == null ? 0 : (byte) timeUnit.ordinal());
+            byte[] encodedName = encodedNames[index];
+            target.putShort((short) encodedName.length);
+            target.put(encodedName);
+            target.putLong(isDouble ? Double.doubleToRawLongBits(value.getDouble()) : value.getLong());
+            if (hasDescriptiveStats) {
+                target.putLong(desc.count);
+                target.putDouble(desc.sum);
+                target.putDouble(desc.min);
+                target.putDouble(desc.max);
+                target.putDouble(desc.stdev);
+                if (desc.hasPercentiles) {
+                    target.putDouble(desc.p50);
+                    target.putDouble(desc.p99);
+                    target.putDouble(desc.p999);
+                }
+            }
+            count++;
+        }
+        catch (RuntimeException e) {
+            target.position(startPosition);
+            throw e;
+        }
+    }
+
+    @Override
+    protected void end(ByteBuffer target) {
+        target.putInt(countPosition, count);
+    }
+
+    /**
+     * Reads stats written by export() back into a snapshot. The snapshot's start and end times are both the export
+     * time. Reads from the buffer's position and leaves the position after the exported stats.
+     * @param source a buffer holding an export
+     * @return the exported stats
+     * @throws IllegalArgumentException if the buffer does not start with an export of a known version
+     */
+    public static StatsSnapshot decode(ByteBuffer source) {
+        if (source.getInt() != MAGIC) {
+            throw new IllegalArgumentException("Not an exported stats buffer");
+        }
+        byte version = source.get();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported exported stats version: " + version);
+        }
+        long exportMillis = source.getLong();
+        int size = source.getInt();
+        StatsSnapshot.Builder builder = new StatsSnapshot.Builder(exportMillis, exportMillis, false, size);
+        for (int i = 0; i < size; i++) {
+            byte flags = source.get();
+            byte timeUnit = source.get();
+            byte[] encodedName = new byte[source.getShort()];
+            source.get(encodedName);
+            String name = new String(encodedName, StandardCharsets.UTF_8);
+            long rawValue = source.getLong();
+            boolean hasDescriptiveStats = (flags & FLAG_DESCRIPTIVE) != 0;
+            boolean hasPercentiles = (flags & FLAG_PERCENTILES) != 0;
+            long count = hasDescriptiveStats ? source.getLong() : 0L;
+            double sum = hasDescriptiveStats ? source.getDouble() : 0.0;
+            double min = hasDescriptiveStats ? source.getDouble() : 0.0;
+            double max = hasDescriptiveStats ? source.getDouble() : 0.0;
+            double stdev = hasDescriptiveStats ? source.getDouble() : 0.0;
+            double p50 = hasPercentiles ? source.getDouble() : Double.NaN;
+            double p99 = hasPercentiles ? source.getDouble() : Double.NaN;
+            double p999 = hasPercentiles ? source.getDouble() : Double.NaN;
+            builder.add(name, (flags & FLAG_DOUBLE) != 0, (flags & FLAG_TIMING) != 0 ? TIME_UNITS[timeUnit] : null,
+                    rawValue, hasDescriptiveStats, count, sum, min, max, stdev, hasPercentiles, p50, p99, p999);
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,481 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.moscona.util.monitoring.stats;
+
+import com.moscona.util.ISimpleDescriptiveStatistic;
+
+import java.text.DecimalFormat;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread safe counterpart of StatValue, used by ConcurrentStatsService.
+ * The value itself is kept in striped LongAdder/DoubleAdder cells so that increments from many threads never lose
+ * updates and do not contend on a single memory location.
+ * Descriptive statistics, if attached, are not striped - each sample is added while holding the accumulator's monitor.
+ * Setting the value clears the cells and adds the new value in two steps, so reads retry (seqlock style) if a set()
+ * overlapped them, and never see the value half set.
+ * As with StatValue, the type of the value is determined at creation and does not change.
+ */
+public class ConcurrentStatValue implements IStatValue {
+    private final boolean isDouble;
+    private final boolean isTiming;
+    private final TimeUnit timeUnit;
+    private final LongAdder longValue;
+    private final DoubleAdder doubleValue;
+    private volatile int setVersion = 0; // odd while a set() is in progress
+    private volatile boolean isGauge = false; // set rather than incremented, so not reset by resetting snapshots
+    private volatile ILongSampleAccumulator longStats;
+    private volatile DoubleSampleAccumulator doubleStats;
+    private volatile RollingWindowAccumulator[] windows;
+    private volatile List<RollingWindowAccumulator> windowList;
+    private volatile DecayingRateMeter rateMeter;
+
+    /**
+     * The type of the value is determined at creation and does not change
+     * @param value the initial value
+     */
+    public ConcurrentStatValue(long value) {
+        this(value, false);
+    }
+
+    /**
+     * The type of the value is determined at creation and does not change
+     * @param value the initial value
+     * @param isTiming whether this is a timing stat or not
+     */
+    public ConcurrentStatValue(long value, boolean isTiming) {
+        this(value, isTiming ? TimeUnit.MILLISECONDS : null);
+    }
+
+    private ConcurrentStatValue(long value, TimeUnit timeUnit) {
+        this.isDouble = false;
+        this.isTiming = timeUnit != null;
+        this.timeUnit = timeUnit;
+        longValue = new LongAdder();
+        longValue.add(value);
+        doubleValue = null;
+    }
+
+    /**
+     * The type of the value is determined at creation and does not change
+     * @param value the initial value
+     */
+    public ConcurrentStatValue(double value) {
+        this.isDouble = true;
+        this.isTiming = false;
+        this.timeUnit = null;
+        longValue = null;
+        doubleValue = new DoubleAdder();
+        doubleValue.add(value);
+    }
+
+    /**
+     * Creates an empty timing stat, with a histogram attached but holding no samples yet.
+     * @param timeUnit the unit the timings are kept in
+     * @return a new timing stat value
+     */
+    static ConcurrentStatValue newTiming(TimeUnit timeUnit) {
+        ConcurrentStatValue retval = new ConcurrentStatValue(0L, timeUnit);
+        retval.longStats = new LongHistogramAccumulator();
+        return retval;
+    }
+
+    /**
+     * What is the type of the value?
+     *
+     * @return one of: Long, Double
+     */
+    @Override
+    public Class getType() {
+        return isDouble ? Double.class : Long.class;
+    }
+
+    /**
+     * Get the value as an Long
+     *
+     * @return the value as an Long. If the underlying value is converted to double either by truncating or rounding.
+     */
+    @Override
+    public long getLong() {
+        return isDouble ? Math.round(doubleSum()) : longSum();
+    }
+
+    /**
+     * Get the value as a double
+     *
+     * @return the value, converted to double
+     */
+    @Override
+    public double getDouble() {
+        return isDouble ? doubleSum() : (double) longSum();
+    }
+
+    private long longSum() {
+        for (;;) {
+            int version = setVersion;
+            long sum = longValue.sum();
+            if ((version & 1) == 0 && version == setVersion) {
+                return sum;
+            }
+            Thread.yield();
+        }
+    }
+
+    private double doubleSum() {
+        for (;;) {
+            int version = setVersion;
+            double sum = doubleValue.sum();
+            if ((version & 1) == 0 && version == setVersion) {
+                return sum;
+            }
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Sets the value. Sets are serialized among themselves, increments that race with a set may land on either side
+     * of it but are never lost.
+     * @param value the value to set the stat to.
+     */
+    @Override
+    public synchronized void set(long value) {
+        isGauge = true;
+        setVersion++;
+        if (isDouble) {
+            doubleValue.reset();
+            doubleValue.add(value);
+        }
+        else {
+            longValue.reset();
+            longValue.add(value);
+        }
+        setVersion++;
+    }
+
+    @Override
+    public synchronized void set(double value) {
+        isGauge = true;
+        setVersion++;
+        if (isDouble) {
+            doubleValue.reset();
+            doubleValue.add(value);
+        }
+        else {
+            longValue.reset();
+            longValue.add(Math.round(value));
+        }
+        setVersion++;
+    }
+
+    @Override
+    public void inc(long value) {
+        DecayingRateMeter meter = rateMeter;
+        if (meter != null) {
+            meter.mark(value);
+        }
+        if (isDouble) {
+            doubleValue.add(value);
+        }
+        else {
+            longValue.add(value);
+        }
+    }
+
+    @Override
+    public void inc(double value) {
+        DecayingRateMeter meter = rateMeter;
+        if (meter != null) {
+            meter.mark(value);
+        }
+        if (isDouble) {
+            doubleValue.add(value);
+        }
+        else {
+            longValue.add(Math.round(value));
+        }
+    }
+
+    /**
+     * The same as set(value), but this version also accumulates descriptive stats, but only if they are attached already.
+     * Both are done while holding this value's monitor, so a snapshot sees both or neither.
+     *
+     * @param value the new value for the stat
+     */
+    @Override
+    public synchronized void setAndAccumulate(long value) {
+        set(value);
+        accumulate(value);
+        markTiming();
+    }
+
+    /**
+     * The same as set(value), but this version also accumulates descriptive stats, but only if they are attached already.
+     * Both are done while holding this value's monitor, so a snapshot sees both or neither.
+     *
+     * @param value the new value for the stat
+     */
+    @Override
+    public synchronized void setAndAccumulate(double value) {
+        set(value);
+        accumulate(value);
+        markTiming();
+    }
+
+    private void markTiming() {
+        DecayingRateMeter meter = rateMeter;
+        if (isTiming && meter != null) {
+            meter.mark();
+        }
+    }
+
+    /**
+     * Adds a sample to the attached descriptive stats (if attached). Does not change the value itself.
+     * @param sample the sample to add
+     */
+    @Override
+    public void accumulate(long sample) {
+        if (isDouble) {
+            accumulate((double) sample);
+            return;
+        }
+        ILongSampleAccumulator stats = longStats;
+        if (stats != null) {
+            synchronized (stats) {
+                stats.addSample(sample);
+            }
+        }
+        addToWindows((double) sample);
+    }
+
+    /**
+     * Adds a sample to the attached descriptive stats (if attached). Does not change the value itself.
+     * @param sample the sample to add
+     */
+    @Override
+    public void accumulate(double sample) {
+        if (!isDouble) {
+            accumulate(Math.round(sample));
+            return;
+        }
+        DoubleSampleAccumulator stats = doubleStats;
+        if (stats != null) {
+            synchronized (stats) {
+                stats.addSample(sample);
+            }
+        }
+        addToWindows(sample);
+    }
+
+    private void addToWindows(double sample) {
+        RollingWindowAccumulator[] current = windows;
+        if (current != null) {
+            long now = current[0].now(); // one clock read for all the windows
+            for (RollingWindowAccumulator window : current) {
+                synchronized (window) {
+                    window.addSample(sample, now);
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean isTiming() {
+        return isTiming;
+    }
+
+    @Override
+    public TimeUnit getTimeUnit() {
+        return timeUnit;
+    }
+
+    public Number asNumber() {
+        return isDouble ? (Number) doubleSum() : (Number) longSum();
+    }
+
+    public String toString() {
+        return getClass().getName()+"("+toBareString()+")";
+    }
+
+    /**
+     * Like toString() but without all the class stuff.
+     * @return a string representing the value
+     */
+    @Override
+    public String toBareString() {
+        return ""+(isDouble ? Double.toString(doubleSum()) : Long.toString(longSum()))+(isTiming ? " "+StatTimeUnits.abbreviation(timeUnit):"");
+    }
+
+    @Override
+    public String toFormattedString() {
+        String retval;
+        String stats = null;
+
+        DecimalFormat decimalFormat = StatFormats.decimal();
+        ISimpleDescriptiveStatistic desc = getDescriptiveStatistics();
+        if (isDouble) {
+            retval = decimalFormat.format(doubleSum());
+        }
+        else {
+            retval = StatFormats.integer().format(longSum());
+        }
+        if (desc != null) {
+            synchronized (desc) {
+                if (desc.count() > 0) {
+                    stats = desc.toString(decimalFormat);
+                }
+            }
+        }
+
+        if (isTiming) {
+            retval += " "+StatTimeUnits.abbreviation(timeUnit);
+        }
+
+        if (stats != null) {
+            retval += "  ("+stats+")";
+        }
+
+        return retval;
+    }
+
+    @Override
+    public String toFormattedString(TimeUnit unit) {
+        if (!isTiming) {
+            return toFormattedString();
+        }
+        ISimpleDescriptiveStatistic desc = getDescriptiveStatistics();
+        if (desc == null) {
+            return StatTimeUnits.format(getDouble(), null, timeUnit, unit);
+        }
+        synchronized (desc) {
+            return StatTimeUnits.format(getDouble(), desc, timeUnit, unit);
+        }
+    }
+
+    /**
+     * Returns the descriptive stats if they exist. Otherwise returns null.
+     * Note that the returned object is live. Lock on it if you need a consistent view while writers are active.
+     *
+     * @return descriptive stats, if they exist for the value.
+     */
+    @Override
+    public ISimpleDescriptiveStatistic getDescriptiveStatistics() {
+        return isDouble ? doubleStats : longStats;
+    }
+
+    /**
+     * Attaches descriptive statistics to the value, replacing any previously attached ones.
+     * The current value is added as the first sample. Timing stats get a histogram.
+     */
+    @Override
+    public void attachDescriptiveStats() {
+        attachDescriptiveStats(isTiming);
+    }
+
+    /**
+     * Attaches descriptive statistics to the value, replacing any previously attached ones.
+     * The current value is added as the first sample.
+     * @param withHistogram whether a Long value gets a LongHistogramAccumulator rather than a LongSampleAccumulator
+     */
+    @Override
+    public void attachDescriptiveStats(boolean withHistogram) {
+        if (isDouble) {
+            DoubleSampleAccumulator stats = new DoubleSampleAccumulator();
+            stats.addSample(doubleSum());
+            doubleStats = stats;
+        }
+        else {
+            ILongSampleAccumulator stats = withHistogram ? new LongHistogramAccumulator() : new LongSampleAccumulator();
+            stats.addSample(longSum());
+            longStats = stats;
+        }
+    }
+
+    @Override
+    public void attachRollingWindows(long... windowMillis) {
+        RollingWindowAccumulator[] created = RollingWindows.create(windowMillis);
+        windowList = RollingWindows.asList(created);
+        windows = created;
+    }
+
+    /**
+     * Note that the returned windows are live. Lock on a window if you need a consistent view while writers are active.
+     *
+     * @return the rolling windows, or null
+     */
+    @Override
+    public List<RollingWindowAccumulator> getRollingWindows() {
+        return windowList;
+    }
+
+    @Override
+    public void attachRateMeter() {
+        rateMeter = new DecayingRateMeter();
+    }
+
+    @Override
+    public DecayingRateMeter getRateMeter() {
+        return rateMeter;
+    }
+
+    /**
+     * Adds the stat to a snapshot. The value and the descriptive stats are read together while holding this value's
+     * monitor (as setAndAccumulate() does), so writers are only held up for the copy.
+     * When resetting, the amount read is subtracted from the counter rather than the counter zeroed (sumThenReset()
+     * zeroes the cells one by one, and can drop increments that race with it), so an increment that races with the
+     * snapshot is counted in either this interval or the next one, never lost.
+     * @param builder the snapshot builder
+     * @param name the name of the stat
+     * @param reset whether to zero the value (unless it is a timing stat or a gauge, i.e. was ever set rather than
+     *              incremented) and clear the descriptive stats afterwards
+     */
+    synchronized void captureInto(StatsSnapshot.Builder builder, String name, boolean reset) {
+        long rawValue;
+        if (reset && !isTiming && !isGauge) {
+            rawValue = isDouble ? Double.doubleToRawLongBits(drainDouble()) : drainLong();
+        }
+        else {
+            rawValue = isDouble ? Double.doubleToRawLongBits(doubleValue.sum()) : longValue.sum();
+        }
+        ISimpleDescriptiveStatistic desc = getDescriptiveStatistics();
+        if (desc == null) {
+            builder.add(name, isDouble, timeUnit, rawValue, null);
+            return;
+        }
+        synchronized (desc) {
+            builder.add(name, isDouble, timeUnit, rawValue, desc);
+            if (reset) {
+                desc.clear();
+            }
+        }
+    }
+
+    private long drainLong() {
+        long sum = longValue.sum();
+        longValue.add(-sum);
+        return sum;
+    }
+
+    private double drainDouble() {
+        double sum = doubleValue.sum();
+        doubleValue.add(-sum);
+        return sum;
+    }
+}
@@ -0,0 +1,435 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.moscona.util.monitoring.stats;
+
+import com.moscona.exceptions.InvalidStateException;
+import com.moscona.util.SafeRunnable;
+import org.apache.commons.lang3.time.StopWatch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A stats service intended for hot paths that are hit from many threads at once.
+ * Unlike SimpleStatsService, counts are exact under contention: values are kept in ConcurrentStatValue (striped
+ * LongAdder/DoubleAdder cells) and new stats are registered atomically with computeIfAbsent, so two threads racing to
+ * create the same stat always end up sharing one value. No global lock is taken on the increment path, so unlike
+ * wrapping a SimpleStatsService with SynchronizedDelegatingStatsService throughput keeps scaling with the number of
+ * cores.
+ */
+public class ConcurrentStatsService implements IStatsService {
+    private volatile boolean isOn;
+    private final ConcurrentHashMap<String, ConcurrentStatValue> stats;
+    private final ConcurrentHashMap<String, StopWatch> timers;
+    private final AtomicInteger structureVersion;
+    private final StatHandle.Resolver handleResolver;
+    private final StatOptions options;
+    private volatile long intervalStartMillis;
+
+    public ConcurrentStatsService() {
+        isOn = true;
+        stats = new ConcurrentHashMap<>();
+        timers = new ConcurrentHashMap<>();
+        structureVersion = new AtomicInteger();
+        options = new StatOptions();
+        intervalStartMillis = System.currentTimeMillis();
+        handleResolver = new StatHandle.Resolver() {
+            @Override
+            public boolean isOn() {
+                return isOn;
+            }
+
+            @Override
+            public int getStructureVersion() {
+                return structureVersion.get();
+            }
+
+            @Override
+            public IStatValue resolve(String name, boolean isDouble) {
+                return isDouble ? getOrCreateDouble(name) : getOrCreateLong(name);
+            }
+
+            @Override
+            public IStatValue resolveTiming(String name, TimeUnit timeUnit) {
+                return getOrCreateTiming(name, timeUnit);
+            }
+        };
+    }
+
+    @Override
+    public void turnOff() {
+        isOn = false;
+    }
+
+    @Override
+    public void turnOn() {
+        isOn = true;
+    }
+
+    @Override
+    public boolean isOn() {
+        return isOn;
+    }
+
+    /**
+     * Looks up a stat, creating it if needed. The plain get() comes first because computeIfAbsent locks the hash bin
+     * even when the key is already present, and the stat almost always exists.
+     */
+    private ConcurrentStatValue getOrCreateLong(String name) {
+        ConcurrentStatValue statValue = stats.get(name);
+        if (statValue == null) {
+            statValue = stats.computeIfAbsent(name, key -> options.applyTo(key, new ConcurrentStatValue(0L)));
+        }
+        return statValue;
+    }
+
+    private ConcurrentStatValue getOrCreateDouble(String name) {
+        ConcurrentStatValue statValue = stats.get(name);
+        if (statValue == null) {
+            statValue = stats.computeIfAbsent(name, key -> options.applyTo(key, new ConcurrentStatValue(0.0)));
+        }
+        return statValue;
+    }
+
+    private ConcurrentStatValue getOrCreateTiming(String name, TimeUnit timeUnit) {
+        ConcurrentStatValue statValue = stats.get(name);
+        if (statValue == null) {
+            statValue = stats.computeIfAbsent(name, key -> options.applyTo(key, ConcurrentStatValue.newTiming(timeUnit)));
+        }
+        return statValue;
+    }
+
+    /**
+     * Sets the value of a named stat. The old value is lost.
+     *
+     * @param name  the name of the statistic to set
+     * @param value new value.
+     */
+    @Override
+    public void setStat(String name, long value) {
+        if (isOn) {
+            ConcurrentStatValue statValue = getOrCreateLong(name);
+            statValue.setAndAccumulate(value);
+        }
+    }
+
+    /**
+     * Increments the value by a given amount. If does not exist, it is assumed the old value was 0.
+     *
+     * @param name  name the name of the statistic to set
+     * @param value increment value.
+     */
+    @Override
+    public void incStat(String name, long value) {
+        if (isOn) {
+            ConcurrentStatValue statValue = getOrCreateLong(name);
+            statValue.inc(value);
+            statValue.accumulate(value);
+        }
+    }
+
+    /**
+     * == incStat(name,1)
+     *
+     * @param name name the name of the statistic to set
+     */
+    @Override
+    public void incStat(String name) {
+        ConcurrentStatValue statValue = stats.get(name);
+        if (statValue != null && statValue.getType() == Double.class) {
+            incStat(name, 1.0);
+        }
+        else {
+            incStat(name, 1);
+        }
+    }
+
+    /**
+     * Initializes the statistic (and its type) and attaches descriptive statistics to it from the outset.
+     * Wipes out whatever previous data existed for the statistic.
+     * The initial value is included in the descriptive stats.
+     *
+     * @param name  the name of the statistic
+     * @param value the initial value of it
+     */
+    @Override
+    public void initStatWithDescriptiveStats(String name, long value) {
+        if (isOn) {
+            ConcurrentStatValue statValue = options.applyTo(name, new ConcurrentStatValue(value));
+            statValue.attachDescriptiveStats();
+            stats.put(name, statValue);
+            structureVersion.incrementAndGet(); // handles bound to the old value must re-resolve
+        }
+    }
+
+    /**
+     * Initializes the statistic (and its type) and attaches descriptive statistics to it from the outset.
+     * Wipes out whatever previous data existed for the statistic.
+     * The initial value is included in the descriptive stats.
+     *
+     * @param name  the name of the statistic
+     * @param value the initial value of it
+     */
+    @Override
+    public void initStatWithDescriptiveStats(String name, double value) {
+        if (isOn) {
+            ConcurrentStatValue statValue = options.applyTo(name, new ConcurrentStatValue(value));
+            statValue.attachDescriptiveStats();
+            stats.put(name, statValue);
+            structureVersion.incrementAndGet(); // handles bound to the old value must re-resolve
+        }
+    }
+
+    /**
+     * Sets the value of a named stat. The old value is lost.
+     *
+     * @param name  the name of the statistic to set
+     * @param value new value.
+     */
+    @Override
+    public void setStat(String name, double value) {
+        if (isOn) {
+            ConcurrentStatValue statValue = getOrCreateDouble(name);
+            statValue.setAndAccumulate(value);
+        }
+    }
+
+    /**
+     * Increments the value by a given amount. If does not exist, it is assumed the old value was 0.0.
+     *
+     * @param name  name the name of the statistic to set
+     * @param value increment value.
+     */
+    @Override
+    public void incStat(String name, double value) {
+        if (isOn) {
+            ConcurrentStatValue statValue = getOrCreateDouble(name);
+            statValue.inc(value);
+            statValue.accumulate(value);
+        }
+    }
+
+    /**
+     * Demarcates the starting of measuring the names time measure. In effect until stopTimerFor(name) is called.
+     * Resets the timer. If a measurement was in effect and stopTimerFor(name) was not called, then that measurement
+     * is lost.
+     *
+     * @param name of the timing measure to use.
+     */
+    @Override
+    public void startTimerFor(String name) {
+        if (isOn) {
+            StopWatch sw = new StopWatch();
+            timers.put(name, sw);
+            sw.start();
+        }
+    }
+
+    /**
+     * Used to exclude the time between this call and and a call to resumeTimerFor(name). In effect until stopTimerFor(name) or
+     * resumeTimerFor(name) is called.
+     *
+     * @param name of the timing measure to use.
+     */
+    @Override
+    public void pauseTimerFor(String name) {
+        if (isOn) {
+            StopWatch sw = timers.get(name);
+            if (sw == null) {
+                startTimerFor(name);
+                sw = timers.get(name);
+            }
+            sw.suspend();
+        }
+    }
+
+    /**
+     * Cancels the effect of pauseTimerFor(name). The clock continues ticking until stopTimerFor(name) is called.
+     *
+     * @param name of the timing measure to use.
+     */
+    @Override
+    public void resumeTimerFor(String name) {
+        if (isOn) {
+            StopWatch sw = timers.get(name);
+            if (sw != null) {
+                sw.resume();
+            } else {
+                startTimerFor(name);
+            }
+        }
+    }
+
+    /**
+     * Stops the timer for the names timing measure and registers the result. Without this call you get no results.
+     *
+     * @param name of the timing measure to use.
+     * @throws com.moscona.exceptions.InvalidStateException if timing is longer than integer capacity
+     */
+    @Override
+    public void stopTimerFor(String name) throws InvalidStateException {
+        if (isOn) {
+            StopWatch stopWatch = timers.remove(name);
+            if (stopWatch == null) {
+                return; // never started (or the service was off when it was started)
+            }
+            try {
+                stopWatch.stop();
+            }
+            catch (Throwable e) {
+                System.err.println("Error with timer " + name + ": "+e+"\n(ignoring)");
+                e.printStackTrace(System.err);
+            }
+            addTimingSampleFor(name, stopWatch.getTime());
+        }
+    }
+
+    /**
+     * Allows a convenient measuring of a whole block of code, at the expense of creating a new Runnable object.
+     *
+     * @param name name of the timing measure to use.
+     * @param code the Runnable that whose run() method time will be measured.
+     * @throws InvalidStateException if timing is longer than integer capacity
+     */
+    @Override
+    public void measureTiming(String name, Runnable code) throws InvalidStateException {
+        startTimerFor(name);
+        code.run();
+        stopTimerFor(name);
+        if (code instanceof SafeRunnable) {
+            Exception e = ((SafeRunnable) code).getException();
+            if (e != null) {
+                throw new InvalidStateException("Exception thrown in safe runnable", e);
+            }
+        }
+    }
+
+    /**
+     * Allows adding a timing sample without all the hustle of starting and stopping.
+     * Useful if you already have the timing handy.
+     *
+     * @param name   name of the timing measure to use.
+     * @param millis the number of milliseconds to add
+     * @throws InvalidStateException if timing is longer than integer capacity
+     */
+    @Override
+    public void addTimingSampleFor(String name, long millis) throws InvalidStateException {
+        if (isOn) {
+            if (millis > Integer.MAX_VALUE) {
+                throw new InvalidStateException("Timer was left to run too long and is now more than integer capacity");
+            }
+            StatTimeUnits.record(getOrCreateTiming(name, TimeUnit.MILLISECONDS), millis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Retrieves the value of a statistic
+     *
+     * @param name name of the stat to use.
+     * @return an IStatValue for the stat or null, if it does not exist
+     */
+    @Override
+    public IStatValue getStat(String name) {
+        return stats.get(name);
+    }
+
+    @Override
+    public IStatCounter counter(String name) {
+        return new StatHandle.Counter(name, handleResolver);
+    }
+
+    @Override
+    public IStatGauge gauge(String name) {
+        return new StatHandle.Gauge(name, handleResolver);
+    }
+
+    @Override
+    public IStatTimer timer(String name) {
+        return timer(name, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public IStatTimer timer(String name, TimeUnit resolution) {
+        return new StatHandle.Timer(name, resolution, handleResolver);
+    }
+
+    @Override
+    public void attachRollingWindows(String name, long... windowMillis) {
+        options.addRollingWindows(name, windowMillis);
+        IStatValue statValue = stats.get(name);
+        if (statValue != null) {
+            statValue.attachRollingWindows(windowMillis);
+        }
+    }
+
+    @Override
+    public void attachRateMeter(String name) {
+        options.addRateMeter(name);
+        IStatValue statValue = stats.get(name);
+        if (statValue != null) {
+            statValue.attachRateMeter();
+        }
+    }
+
+    @Override
+    public Set<String> getStatNames() {
+        return stats.keySet();
+    }
+
+    @Override
+    public StatsSnapshot snapshot() {
+        return snapshot(false);
+    }
+
+    /**
+     * Takes an immutable copy of all the stats, optionally closing an interval.
+     * Resetting snapshots are serialized among themselves, so that intervals do not overlap.
+     *
+     * @param resetDeltas whether to reset the stats after copying them
+     * @return a snapshot of all the stats
+     */
+    @Override
+    public synchronized StatsSnapshot snapshot(boolean resetDeltas) {
+        long now = System.currentTimeMillis();
+        StatsSnapshot.Builder builder = new StatsSnapshot.Builder(intervalStartMillis, now, resetDeltas, stats.size());
+        for (Map.Entry<String, ConcurrentStatValue> entry : stats.entrySet()) {
+            builder.add(entry.getKey(), entry.getValue(), resetDeltas);
+        }
+        if (resetDeltas) {
+            intervalStartMillis = now;
+        }
+        return builder.build();
+    }
+
+    @SuppressWarnings({"UseOfSystemOutOrSystemErr"})
+    public void print() {
+        System.out.println("\nStats:");
+        ArrayList<String> names = new ArrayList<>(getStatNames());
+        Collections.sort(names);
+        for (String stat : names) {
+            IStatValue value = getStat(stat);
+            System.out.println("\t"+stat+": "+value.toFormattedString());
+            System.out.print(RollingWindows.format(value, "\t\t"));
+        }
+    }
+}
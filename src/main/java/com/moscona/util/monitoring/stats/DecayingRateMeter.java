@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.util.monitoring.stats;
+
+import java.text.DecimalFormat;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Measures the rate at which a stat grows, as exponentially weighted moving averages over 1, 5 and 15 minutes (the
+ * same smoothing as the Unix load average) plus the mean rate since the meter was created. Rates are per second.
+ * Marks go into a striped adder, so marking is cheap and safe from any number of threads. The averages are updated in
+ * 5 second ticks, but there is no timer thread: whichever thread marks or reads the meter first after a tick is due
+ * catches up on the ticks that were missed.
+ */
+public class DecayingRateMeter {
+    static final long TICK_MILLIS = 5000L;
+    private static final double SECONDS_PER_TICK = TICK_MILLIS / 1000.0;
+
+    private final LongSupplier clock;
+    private final long startMillis;
+    private final AtomicLong lastTick;
+    private final DoubleAdder uncounted; // marked since the last tick
+    private final DoubleAdder total;
+    private final MovingAverage oneMinute;
+    private final MovingAverage fiveMinutes;
+    private final MovingAverage fifteenMinutes;
+
+    public DecayingRateMeter() {
+        this(RollingWindowAccumulator::monotonicMillis);
+    }
+
+    /**
+     * @param clock a monotonic clock, in milliseconds
+     */
+    public DecayingRateMeter(LongSupplier clock) {
+        this.clock = clock;
+        startMillis = clock.getAsLong();
+        lastTick = new AtomicLong(startMillis);
+        uncounted = new DoubleAdder();
+        total = new DoubleAdder();
+        oneMinute = new MovingAverage(1);
+        fiveMinutes = new MovingAverage(5);
+        fifteenMinutes = new MovingAverage(15);
+    }
+
+    /**
+     * An exponentially weighted moving average of the rate, updated once a tick.
+     * Only the thread that won the tick updates it, so a volatile rate is enough.
+     */
+    private static class MovingAverage {
+        private final double alpha;
+        private volatile double rate = 0.0;
+        private volatile boolean initialized = false;
+
+        private MovingAverage(int minutes) {
+            alpha = 1.0 - Math.exp(-SECONDS_PER_TICK / 60.0 / minutes);
+        }
+
+        private void tick(double count) {
+            double instantRate = count / SECONDS_PER_TICK;
+            if (initialized) {
+                rate += alpha * (instantRate - rate);
+            }
+            else {
+                rate = instantRate;
+                initialized = true;
+            }
+        }
+    }
+
+    /**
+     * == mark(1)
+     */
+    public void mark() {
+        mark(1.0);
+    }
+
+    /**
+     * Records that the stat grew by the given amount
+     * @param n the amount
+     */
+    public void mark(double n) {
+        tickIfNecessary();
+        uncounted.add(n);
+        total.add(n);
+    }
+
+    private void tickIfNecessary() {
+        long oldTick = lastTick.get();
+        long age = clock.getAsLong() - oldTick;
+        if (age >= TICK_MILLIS) {
+            long newTick = oldTick + age - age % TICK_MILLIS;
+            if (lastTick.compareAndSet(oldTick, newTick)) {
+                // only one thread gets here per tick
+                long ticks = age / TICK_MILLIS;
+                for (long i = 0; i < ticks; i++) {
+                    double count = i == 0 ? drainUncounted() : 0.0;
+                    oneMinute.tick(count);
+                    fiveMinutes.tick(count);
+                    fifteenMinutes.tick(count);
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes the marks since the last tick. The amount read is subtracted rather than the cells zeroed (as
+     * sumThenReset() does, cell by cell and not atomically), so a mark that races with the tick is counted in either
+     * this tick or the next one, never lost.
+     * @return the amount marked since the last tick
+     */
+    private double drainUncounted() {
+        double count = uncounted.sum();
+        uncounted.add(-count);
+        return count;
+    }
+
+    /**
+     * @return the total of all marks since the meter was created
+     */
+    public double getCount() {
+        return total.sum();
+    }
+
+    /**
+     * @return the average rate (per second) since the meter was created
+     */
+    public double getMeanRate() {
+        long elapsed = clock.getAsLong() - startMillis;
+        return elapsed <= 0 ? 0.0 : total.sum() * 1000.0 / elapsed;
+    }
+
+    public double getOneMinuteRate() {
+        tickIfNecessary();
+        return oneMinute.rate;
+    }
+
+    public double getFiveMinuteRate() {
+        tickIfNecessary();
+        return fiveMinutes.rate;
+    }
+
+    public double getFifteenMinuteRate() {
+        tickIfNecessary();
+        return fifteenMinutes.rate;
+    }
+
+    public String toString() {
+        return getClass().getName()+"(1m:"+getOneMinuteRate()+" , 5m:"+getFiveMinuteRate()+" , 15m:"+getFifteenMinuteRate()+" , mean:"+getMeanRate()+" per sec)";
+    }
+
+    public String toString(DecimalFormat format) {
+        return "(1m:" + format.format(getOneMinuteRate()) + " , 5m:" + format.format(getFiveMinuteRate()) + " , 15m:" + format.format(getFifteenMinuteRate()) + " , mean:" + format.format(getMeanRate()) + " per sec)";
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.moscona.util.monitoring.stats;
+
+import com.moscona.exceptions.InvalidStateException;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The handles returned by the default IStatsService.counter(), gauge() and timer() methods, for implementations
+ * that do not hand out handles of their own. Each call goes through the name based methods of the service, so these
+ * handles are only as fast as incStat(), setStat() and addTimingSampleFor().
+ */
+class FallbackStatHandles {
+    private FallbackStatHandles() {
+    }
+
+    private abstract static class Handle {
+        protected final String name;
+        protected final IStatsService service;
+
+        protected Handle(String name, IStatsService service) {
+            this.name = name;
+            this.service = service;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String toString() {
+            return getClass().getSimpleName()+"("+name+")";
+        }
+    }
+
+    static class Counter extends Handle implements IStatCounter {
+        Counter(String name, IStatsService service) {
+            super(name, service);
+        }
+
+        @Override
+        public void inc() {
+            service.incStat(name);
+        }
+
+        @Override
+        public void inc(long value) {
+            service.incStat(name, value);
+        }
+    }
+
+    static class Gauge extends Handle implements IStatGauge {
+        Gauge(String name, IStatsService service) {
+            super(name, service);
+        }
+
+        @Override
+        public void set(long value) {
+            service.setStat(name, value);
+        }
+
+        @Override
+        public void set(double value) {
+            service.setStat(name, value);
+        }
+    }
+
+    /**
+     * Records in whole milliseconds, rounding up, and caps samples at addTimingSampleFor()'s integer capacity
+     */
+    static class Timer extends Handle implements IStatTimer {
+        Timer(String name, IStatsService service) {
+            super(name, service);
+        }
+
+        @Override
+        public void record(long duration, TimeUnit unit) {
+            long millis = Math.min(StatTimeUnits.convertRoundingUp(duration, unit, TimeUnit.MILLISECONDS),
+                    Integer.MAX_VALUE);
+            try {
+                service.addTimingSampleFor(name, millis);
+            }
+            catch (InvalidStateException e) {
+                throw new IllegalStateException("Failed to record a timing for " + name, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.util.monitoring.stats;
+
+/**
+ * A counter bound to a single stat in an IStatsService, obtained via IStatsService.counter(name).
+ * Resolving the handle once and keeping it around skips the name hashing and map lookup that incStat(name) pays on
+ * every call. Increments have the same semantics as incStat(name, value), including descriptive stats accumulation.
+ */
+public interface IStatCounter {
+    /**
+     * == inc(1)
+     */
+    void inc();
+
+    /**
+     * Increments the counter by a given amount. Same as IStatsService.incStat(name, value).
+     * @param value increment value
+     */
+    void inc(long value);
+
+    /**
+     * @return the name of the stat this handle is bound to
+     */
+    String getName();
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.util.monitoring.stats;
+
+/**
+ * A gauge bound to a single stat in an IStatsService, obtained via IStatsService.gauge(name).
+ * Setting the gauge has the same semantics as IStatsService.setStat(name, value), without the per call lookup.
+ * As with setStat(), the type of the stat (Long or Double) is determined by the first value set.
+ */
+public interface IStatGauge {
+    /**
+     * Sets the value of the stat. The old value is lost.
+     * @param value new value
+     */
+    void set(long value);
+
+    /**
+     * Sets the value of the stat. The old value is lost.
+     * @param value new value
+     */
+    void set(double value);
+
+    /**
+     * @return the name of the stat this handle is bound to
+     */
+    String getName();
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.util.monitoring.stats;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A timing stat bound to a single name in an IStatsService, obtained via IStatsService.timer(name).
+ * Recording a sample has the same semantics as IStatsService.addTimingSampleFor(name, millis), without the per call
+ * lookup.
+ * Durations are converted to the resolution of the stat (see IStatValue.getTimeUnit()) when they are recorded, rounding
+ * up, so that a short timing is never recorded as 0. Use a timer created with a NANOSECONDS resolution
+ * (IStatsService.timer(name, TimeUnit.NANOSECONDS)) to keep the full System.nanoTime() precision.
+ *
+ * The start()/stop(token) pair keeps the start time on the caller's stack rather than in the service, so any number of
+ * threads can time the same stat at once without interfering with each other, and nothing is allocated:
+ * <pre>
+ *     long token = timer.start();
+ *     doWork();
+ *     timer.stop(token);
+ * </pre>
+ */
+public interface IStatTimer {
+    /**
+     * Adds a timing sample.
+     * @param millis the number of milliseconds to add
+     */
+    default void record(long millis) {
+        record(millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Adds a timing sample, given in any unit.
+     * @param duration the length of the timing sample
+     * @param unit the unit the duration is given in
+     */
+    void record(long duration, TimeUnit unit);
+
+    /**
+     * Starts a timing. Does not allocate or change any state.
+     * @return a token to pass to stop()
+     */
+    default long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Ends a timing started with start() and records it.
+     * @param startToken the token start() returned
+     * @return the elapsed time in nanoseconds
+     */
+    default long stop(long startToken) {
+        long elapsed = System.nanoTime() - startToken;
+        record(elapsed, TimeUnit.NANOSECONDS);
+        return elapsed;
+    }
+
+    /**
+     * Starts a timing that is recorded when the returned scope is closed, for use with try-with-resources:
+     * <pre>
+     *     try (IStatTimer.Scope ignored = timer.time()) {
+     *         doWork();
+     *     }
+     * </pre>
+     * The scope is a tiny object that the JIT can usually eliminate, but on the hottest paths start()/stop() are
+     * guaranteed not to allocate.
+     * @return a scope whose close() records the time since this call
+     */
+    default Scope time() {
+        final long startToken = start();
+        return () -> stop(startToken);
+    }
+
+    /**
+     * @return the name of the stat this handle is bound to
+     */
+    String getName();
+
+    /**
+     * A timing in progress. Closing it records the timing. Closing it more than once records it more than once.
+     */
+    interface Scope extends AutoCloseable {
+        @Override
+        void close();
+    }
+}
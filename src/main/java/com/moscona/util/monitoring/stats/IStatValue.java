@@ -19,10 +19,15 @@ package com.moscona.util.monitoring.stats;
 
 import com.moscona.util.ISimpleDescriptiveStatistic;
 
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Created: Apr 1, 2010 3:43:03 PM
  * By: Arnon Moscona
  * The values returned from a IStatsService
+ * The methods added since the first release have default implementations, so that existing implementations keep
+ * working. The defaults fall back on the older methods, and leave out what those cannot express.
  */
 public interface IStatValue {
     /**
@@ -84,8 +89,59 @@ public interface IStatValue {
      */
     void setAndAccumulate(double value);
 
+    /**
+     * Adds a sample to the descriptive stats, but only if they are attached already. The value itself is not changed.
+     * The default adds the sample, without locking, to descriptive stats of this package's accumulator types.
+     * @param sample the sample to add
+     */
+    default void accumulate(long sample) {
+        ISimpleDescriptiveStatistic stats = getDescriptiveStatistics();
+        if (stats instanceof ILongSampleAccumulator) {
+            ((ILongSampleAccumulator) stats).addSample(sample);
+        }
+        else if (stats instanceof DoubleSampleAccumulator) {
+            ((DoubleSampleAccumulator) stats).addSample((double) sample);
+        }
+    }
+
+    /**
+     * Adds a sample to the descriptive stats, but only if they are attached already. The value itself is not changed.
+     * The default adds the sample, without locking, to descriptive stats of this package's accumulator types.
+     * @param sample the sample to add
+     */
+    default void accumulate(double sample) {
+        ISimpleDescriptiveStatistic stats = getDescriptiveStatistics();
+        if (stats instanceof DoubleSampleAccumulator) {
+            ((DoubleSampleAccumulator) stats).addSample(sample);
+        }
+        else if (stats instanceof ILongSampleAccumulator) {
+            ((ILongSampleAccumulator) stats).addSample(Math.round(sample));
+        }
+    }
+
     boolean isTiming();
 
+    /**
+     * The unit that the value and the samples of a timing stat are kept in. Timing stats created by
+     * addTimingSampleFor() and the timing methods of IStatsService are kept in milliseconds. Timer handles may create
+     * stats with a finer resolution (see IStatsService.timer(name, unit)).
+     * The default is milliseconds for timing stats.
+     * @return the time unit of a timing stat, or null if this is not a timing stat
+     */
+    default TimeUnit getTimeUnit() {
+        return isTiming() ? TimeUnit.MILLISECONDS : null;
+    }
+
+    /**
+     * Get the value of a timing stat in the given unit.
+     * @param unit the unit to convert to
+     * @return the value, converted to the unit. For stats that are not timing stats this is the same as getDouble().
+     */
+    default double getDouble(TimeUnit unit) {
+        TimeUnit timeUnit = getTimeUnit();
+        return timeUnit == null ? getDouble() : StatTimeUnits.convert(getDouble(), timeUnit, unit);
+    }
+
     /**
      * @return a string representing the value
      */
@@ -96,6 +152,17 @@ public interface IStatValue {
      */
     public String toFormattedString();
 
+    /**
+     * Like toFormattedString(), but a timing stat and its descriptive stats are reported in the given unit.
+     * For stats that are not timing stats this is the same as toFormattedString().
+     * The default ignores the unit and returns toFormattedString().
+     * @param unit the unit to report in
+     * @return a formatted string for human consumption.
+     */
+    public default String toFormattedString(TimeUnit unit) {
+        return toFormattedString();
+    }
+
     /**
      * Returns the descriptive stats if they exist. Otherwise returns null.
      * @return descriptive stats, if they exist for the value.
@@ -106,7 +173,52 @@ public interface IStatValue {
      * Attaches descriptive statistics to the value if the implementation supports it.
      * If unsupported, then the descriptive stats should remain null.
      * If it is supported and descriptive stats already exist they will be reset. 
+     * Timing stats get a histogram (see attachDescriptiveStats(boolean)), other stats get plain descriptive stats.
      */
     void attachDescriptiveStats();
 
+    /**
+     * Attaches descriptive statistics to the value if the implementation supports it, as attachDescriptiveStats()
+     * does, but lets the caller decide whether a Long value gets a LongHistogramAccumulator, whose descriptive stats
+     * also implement IPercentileStatistic. Double values always get plain descriptive stats.
+     * The default ignores withHistogram and calls attachDescriptiveStats().
+     * @param withHistogram whether to keep a histogram of the samples for percentile queries
+     */
+    default void attachDescriptiveStats(boolean withHistogram) {
+        attachDescriptiveStats();
+    }
+
+    /**
+     * Attaches rolling windows to the value, replacing any existing ones. Every sample that goes to the descriptive
+     * stats (whether those are attached or not) also goes to the windows, so that each window describes just the
+     * samples of its last N milliseconds.
+     * If unsupported, as by default, nothing is attached and getRollingWindows() returns null.
+     * @param windowMillis the lengths of the windows. If none are given, 1, 5 and 15 minute windows are attached.
+     */
+    default void attachRollingWindows(long... windowMillis) {
+    }
+
+    /**
+     * @return the rolling windows attached to the value (shortest first, unmodifiable), or null if there are none
+     */
+    default List<RollingWindowAccumulator> getRollingWindows() {
+        return null;
+    }
+
+    /**
+     * Attaches a rate meter to the value, replacing any existing one. Every increment marks the meter with its value,
+     * and every sample of a timing stat marks it with 1, so the meter reports how fast a counter grows or how many
+     * timings happen per second.
+     * If unsupported, as by default, nothing is attached and getRateMeter() returns null.
+     */
+    default void attachRateMeter() {
+    }
+
+    /**
+     * @return the rate meter attached to the value, or null if there is none
+     */
+    default DecayingRateMeter getRateMeter() {
+        return null;
+    }
+
 }
@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.util.monitoring.stats;
+
+import java.io.IOException;
+
+/**
+ * Writes all the stats of an IStatsService, with their descriptive stats, to a target in some exposition format.
+ * Exporters are meant to be kept and reused for every scrape. Once an exporter has seen the stats of a service it
+ * does not allocate again (until new stats are added to the service), so scraping often does not create garbage.
+ * Exporters are not thread safe: use one per exporting thread.
+ * @param <T> the type of target written to (e.g. an Appendable or a ByteBuffer)
+ */
+public interface IStatsExporter<T> {
+    /**
+     * Writes the current stats of the service to the target
+     * @param stats the stats service
+     * @param target where to write the stats
+     * @throws IOException if the target cannot be written to
+     */
+    void export(IStatsService stats, T target) throws IOException;
+}
@@ -20,11 +20,14 @@ package com.moscona.util.monitoring.stats;
 import com.moscona.exceptions.InvalidStateException;
 
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created: Mar 30, 2010 4:08:05 PM
  * By: Arnon Moscona
  * A service that helps with collecting and reporting on statistics, counters, and timing measurements
+ * The methods added since the first release have default implementations, so that existing implementations keep
+ * working. The defaults fall back on the name based methods, and leave out what those cannot express.
  */
 public interface IStatsService {
     /**
@@ -166,5 +169,134 @@ public interface IStatsService {
      */
     public IStatValue getStat(String name);
 
+    /**
+     * Returns a counter handle bound to the named stat. Keep the handle around and use it instead of incStat(name) on
+     * hot paths: incrementing through a handle does not hash the name or look it up, and does not allocate.
+     * The stat itself is created on the first increment (if it does not exist by then), so obtaining a handle has no
+     * visible effect on the service. Handles remain valid if the service is turned off and on again.
+     * The default returns a handle that calls incStat(name, value), so it is no faster than incStat().
+     *
+     * @param name the name of the stat
+     * @return a handle that increments the stat
+     */
+    public default IStatCounter counter(String name) {
+        return new FallbackStatHandles.Counter(name, this);
+    }
+
+    /**
+     * Returns a gauge handle bound to the named stat. Setting the gauge is equivalent to setStat(name, value) but
+     * without the lookup. The stat is created on the first set (if it does not exist by then).
+     * The default returns a handle that calls setStat(name, value).
+     *
+     * @param name the name of the stat
+     * @return a handle that sets the stat
+     */
+    public default IStatGauge gauge(String name) {
+        return new FallbackStatHandles.Gauge(name, this);
+    }
+
+    /**
+     * Returns a timer handle bound to the named timing stat. Recording a sample is equivalent to
+     * addTimingSampleFor(name, millis) but without the lookup. The stat is created on the first sample (if it does
+     * not exist by then), in milliseconds. Timings taken with start()/stop() are rounded up to whole milliseconds;
+     * use timer(name, TimeUnit.NANOSECONDS) for sub millisecond work.
+     * The default returns a handle that calls addTimingSampleFor(name, millis), with samples capped at integer
+     * capacity.
+     *
+     * @param name the name of the timing stat
+     * @return a handle that adds timing samples to the stat
+     */
+    public default IStatTimer timer(String name) {
+        return new FallbackStatHandles.Timer(name, this);
+    }
+
+    /**
+     * Like timer(name), but if the stat does not exist by the time the first sample is recorded it is created with
+     * the given resolution rather than in milliseconds. Use TimeUnit.NANOSECONDS to keep the full precision of
+     * IStatTimer.start()/stop(). Timers are not limited to integer capacity as addTimingSampleFor() is.
+     * Unlike startTimerFor()/stopTimerFor(), which keep a single running StopWatch per name, timings taken with
+     * start()/stop() on the handle may overlap freely across threads.
+     * The default ignores the resolution and returns timer(name), which keeps timings in milliseconds.
+     *
+     * @param name the name of the timing stat
+     * @param resolution the unit to keep timings in if the stat is created by this handle
+     * @return a handle that adds timing samples to the stat
+     */
+    public default IStatTimer timer(String name, TimeUnit resolution) {
+        return timer(name);
+    }
+
+    /**
+     * Selects rolling window statistics for a stat: in addition to whatever it accumulates over its lifetime, the stat
+     * keeps descriptive stats over just the last N milliseconds of samples, for each of the given window lengths.
+     * The selection is remembered by name, so it applies to the stat whether it exists already or is created (or
+     * re-initialized) later. Windows slide lazily as samples arrive, so they add very little to the recording path.
+     * Reported by print(), and available through IStatValue.getRollingWindows().
+     * The default attaches the windows to the stat if it exists already, through IStatValue.attachRollingWindows(),
+     * and is not remembered for stats created later.
+     *
+     * @param name the name of the stat
+     * @param windowMillis the lengths of the windows. If none are given, 1, 5 and 15 minute windows are used.
+     */
+    public default void attachRollingWindows(String name, long... windowMillis) {
+        IStatValue value = getStat(name);
+        if (value != null) {
+            value.attachRollingWindows(windowMillis);
+        }
+    }
+
+    /**
+     * Selects a rate meter for a stat: exponentially decaying 1, 5 and 15 minute rates of how fast a counter grows,
+     * or of how many samples a timing stat gets per second.
+     * As with attachRollingWindows(), the selection is remembered by name.
+     * Reported by print(), and available through IStatValue.getRateMeter().
+     * The default attaches the meter to the stat if it exists already, through IStatValue.attachRateMeter(),
+     * and is not remembered for stats created later.
+     *
+     * @param name the name of the stat
+     */
+    public default void attachRateMeter(String name) {
+        IStatValue value = getStat(name);
+        if (value != null) {
+            value.attachRateMeter();
+        }
+    }
+
     Set<String> getStatNames();
+
+    /**
+     * == snapshot(false)
+     *
+     * @return a snapshot of all the stats
+     */
+    public default StatsSnapshot snapshot() {
+        return snapshot(false);
+    }
+
+    /**
+     * Takes an immutable copy of all the stats. Each stat is copied atomically, holding up writers to that stat only
+     * for the duration of the copy, so a snapshot can be taken at any time without stopping the application.
+     * When resetDeltas is true the snapshot closes an interval: counters (stats that were only ever incremented) are
+     * zeroed and the descriptive stats of all stats are cleared as they are copied, so the next resetting snapshot
+     * reports only what happened since this one. Increments that race with the reset are counted in one of the two
+     * intervals. Gauges (stats that were ever set) and timing stats keep their last value. Rolling windows and rate
+     * meters are not affected.
+     * The default copies each stat through getStat() and never resets anything, so its snapshots are never reset
+     * (see StatsSnapshot.isReset()) and start and end at the time they are taken.
+     *
+     * @param resetDeltas whether to reset the stats after copying them
+     * @return a snapshot of all the stats
+     */
+    public default StatsSnapshot snapshot(boolean resetDeltas) {
+        long now = System.currentTimeMillis();
+        Set<String> names = getStatNames();
+        StatsSnapshot.Builder builder = new StatsSnapshot.Builder(now, now, false, names.size());
+        for (String name : names) {
+            IStatValue value = getStat(name);
+            if (value != null) {
+                builder.add(name, value, false);
+            }
+        }
+        return builder.build();
+    }
 }
@@ -27,7 +27,7 @@ import java.text.DecimalFormat;
  * A class for efficient collection of numeric samples made of longs or ints
  * Note: a virtual copy of DoubleSampleAccumulator, except that generics cannot be used effectively here.
  */
-public class LongSampleAccumulator implements ISimpleDescriptiveStatistic, Cloneable {
+public class LongSampleAccumulator implements ILongSampleAccumulator, Cloneable {
     private long count;
     private long sum;
     private long sumSquares;
@@ -51,6 +51,7 @@ public class LongSampleAccumulator implements ISimpleDescriptiveStatistic, Clone
         last = 0;
     }
 
+    @Override
     public void addSample(long n) {
         count++;
         sum += n;
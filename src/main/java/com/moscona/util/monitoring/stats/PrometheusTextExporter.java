@@ -0,0 +1,284 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.util.monitoring.stats;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exports stats in the Prometheus text exposition format (version 0.0.4).
+ * Stat names are turned into metric names by replacing every character that is not allowed in a metric name with an
+ * underscore (and adding an optional prefix). Names that end up the same get a numeric suffix (see disambiguate()).
+ * Timing stats get a "_seconds" suffix and are converted to seconds.
+ * For a stat named "fetch time" with a histogram attached this writes:
+ * <pre>
+ * # HELP fetch_time_seconds stat fetch time
+ * # TYPE fetch_time_seconds gauge
+ * fetch_time_seconds 0.012
+ * # TYPE fetch_time_seconds_stats summary
+ * fetch_time_seconds_stats{quantile="0.5"} 0.011
+ * fetch_time_seconds_stats{quantile="0.99"} 0.02
+ * fetch_time_seconds_stats{quantile="0.999"} 0.025
+ * fetch_time_seconds_stats_sum 1.2
+ * fetch_time_seconds_stats_count 100
+ * # TYPE fetch_time_seconds_stats_min gauge
+ * fetch_time_seconds_stats_min 0.005
+ * # TYPE fetch_time_seconds_stats_max gauge
+ * fetch_time_seconds_stats_max 0.025
+ * </pre>
+ * Stats without descriptive stats get just the first three lines, and stats with a rate meter also get a
+ * "_rate" gauge with a window label per moving average.
+ * Numbers are written digit by digit from a scratch buffer (doubles with up to 9 decimal places), and the per stat
+ * strings are prepared when the stat is first seen, so exporting into a reused StringBuilder or Writer is garbage
+ * free.
+ */
+public class PrometheusTextExporter extends StatsExporterBase<Appendable> {
+    private static final int FRACTION_DIGITS = 9;
+    private static final long FRACTION_SCALE = 1000000000L;
+    // the suffixes of the metric families and samples exportStat() may write for a metric, including the metric itself
+    private static final String[] DERIVED_SUFFIXES = {"", "_stats", "_stats_sum", "_stats_count", "_stats_min",
+            "_stats_max", "_rate"};
+
+    private final String prefix;
+    private final char[] digits = new char[24];
+    private String[] metricNames = new String[0];
+    private String[] headers = new String[0];
+
+    public PrometheusTextExporter() {
+        this("");
+    }
+
+    /**
+     * @param prefix a prefix for all metric names (e.g. "myapp_"). Sanitized like the stat names.
+     */
+    public PrometheusTextExporter(String prefix) {
+        this.prefix = prefix == null ? "" : prefix;
+    }
+
+    @Override
+    protected void namesChanged(IStatsService stats, String[] names) {
+        metricNames = new String[names.length];
+        headers = new String[names.length];
+        HashSet<String> taken = new HashSet<String>();
+        for (int i = 0; i < names.length; i++) {
+            IStatValue value = stats.getStat(names[i]);
+            String metricName = sanitize(prefix + names[i]);
+            if (value != null && value.isTiming()) {
+                metricName += "_seconds";
+            }
+            metricName = disambiguate(metricName, taken);
+            metricNames[i] = metricName;
+            headers[i] = "# HELP " + metricName + " stat " + escapeHelp(names[i]) + "\n# TYPE " + metricName + " gauge\n";
+        }
+    }
+
+    /**
+     * Distinct stat names may sanitize to the same metric name (e.g. "a b" and "a_b"), or to one of the names derived
+     * from another metric (e.g. "a stats" and the summary of "a"), and Prometheus rejects duplicate metric families.
+     * Such a name gets a numeric suffix ("a_b_2") that makes all of its names unique.
+     * @param metricName the sanitized metric name
+     * @param taken the names (with their derived names) used by the stats before this one. Updated.
+     * @return the metric name to use
+     */
+    static String disambiguate(String metricName, Set<String> taken) {
+        String candidate = metricName;
+        for (int n = 2; isTaken(candidate, taken); n++) {
+            candidate = metricName + "_" + n;
+        }
+        for (String suffix : DERIVED_SUFFIXES) {
+            taken.add(candidate + suffix);
+        }
+        return candidate;
+    }
+
+    private static boolean isTaken(String metricName, Set<String> taken) {
+        for (String suffix : DERIVED_SUFFIXES) {
+            if (taken.contains(metricName + suffix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param name any string
+     * @return a valid Prometheus metric name: [a-zA-Z_:][a-zA-Z0-9_:]*
+     */
+    static String sanitize(String name) {
+        StringBuilder retval = new StringBuilder(name.length() + 1);
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c == ':' || (c >= '0' && c <= '9');
+            retval.append(valid ? c : '_');
+        }
+        if (retval.length() == 0 || (retval.charAt(0) >= '0' && retval.charAt(0) <= '9')) {
+            retval.insert(0, '_');
+        }
+        return retval.toString();
+    }
+
+    private static String escapeHelp(String text) {
+        return text.replace("\\", "\\\\").replace("\n", "\\n");
+    }
+
+    @Override
+    protected void begin(Appendable target, int statCount) {
+        // nothing to do
+    }
+
+    @Override
+    protected void end(Appendable target) {
+        // nothing to do
+    }
+
+    @Override
+    protected void exportStat(Appendable out, int index, String name, IStatValue value) throws IOException {
+        String metricName = metricNames[index];
+        TimeUnit timeUnit = value.getTimeUnit();
+        double scale = timeUnit == null ? 1.0 : StatTimeUnits.convert(1.0, timeUnit, TimeUnit.SECONDS);
+
+        out.append(headers[index]);
+        out.append(metricName).append(' ');
+        if (value.getType() == Double.class || timeUnit != null) {
+            appendDouble(out, value.getDouble() * scale);
+        }
+        else {
+            appendLong(out, value.getLong());
+        }
+        out.append('\n');
+
+        if (readDescriptiveStats(value)) {
+            out.append("# TYPE ").append(metricName).append("_stats summary\n");
+            if (desc.hasPercentiles) {
+                appendQuantile(out, metricName, "0.5", desc.p50 * scale);
+                appendQuantile(out, metricName, "0.99", desc.p99 * scale);
+                appendQuantile(out, metricName, "0.999", desc.p999 * scale);
+            }
+            out.append(metricName).append("_stats_sum ");
+            appendDouble(out, desc.sum * scale);
+            out.append('\n').append(metricName).append("_stats_count ");
+            appendLong(out, desc.count);
+            out.append("\n# TYPE ").append(metricName).append("_stats_min gauge\n").append(metricName).append("_stats_min ");
+            appendDouble(out, desc.min * scale);
+            out.append("\n# TYPE ").append(metricName).append("_stats_max gauge\n").append(metricName).append("_stats_max ");
+            appendDouble(out, desc.max * scale);
+            out.append('\n');
+        }
+
+        DecayingRateMeter rateMeter = value.getRateMeter();
+        if (rateMeter != null) {
+            out.append("# TYPE ").append(metricName).append("_rate gauge\n");
+            appendRate(out, metricName, "1m", rateMeter.getOneMinuteRate());
+            appendRate(out, metricName, "5m", rateMeter.getFiveMinuteRate());
+            appendRate(out, metricName, "15m", rateMeter.getFifteenMinuteRate());
+        }
+    }
+
+    private void appendQuantile(Appendable out, String metricName, String quantile, double value) throws IOException {
+        out.append(metricName).append("_stats{quantile=\"").append(quantile).append("\"} ");
+        appendDouble(out, value);
+        out.append('\n');
+    }
+
+    private void appendRate(Appendable out, String metricName, String window, double value) throws IOException {
+        out.append(metricName).append("_rate{window=\"").append(window).append("\"} ");
+        appendDouble(out, value);
+        out.append('\n');
+    }
+
+    /**
+     * Writes a long without creating a String
+     */
+    private void appendLong(Appendable out, long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            out.append("-9223372036854775808");
+            return;
+        }
+        int pos = digits.length;
+        long v = Math.abs(value);
+        do {
+            digits[--pos] = (char) ('0' + v % 10);
+            v /= 10;
+        } while (v != 0);
+        if (value < 0) {
+            digits[--pos] = '-';
+        }
+        for (int i = pos; i < digits.length; i++) {
+            out.append(digits[i]);
+        }
+    }
+
+    /**
+     * Writes a double without creating a String: whole numbers as integers, others in fixed point with up to 9
+     * decimal places, and very large or very small numbers in scientific notation.
+     */
+    private void appendDouble(Appendable out, double value) throws IOException {
+        if (Double.isNaN(value)) {
+            out.append("NaN");
+            return;
+        }
+        if (Double.isInfinite(value)) {
+            out.append(value > 0 ? "+Inf" : "-Inf");
+            return;
+        }
+        double abs = Math.abs(value);
+        if (abs >= 1e15 || (abs < 1e-6 && abs != 0.0)) {
+            int exponent = (int) Math.floor(Math.log10(abs));
+            double mantissa = value / Math.pow(10.0, exponent);
+            if (Math.abs(mantissa) >= 10.0) { // rounding in log10()
+                mantissa /= 10.0;
+                exponent++;
+            }
+            appendFixed(out, mantissa);
+            out.append('e');
+            appendLong(out, exponent);
+            return;
+        }
+        appendFixed(out, value);
+    }
+
+    private void appendFixed(Appendable out, double value) throws IOException {
+        double abs = Math.abs(value);
+        long whole = (long) abs;
+        long fraction = Math.round((abs - whole) * FRACTION_SCALE);
+        if (fraction >= FRACTION_SCALE) {
+            whole++;
+            fraction -= FRACTION_SCALE;
+        }
+        if (value < 0 && (whole != 0 || fraction != 0)) {
+            out.append('-');
+        }
+        appendLong(out, whole);
+        if (fraction != 0) {
+            int pos = digits.length;
+            for (int i = 0; i < FRACTION_DIGITS; i++) {
+                digits[--pos] = (char) ('0' + fraction % 10);
+                fraction /= 10;
+            }
+            int last = digits.length - 1;
+            while (digits[last] == '0') {
+                last--;
+            }
+            out.append('.');
+            for (int i = pos; i <= last; i++) {
+                out.append(digits[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.util.monitoring.stats;
+
+import com.moscona.util.ISimpleDescriptiveStatistic;
+
+import java.text.DecimalFormat;
+import java.util.function.LongSupplier;
+
+/**
+ * Descriptive statistics over the samples of the last N milliseconds only, so that a long running process reports
+ * what is happening now rather than a lifetime average.
+ * The window is a ring of time buckets, each summarizing the samples that fell in its time slice. Buckets are never
+ * rotated by a timer: when a sample lands on a bucket that still holds an older time slice the bucket is cleared
+ * first, and queries simply skip buckets that are too old. Recording is therefore a clock read, a division and a few
+ * array updates, and never allocates.
+ * The window slides in whole buckets, so the samples covered are those of the last windowMillis, give or take one
+ * bucket.
+ * Not thread safe.
+ */
+public class RollingWindowAccumulator implements ISimpleDescriptiveStatistic {
+    public static final int DEFAULT_BUCKET_COUNT = 60;
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private final long windowMillis;
+    private final long bucketMillis;
+    private final int bucketCount;
+    private final LongSupplier clock;
+    private final long[] slices; // the time slice (now / bucketMillis) each bucket currently holds, or EMPTY
+    private final long[] counts;
+    private final double[] sums;
+    private final double[] sumSquares;
+    private final double[] mins;
+    private final double[] maxs;
+    private final double[] firsts;
+    private final double[] lasts;
+
+    /**
+     * A window of DEFAULT_BUCKET_COUNT buckets measured with System.nanoTime()
+     * @param windowMillis the length of the window
+     */
+    public RollingWindowAccumulator(long windowMillis) {
+        this(windowMillis, DEFAULT_BUCKET_COUNT, RollingWindowAccumulator::monotonicMillis);
+    }
+
+    /**
+     * @param windowMillis the length of the window
+     * @param bucketCount the number of buckets to divide the window into. More buckets make the window slide more
+     *                    smoothly and queries slower. If the window is not a multiple of it, the buckets are rounded
+     *                    up to whole milliseconds and fewer of them are used (see getBucketCount()), so that they
+     *                    still span the window.
+     * @param clock a monotonic clock, in milliseconds
+     */
+    public RollingWindowAccumulator(long windowMillis, int bucketCount, LongSupplier clock) {
+        if (bucketCount < 1 || windowMillis < bucketCount) {
+            throw new IllegalArgumentException("A window needs at least one bucket of at least one millisecond. Got " +
+                    bucketCount + " buckets for " + windowMillis + " msec");
+        }
+        this.windowMillis = windowMillis;
+        this.clock = clock;
+        bucketMillis = (windowMillis + bucketCount - 1) / bucketCount;
+        this.bucketCount = (int) ((windowMillis + bucketMillis - 1) / bucketMillis);
+        slices = new long[this.bucketCount];
+        counts = new long[this.bucketCount];
+        sums = new double[this.bucketCount];
+        sumSquares = new double[this.bucketCount];
+        mins = new double[this.bucketCount];
+        maxs = new double[this.bucketCount];
+        firsts = new double[this.bucketCount];
+        lasts = new double[this.bucketCount];
+        clear();
+    }
+
+    static long monotonicMillis() {
+        return System.nanoTime() / 1000000L;
+    }
+
+    /**
+     * @return the current time according to the clock of this window
+     */
+    public long now() {
+        return clock.getAsLong();
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0; i < bucketCount; i++) {
+            slices[i] = EMPTY;
+        }
+    }
+
+    public void addSample(double n) {
+        addSample(n, clock.getAsLong());
+    }
+
+    /**
+     * Adds a sample, using a time that the caller already has at hand (e.g. shared between several windows)
+     * @param n the sample
+     * @param nowMillis the current time, from the same clock as now()
+     */
+    public void addSample(double n, long nowMillis) {
+        long slice = Math.floorDiv(nowMillis, bucketMillis);
+        int i = (int) Math.floorMod(slice, (long) bucketCount);
+        if (slices[i] != slice) {
+            // lazy rotation: the bucket holds an older slice, which has already dropped out of the window
+            slices[i] = slice;
+            counts[i] = 0;
+            sums[i] = 0.0;
+            sumSquares[i] = 0.0;
+            mins[i] = n;
+            maxs[i] = n;
+            firsts[i] = n;
+        }
+        counts[i]++;
+        sums[i] += n;
+        sumSquares[i] += n * n;
+        if (n < mins[i]) {
+            mins[i] = n;
+        }
+        if (n > maxs[i]) {
+            maxs[i] = n;
+        }
+        lasts[i] = n;
+    }
+
+    /**
+     * @param i a bucket index
+     * @param currentSlice the current time slice
+     * @return true if the bucket holds samples that are still in the window
+     */
+    private boolean isLive(int i, long currentSlice) {
+        return slices[i] != EMPTY && slices[i] > currentSlice - bucketCount && slices[i] <= currentSlice;
+    }
+
+    private long currentSlice() {
+        return Math.floorDiv(clock.getAsLong(), bucketMillis);
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    /**
+     * @return the number of buckets actually used, which is less than the number asked for if the window is not a
+     * multiple of it
+     */
+    public int getBucketCount() {
+        return bucketCount;
+    }
+
+    @Override
+    public long count() {
+        long current = currentSlice();
+        long retval = 0;
+        for (int i = 0; i < bucketCount; i++) {
+            if (isLive(i, current)) {
+                retval += counts[i];
+            }
+        }
+        return retval;
+    }
+
+    @Override
+    public double sum() {
+        long current = currentSlice();
+        double retval = 0.0;
+        for (int i = 0; i < bucketCount; i++) {
+            if (isLive(i, current)) {
+                retval += sums[i];
+            }
+        }
+        return retval;
+    }
+
+    @Override
+    public double sumSquares() {
+        long current = currentSlice();
+        double retval = 0.0;
+        for (int i = 0; i < bucketCount; i++) {
+            if (isLive(i, current)) {
+                retval += sumSquares[i];
+            }
+        }
+        return retval;
+    }
+
+    @Override
+    public double max() {
+        long current = currentSlice();
+        boolean found = false;
+        double retval = 0.0; // a spec
+        for (int i = 0; i < bucketCount; i++) {
+            if (isLive(i, current) && (!found || maxs[i] > retval)) {
+                retval = maxs[i];
+                found = true;
+            }
+        }
+        return retval;
+    }
+
+    @Override
+    public double min() {
+        long current = currentSlice();
+        boolean found = false;
+        double retval = 0.0; // a spec
+        for (int i = 0; i < bucketCount; i++) {
+            if (isLive(i, current) && (!found || mins[i] < retval)) {
+                retval = mins[i];
+                found = true;
+            }
+        }
+        return retval;
+    }
+
+    @Override
+    public double first() {
+        int oldest = findBucket(true);
+        return oldest < 0 ? 0.0 : firsts[oldest];
+    }
+
+    @Override
+    public double last() {
+        int newest = findBucket(false);
+        return newest < 0 ? 0.0 : lasts[newest];
+    }
+
+    /**
+     * @param oldest whether to look for the oldest or the newest live bucket
+     * @return the index of the bucket or -1 if the window is empty
+     */
+    private int findBucket(boolean oldest) {
+        long current = currentSlice();
+        int retval = -1;
+        for (int i = 0; i < bucketCount; i++) {
+            if (isLive(i, current) && (retval < 0 || (oldest ? slices[i] < slices[retval] : slices[i] > slices[retval]))) {
+                retval = i;
+            }
+        }
+        return retval;
+    }
+
+    @Override
+    public double mean() {
+        long count = count();
+        return (count==0)?0.0:sum()/count;
+    }
+
+    @Override
+    public double average() {
+        return mean();
+    }
+
+    @Override
+    public double stdev() {
+        return Math.sqrt(variance());
+    }
+
+    public double variance() {
+        long count = count();
+        if (count == 0) {
+            return 0.0;
+        }
+        double mean = sum() / count;
+        return Math.max(0.0, sumSquares() / count - mean * mean);
+    }
+
+    @Override
+    public double get(STATISTIC stat) {
+        switch(stat) {
+            case COUNT:
+                return count();
+            case SUM:
+                return sum();
+            case SUM_SQUARES:
+                return sumSquares();
+            case MAX:
+                return max();
+            case MIN:
+                return min();
+            case MEAN:
+                return average();
+            case STDEV:
+                return stdev();
+            case VARIANCE:
+                return variance();
+            default:
+                return 0.0;
+        }
+    }
+
+    public String toString() {
+        return getClass().getName()+"(window:"+windowMillis+" msec , count:"+count()+" , mean:"+mean()+" , min:"+min()+" , max:"+max()+" , sum:"+sum()+" , stdev:"+stdev()+")";
+    }
+
+    @Override
+    public String toString(DecimalFormat format) {
+        return "(count:" + format.format(count()) + " , mean:" + format.format(mean()) + " , min:" + format.format(min()) + " , max:" + format.format(max()) + " , sum:" + format.format(sum()) + " , stdev:" + format.format(stdev()) + ")";
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.util.monitoring.stats;
+
+import java.text.DecimalFormat;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Helpers shared by the stat values and services for rolling windows and rate meters.
+ */
+final class RollingWindows {
+    static final long[] DEFAULT_WINDOWS = {60000L, 300000L, 900000L};
+
+    private RollingWindows() {
+        // static helpers only
+    }
+
+    /**
+     * @param windowMillis the lengths of the windows, or none for the defaults (1, 5 and 15 minutes)
+     * @return new windows, shortest first
+     */
+    static RollingWindowAccumulator[] create(long... windowMillis) {
+        long[] lengths = (windowMillis == null || windowMillis.length == 0) ? DEFAULT_WINDOWS : windowMillis.clone();
+        Arrays.sort(lengths);
+        RollingWindowAccumulator[] retval = new RollingWindowAccumulator[lengths.length];
+        for (int i = 0; i < lengths.length; i++) {
+            retval[i] = new RollingWindowAccumulator(lengths[i]);
+        }
+        return retval;
+    }
+
+    static List<RollingWindowAccumulator> asList(RollingWindowAccumulator[] windows) {
+        return Collections.unmodifiableList(Arrays.asList(windows));
+    }
+
+    /**
+     * @param millis a window length
+     * @return a short label for it, e.g. "5m" or "30s"
+     */
+    static String label(long millis) {
+        if (millis % 3600000L == 0) {
+            return millis / 3600000L + "h";
+        }
+        if (millis % 60000L == 0) {
+            return millis / 60000L + "m";
+        }
+        if (millis % 1000L == 0) {
+            return millis / 1000L + "s";
+        }
+        return millis + "ms";
+    }
+
+    /**
+     * Formats the windows and rate meter of a stat, one per line, for SimpleStatsService.print() and the like.
+     * @param value the stat
+     * @param indent what to start each line with
+     * @return the lines (each ending with a line separator) or an empty string if the stat has neither
+     */
+    static String format(IStatValue value, String indent) {
+        List<RollingWindowAccumulator> windows = value.getRollingWindows();
+        DecayingRateMeter rateMeter = value.getRateMeter();
+        if (windows == null && rateMeter == null) {
+            return "";
+        }
+        DecimalFormat format = StatFormats.decimal();
+        StringBuilder retval = new StringBuilder();
+        if (windows != null) {
+            for (RollingWindowAccumulator window : windows) {
+                String stats;
+                synchronized (window) {
+                    stats = window.toString(format);
+                }
+                retval.append(indent).append("last ").append(label(window.getWindowMillis())).append(": ")
+                        .append(stats).append(System.lineSeparator());
+            }
+        }
+        if (rateMeter != null) {
+            retval.append(indent).append("rate: ").append(rateMeter.toString(format)).append(System.lineSeparator());
+        }
+        return retval.toString();
+    }
+}
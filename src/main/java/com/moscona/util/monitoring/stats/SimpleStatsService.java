@@ -23,8 +23,10 @@ import org.apache.commons.lang3.time.StopWatch;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created: Apr 1, 2010 1:56:48 PM
@@ -35,11 +37,44 @@ public class SimpleStatsService implements IStatsService {
     private boolean isOn;
     private ConcurrentHashMap<String, IStatValue> stats;
     private ConcurrentHashMap<String, StopWatch> timers;
+    private volatile int structureVersion;
+    private final StatHandle.Resolver handleResolver;
+    private final StatOptions options;
+    private volatile long intervalStartMillis;
 
     public SimpleStatsService() {
         isOn = true;
         stats = new ConcurrentHashMap<String, IStatValue>();
         timers = new ConcurrentHashMap<String, StopWatch>();
+        structureVersion = 0;
+        options = new StatOptions();
+        intervalStartMillis = System.currentTimeMillis();
+        handleResolver = new StatHandle.Resolver() {
+            @Override
+            public boolean isOn() {
+                return isOn;
+            }
+
+            @Override
+            public int getStructureVersion() {
+                return structureVersion;
+            }
+
+            @Override
+            public IStatValue resolve(String name, boolean isDouble) {
+                return getOrCreate(name, isDouble);
+            }
+
+            @Override
+            public IStatValue resolveTiming(String name, TimeUnit timeUnit) {
+                IStatValue statValue = stats.get(name);
+                if (statValue == null) {
+                    statValue = options.applyTo(name, StatValue.newTiming(timeUnit));
+                    stats.put(name, statValue);
+                }
+                return statValue;
+            }
+        };
     }
 
     @Override
@@ -66,18 +101,25 @@ public class SimpleStatsService implements IStatsService {
     @Override
     public void setStat(String name, long value) {
         if (isOn) {
-            IStatValue statValue = stats.get(name);
-            if(statValue == null) {
-                statValue = new StatValue(value);
-                stats.put(name, statValue);
-            } else {
-                statValue.set(value);
-            }
-            LongSampleAccumulator desc = (LongSampleAccumulator)statValue.getDescriptiveStatistics();
-            if (desc != null) {
-                desc.addSample(value);
-            }
+            IStatValue statValue = getOrCreate(name, false);
+            statValue.set(value);
+            statValue.accumulate(value);
+        }
+    }
+
+    /**
+     * Looks up a stat, creating it with a zero value of the given type if it does not exist.
+     * @param name the name of the stat
+     * @param isDouble the type of the stat if it needs to be created
+     * @return the stat value
+     */
+    private IStatValue getOrCreate(String name, boolean isDouble) {
+        IStatValue statValue = stats.get(name);
+        if (statValue == null) {
+            statValue = options.applyTo(name, isDouble ? new StatValue(0.0) : new StatValue(0L));
+            stats.put(name, statValue);
         }
+        return statValue;
     }
 
     /**
@@ -89,19 +131,9 @@ public class SimpleStatsService implements IStatsService {
     @Override
     public void incStat(String name, long value) {
         if (isOn) {
-            IStatValue statValue = null;
-            if (stats.containsKey(name)) {
-                statValue = stats.get(name);
-                statValue.inc(value);
-            } else {
-                stats.put(name, new StatValue(value));
-                statValue = stats.get(name);
-            }
-
-            LongSampleAccumulator desc = (LongSampleAccumulator)statValue.getDescriptiveStatistics();
-            if (desc != null) {
-                desc.addSample(value);
-            }
+            IStatValue statValue = getOrCreate(name, false);
+            statValue.inc(value);
+            statValue.accumulate(value);
         }
     }
 
@@ -135,13 +167,10 @@ public class SimpleStatsService implements IStatsService {
     @Override
     public void initStatWithDescriptiveStats(String name, long value) {
         if (isOn) {
-            if (stats.containsKey(name)) {
-                // wipe it out
-                stats.remove(name);
-            }
-            stats.put(name, new StatValue(value));
-            IStatValue statValue = stats.get(name);
+            IStatValue statValue = options.applyTo(name, new StatValue(value));
             statValue.attachDescriptiveStats();
+            stats.put(name, statValue); // wipes out the old value
+            structureVersion++; // handles bound to the old value must re-resolve
         }
     }
 
@@ -156,18 +185,16 @@ public class SimpleStatsService implements IStatsService {
     @Override
     public void initStatWithDescriptiveStats(String name, double value) {
         if (isOn) {
-            if (stats.containsKey(name)) {
-                // wipe it out
-                stats.remove(name);
-            }
-            stats.put(name, new StatValue(value));
-            IStatValue statValue = stats.get(name);
+            IStatValue statValue = options.applyTo(name, new StatValue(value));
             statValue.attachDescriptiveStats();
+            stats.put(name, statValue); // wipes out the old value
+            structureVersion++; // handles bound to the old value must re-resolve
         }
     }
 
     /**
-     * Sets the value of a named stat. The old value is lost.
+     * Sets the value of a named stat. The old value is lost. As with setStat(String, long), the value is also added as
+     * a sample to the descriptive stats of the stat, if it has them (earlier versions only did so for long values).
      *
      * @param name  the name of the statistic to set
      * @param value new value.
@@ -175,11 +202,9 @@ public class SimpleStatsService implements IStatsService {
     @Override
     public void setStat(String name, double value) {
         if (isOn) {
-            if (stats.containsKey(name)) {
-                stats.get(name).set(value);
-            } else {
-                stats.put(name, new StatValue(value));
-            }
+            IStatValue statValue = getOrCreate(name, true);
+            statValue.set(value);
+            statValue.accumulate(value);
         }
     }
 
@@ -192,19 +217,9 @@ public class SimpleStatsService implements IStatsService {
     @Override
     public void incStat(String name, double value) {
         if (isOn) {
-            IStatValue statValue = null;
-            if (stats.containsKey(name)) {
-                statValue = stats.get(name);
-                statValue.inc(value);
-            } else {
-                stats.put(name, new StatValue(value));
-                statValue = stats.get(name);
-            }
-
-            DoubleSampleAccumulator desc = (DoubleSampleAccumulator)statValue.getDescriptiveStatistics();
-            if (desc != null) {
-                desc.addSample(value);
-            }
+            IStatValue statValue = getOrCreate(name, true);
+            statValue.inc(value);
+            statValue.accumulate(value);
         }
     }
 
@@ -277,12 +292,7 @@ public class SimpleStatsService implements IStatsService {
                 System.err.println("Error with timer " + name + ": "+e+"\n(ignoring)");
                 e.printStackTrace(System.err);  //To change body of catch statement use File | Settings | File Templates.
             }
-            long timing = stopWatch.getTime();
-            addTimingSampleFor(name, timing);
-            LongSampleAccumulator acc = (LongSampleAccumulator) stats.get(name).getDescriptiveStatistics();
-            if (acc.getCount()==0) {
-                acc.addSample(timing);
-            }
+            addTimingSampleFor(name, stopWatch.getTime()); // timing stats always accumulate the sample
         }
     }
 
@@ -321,15 +331,8 @@ public class SimpleStatsService implements IStatsService {
             if (millis > Integer.MAX_VALUE) {
                 throw new InvalidStateException("Timer was left to run too long and is now more than integer capacity");
             }
-            IStatValue iStatValue = stats.get(name);
-            if(iStatValue == null) {
-                IStatValue statValue = new StatValue(millis, true);
-                stats.put(name, statValue);
-                statValue.attachDescriptiveStats();
-//                statValue.getDescriptiveStatistics().clear();
-            } else {
-                iStatValue.setAndAccumulate(millis);
-            }
+            IStatValue statValue = handleResolver.resolveTiming(name, TimeUnit.MILLISECONDS);
+            StatTimeUnits.record(statValue, millis, TimeUnit.MILLISECONDS);
         }
     }
 
@@ -344,11 +347,73 @@ public class SimpleStatsService implements IStatsService {
         return stats.get(name);
     }
 
+    @Override
+    public IStatCounter counter(String name) {
+        return new StatHandle.Counter(name, handleResolver);
+    }
+
+    @Override
+    public IStatGauge gauge(String name) {
+        return new StatHandle.Gauge(name, handleResolver);
+    }
+
+    @Override
+    public IStatTimer timer(String name) {
+        return timer(name, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public IStatTimer timer(String name, TimeUnit resolution) {
+        return new StatHandle.Timer(name, resolution, handleResolver);
+    }
+
+    @Override
+    public void attachRollingWindows(String name, long... windowMillis) {
+        options.addRollingWindows(name, windowMillis);
+        IStatValue statValue = stats.get(name);
+        if (statValue != null) {
+            statValue.attachRollingWindows(windowMillis);
+        }
+    }
+
+    @Override
+    public void attachRateMeter(String name) {
+        options.addRateMeter(name);
+        IStatValue statValue = stats.get(name);
+        if (statValue != null) {
+            statValue.attachRateMeter();
+        }
+    }
+
     @Override
     public Set<String> getStatNames() {
         return stats.keySet();
     }
 
+    @Override
+    public StatsSnapshot snapshot() {
+        return snapshot(false);
+    }
+
+    /**
+     * Takes an immutable copy of all the stats, optionally closing an interval.
+     *
+     * @param resetDeltas whether to reset the stats after copying them
+     * @return a snapshot of all the stats
+     */
+    @Override
+    public StatsSnapshot snapshot(boolean resetDeltas) {
+        long now = System.currentTimeMillis();
+        StatsSnapshot.Builder builder = new StatsSnapshot.Builder(intervalStartMillis, now, resetDeltas, stats.size());
+        for (Map.Entry<String, IStatValue> entry : stats.entrySet()) {
+            builder.add(entry.getKey(), entry.getValue(), resetDeltas);
+        }
+        if (resetDeltas) {
+            intervalStartMillis = now;
+        }
+        return builder.build();
+    }
+
     @SuppressWarnings({"UseOfSystemOutOrSystemErr"})
     public void print() {
         System.out.println("\nStats:");
@@ -356,7 +421,9 @@ public class SimpleStatsService implements IStatsService {
         ArrayList<String> names = new ArrayList<String>(nameSet);
         Collections.sort(names);
         for (String stat : names) {
-            System.out.println("\t"+stat+": "+getStat(stat).toFormattedString());
+            IStatValue value = getStat(stat);
+            System.out.println("\t"+stat+": "+value.toFormattedString());
+            System.out.print(RollingWindows.format(value, "\t\t"));
         }
     }
 }
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.util.monitoring.stats;
+
+import java.text.DecimalFormat;
+
+/**
+ * The number formats used for human readable stats. DecimalFormat is expensive to create and not thread safe, so
+ * each thread keeps its own pair instead of creating new ones for every value formatted.
+ */
+final class StatFormats {
+    private static final ThreadLocal<DecimalFormat> DECIMAL = ThreadLocal.withInitial(() -> new DecimalFormat("#,##0.###"));
+    private static final ThreadLocal<DecimalFormat> INTEGER = ThreadLocal.withInitial(() -> new DecimalFormat("#,##0"));
+
+    private StatFormats() {
+        // static helpers only
+    }
+
+    /**
+     * @return the calling thread's "#,##0.###" format
+     */
+    static DecimalFormat decimal() {
+        return DECIMAL.get();
+    }
+
+    /**
+     * @return the calling thread's "#,##0" format
+     */
+    static DecimalFormat integer() {
+        return INTEGER.get();
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.util.monitoring.stats;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The common base of the handles returned by IStatsService.counter(), gauge() and timer().
+ * A handle remembers the IStatValue it is bound to, so that the hot path is a volatile read and a call on the value.
+ * The binding is resolved lazily on first use (so that a handle obtained while the service is off does not create
+ * anything) and is dropped whenever the owning service replaces stats wholesale (initStatWithDescriptiveStats), which
+ * it signals by bumping its structure version.
+ */
+abstract class StatHandle {
+    /**
+     * Implemented privately by the stats services that hand out handles.
+     */
+    interface Resolver {
+        boolean isOn();
+
+        /**
+         * @return a number that changes whenever an existing stat may have been replaced by a new value object
+         */
+        int getStructureVersion();
+
+        /**
+         * Finds a stat by name, creating it as an empty (zero) stat if it does not exist yet.
+         * @param name the name of the stat
+         * @param isDouble the type to give the stat if it is created. Ignored if the stat already exists.
+         * @return the value object currently registered under the name
+         */
+        IStatValue resolve(String name, boolean isDouble);
+
+        /**
+         * Finds a timing stat by name, creating it as an empty timing stat if it does not exist yet.
+         * @param name the name of the stat
+         * @param timeUnit the unit to keep the timings in if the stat is created. Ignored if the stat already exists.
+         * @return the value object currently registered under the name
+         */
+        IStatValue resolveTiming(String name, TimeUnit timeUnit);
+    }
+
+    protected final String name;
+    protected final Resolver resolver;
+    private volatile Binding binding;
+
+    /**
+     * The value and the structure version it was resolved at are published together, so that a reader never pairs
+     * a new version with a stale value.
+     */
+    private static final class Binding {
+        private final IStatValue value;
+        private final int version;
+
+        private Binding(IStatValue value, int version) {
+            this.value = value;
+            this.version = version;
+        }
+    }
+
+    protected StatHandle(String name, Resolver resolver) {
+        this.name = name;
+        this.resolver = resolver;
+        binding = null;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the bound value, resolving it if it was never resolved or is out of date.
+     * @param isDouble the type to create the stat with if it does not exist
+     * @return the value or null if the service is off
+     */
+    protected IStatValue value(boolean isDouble) {
+        if (!resolver.isOn()) {
+            return null;
+        }
+        int version = resolver.getStructureVersion();
+        Binding current = binding;
+        if (current == null || current.version != version) {
+            current = new Binding(resolve(isDouble), version);
+            binding = current;
+        }
+        return current.value;
+    }
+
+    protected IStatValue resolve(boolean isDouble) {
+        return resolver.resolve(name, isDouble);
+    }
+
+    public String toString() {
+        return getClass().getSimpleName()+"("+name+")";
+    }
+
+    static class Counter extends StatHandle implements IStatCounter {
+        Counter(String name, Resolver resolver) {
+            super(name, resolver);
+        }
+
+        @Override
+        public void inc() {
+            inc(1L);
+        }
+
+        @Override
+        public void inc(long value) {
+            IStatValue statValue = value(false);
+            if (statValue != null) {
+                statValue.inc(value);
+                statValue.accumulate(value);
+            }
+        }
+    }
+
+    static class Gauge extends StatHandle implements IStatGauge {
+        Gauge(String name, Resolver resolver) {
+            super(name, resolver);
+        }
+
+        @Override
+        public void set(long value) {
+            IStatValue statValue = value(false);
+            if (statValue != null) {
+                statValue.setAndAccumulate(value);
+            }
+        }
+
+        @Override
+        public void set(double value) {
+            IStatValue statValue = value(true);
+            if (statValue != null) {
+                statValue.setAndAccumulate(value);
+            }
+        }
+    }
+
+    static class Timer extends StatHandle implements IStatTimer {
+        private final TimeUnit timeUnit;
+
+        Timer(String name, TimeUnit timeUnit, Resolver resolver) {
+            super(name, resolver);
+            this.timeUnit = timeUnit;
+        }
+
+        @Override
+        protected IStatValue resolve(boolean isDouble) {
+            return resolver.resolveTiming(name, timeUnit);
+        }
+
+        @Override
+        public void record(long duration, TimeUnit unit) {
+            IStatValue statValue = value(false);
+            if (statValue != null) {
+                StatTimeUnits.record(statValue, duration, unit);
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.util.monitoring.stats;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the rolling windows and rate meters requested per stat name (via IStatsService.attachRollingWindows()
+ * and attachRateMeter()), so that they are attached again whenever the service creates or replaces the stat's value.
+ * Only consulted when a value is created, never on the recording path.
+ */
+class StatOptions {
+    private final ConcurrentHashMap<String, long[]> rollingWindows;
+    private final ConcurrentHashMap<String, Boolean> rateMeters;
+
+    StatOptions() {
+        rollingWindows = new ConcurrentHashMap<>();
+        rateMeters = new ConcurrentHashMap<>();
+    }
+
+    void addRollingWindows(String name, long[] windowMillis) {
+        rollingWindows.put(name, windowMillis == null ? new long[0] : windowMillis.clone());
+    }
+
+    void addRateMeter(String name) {
+        rateMeters.put(name, Boolean.TRUE);
+    }
+
+    /**
+     * Attaches whatever was requested for the name to a newly created value
+     * @param name the name of the stat
+     * @param value the new value
+     * @return the value
+     */
+    <T extends IStatValue> T applyTo(String name, T value) {
+        if (!rollingWindows.isEmpty()) {
+            long[] windowMillis = rollingWindows.get(name);
+            if (windowMillis != null) {
+                value.attachRollingWindows(windowMillis);
+            }
+        }
+        if (!rateMeters.isEmpty() && rateMeters.containsKey(name)) {
+            value.attachRateMeter();
+        }
+        return value;
+    }
+}
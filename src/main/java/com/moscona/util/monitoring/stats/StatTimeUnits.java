@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.util.monitoring.stats;
+
+import com.moscona.util.IPercentileStatistic;
+import com.moscona.util.ISimpleDescriptiveStatistic;
+
+import java.text.DecimalFormat;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Helpers for timing stats, which keep their values and samples in a fixed TimeUnit (see IStatValue.getTimeUnit())
+ * but may be reported in any other.
+ */
+public final class StatTimeUnits {
+    private StatTimeUnits() {
+        // static helpers only
+    }
+
+    /**
+     * Converts a duration between time units without the truncation of TimeUnit.convert().
+     * @param duration the duration in the source unit
+     * @param from the source unit
+     * @param to the target unit
+     * @return the duration in the target unit
+     */
+    public static double convert(double duration, TimeUnit from, TimeUnit to) {
+        if (from == to) {
+            return duration;
+        }
+        return duration * ((double) from.toNanos(1L) / (double) to.toNanos(1L));
+    }
+
+    /**
+     * @param unit a time unit
+     * @return a short name for the unit, as used in formatted stats (e.g. "msec")
+     */
+    public static String abbreviation(TimeUnit unit) {
+        switch (unit) {
+            case NANOSECONDS:
+                return "nsec";
+            case MICROSECONDS:
+                return "usec";
+            case MILLISECONDS:
+                return "msec";
+            case SECONDS:
+                return "sec";
+            case MINUTES:
+                return "min";
+            case HOURS:
+                return "hours";
+            default:
+                return "days";
+        }
+    }
+
+    /**
+     * Records a timing sample into a timing stat, converting it to the stat's unit. A duration given in a finer unit
+     * than the stat's is rounded up, so that e.g. sub millisecond work timed with IStatTimer.start()/stop() into a
+     * millisecond stat counts as 1 msec rather than 0.
+     * @param stat a timing stat
+     * @param duration the duration of the sample
+     * @param unit the unit of the duration
+     */
+    static void record(IStatValue stat, long duration, TimeUnit unit) {
+        TimeUnit statUnit = stat.getTimeUnit();
+        stat.setAndAccumulate(statUnit == null || statUnit == unit ? duration : convertRoundingUp(duration, unit, statUnit));
+    }
+
+    static long convertRoundingUp(long duration, TimeUnit from, TimeUnit to) {
+        long converted = to.convert(duration, from);
+        if (duration > 0L && from.compareTo(to) < 0 && from.convert(converted, to) < duration) {
+            converted++;
+        }
+        return converted;
+    }
+
+    /**
+     * The implementation of IStatValue.toFormattedString(TimeUnit)
+     * @param value the current value, in the stat's unit
+     * @param desc the stat's descriptive stats (may be null). The caller takes care of locking it if needed.
+     * @param from the stat's unit
+     * @param to the unit to report in
+     * @return the formatted value and stats
+     */
+    static String format(double value, ISimpleDescriptiveStatistic desc, TimeUnit from, TimeUnit to) {
+        DecimalFormat format = StatFormats.decimal();
+        String retval = format.format(convert(value, from, to)) + " " + abbreviation(to);
+        if (desc != null && desc.count() > 0) {
+            retval += "  ((count:" + format.format(desc.count()) +
+                    " , mean:" + format.format(convert(desc.mean(), from, to)) +
+                    " , min:" + format.format(convert(desc.min(), from, to)) +
+                    " , max:" + format.format(convert(desc.max(), from, to)) +
+                    " , sum:" + format.format(convert(desc.sum(), from, to)) +
+                    " , stdev:" + format.format(convert(desc.stdev(), from, to));
+            if (desc instanceof IPercentileStatistic) {
+                IPercentileStatistic percentiles = (IPercentileStatistic) desc;
+                retval += " , p50:" + format.format(convert(percentiles.percentile(50.0), from, to)) +
+                        " , p99:" + format.format(convert(percentiles.percentile(99.0), from, to)) +
+                        " , p99.9:" + format.format(convert(percentiles.percentile(99.9), from, to));
+            }
+            retval += "))";
+        }
+        return retval;
+    }
+}
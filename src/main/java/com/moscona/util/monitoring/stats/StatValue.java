@@ -20,6 +20,8 @@ package com.moscona.util.monitoring.stats;
 import com.moscona.util.ISimpleDescriptiveStatistic;
 
 import java.text.DecimalFormat;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created: Apr 1, 2010 3:53:29 PM
@@ -36,8 +38,13 @@ public class StatValue implements IStatValue {
     private long longValue;
     private double doubleValue;
     private boolean isTiming;
-    private LongSampleAccumulator longStats;
+    private boolean isGauge = false; // set rather than incremented, so not reset by resetting snapshots
+    private TimeUnit timeUnit;
+    private ILongSampleAccumulator longStats;
     private DoubleSampleAccumulator doubleStats;
+    private RollingWindowAccumulator[] windows;
+    private List<RollingWindowAccumulator> windowList;
+    private DecayingRateMeter rateMeter;
 
     /**
      * The type of the value is determined at creation and does not change
@@ -64,11 +71,24 @@ public class StatValue implements IStatValue {
         init(0,value,true,false);
     }
 
+    /**
+     * Creates an empty timing stat, with a histogram attached but holding no samples yet.
+     * @param timeUnit the unit the timings are kept in
+     * @return a new timing stat value
+     */
+    static StatValue newTiming(TimeUnit timeUnit) {
+        StatValue retval = new StatValue(0L, true);
+        retval.timeUnit = timeUnit;
+        retval.longStats = new LongHistogramAccumulator();
+        return retval;
+    }
+
     private void init(long longValue, double doubleValue, boolean isDouble, boolean isTiming) {
         this.longValue = longValue;
         this.doubleValue = doubleValue;
         this.isDouble = isDouble;
         this.isTiming = isTiming;
+        this.timeUnit = isTiming ? TimeUnit.MILLISECONDS : null;
         this.longStats = null;
         this.doubleStats = null;
     }
@@ -105,6 +125,7 @@ public class StatValue implements IStatValue {
 
     @Override
     public void set(long value) {
+        isGauge = true;
         if (isDouble) {
             doubleValue = value;
         }
@@ -115,6 +136,7 @@ public class StatValue implements IStatValue {
 
     @Override
     public void set(double value) {
+        isGauge = true;
         if (isDouble) {
             doubleValue = value;
         }
@@ -125,6 +147,9 @@ public class StatValue implements IStatValue {
 
     @Override
     public void inc(long value) {
+        if (rateMeter != null) {
+            rateMeter.mark(value);
+        }
         if (isDouble) {
             doubleValue += value;
         }
@@ -135,6 +160,9 @@ public class StatValue implements IStatValue {
 
     @Override
     public void inc(double value) {
+        if (rateMeter != null) {
+            rateMeter.mark(value);
+        }
         if (isDouble) {
             doubleValue += value;
         }
@@ -152,6 +180,7 @@ public class StatValue implements IStatValue {
     public void setAndAccumulate(long value) {
         set(value);
         addCurrentValueToStats();
+        addTimingOrSampleToWindows();
     }
 
     /**
@@ -163,6 +192,58 @@ public class StatValue implements IStatValue {
     public void setAndAccumulate(double value) {
         set(value);
         addCurrentValueToStats();
+        addTimingOrSampleToWindows();
+    }
+
+    /**
+     * Adds a sample to the descriptive stats, but only if they are attached already. The value itself is not changed.
+     *
+     * @param sample the sample to add
+     */
+    @Override
+    public void accumulate(long sample) {
+        if (isDouble && doubleStats != null) {
+            doubleStats.addSample((double) sample);
+        }
+        if (!isDouble && longStats != null) {
+            longStats.addSample(sample);
+        }
+        addToWindows((double) sample);
+    }
+
+    /**
+     * Adds a sample to the descriptive stats, but only if they are attached already. The value itself is not changed.
+     *
+     * @param sample the sample to add
+     */
+    @Override
+    public void accumulate(double sample) {
+        if (isDouble && doubleStats != null) {
+            doubleStats.addSample(sample);
+        }
+        if (!isDouble && longStats != null) {
+            longStats.addSample(Math.round(sample));
+        }
+        addToWindows(isDouble ? sample : (double) Math.round(sample));
+    }
+
+    /**
+     * The part of setAndAccumulate() that is not about the descriptive stats
+     */
+    private void addTimingOrSampleToWindows() {
+        addToWindows(getDouble());
+        if (isTiming && rateMeter != null) {
+            rateMeter.mark();
+        }
+    }
+
+    private void addToWindows(double sample) {
+        if (windows != null) {
+            long now = windows[0].now(); // one clock read for all the windows
+            for (RollingWindowAccumulator window : windows) {
+                window.addSample(sample, now);
+            }
+        }
     }
 
     @Override
@@ -170,8 +251,13 @@ public class StatValue implements IStatValue {
         return isTiming;
     }
 
+    @Override
+    public TimeUnit getTimeUnit() {
+        return timeUnit;
+    }
+
     public Number asNumber() {
-        return isDouble ? new Double(doubleValue) : new Long(longValue);
+        return isDouble ? (Number) Double.valueOf(doubleValue) : (Number) Long.valueOf(longValue);
     }
 
     public String toString() {
@@ -184,7 +270,7 @@ public class StatValue implements IStatValue {
      */
     @Override
     public String toBareString() {
-        return ""+(isDouble ? Double.toString(doubleValue) : Long.toString(longValue))+(isTiming ? " msec":"");
+        return ""+(isDouble ? Double.toString(doubleValue) : Long.toString(longValue))+(isTiming ? " "+StatTimeUnits.abbreviation(timeUnit):"");
     }
 
     @Override
@@ -192,22 +278,22 @@ public class StatValue implements IStatValue {
         String retval;
         String stats = null;
 
-        DecimalFormat decimalFormat = new DecimalFormat("#,##0.###");
+        DecimalFormat decimalFormat = StatFormats.decimal();
         if (isDouble) {
             retval = decimalFormat.format(doubleValue);
-            if (doubleStats != null && doubleStats.getCount()>0) {
+            if (doubleStats != null && doubleStats.count()>0) {
                 stats = doubleStats.toString(decimalFormat);
             }
         }
         else {
-            retval = new DecimalFormat("#,##0").format(longValue);
-            if (longStats != null && longStats.getCount()>0) {
+            retval = StatFormats.integer().format(longValue);
+            if (longStats != null && longStats.count()>0) {
                 stats = longStats.toString(decimalFormat);
             }
         }
 
         if (isTiming) {
-            retval += " msec";
+            retval += " "+StatTimeUnits.abbreviation(timeUnit);
         }
 
         if (stats != null) {
@@ -217,6 +303,14 @@ public class StatValue implements IStatValue {
         return retval;
     }
 
+    @Override
+    public String toFormattedString(TimeUnit unit) {
+        if (!isTiming) {
+            return toFormattedString();
+        }
+        return StatTimeUnits.format(getDouble(), getDescriptiveStatistics(), timeUnit, unit);
+    }
+
     /**
      * Returns the descriptive stats if they exist. Otherwise returns null.
      *
@@ -239,15 +333,67 @@ public class StatValue implements IStatValue {
      */
     @Override
     public void attachDescriptiveStats() {
+        attachDescriptiveStats(isTiming);
+    }
+
+    /**
+     * Attaches descriptive statistics to the value, resetting any existing ones.
+     * @param withHistogram whether a Long value gets a LongHistogramAccumulator rather than a LongSampleAccumulator
+     */
+    @Override
+    public void attachDescriptiveStats(boolean withHistogram) {
         if (isDouble) {
             doubleStats = new DoubleSampleAccumulator();
         }
         else {
-            longStats = new LongSampleAccumulator();
+            longStats = withHistogram ? new LongHistogramAccumulator() : new LongSampleAccumulator();
         }
         addCurrentValueToStats();
     }
 
+    @Override
+    public void attachRollingWindows(long... windowMillis) {
+        windows = RollingWindows.create(windowMillis);
+        windowList = RollingWindows.asList(windows);
+    }
+
+    @Override
+    public List<RollingWindowAccumulator> getRollingWindows() {
+        return windowList;
+    }
+
+    @Override
+    public void attachRateMeter() {
+        rateMeter = new DecayingRateMeter();
+    }
+
+    @Override
+    public DecayingRateMeter getRateMeter() {
+        return rateMeter;
+    }
+
+    /**
+     * Adds the stat to a snapshot.
+     * @param builder the snapshot builder
+     * @param name the name of the stat
+     * @param reset whether to zero the value (unless it is a timing stat or a gauge, i.e. was ever set rather than
+     *              incremented) and clear the descriptive stats afterwards
+     */
+    void captureInto(StatsSnapshot.Builder builder, String name, boolean reset) {
+        builder.add(name, isDouble, timeUnit, isDouble ? Double.doubleToRawLongBits(doubleValue) : longValue,
+                getDescriptiveStatistics());
+        if (reset) {
+            if (!isTiming && !isGauge) {
+                longValue = 0L;
+                doubleValue = 0.0;
+            }
+            ISimpleDescriptiveStatistic desc = getDescriptiveStatistics();
+            if (desc != null) {
+                desc.clear();
+            }
+        }
+    }
+
     /**
      * Adds the current value to the stats (if attached)
      */
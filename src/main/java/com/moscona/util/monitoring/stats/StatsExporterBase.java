@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.util.monitoring.stats;
+
+import com.moscona.util.IPercentileStatistic;
+import com.moscona.util.ISimpleDescriptiveStatistic;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * The common part of the exporters: keeps the sorted stat names of the last service exported (and whatever a
+ * subclass derives from them, such as encoded metric names) so that nothing needs to be allocated on later exports,
+ * and reads descriptive stats consistently into a reusable holder.
+ * The names are refreshed only when the number of stats in the service changes (the services never remove stats).
+ * @param <T> the type of target written to
+ */
+public abstract class StatsExporterBase<T> implements IStatsExporter<T> {
+    private IStatsService source = null;
+    private int knownSize = -1;
+    private String[] names = new String[0];
+    protected final DescriptiveValues desc = new DescriptiveValues();
+
+    /**
+     * The descriptive stats of one stat, as read by readDescriptiveStats(). Reused for every stat.
+     */
+    protected static final class DescriptiveValues {
+        public long count;
+        public double sum;
+        public double min;
+        public double max;
+        public double stdev;
+        public boolean hasPercentiles;
+        public double p50;
+        public double p99;
+        public double p999;
+
+        public double mean() {
+            return count == 0 ? 0.0 : sum / count;
+        }
+    }
+
+    @Override
+    public void export(IStatsService stats, T target) throws IOException {
+        refreshNames(stats);
+        begin(target, names.length);
+        for (int i = 0; i < names.length; i++) {
+            IStatValue value = stats.getStat(names[i]);
+            if (value != null) {
+                exportStat(target, i, names[i], value);
+            }
+        }
+        end(target);
+    }
+
+    private void refreshNames(IStatsService stats) {
+        Set<String> current = stats.getStatNames();
+        if (stats != source || current.size() != knownSize) {
+            String[] sorted = current.toArray(new String[0]);
+            Arrays.sort(sorted);
+            source = stats;
+            knownSize = sorted.length;
+            names = sorted;
+            namesChanged(stats, sorted);
+        }
+    }
+
+    /**
+     * Called whenever the set of stats changes, before exporting. Subclasses derive and cache per stat data here.
+     * @param stats the stats service
+     * @param names the names of the stats, sorted. Stats are passed to exportStat() by their index in this array.
+     */
+    protected abstract void namesChanged(IStatsService stats, String[] names);
+
+    /**
+     * Called at the start of an export
+     * @param target the target
+     * @param statCount the (maximal) number of stats that will be exported
+     * @throws IOException if the target cannot be written to
+     */
+    protected abstract void begin(T target, int statCount) throws IOException;
+
+    /**
+     * Exports one stat
+     * @param target the target
+     * @param index the index of the stat in the names array passed to namesChanged()
+     * @param name the name of the stat
+     * @param value the stat
+     * @throws IOException if the target cannot be written to
+     */
+    protected abstract void exportStat(T target, int index, String name, IStatValue value) throws IOException;
+
+    /**
+     * Called at the end of an export
+     * @param target the target
+     * @throws IOException if the target cannot be written to
+     */
+    protected abstract void end(T target) throws IOException;
+
+    /**
+     * Reads the descriptive stats of a value into the desc field, holding the descriptive stats' monitor so that the
+     * numbers agree with each other even if writers are active.
+     * @param value the stat
+     * @return false if the stat has no descriptive stats (in which case desc is left as it is)
+     */
+    protected boolean readDescriptiveStats(IStatValue value) {
+        ISimpleDescriptiveStatistic stats = value.getDescriptiveStatistics();
+        if (stats == null) {
+            return false;
+        }
+        synchronized (stats) {
+            desc.count = stats.count();
+            desc.sum = stats.sum();
+            desc.min = stats.min();
+            desc.max = stats.max();
+            desc.stdev = stats.stdev();
+            desc.hasPercentiles = stats instanceof IPercentileStatistic;
+            if (desc.hasPercentiles) {
+                IPercentileStatistic percentiles = (IPercentileStatistic) stats;
+                desc.p50 = percentiles.percentile(50.0);
+                desc.p99 = percentiles.percentile(99.0);
+                desc.p999 = percentiles.percentile(99.9);
+            }
+            else {
+                desc.p50 = Double.NaN;
+                desc.p99 = Double.NaN;
+                desc.p999 = Double.NaN;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,361 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.util.monitoring.stats;
+
+import com.moscona.util.IPercentileStatistic;
+import com.moscona.util.ISimpleDescriptiveStatistic;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An immutable point in time copy of all the stats of an IStatsService, as returned by IStatsService.snapshot().
+ * The data is kept in a handful of parallel primitive arrays (one slot per stat, sorted by name) rather than as a
+ * value object per stat, so a snapshot is compact and cheap to publish, e.g. in a StatsSnapshotResponseEvent.
+ * A stat that is set (a gauge or a timing) is captured with its value and descriptive stats agreeing with each other.
+ * A counter is incremented and sampled in two steps without a lock, so one captured while being incremented may be an
+ * increment or two apart from its descriptive stats. Stats are captured one after the other while writers keep going,
+ * so two different stats may also be a few updates apart.
+ * A resetting snapshot zeroes counters, but leaves gauges (stats that were ever set rather than incremented) and
+ * timings at their last value. All of them have their descriptive stats cleared.
+ * Use the index accessors: for (int i = 0; i &lt; snapshot.size(); i++) { snapshot.getName(i) ... }
+ */
+public final class StatsSnapshot {
+    private static final byte FLAG_DOUBLE = 1;
+    private static final byte FLAG_TIMING = 2;
+    private static final byte FLAG_DESCRIPTIVE = 4;
+    private static final byte FLAG_PERCENTILES = 8;
+    private static final TimeUnit[] TIME_UNITS = TimeUnit.values();
+
+    // layout of the descriptive stats of a stat in the desc array
+    private static final int SUM = 0;
+    private static final int MIN = 1;
+    private static final int MAX = 2;
+    private static final int STDEV = 3;
+    private static final int P50 = 4;
+    private static final int P99 = 5;
+    private static final int P999 = 6;
+    private static final int DESC_FIELDS = 7;
+
+    private final long startMillis;
+    private final long endMillis;
+    private final boolean isReset;
+    private final String[] names;
+    private final byte[] flags;
+    private final byte[] timeUnits; // ordinal of the time unit of timing stats
+    private final long[] values; // longs, or the raw bits of doubles
+    private final long[] counts;
+    private final double[] desc;
+
+    private StatsSnapshot(Builder builder, Integer[] order) {
+        startMillis = builder.startMillis;
+        endMillis = builder.endMillis;
+        isReset = builder.isReset;
+        int size = order.length;
+        names = new String[size];
+        flags = new byte[size];
+        timeUnits = new byte[size];
+        values = new long[size];
+        counts = new long[size];
+        desc = new double[size * DESC_FIELDS];
+        for (int i = 0; i < size; i++) {
+            int from = order[i];
+            names[i] = builder.names[from];
+            flags[i] = builder.flags[from];
+            timeUnits[i] = builder.timeUnits[from];
+            values[i] = builder.values[from];
+            counts[i] = builder.counts[from];
+            System.arraycopy(builder.desc, from * DESC_FIELDS, desc, i * DESC_FIELDS, DESC_FIELDS);
+        }
+    }
+
+    /**
+     * @return the number of stats in the snapshot
+     */
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * @return the time (System.currentTimeMillis()) the interval covered by the snapshot started: the time of the
+     * previous resetting snapshot, or the time the service was created.
+     */
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    /**
+     * @return the time (System.currentTimeMillis()) the snapshot was taken
+     */
+    public long getEndMillis() {
+        return endMillis;
+    }
+
+    /**
+     * @return true if taking this snapshot reset the counters and descriptive stats of the service
+     */
+    public boolean isReset() {
+        return isReset;
+    }
+
+    /**
+     * @param name a stat name
+     * @return the index of the stat or a negative number if it is not in the snapshot
+     */
+    public int indexOf(String name) {
+        return Arrays.binarySearch(names, name);
+    }
+
+    public String getName(int i) {
+        return names[i];
+    }
+
+    /**
+     * @param i the index of the stat
+     * @return Long or Double, as in IStatValue.getType()
+     */
+    public Class<? extends Number> getType(int i) {
+        return isDouble(i) ? Double.class : Long.class;
+    }
+
+    public boolean isDouble(int i) {
+        return (flags[i] & FLAG_DOUBLE) != 0;
+    }
+
+    public boolean isTiming(int i) {
+        return (flags[i] & FLAG_TIMING) != 0;
+    }
+
+    /**
+     * @param i the index of the stat
+     * @return the time unit of a timing stat, or null
+     */
+    public TimeUnit getTimeUnit(int i) {
+        return isTiming(i) ? TIME_UNITS[timeUnits[i]] : null;
+    }
+
+    public long getLong(int i) {
+        return isDouble(i) ? Math.round(Double.longBitsToDouble(values[i])) : values[i];
+    }
+
+    public double getDouble(int i) {
+        return isDouble(i) ? Double.longBitsToDouble(values[i]) : (double) values[i];
+    }
+
+    public boolean hasDescriptiveStats(int i) {
+        return (flags[i] & FLAG_DESCRIPTIVE) != 0;
+    }
+
+    /**
+     * @param i the index of the stat
+     * @return true if getP50(i) and the like are available
+     */
+    public boolean hasPercentiles(int i) {
+        return (flags[i] & FLAG_PERCENTILES) != 0;
+    }
+
+    /**
+     * @param i the index of the stat
+     * @return the sample count of the descriptive stats, or 0 if the stat has none
+     */
+    public long getCount(int i) {
+        return counts[i];
+    }
+
+    public double getSum(int i) {
+        return desc[i * DESC_FIELDS + SUM];
+    }
+
+    public double getMin(int i) {
+        return desc[i * DESC_FIELDS + MIN];
+    }
+
+    public double getMax(int i) {
+        return desc[i * DESC_FIELDS + MAX];
+    }
+
+    public double getMean(int i) {
+        return counts[i] == 0 ? 0.0 : getSum(i) / counts[i];
+    }
+
+    public double getStdev(int i) {
+        return desc[i * DESC_FIELDS + STDEV];
+    }
+
+    /**
+     * @param i the index of the stat
+     * @return the median, or NaN if the stat does not keep a histogram
+     */
+    public double getP50(int i) {
+        return desc[i * DESC_FIELDS + P50];
+    }
+
+    /**
+     * @param i the index of the stat
+     * @return the 99th percentile, or NaN if the stat does not keep a histogram
+     */
+    public double getP99(int i) {
+        return desc[i * DESC_FIELDS + P99];
+    }
+
+    /**
+     * @param i the index of the stat
+     * @return the 99.9th percentile, or NaN if the stat does not keep a histogram
+     */
+    public double getP999(int i) {
+        return desc[i * DESC_FIELDS + P999];
+    }
+
+    public String toString() {
+        return getClass().getName()+"("+size()+" stats from "+startMillis+" to "+endMillis+(isReset ? ", reset" : "")+")";
+    }
+
+    /**
+     * Collects stats for a snapshot. Used by the stats services.
+     */
+    static final class Builder {
+        private final long startMillis;
+        private final long endMillis;
+        private final boolean isReset;
+        private int size;
+        private String[] names;
+        private byte[] flags;
+        private byte[] timeUnits;
+        private long[] values;
+        private long[] counts;
+        private double[] desc;
+
+        Builder(long startMillis, long endMillis, boolean isReset, int expectedSize) {
+            this.startMillis = startMillis;
+            this.endMillis = endMillis;
+            this.isReset = isReset;
+            size = 0;
+            int capacity = Math.max(expectedSize, 1);
+            names = new String[capacity];
+            flags = new byte[capacity];
+            timeUnits = new byte[capacity];
+            values = new long[capacity];
+            counts = new long[capacity];
+            desc = new double[capacity * DESC_FIELDS];
+        }
+
+        private void ensureCapacity() {
+            if (size == names.length) {
+                int capacity = names.length * 2;
+                names = Arrays.copyOf(names, capacity);
+                flags = Arrays.copyOf(flags, capacity);
+                timeUnits = Arrays.copyOf(timeUnits, capacity);
+                values = Arrays.copyOf(values, capacity);
+                counts = Arrays.copyOf(counts, capacity);
+                desc = Arrays.copyOf(desc, capacity * DESC_FIELDS);
+            }
+        }
+
+        /**
+         * Adds a stat value. The values of this package capture themselves consistently (and reset themselves if
+         * asked to). Any other value is read through the IStatValue interface, and is neither locked nor reset.
+         * @param name the name of the stat
+         * @param value the stat value
+         * @param reset whether to reset counters and descriptive stats after capturing them
+         */
+        void add(String name, IStatValue value, boolean reset) {
+            if (value instanceof ConcurrentStatValue) {
+                ((ConcurrentStatValue) value).captureInto(this, name, reset);
+                return;
+            }
+            if (value instanceof StatValue) {
+                ((StatValue) value).captureInto(this, name, reset);
+                return;
+            }
+            boolean isDouble = value.getType() == Double.class;
+            add(name, isDouble, value.getTimeUnit(),
+                    isDouble ? Double.doubleToRawLongBits(value.getDouble()) : value.getLong(),
+                    value.getDescriptiveStatistics());
+        }
+
+        /**
+         * Adds a stat. The caller is responsible for holding whatever locks keep the data consistent.
+         * @param name the name of the stat
+         * @param isDouble whether the value is a double
+         * @param timeUnit the time unit of a timing stat, or null
+         * @param rawValue the value, or the raw bits of a double value
+         * @param stats the descriptive stats, or null
+         */
+        void add(String name, boolean isDouble, TimeUnit timeUnit, long rawValue, ISimpleDescriptiveStatistic stats) {
+            if (stats == null) {
+                add(name, isDouble, timeUnit, rawValue, false, 0L, 0.0, 0.0, 0.0, 0.0, false, Double.NaN, Double.NaN, Double.NaN);
+            }
+            else if (stats instanceof IPercentileStatistic) {
+                IPercentileStatistic percentiles = (IPercentileStatistic) stats;
+                add(name, isDouble, timeUnit, rawValue, true, stats.count(), stats.sum(), stats.min(), stats.max(),
+                        stats.stdev(), true, percentiles.percentile(50.0), percentiles.percentile(99.0),
+                        percentiles.percentile(99.9));
+            }
+            else {
+                add(name, isDouble, timeUnit, rawValue, true, stats.count(), stats.sum(), stats.min(), stats.max(),
+                        stats.stdev(), false, Double.NaN, Double.NaN, Double.NaN);
+            }
+        }
+
+        /**
+         * Adds a stat from its raw parts, e.g. when decoding an exported snapshot
+         */
+        void add(String name, boolean isDouble, TimeUnit timeUnit, long rawValue,
+                 boolean hasDescriptiveStats, long count, double sum, double min, double max, double stdev,
+                 boolean hasPercentiles, double p50, double p99, double p999) {
+            ensureCapacity();
+            byte flag = 0;
+            if (isDouble) {
+                flag |= FLAG_DOUBLE;
+            }
+            if (timeUnit != null) {
+                flag |= FLAG_TIMING;
+                timeUnits[size] = (byte) timeUnit.ordinal();
+            }
+            if (hasDescriptiveStats) {
+                flag |= FLAG_DESCRIPTIVE;
+            }
+            if (hasPercentiles) {
+                flag |= FLAG_PERCENTILES;
+            }
+            names[size] = name;
+            flags[size] = flag;
+            values[size] = rawValue;
+            counts[size] = count;
+            int base = size * DESC_FIELDS;
+            desc[base + SUM] = sum;
+            desc[base + MIN] = min;
+            desc[base + MAX] = max;
+            desc[base + STDEV] = stdev;
+            desc[base + P50] = hasPercentiles ? p50 : Double.NaN;
+            desc[base + P99] = hasPercentiles ? p99 : Double.NaN;
+            desc[base + P999] = hasPercentiles ? p999 : Double.NaN;
+            size++;
+        }
+
+        StatsSnapshot build() {
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            final String[] unsorted = names;
+            Arrays.sort(order, Comparator.comparing(i -> unsorted[i]));
+            return new StatsSnapshot(this, order);
+        }
+    }
+}
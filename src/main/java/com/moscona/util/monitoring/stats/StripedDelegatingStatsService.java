@@ -0,0 +1,512 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.moscona.util.monitoring.stats;
+
+import com.moscona.exceptions.InvalidStateException;
+import com.moscona.util.IPercentileStatistic;
+import com.moscona.util.ISimpleDescriptiveStatistic;
+import com.moscona.util.SafeRunnable;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A drop-in replacement for SynchronizedDelegatingStatsService that does not serialize unrelated stats.
+ * Every operation that changes a stat holds the write lock of the stripe the stat's name hashes to, so writers of
+ * different stats rarely meet and throughput on distinct stats scales with the number of cores.
+ * Readers never block writers: getStat() and getStatNames() go straight to the delegate (whose name registry must be
+ * safe for concurrent use, as it is in SimpleStatsService and ConcurrentStatsService), and a non-resetting snapshot()
+ * copies each stat under an optimistic read of its stripe, retrying with a read lock only if a writer got in the way.
+ * A resetting snapshot has to write, so it holds each stripe's write lock for as long as it takes to copy one stat.
+ * As with the synchronized version, getStat() returns the live value, which is not protected from concurrent writers.
+ */
+public class StripedDelegatingStatsService implements IStatsService {
+    private final IStatsService delegate;
+    private final StampedLock[] stripes;
+    private final int mask;
+    private volatile long intervalStartMillis;
+
+    /**
+     * Creates a service with four stripes per available processor
+     * @param delegate the service that keeps the stats
+     */
+    public StripedDelegatingStatsService(IStatsService delegate) {
+        this(delegate, 4 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param delegate the service that keeps the stats
+     * @param stripeCount the number of locks to stripe the stats over, rounded up to a power of two
+     */
+    public StripedDelegatingStatsService(IStatsService delegate, int stripeCount) {
+        this.delegate = delegate;
+        int size = 1;
+        while (size < stripeCount) {
+            size <<= 1;
+        }
+        stripes = new StampedLock[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new StampedLock();
+        }
+        mask = size - 1;
+        intervalStartMillis = System.currentTimeMillis();
+    }
+
+    private StampedLock stripeFor(String name) {
+        int h = name.hashCode();
+        return stripes[(h ^ (h >>> 16)) & mask];
+    }
+
+    @Override
+    public void setStat(String name, long value) {
+        StampedLock lock = stripeFor(name);
+        long stamp = lock.writeLock();
+        try {
+            delegate.setStat(name, value);
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void setStat(String name, double value) {
+        StampedLock lock = stripeFor(name);
+        long stamp = lock.writeLock();
+        try {
+            delegate.setStat(name, value);
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void incStat(String name) {
+        StampedLock lock = stripeFor(name);
+        long stamp = lock.writeLock();
+        try {
+            delegate.incStat(name);
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void incStat(String name, long value) {
+        StampedLock lock = stripeFor(name);
+        long stamp = lock.writeLock();
+        try {
+            delegate.incStat(name, value);
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void incStat(String name, double value) {
+        StampedLock lock = stripeFor(name);
+        long stamp = lock.writeLock();
+        try {
+            delegate.incStat(name, value);
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void initStatWithDescriptiveStats(String name, long value) {
+        StampedLock lock = stripeFor(name);
+        long stamp = lock.writeLock();
+        try {
+            delegate.initStatWithDescriptiveStats(name, value);
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void initStatWithDescriptiveStats(String name, double value) {
+        StampedLock lock = stripeFor(name);
+        long stamp = lock.writeLock();
+        try {
+            delegate.initStatWithDescriptiveStats(name, value);
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void startTimerFor(String name) {
+        StampedLock lock = stripeFor(name);
+        long stamp = lock.writeLock();
+        try {
+            delegate.startTimerFor(name);
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void pauseTimerFor(String name) {
+        StampedLock lock = stripeFor(name);
+        long stamp = lock.writeLock();
+        try {
+            delegate.pauseTimerFor(name);
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void resumeTimerFor(String name) {
+        StampedLock lock = stripeFor(name);
+        long stamp = lock.writeLock();
+        try {
+            delegate.resumeTimerFor(name);
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void stopTimerFor(String name) throws InvalidStateException {
+        StampedLock lock = stripeFor(name);
+        long stamp = lock.writeLock();
+        try {
+            delegate.stopTimerFor(name);
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Unlike the other operations, the code being measured runs without holding any lock
+     */
+    @Override
+    public void measureTiming(String name, Runnable code) throws InvalidStateException {
+        startTimerFor(name);
+        code.run();
+        stopTimerFor(name);
+        if (code instanceof SafeRunnable) {
+            Exception e = ((SafeRunnable) code).getException();
+            if (e != null) {
+                throw new InvalidStateException("Exception thrown in safe runnable", e);
+            }
+        }
+    }
+
+    @Override
+    public void addTimingSampleFor(String name, long millis) throws InvalidStateException {
+        StampedLock lock = stripeFor(name);
+        long stamp = lock.writeLock();
+        try {
+            delegate.addTimingSampleFor(name, millis);
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void attachRollingWindows(String name, long... windowMillis) {
+        StampedLock lock = stripeFor(name);
+        long stamp = lock.writeLock();
+        try {
+            delegate.attachRollingWindows(name, windowMillis);
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void attachRateMeter(String name) {
+        StampedLock lock = stripeFor(name);
+        long stamp = lock.writeLock();
+        try {
+            delegate.attachRateMeter(name);
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public IStatValue getStat(String name) {
+        return delegate.getStat(name);
+    }
+
+    @Override
+    public Set<String> getStatNames() {
+        return delegate.getStatNames();
+    }
+
+    /**
+     * The handle holds the write lock of its stat's stripe while incrementing
+     */
+    @Override
+    public IStatCounter counter(String name) {
+        final IStatCounter counter = delegate.counter(name);
+        final StampedLock lock = stripeFor(name);
+        return new IStatCounter() {
+            @Override
+            public void inc() {
+                long stamp = lock.writeLock();
+                try {
+                    counter.inc();
+                }
+                finally {
+                    lock.unlockWrite(stamp);
+                }
+            }
+
+            @Override
+            public void inc(long value) {
+                long stamp = lock.writeLock();
+                try {
+                    counter.inc(value);
+                }
+                finally {
+                    lock.unlockWrite(stamp);
+                }
+            }
+
+            @Override
+            public String getName() {
+                return counter.getName();
+            }
+        };
+    }
+
+    /**
+     * The handle holds the write lock of its stat's stripe while setting
+     */
+    @Override
+    public IStatGauge gauge(String name) {
+        final IStatGauge gauge = delegate.gauge(name);
+        final StampedLock lock = stripeFor(name);
+        return new IStatGauge() {
+            @Override
+            public void set(long value) {
+                long stamp = lock.writeLock();
+                try {
+                    gauge.set(value);
+                }
+                finally {
+                    lock.unlockWrite(stamp);
+                }
+            }
+
+            @Override
+            public void set(double value) {
+                long stamp = lock.writeLock();
+                try {
+                    gauge.set(value);
+                }
+                finally {
+                    lock.unlockWrite(stamp);
+                }
+            }
+
+            @Override
+            public String getName() {
+                return gauge.getName();
+            }
+        };
+    }
+
+    @Override
+    public IStatTimer timer(String name) {
+        return timer(name, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The handle holds the write lock of its stat's stripe while recording. Timings taken with start()/stop() or
+     * time() may overlap freely, only the recording of the result is locked.
+     */
+    @Override
+    public IStatTimer timer(String name, TimeUnit resolution) {
+        final IStatTimer timer = delegate.timer(name, resolution);
+        final StampedLock lock = stripeFor(name);
+        return new IStatTimer() {
+            @Override
+            public void record(long duration, TimeUnit unit) {
+                long stamp = lock.writeLock();
+                try {
+                    timer.record(duration, unit);
+                }
+                finally {
+                    lock.unlockWrite(stamp);
+                }
+            }
+
+            @Override
+            public String getName() {
+                return timer.getName();
+            }
+        };
+    }
+
+    @Override
+    public StatsSnapshot snapshot() {
+        return snapshot(false);
+    }
+
+    /**
+     * Copies the stats one at a time, so the snapshot is consistent for each stat but not across stats.
+     * Writers are never blocked by a plain snapshot. A resetting snapshot holds one stripe's write lock at a time.
+     *
+     * @param resetDeltas whether to reset the stats after copying them
+     * @return a snapshot of all the stats
+     */
+    @Override
+    public StatsSnapshot snapshot(boolean resetDeltas) {
+        long now = System.currentTimeMillis();
+        Set<String> names = delegate.getStatNames();
+        StatsSnapshot.Builder builder = new StatsSnapshot.Builder(intervalStartMillis, now, resetDeltas, names.size());
+        Capture capture = new Capture();
+        for (String name : names) {
+            IStatValue value = delegate.getStat(name);
+            if (value == null) {
+                continue;
+            }
+            StampedLock lock = stripeFor(name);
+            if (resetDeltas) {
+                long stamp = lock.writeLock();
+                try {
+                    builder.add(name, value, true);
+                }
+                finally {
+                    lock.unlockWrite(stamp);
+                }
+            }
+            else if (value instanceof ConcurrentStatValue) {
+                builder.add(name, value, false); // captures itself consistently without our locks
+            }
+            else {
+                captureOptimistically(lock, value, capture);
+                capture.addTo(builder, name);
+            }
+        }
+        if (resetDeltas) {
+            intervalStartMillis = now;
+        }
+        return builder.build();
+    }
+
+    private void captureOptimistically(StampedLock lock, IStatValue value, Capture capture) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0L) {
+            try {
+                capture.read(value);
+                if (lock.validate(stamp)) {
+                    return;
+                }
+            }
+            catch (RuntimeException e) {
+                // a writer changed the value under our feet - the read lock below sorts it out
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            capture.read(value);
+        }
+        finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public boolean isOn() {
+        return delegate.isOn();
+    }
+
+    @Override
+    public void turnOff() {
+        delegate.turnOff();
+    }
+
+    @Override
+    public void turnOn() {
+        delegate.turnOn();
+    }
+
+    /**
+     * Holds a copy of one stat while it is being validated. Reused across the stats of a snapshot.
+     */
+    private static final class Capture {
+        private boolean isDouble;
+        private TimeUnit timeUnit;
+        private long rawValue;
+        private boolean hasDescriptiveStats;
+        private long count;
+        private double sum;
+        private double min;
+        private double max;
+        private double stdev;
+        private boolean hasPercentiles;
+        private double p50;
+        private double p99;
+        private double p999;
+
+        void read(IStatValue value) {
+            isDouble = value.getType() == Double.class;
+            timeUnit = value.getTimeUnit();
+            rawValue = isDouble ? Double.doubleToRawLongBits(value.getDouble()) : value.getLong();
+            ISimpleDescriptiveStatistic stats = value.getDescriptiveStatistics();
+            hasDescriptiveStats = stats != null;
+            hasPercentiles = stats instanceof IPercentileStatistic;
+            if (hasDescriptiveStats) {
+                count = stats.count();
+                sum = stats.sum();
+                min = stats.min();
+                max = stats.max();
+                stdev = stats.stdev();
+            }
+            if (hasPercentiles) {
+                IPercentileStatistic percentiles = (IPercentileStatistic) stats;
+                p50 = percentiles.percentile(50.0);
+                p99 = percentiles.percentile(99.0);
+                p999 = percentiles.percentile(99.9);
+            }
+        }
+
+        void addTo(StatsSnapshot.Builder builder, String name) {
+            if (hasDescriptiveStats) {
+                builder.add(name, isDouble, timeUnit, rawValue, true, count, sum, min, max, stdev,
+                        hasPercentiles, p50, p99, p999);
+            }
+            else {
+                builder.add(name, isDouble, timeUnit, rawValue, false, 0L, 0.0, 0.0, 0.0, 0.0, false,
+                        Double.NaN, Double.NaN, Double.NaN);
+            }
+        }
+    }
+}
@@ -20,6 +20,7 @@ package com.moscona.util.monitoring.stats;
 import com.moscona.exceptions.InvalidStateException;
 
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created: 8/15/11 12:51 PM
@@ -42,11 +43,71 @@ public class SynchronizedDelegatingStatsService implements IStatsService {
         return delegate.getStat(name);
     }
 
+    @Override
+    public IStatCounter counter(String name) {
+        return delegate.counter(name);
+    }
+
+    @Override
+    public IStatGauge gauge(String name) {
+        return delegate.gauge(name);
+    }
+
+    /**
+     * Timing samples are serialized on this service, as in addTimingSampleFor()
+     */
+    @Override
+    public IStatTimer timer(String name) {
+        return timer(name, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Timing samples are serialized on this service, as in addTimingSampleFor()
+     */
+    @Override
+    public IStatTimer timer(String name, TimeUnit resolution) {
+        final IStatTimer timer = delegate.timer(name, resolution);
+        final Object lock = this;
+        return new IStatTimer() {
+            @Override
+            public void record(long duration, TimeUnit unit) {
+                synchronized (lock) {
+                    timer.record(duration, unit);
+                }
+            }
+
+            @Override
+            public String getName() {
+                return timer.getName();
+            }
+        };
+    }
+
+    @Override
+    public void attachRollingWindows(String name, long... windowMillis) {
+        delegate.attachRollingWindows(name, windowMillis);
+    }
+
+    @Override
+    public void attachRateMeter(String name) {
+        delegate.attachRateMeter(name);
+    }
+
     @Override
     public Set<String> getStatNames() {
         return delegate.getStatNames();
     }
 
+    @Override
+    public StatsSnapshot snapshot() {
+        return snapshot(false);
+    }
+
+    @Override
+    public synchronized StatsSnapshot snapshot(boolean resetDeltas) {
+        return delegate.snapshot(resetDeltas);
+    }
+
     @Override
     public void incStat(String name) {
         delegate.incStat(name);
@@ -0,0 +1,72 @@
+/*
+ *  Copyright (c) 2015. Arnon Moscona
+ *
+ *      This program is free software: you can redistribute it and/or modify
+ *      it under the terms of the GNU Lesser General Public License as published by
+ *      the Free Software Foundation, either version 3 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License
+ *      along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.moscona.util.collections
+
+import spock.lang.*
+
+@Subject(CappedColumnBuffer)
+@Title("basic tests for CappedColumnBuffer")
+
+@Narrative("""
+The column buffer keeps the most recent rows, one primitive array per column
+""")
+
+class CappedColumnBufferSpec extends Specification {
+    CappedColumnBuffer buffer
+
+    def setup() {
+        given: "a column buffer with size 3 and two columns"
+        buffer = new CappedColumnBuffer(3, "time", "value")
+    }
+
+    def "adding 4 rows"() {
+        when: "I add four rows"
+        (1..4).each { buffer.add(it as long, it * 10 as long) }
+
+        then: "the last three are kept, oldest first, in each column"
+        buffer.columnToArray(buffer.columnIndex("time")) == [2L, 3L, 4L] as long[]
+        buffer.columnToArray(buffer.columnIndex("value")) == [20L, 30L, 40L] as long[]
+        buffer.get(0, 1) == 20L
+    }
+
+    def "rows are copied whole"() {
+        given: "a row array that is reused"
+        long[] row = [1L, Double.doubleToRawLongBits(2.5)] as long[]
+
+        when: "I add it, change it and add it again"
+        buffer.add(row)
+        row[0] = 2L
+        buffer.add(row)
+        long[] copy = new long[2]
+        buffer.copyRow(0, copy)
+
+        then: "each row kept the values it was added with"
+        copy[0] == 1L
+        buffer.get(1, 0) == 2L
+        buffer.getDouble(0, 1) == 2.5d
+    }
+
+    def "rows must have a value for every column"() {
+        when: "I add a row with three values"
+        buffer.add(1L, 2L, 3L)
+
+        then: "it is rejected"
+        thrown(IllegalArgumentException)
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ *  Copyright (c) 2015. Arnon Moscona
+ *
+ *      This program is free software: you can redistribute it and/or modify
+ *      it under the terms of the GNU Lesser General Public License as published by
+ *      the Free Software Foundation, either version 3 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License
+ *      along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.moscona.util.collections
+
+import spock.lang.*
+
+@Subject(CappedLongBuffer)
+@Title("basic tests for CappedLongBuffer")
+
+@Narrative("""
+The primitive buffer keeps the most recent samples and copies them out in bulk, oldest first
+""")
+
+class CappedLongBufferSpec extends Specification {
+    CappedLongBuffer buffer
+
+    def setup() {
+        given: "a capped long buffer with size 3"
+        buffer = new CappedLongBuffer(3)
+    }
+
+    def "adding 5 samples"() {
+        when: "I add five samples"
+        (1..5).each { buffer.add(it as long) }
+
+        then: "the last three are kept, oldest first"
+        buffer.toArray() == [3L, 4L, 5L] as long[]
+        buffer.get(0) == 3L
+        buffer.newest == 5L
+        buffer.sequence == 5L
+    }
+
+    def "copying the newest samples into an existing array"() {
+        given: "a buffer that wrapped around and a target array"
+        (1..5).each { buffer.add(it as long) }
+        long[] target = new long[4]
+
+        when: "I copy the last two samples to offset 1"
+        def copied = buffer.copyLast(2, target, 1)
+
+        then: "they land in order"
+        copied == 2
+        target == [0L, 4L, 5L, 0L] as long[]
+    }
+
+    def "draining moves the oldest samples out"() {
+        given: "a buffer that wrapped around"
+        (1..5).each { buffer.add(it as long) }
+        long[] target = new long[2]
+
+        when: "I drain into a target with room for two and add another sample"
+        def drained = buffer.drainTo(target, 0)
+        buffer.add(6L)
+
+        then: "the two oldest were moved and the rest stayed"
+        drained == 2
+        target == [3L, 4L] as long[]
+        buffer.toArray() == [5L, 6L] as long[]
+    }
+
+    def "the newest sample of an empty buffer"() {
+        when: "I ask an empty buffer for its newest sample"
+        buffer.getNewest()
+
+        then: "there is none to return"
+        thrown(IndexOutOfBoundsException)
+
+        and: "the sentinel variant returns the sentinel instead"
+        buffer.getNewest(-1L) == -1L
+    }
+
+    def "the sentinel is not returned once there are samples"() {
+        when: "I add a sample"
+        buffer.add(7L)
+
+        then: "it is the newest"
+        buffer.getNewest(-1L) == 7L
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ *  Copyright (c) 2015. Arnon Moscona
+ *
+ *      This program is free software: you can redistribute it and/or modify
+ *      it under the terms of the GNU Lesser General Public License as published by
+ *      the Free Software Foundation, either version 3 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License
+ *      along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.moscona.util.collections
+
+import spock.lang.*
+
+@Subject(CappedRingBuffer)
+@Title("basic tests for CappedRingBuffer")
+
+@Narrative("""
+The ring buffer must behave like CappedArrayBuffer for appends, and support draining and snapshots
+""")
+
+class CappedRingBufferSpec extends Specification {
+    CappedRingBuffer buffer
+
+    def setup() {
+        given: "a capped ring buffer with size 3"
+        buffer = new CappedRingBuffer(3)
+    }
+
+    def "adding items up to capacity"() {
+        when: "I add three items"
+        buffer << 1
+        buffer << 2
+        buffer << 3
+
+        then: "they should be in the buffer"
+        "$buffer".toString().equals "[1, 2, 3]"
+        buffer.atCapacity
+    }
+
+    def "adding 5 items"() {
+        when: "I add five items"
+        (1..5).each { buffer << it }
+
+        then: "the last three should be in the buffer, oldest first"
+        "$buffer".toString().equals "[3, 4, 5]"
+        buffer.get(0) == 3
+        buffer.get(2) == 5
+    }
+
+    def "adding a list"() {
+        when: "I add an item and then a list"
+        buffer << 1
+        buffer.addAll([2, 3, 4, 5])
+
+        then: "the last three should be in the buffer"
+        "$buffer".toString().equals "[3, 4, 5]"
+    }
+
+    def "draining part of the buffer"() {
+        given: "a buffer that wrapped around"
+        (1..5).each { buffer << it }
+        def target = []
+
+        when: "I drain two items and add another"
+        def drained = buffer.drainTo(target, 2)
+        buffer << 6
+
+        then: "the oldest two were moved and the buffer goes on from there"
+        drained == 2
+        target == [3, 4]
+        "$buffer".toString().equals "[5, 6]"
+    }
+
+    def "iterating over a snapshot"() {
+        given: "a full buffer and an iterator over it"
+        (1..3).each { buffer << it }
+        def iterator = buffer.iterator()
+
+        when: "I add more items while iterating"
+        def seen = []
+        while (iterator.hasNext()) {
+            seen << iterator.next()
+            buffer << 10
+        }
+
+        then: "the iterator sees the buffer as it was"
+        seen == [1, 2, 3]
+        "$buffer".toString().equals "[10, 10, 10]"
+    }
+}
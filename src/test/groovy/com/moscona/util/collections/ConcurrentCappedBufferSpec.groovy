@@ -0,0 +1,165 @@
+/*
+ *  Copyright (c) 2015. Arnon Moscona
+ *
+ *      This program is free software: you can redistribute it and/or modify
+ *      it under the terms of the GNU Lesser General Public License as published by
+ *      the Free Software Foundation, either version 3 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License
+ *      along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.moscona.util.collections
+
+import spock.lang.*
+
+import java.util.concurrent.CountDownLatch
+
+@Subject(ConcurrentCappedBuffer)
+@Title("ConcurrentCappedBuffer specification")
+
+@Narrative("""
+The lock-free buffer keeps the most recent entries from any number of producers,
+and readers see them whole and in the order they were appended
+""")
+
+class ConcurrentCappedBufferSpec extends Specification {
+    ConcurrentCappedBuffer buffer
+
+    def setup() {
+        given: "a concurrent buffer with capacity 4"
+        buffer = new ConcurrentCappedBuffer(4)
+    }
+
+    def "the oldest entries are overwritten"() {
+        when: "I add six items"
+        (1..6).each { buffer.add(it) }
+
+        then: "the last four are kept, oldest first"
+        buffer.snapshot() == [3, 4, 5, 6]
+        buffer.size() == 4
+        buffer.atCapacity
+        buffer.newest == 6
+        buffer.sequence == 6L
+    }
+
+    def "reading the last entries does not consume them"() {
+        given: "a buffer that wrapped around"
+        (1..6).each { buffer.add(it) }
+        def target = []
+
+        when: "I read the last two"
+        def read = buffer.readLast(2, target)
+
+        then: "I get them in order and they are still there"
+        read == 2
+        target == [5, 6]
+        buffer.size() == 4
+    }
+
+    def "draining consumes entries and later appends start after them"() {
+        given: "a buffer that wrapped around"
+        (1..6).each { buffer.add(it) }
+        def target = []
+
+        when: "I drain it and add another item"
+        buffer.drainTo(target)
+        buffer.add(7)
+
+        then: "only the new item is left"
+        target == [3, 4, 5, 6]
+        buffer.snapshot() == [7]
+    }
+
+    def "incremental reads pick up where they left off"() {
+        given: "two items"
+        buffer.add(1)
+        buffer.add(2)
+        def target = []
+
+        when: "I read, add two more and read from where I stopped"
+        long next = buffer.readFrom(0L, target)
+        buffer.add(3)
+        buffer.add(4)
+        next = buffer.readFrom(next, target)
+
+        then: "every item was read exactly once"
+        target == [1, 2, 3, 4]
+        next == 4L
+    }
+
+    def "entries from each producer stay in order"() {
+        given: "a larger buffer and several producers that start together"
+        buffer = new ConcurrentCappedBuffer(1024)
+        int threads = 8
+        int iterations = 20000
+        def start = new CountDownLatch(1)
+        def done = new CountDownLatch(threads)
+
+        when: "each producer appends an increasing sequence of its own"
+        (0..<threads).each { t ->
+            Thread.start {
+                start.await()
+                for (int i = 0; i < iterations; i++) {
+                    buffer.add([t, i] as int[])
+                }
+                done.countDown()
+            }
+        }
+        start.countDown()
+        done.await()
+
+        then: "the buffer is full and each producer's entries are in increasing order"
+        def entries = buffer.snapshot()
+        entries.size() == 1024
+        entries.groupBy { it[0] }.every { producer, list ->
+            (1..<list.size()).every { list[it - 1][1] < list[it][1] }
+        }
+        buffer.sequence == (long) threads * iterations
+    }
+
+    def "positional reads agree with the size while producers are writing"() {
+        given: "a buffer large enough not to wrap, and several producers that start together"
+        buffer = new ConcurrentCappedBuffer(1 << 17)
+        int threads = 4
+        int iterations = 25000
+        def start = new CountDownLatch(1)
+        def done = new CountDownLatch(threads)
+        (0..<threads).each { t ->
+            Thread.start {
+                start.await()
+                for (int i = 0; i < iterations; i++) {
+                    buffer.add(i)
+                }
+                done.countDown()
+            }
+        }
+
+        when: "I keep reading the newest position by size() while they append"
+        int failures = 0
+        start.countDown()
+        while (done.count > 0) {
+            int size = buffer.size()
+            try {
+                if (size > 0 && buffer.get(size - 1) == null) {
+                    failures++
+                }
+            }
+            catch (IndexOutOfBoundsException ignored) {
+                failures++
+            }
+        }
+
+        then: "every position below the size could be read, and all of them are there at the end"
+        failures == 0
+        buffer.size() == threads * iterations
+        (0..<buffer.size()).every { buffer.get(it) != null }
+    }
+}
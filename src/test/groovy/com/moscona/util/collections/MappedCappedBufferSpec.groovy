@@ -0,0 +1,139 @@
+/*
+ *  Copyright (c) 2015. Arnon Moscona
+ *
+ *      This program is free software: you can redistribute it and/or modify
+ *      it under the terms of the GNU Lesser General Public License as published by
+ *      the Free Software Foundation, either version 3 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License
+ *      along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.moscona.util.collections
+
+import spock.lang.*
+
+import java.nio.ByteBuffer
+
+@Subject(MappedCappedBuffer)
+@Title("MappedCappedBuffer specification")
+
+@Narrative("""
+The mapped buffer keeps the most recent records in a file, where they can be decoded
+without the buffer that wrote them
+""")
+
+class MappedCappedBufferSpec extends Specification {
+    static class LongCodec implements IRecordCodec<Long> {
+        void encode(Long value, ByteBuffer record) { record.putLong(value.longValue()) }
+        Long decode(ByteBuffer record) { record.getLong() }
+    }
+
+    File file
+    MappedCappedBuffer buffer
+
+    def setup() {
+        given: "a mapped buffer of 3 long records in a temporary file"
+        file = File.createTempFile("mapped", ".ring")
+        file.deleteOnExit()
+        buffer = new MappedCappedBuffer(file, 3, 8, new LongCodec())
+    }
+
+    def "the oldest records are overwritten"() {
+        when: "I add five records"
+        (1..5).each { buffer.add(it as long) }
+
+        then: "the last three are kept, oldest first"
+        buffer.snapshot() == [3L, 4L, 5L]
+        buffer.get(0) == 3L
+        buffer.newest == 5L
+        buffer.atCapacity
+    }
+
+    def "the records can be read from the file alone"() {
+        given: "a buffer that wrapped around"
+        (1..5).each { buffer.add(it as long) }
+
+        when: "I read the file"
+        def records = MappedCappedBuffer.read(file, new LongCodec())
+
+        then: "I get the retained records"
+        records == [3L, 4L, 5L]
+    }
+
+    def "drained records are gone from the file too"() {
+        given: "a buffer that wrapped around"
+        (1..5).each { buffer.add(it as long) }
+        def target = []
+
+        when: "I drain two records"
+        buffer.drainTo(target, 2)
+
+        then: "only the rest is left, in the buffer and in the file"
+        target == [3L, 4L]
+        buffer.snapshot() == [5L]
+        MappedCappedBuffer.read(file, new LongCodec()) == [5L]
+    }
+
+    def "a reopened file goes on after its records"() {
+        given: "a buffer that wrapped around and had a record drained, as left by a process that died"
+        (1..5).each { buffer.add(it as long) }
+        buffer.drainTo([], 1)
+
+        when: "I reopen the file and add a record"
+        def reopened = MappedCappedBuffer.open(file, 3, 8, new LongCodec())
+        reopened.add(6L)
+
+        then: "the records of the previous run are kept before the new one"
+        reopened.snapshot() == [4L, 5L, 6L]
+        MappedCappedBuffer.read(file, new LongCodec()) == [4L, 5L, 6L]
+    }
+
+    def "an incompatible file is moved aside rather than reopened"() {
+        given: "a file written with another capacity"
+        (1..2).each { buffer.add(it as long) }
+        def previous = new File(file.path + ".prev")
+        previous.deleteOnExit()
+
+        when: "I open it with a capacity of 4"
+        def opened = MappedCappedBuffer.open(file, 4, 8, new LongCodec())
+
+        then: "a new file is started and the old one can still be read"
+        opened.empty
+        MappedCappedBuffer.read(previous, new LongCodec()) == [1L, 2L]
+    }
+
+    def "creating a buffer moves the previous file aside"() {
+        given: "a file with records"
+        (1..2).each { buffer.add(it as long) }
+        def previous = new File(file.path + ".prev")
+        previous.deleteOnExit()
+
+        when: "I create a new buffer on it"
+        def created = new MappedCappedBuffer(file, 3, 8, new LongCodec())
+
+        then: "the new buffer is empty and the old records are in the .prev file"
+        created.empty
+        MappedCappedBuffer.read(previous, new LongCodec()) == [1L, 2L]
+    }
+
+    def "a record that failed to encode is skipped"() {
+        given: "two records"
+        buffer.add(1L)
+        buffer.add(2L)
+
+        when: "encoding the next one fails"
+        buffer.add(null)
+
+        then: "the failure propagates and the records are intact"
+        thrown(NullPointerException)
+        buffer.snapshot() == [1L, 2L]
+    }
+}
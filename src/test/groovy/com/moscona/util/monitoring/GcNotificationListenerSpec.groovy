@@ -0,0 +1,94 @@
+/*
+ *  Copyright (c) 2015. Arnon Moscona
+ *
+ *      This program is free software: you can redistribute it and/or modify
+ *      it under the terms of the GNU Lesser General Public License as published by
+ *      the Free Software Foundation, either version 3 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License
+ *      along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.moscona.util.monitoring
+
+import com.moscona.util.monitoring.stats.ConcurrentStatsService
+import spock.lang.*
+
+@Subject(GcNotificationListener)
+@Title("GcNotificationListener specification")
+
+@Narrative("""
+The listener records every GC event into a bounded buffer and feeds the durations into a stats service
+""")
+
+class GcNotificationListenerSpec extends Specification {
+    ConcurrentStatsService stats
+    GcNotificationListener listener
+
+    def setup() {
+        given: "a started listener that keeps 3 events"
+        stats = new ConcurrentStatsService()
+        listener = new GcNotificationListener(3, stats)
+        listener.start()
+    }
+
+    def cleanup() {
+        listener.stop()
+    }
+
+    def "collections are recorded as events and timings"() {
+        when: "I collect garbage a few times"
+        4.times { System.gc() }
+        waitForEvents(4)
+
+        then: "only the last 3 events are kept, but all are counted and timed"
+        listener.eventCount >= 4L
+        listener.events.size() == 3
+        listener.events.every { it.duration >= 0L && it.cause != null && it.usageBeforeGc.size() > 0 }
+        stats.getStat(listener.statName).descriptiveStatistics.count() == listener.eventCount
+    }
+
+    def "nothing is recorded once stopped"() {
+        given: "a stopped listener"
+        listener.stop()
+        long count = listener.eventCount
+
+        when: "I collect garbage"
+        System.gc()
+        Thread.sleep(100)
+
+        then: "no event is recorded"
+        !listener.started
+        listener.eventCount == count
+    }
+
+    @Unroll
+    def "a #action of #collector is a concurrent cycle: #cycle"() {
+        expect: "concurrent cycles to be told apart from pauses, so that they are kept out of the pause stats"
+        GcLayout.isConcurrentCycle(collector, action) == cycle
+
+        where:
+        collector             | action                          | cycle
+        "G1 Young Generation" | "end of minor GC"               | false
+        "G1 Old Generation"   | "end of major GC"               | false
+        "G1 Concurrent GC"    | "end of concurrent GC pause"    | false
+        "ZGC Pauses"          | "end of GC pause"               | false
+        "ZGC Cycles"          | "end of GC cycle"               | true
+        "Shenandoah Cycles"   | "end of GC cycle"               | true
+        "ConcurrentMarkSweep" | "end of major GC"               | true
+    }
+
+    private void waitForEvents(long count) {
+        // notifications are delivered asynchronously
+        for (int i = 0; i < 100 && listener.eventCount < count; i++) {
+            Thread.sleep(20)
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ *  Copyright (c) 2015. Arnon Moscona
+ *
+ *      This program is free software: you can redistribute it and/or modify
+ *      it under the terms of the GNU Lesser General Public License as published by
+ *      the Free Software Foundation, either version 3 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License
+ *      along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.moscona.util.monitoring
+
+import spock.lang.*
+
+import java.lang.management.ManagementFactory
+
+import static com.moscona.util.monitoring.MemoryPressureMonitor.Level.*
+
+@Subject(MemoryPressureMonitor)
+@Title("MemoryPressureMonitor specification")
+
+@Narrative("""
+The monitor derives a pressure level from the samples of a history and notifies listeners when it changes
+""")
+
+class MemoryPressureMonitorSpec extends Specification {
+    MemoryStateHistory history
+
+    def setup() {
+        given: "a history"
+        history = new MemoryStateHistory(10)
+    }
+
+    def "the level starts normal and follows the occupancy thresholds"() {
+        given: "a monitor whose thresholds any heap crosses, and a listener"
+        def monitor = new MemoryPressureMonitor(history, [1e-12, 2e-12, 3e-12] as double[], [2.0, 3.0, 4.0] as double[], 0.1)
+        def changes = []
+        monitor.addListener({ from, to, sample -> changes << [from, to] } as IMemoryPressureListener)
+
+        expect: "normal before any sample"
+        monitor.level == NORMAL
+
+        when: "a sample is taken and the monitor updated"
+        history.sample()
+        monitor.update()
+
+        then: "the level is critical and the listener was told"
+        monitor.level == CRITICAL
+        monitor.isAtLeast(HIGH)
+        changes == [[NORMAL, CRITICAL]]
+
+        when: "the monitor is updated without a new sample"
+        monitor.update()
+
+        then: "nothing changes"
+        changes.size() == 1
+    }
+
+    def "the level stays normal under the thresholds"() {
+        given: "a monitor whose thresholds no heap crosses"
+        def monitor = new MemoryPressureMonitor(history, [2.0, 3.0, 4.0] as double[], [2.0, 3.0, 4.0] as double[], 0.1)
+
+        when: "samples are taken"
+        3.times {
+            history.sample()
+            monitor.update()
+        }
+
+        then: "the level is normal"
+        monitor.level == NORMAL
+        !monitor.isAtLeast(ELEVATED)
+    }
+
+    @Unroll
+    def "the time of #collector counts as GC overhead: #counted"() {
+        expect: "concurrent cycles, which run alongside the application, not to count as GC overhead"
+        GcLayout.isConcurrentCollector("java.lang:type=GarbageCollector,name=" + collector) == !counted
+
+        where:
+        collector             | counted
+        "G1 Young Generation" | true
+        "G1 Old Generation"   | true
+        "ZGC Pauses"          | true
+        "ZGC Cycles"          | false
+        "Shenandoah Cycles"   | false
+        "ConcurrentMarkSweep" | false
+    }
+
+    def "the GC overhead is the share of the time between samples spent in pauses"() {
+        given: "two samples a second apart, with 250 msec of GC pauses between them"
+        def previous = new MemoryStateMarker(1000L, 100L, 50L, 200L, 0L, 100L, 1L)
+        def current = new MemoryStateMarker(2000L, 100L, 50L, 200L, 0L, 350L, 2L)
+
+        expect: "a quarter of the time was spent in pauses"
+        MemoryPressureMonitor.gcOverhead(current, previous) == 0.25
+    }
+
+    def "the GC overhead of sampled markers is measured over their nano time stamps"() {
+        given: "two samples taken some time apart"
+        def collectors = ManagementFactory.garbageCollectorMXBeans.collect { it.objectName.toString() } as String[]
+        def previous = new MemoryStateMarker(collectors)
+        Thread.sleep(20)
+        def current = new MemoryStateMarker(collectors)
+
+        expect: "the interval to come from the nano time stamps, and the overhead to be a fraction"
+        current.measuredAtNanos > previous.measuredAtNanos
+        def overhead = MemoryPressureMonitor.gcOverhead(current, previous)
+        overhead >= 0.0 && overhead <= 1.0
+    }
+
+    def "a threshold is required per level"() {
+        when: "I give too few thresholds"
+        new MemoryPressureMonitor(history, [0.5] as double[], [0.5, 0.6, 0.7] as double[], 0.1)
+
+        then: "it is rejected"
+        thrown(IllegalArgumentException)
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ *  Copyright (c) 2015. Arnon Moscona
+ *
+ *      This program is free software: you can redistribute it and/or modify
+ *      it under the terms of the GNU Lesser General Public License as published by
+ *      the Free Software Foundation, either version 3 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License
+ *      along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.moscona.util.monitoring
+
+import com.moscona.test.util.MemoryAlertService
+import spock.lang.*
+
+@Subject(MemorySamplerDaemon)
+@Title("MemorySamplerDaemon specification")
+
+@Narrative("""
+The daemon samples at a base rate, switches to high frequency when a threshold is crossed, and alerts on each switch
+""")
+
+class MemorySamplerDaemonSpec extends Specification {
+    MemorySamplerConfig config
+    MemoryAlertService alerts
+    MemoryStateHistory history
+    MemorySamplerDaemon daemon
+
+    def setup() {
+        given: "a daemon that goes back to the base rate after 2 calm samples"
+        config = new MemorySamplerConfig()
+        config.calmSamplesToSlowDown = 2
+        alerts = new MemoryAlertService()
+        history = new MemoryStateHistory(10)
+        daemon = new MemorySamplerDaemon(history, config, alerts)
+    }
+
+    def "crossing the heap occupancy threshold switches to high frequency and back"() {
+        given: "a threshold that any heap crosses"
+        config.heapOccupancyThreshold = 0.0000001
+
+        when: "a sample is taken"
+        daemon.sampleOnce()
+
+        then: "sampling is at high frequency and an alert was sent"
+        daemon.highFrequency
+        daemon.currentIntervalMillis == config.highFrequencyIntervalMillis
+        alerts.alerts.size() == 1
+        alerts.alerts[0].messageType == MemorySamplerDaemon.ALERT_TYPE
+
+        when: "the threshold is no longer crossed for 2 samples"
+        config.heapOccupancyThreshold = 1.1
+        daemon.sampleOnce()
+        daemon.sampleOnce()
+
+        then: "sampling is back at the base rate and another alert was sent"
+        !daemon.highFrequency
+        daemon.currentIntervalMillis == config.baseIntervalMillis
+        alerts.alerts.size() == 2
+    }
+
+    def "the daemon samples in the background until stopped"() {
+        given: "a short base interval"
+        config.baseIntervalMillis = 10
+
+        when: "the daemon runs for a while"
+        daemon.start()
+        Thread.sleep(200)
+        daemon.stop()
+        long count = daemon.sampleCount
+        Thread.sleep(50)
+
+        then: "samples were taken, and none after stopping"
+        count > 1L
+        daemon.sampleCount == count
+        !daemon.running
+        history.lastSample != null
+    }
+
+    def "a failing sample is reported and sampling goes on"() {
+        given: "a short base interval and a pressure monitor whose listener always throws"
+        config.baseIntervalMillis = 10
+        def monitor = new MemoryPressureMonitor(history, [1e-12, 2e-12, 3e-12] as double[], [2.0, 3.0, 4.0] as double[], 0.1)
+        monitor.addListener({ from, to, sample -> throw new IllegalStateException("listener broken") } as IMemoryPressureListener)
+        daemon.pressureMonitor = monitor
+
+        when: "the daemon runs for a while"
+        daemon.start()
+        Thread.sleep(200)
+
+        then: "the failure was reported once, and the daemon is still sampling"
+        daemon.running
+        daemon.sampleCount > 1L
+        alerts.alerts.findAll { it.exception instanceof IllegalStateException }.size() == 1
+        alerts.alerts.every { it.messageType == MemorySamplerDaemon.ALERT_TYPE }
+
+        cleanup:
+        daemon.stop()
+    }
+}
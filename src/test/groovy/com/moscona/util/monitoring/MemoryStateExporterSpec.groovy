@@ -0,0 +1,100 @@
+/*
+ *  Copyright (c) 2015. Arnon Moscona
+ *
+ *      This program is free software: you can redistribute it and/or modify
+ *      it under the terms of the GNU Lesser General Public License as published by
+ *      the Free Software Foundation, either version 3 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License
+ *      along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.moscona.util.monitoring
+
+import spock.lang.*
+
+import java.nio.file.Files
+
+@Subject(MemoryStateExporter)
+@Title("MemoryStateExporter specification")
+
+@Narrative("""
+The exporter appends only the samples taken since the last export, and rotates the file when it gets too big
+""")
+
+class MemoryStateExporterSpec extends Specification {
+    File dir
+    MemoryStateHistory history
+
+    def setup() {
+        given: "a history that keeps 5 samples and an empty directory"
+        history = new MemoryStateHistory(5)
+        dir = Files.createTempDirectory("MemoryStateExporterSpec").toFile()
+    }
+
+    def cleanup() {
+        dir.deleteDir()
+    }
+
+    def "only new samples are exported"() {
+        given: "a CSV exporter"
+        def file = new File(dir, "memory.csv")
+        def exporter = new MemoryStateExporter(history, file, MemoryStateExporter.Format.CSV)
+
+        when: "I export 3 samples, then nothing new, then 2 more"
+        3.times { history.sample(it as long) }
+        int first = exporter.export()
+        int second = exporter.export()
+        2.times { history.sample(3L + it) }
+        int third = exporter.export()
+        exporter.close()
+
+        then: "each sample is written once, after a single header"
+        first == 3
+        second == 0
+        third == 2
+        def lines = file.readLines()
+        lines.size() == 6
+        lines[0].startsWith("measuredAt,")
+        lines[1..5].collect { it.split(",")[4] as long } == [0L, 1L, 2L, 3L, 4L]
+    }
+
+    def "samples evicted before an export are counted as missed"() {
+        given: "a binary exporter"
+        def file = new File(dir, "memory.bin")
+        def exporter = new MemoryStateExporter(history, file, MemoryStateExporter.Format.BINARY)
+
+        when: "I take more samples than the history keeps before exporting"
+        8.times { history.sample(it as long) }
+        exporter.export()
+        exporter.close()
+
+        then: "the kept ones are exported and can be read back"
+        exporter.missedSamples == 3L
+        MemoryStateExporter.readBinary(file)*.performanceIndicator == [3L, 4L, 5L, 6L, 7L]
+    }
+
+    def "the file is rotated when it reaches the size limit"() {
+        given: "a binary exporter that rotates after 2 records and keeps 1 backup"
+        def file = new File(dir, "memory.bin")
+        def exporter = new MemoryStateExporter(history, file, MemoryStateExporter.Format.BINARY,
+                2 * MemoryStateMarkerCodec.RECORD_SIZE, 1)
+
+        when: "I export 5 samples"
+        5.times { history.sample(it as long) }
+        exporter.export()
+        exporter.close()
+
+        then: "the last sample is in the file, the two before it in the backup, and the rest are gone"
+        MemoryStateExporter.readBinary(file)*.performanceIndicator == [4L]
+        MemoryStateExporter.readBinary(new File(dir, "memory.bin.1"))*.performanceIndicator == [2L, 3L]
+        !new File(dir, "memory.bin.2").exists()
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ *  Copyright (c) 2015. Arnon Moscona
+ *
+ *      This program is free software: you can redistribute it and/or modify
+ *      it under the terms of the GNU Lesser General Public License as published by
+ *      the Free Software Foundation, either version 3 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License
+ *      along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.moscona.util.monitoring
+
+import spock.lang.*
+
+@Subject(MemoryStateHistory)
+@Title("MemoryStateHistory specification")
+
+@Narrative("""
+The history accounts for GC per collector and per heap pool, and estimates allocation and promotion rates
+""")
+
+class MemoryStateHistorySpec extends Specification {
+    MemoryStateHistory history
+
+    def setup() {
+        given: "a history that keeps 10 samples"
+        history = new MemoryStateHistory(10)
+    }
+
+    def "the GC totals add up all the collectors"() {
+        given: "some garbage collected"
+        System.gc()
+
+        when: "I take a sample"
+        history.sample()
+
+        then: "there is a count and time per collector and the totals are their sums"
+        def marker = history.lastSample
+        marker.collectorCount == history.garbageCollectors.length
+        marker.gcCount == (0..<marker.collectorCount).sum(0L) { marker.getGcCount(it) }
+        marker.gcTime == (0..<marker.collectorCount).sum(0L) { marker.getGcTime(it) }
+        marker.gcCount > 0L
+    }
+
+    def "the heap pools are sampled"() {
+        when: "I take a sample"
+        history.sample()
+
+        then: "the pools add up to the heap"
+        def marker = history.lastSample
+        marker.poolCount > 0
+        marker.heapUsed == (0..<marker.poolCount).sum(0L) { marker.getPoolUsed(it) }
+        marker.edenUsed + marker.survivorUsed + marker.oldUsed <= marker.heapUsed
+    }
+
+    def "rates need two samples"() {
+        when: "I take one sample"
+        history.sample()
+
+        then: "there are no rates yet"
+        Double.isNaN(history.allocationRate)
+        Double.isNaN(history.promotionRate)
+
+        when: "I allocate and take another sample"
+        def garbage = (1..1000).collect { new byte[1024] }
+        history.sample()
+
+        then: "the rates are known"
+        garbage.size() == 1000
+        history.allocationRate >= 0.0
+        history.promotionRate >= 0.0
+    }
+
+    def "GC time stats are kept per collector"() {
+        given: "two samples with a collection in between"
+        history.sample()
+        System.gc()
+        history.sample()
+
+        expect: "stats for each collector"
+        (0..<history.garbageCollectors.length).every { history.getGcTimeStats(it).gcTime != null }
+        history.gcTimeStats.lastCgTime >= 0L
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ *  Copyright (c) 2015. Arnon Moscona
+ *
+ *      This program is free software: you can redistribute it and/or modify
+ *      it under the terms of the GNU Lesser General Public License as published by
+ *      the Free Software Foundation, either version 3 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License
+ *      along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.moscona.util.monitoring
+
+import spock.lang.*
+
+@Subject(MemoryStateSampler)
+@Title("MemoryStateSampler specification")
+
+@Narrative("""
+The sampler records memory and GC state into a primitive history
+""")
+
+class MemoryStateSamplerSpec extends Specification {
+    MemoryStateSampler sampler
+
+    def setup() {
+        given: "a sampler that keeps 5 samples"
+        sampler = new MemoryStateSampler(5)
+    }
+
+    def "samples are kept up to the capacity"() {
+        when: "I take 7 samples"
+        (1..7).each { sampler.sample(it as long) }
+
+        then: "the last 5 are kept"
+        def history = sampler.history
+        history.size() == 5
+        history.get(0, MemoryStateSampler.PERFORMANCE_INDICATOR) == 3L
+        history.get(4, MemoryStateSampler.PERFORMANCE_INDICATOR) == 7L
+        history.get(4, MemoryStateSampler.MAX_MEMORY) == Runtime.runtime.maxMemory()
+    }
+
+    def "the GC totals add up the collectors"() {
+        given: "some garbage collected"
+        System.gc()
+
+        when: "I take a sample"
+        sampler.sample()
+
+        then: "the totals are the sums of the per collector columns"
+        def history = sampler.history
+        def collectors = sampler.garbageCollectorNames.length
+        history.get(0, MemoryStateSampler.GC_COUNT) == (0..<collectors).sum(0L) { history.get(0, sampler.gcCountColumn(it)) }
+        history.get(0, MemoryStateSampler.GC_TIME) == (0..<collectors).sum(0L) { history.get(0, sampler.gcTimeColumn(it)) }
+    }
+
+    def "a sample converts to a marker"() {
+        when: "I take a sample and convert it"
+        sampler.sample(42L)
+        def marker = sampler.toMarker(0)
+
+        then: "the marker has its values"
+        marker.performanceIndicator == 42L
+        marker.maxMemory == Runtime.runtime.maxMemory()
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ *  Copyright (c) 2015. Arnon Moscona
+ *
+ *      This program is free software: you can redistribute it and/or modify
+ *      it under the terms of the GNU Lesser General Public License as published by
+ *      the Free Software Foundation, either version 3 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License
+ *      along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.moscona.util.monitoring
+
+import com.moscona.util.concurrent.DaemonThread
+import spock.lang.*
+
+import java.util.concurrent.CountDownLatch
+
+@Subject(ThreadActivitySampler)
+@Title("ThreadActivitySampler specification")
+
+@Narrative("""
+The sampler tracks the allocation and CPU rates of live threads by name and reports the top ones
+""")
+
+class ThreadActivitySamplerSpec extends Specification {
+    ThreadActivitySampler sampler
+
+    def setup() {
+        given: "a sampler that refreshes the threads every 2 samples"
+        sampler = new ThreadActivitySampler(10, 2, 1000)
+    }
+
+    def "a busy allocating daemon thread is reported by its name"() {
+        given: "a daemon thread that allocates until told to stop"
+        def stop = new CountDownLatch(1)
+        def sink = new Object[16]
+        def allocator = new DaemonThread({
+            int i = 0
+            while (stop.count > 0) {
+                sink[i++ & 15] = new byte[1024]
+            }
+        } as Runnable, "busy allocator")
+        allocator.start()
+
+        when: "a few samples are taken"
+        5.times {
+            sampler.sample()
+            Thread.sleep(20)
+        }
+        def top = sampler.getTopByAllocation(3)
+        stop.countDown()
+
+        then: "the allocating thread tops the report"
+        !sampler.allocationSupported || top[0].name == "busy allocator"
+        !sampler.allocationSupported || top[0].averageAllocationRate > 0.0
+        top.size() <= 3
+        sampler.threadCount > 0
+        sampler.sampleCount == 5L
+    }
+
+    def "there is nothing to report before the second sample"() {
+        when: "one sample is taken"
+        sampler.sample()
+
+        then: "no rates are known yet"
+        sampler.getTopByCpu(5).isEmpty()
+        sampler.getTopByAllocation(5).isEmpty()
+    }
+}
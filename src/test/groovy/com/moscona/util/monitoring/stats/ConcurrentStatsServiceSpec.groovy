@@ -0,0 +1,177 @@
+/*
+ *  Copyright (c) 2015. Arnon Moscona
+ *
+ *      This program is free software: you can redistribute it and/or modify
+ *      it under the terms of the GNU Lesser General Public License as published by
+ *      the Free Software Foundation, either version 3 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License
+ *      along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.moscona.util.monitoring.stats
+
+import spock.lang.*
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+@Subject(ConcurrentStatsService)
+@Title("ConcurrentStatsService specification")
+
+@Narrative("""
+The concurrent service must behave like SimpleStatsService for single threaded use,
+and must not lose updates when many threads hit the same stats.
+""")
+
+class ConcurrentStatsServiceSpec extends Specification {
+    ConcurrentStatsService service
+
+    def setup() {
+        given: "a concurrent stats service"
+        service = new ConcurrentStatsService()
+    }
+
+    def "setting and incrementing a long stat"() {
+        when: "I set stat1 to 3 and increment it twice"
+        service.setStat("stat1", 3 as long)
+        service.incStat("stat1")
+        service.incStat("stat1", 2 as long)
+
+        then: "it is a Long stat with the value 6"
+        def value = service.getStat("stat1")
+        value.type == Long
+        value.getLong() == 6L
+    }
+
+    def "incrementing a Double stat by 1"() {
+        when: "I set stat1 to 3.1 and increment it"
+        service.setStat("stat1", 3.1 as double)
+        service.incStat("stat1")
+
+        then: "I should get 4.1"
+        service.getStat("stat1").type == Double
+        Math.abs(service.getStat("stat1").getDouble() - 4.1) < 0.0000001
+    }
+
+    def "timing samples carry descriptive stats"() {
+        when: "I add three timing samples"
+        service.addTimingSampleFor("timing", 210)
+        service.addTimingSampleFor("timing", 211)
+        service.addTimingSampleFor("timing", 212)
+
+        then: "the stat is a timing stat counting exactly three samples"
+        def stat = service.getStat("timing")
+        stat.isTiming()
+        stat.descriptiveStatistics.count() == 3L
+        Math.abs(stat.descriptiveStatistics.mean() - 211.0) < 0.00001
+    }
+
+    def "nothing is recorded when the service is off"() {
+        given: "that I turn the service off"
+        service.turnOff()
+
+        when: "I add a stat"
+        service.incStat("new stat")
+
+        then: "it should have no effect"
+        service.getStat("new stat") == null
+    }
+
+    def "concurrent increments are never lost"() {
+        given: "several threads that start together"
+        int threads = 8
+        int iterations = 20000
+        def start = new CountDownLatch(1)
+        def done = new CountDownLatch(threads)
+
+        when: "each thread increments the same new stat and its own stat"
+        (1..threads).each { t ->
+            Thread.start {
+                start.await()
+                iterations.times {
+                    service.incStat("shared")
+                    service.incStat("shared by " + (t % 2), 2 as long)
+                }
+                done.countDown()
+            }
+        }
+        start.countDown()
+        done.await()
+
+        then: "the counts are exact"
+        service.getStat("shared").getLong() == (long) threads * iterations
+        service.getStat("shared by 0").getLong() == (long) threads * iterations
+        service.getStat("shared by 1").getLong() == (long) threads * iterations
+    }
+
+    def "a gauge is never read half set"() {
+        given: "a gauge that is only ever set to 5"
+        def gauge = service.gauge("gauge")
+        gauge.set(5L)
+        def done = new CountDownLatch(1)
+        long misreads = 0
+
+        when: "one thread keeps setting it while another keeps reading it"
+        Thread.start {
+            100000.times { gauge.set(5L) }
+            done.countDown()
+        }
+        while (done.count > 0) {
+            if (service.getStat("gauge").getLong() != 5L) {
+                misreads++
+            }
+        }
+
+        then: "every read saw the value"
+        misreads == 0
+    }
+
+    def "nanosecond timers can overlap across threads"() {
+        given: "a nanosecond timer and several threads that start together"
+        def timer = service.timer("nano timing", TimeUnit.NANOSECONDS)
+        int threads = 4
+        int iterations = 1000
+        def start = new CountDownLatch(1)
+        def done = new CountDownLatch(threads)
+
+        when: "each thread takes overlapping timings"
+        (1..threads).each {
+            Thread.start {
+                start.await()
+                iterations.times {
+                    long token = timer.start()
+                    timer.stop(token)
+                }
+                done.countDown()
+            }
+        }
+        start.countDown()
+        done.await()
+
+        then: "every timing is recorded, in nanoseconds"
+        def stat = service.getStat("nano timing")
+        stat.timeUnit == TimeUnit.NANOSECONDS
+        stat.descriptiveStatistics.count() == (long) threads * iterations
+    }
+
+    def "timings are converted to the unit of the stat and can be reported in any unit"() {
+        given: "a millisecond timing stat"
+        service.addTimingSampleFor("timing", 5)
+
+        when: "I record two seconds through a timer handle"
+        service.timer("timing").record(2, TimeUnit.SECONDS)
+
+        then: "the sample was converted to milliseconds"
+        def stat = service.getStat("timing")
+        stat.getLong() == 2000L
+        stat.getDouble(TimeUnit.SECONDS) == 2.0
+        stat.toFormattedString(TimeUnit.SECONDS).startsWith("2 sec")
+    }
+}
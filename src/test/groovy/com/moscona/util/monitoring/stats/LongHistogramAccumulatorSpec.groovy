@@ -0,0 +1,97 @@
+/*
+ *  Copyright (c) 2015. Arnon Moscona
+ *
+ *      This program is free software: you can redistribute it and/or modify
+ *      it under the terms of the GNU Lesser General Public License as published by
+ *      the Free Software Foundation, either version 3 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License
+ *      along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.util.monitoring.stats
+
+import com.moscona.util.IPercentileStatistic
+import spock.lang.*
+
+@Subject(LongHistogramAccumulator)
+@Title("LongHistogramAccumulator specification")
+
+@Narrative("""
+The histogram accumulator keeps the same descriptive stats as LongSampleAccumulator
+and adds approximate percentiles with a bounded relative error.
+""")
+
+class LongHistogramAccumulatorSpec extends Specification {
+    LongHistogramAccumulator histogram
+
+    def setup() {
+        given: "an empty histogram"
+        histogram = new LongHistogramAccumulator()
+    }
+
+    def "an empty histogram"() {
+        expect: "zero count and percentiles"
+        histogram.count() == 0L
+        histogram.percentile(50.0) == 0.0
+    }
+
+    def "small values are counted exactly"() {
+        when: "I add the values 1 to 10"
+        (1..10).each { histogram.addSample(it as long) }
+
+        then: "the descriptive stats match LongSampleAccumulator"
+        histogram.count() == 10L
+        histogram.getSum() == 55L
+        histogram.getMin() == 1L
+        histogram.getMax() == 10L
+        Math.abs(histogram.mean() - 5.5) < 0.00001
+
+        and: "the percentiles are exact"
+        histogram.percentile(50.0) == 5.0
+        histogram.percentile(90.0) == 9.0
+        histogram.percentile(100.0) == 10.0
+    }
+
+    def "large values are within the precision of the histogram"() {
+        when: "I add the values 1,000,000 to 1,100,000 nanos in steps of 1,000"
+        (0..100).each { histogram.addSample(1000000L + it * 1000L) }
+
+        then: "the median is within 1.6% of the true median"
+        Math.abs(histogram.percentile(50.0) - 1050000.0) / 1050000.0 < 0.016
+    }
+
+    def "the sum of squares does not overflow with nanosecond samples of seconds"() {
+        when: "I add 3 and 5 second samples in nanos, whose squares are each larger than a long can hold"
+        50.times {
+            histogram.addSample(3000000000L)
+            histogram.addSample(5000000000L)
+        }
+
+        then: "the sum of squares is past the range of a long"
+        histogram.sumSquares() > (double) Long.MAX_VALUE
+
+        and: "the mean and standard deviation are still correct"
+        histogram.mean() == 4.0e9
+        !Double.isInfinite(histogram.stdev()) && !Double.isNaN(histogram.stdev())
+        Math.abs(histogram.stdev() - 1.0e9) / 1.0e9 < 1.0e-6
+    }
+
+    def "timing stats keep a histogram"() {
+        given: "a stats service"
+        def service = new SimpleStatsService()
+
+        when: "I add timing samples"
+        (1..100).each { service.addTimingSampleFor("timing", it as long) }
+
+        then: "the descriptive stats answer percentile queries"
+        def stats = service.getStat("timing").descriptiveStatistics
+        stats instanceof IPercentileStatistic
+        (stats as IPercentileStatistic).percentile(50.0) == 50.0
+    }
+}
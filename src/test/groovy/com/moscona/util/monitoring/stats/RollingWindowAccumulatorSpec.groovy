@@ -0,0 +1,119 @@
+/*
+ *  Copyright (c) 2015. Arnon Moscona
+ *
+ *      This program is free software: you can redistribute it and/or modify
+ *      it under the terms of the GNU Lesser General Public License as published by
+ *      the Free Software Foundation, either version 3 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License
+ *      along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.util.monitoring.stats
+
+import spock.lang.*
+
+@Subject([RollingWindowAccumulator, DecayingRateMeter])
+@Title("Rolling windows and decaying rate meters")
+
+@Narrative("""
+Windowed stats must forget samples that are older than the window,
+and rate meters must follow the current rate rather than the lifetime average.
+Both are driven by a fake clock here.
+""")
+
+class RollingWindowAccumulatorSpec extends Specification {
+    long now
+
+    def setup() {
+        given: "a fake clock"
+        now = 1000000L
+    }
+
+    def "a window only describes recent samples"() {
+        given: "a one minute window of one second buckets"
+        def window = new RollingWindowAccumulator(60000L, 60, { now })
+
+        when: "I add one sample a second for two minutes"
+        120.times {
+            window.addSample(it as double)
+            now += 1000L
+        }
+
+        then: "only the last minute of samples is described"
+        window.count() == 59L
+        window.min() == 61.0
+        window.max() == 119.0
+        window.last() == 119.0
+
+        when: "no samples arrive for two more minutes"
+        now += 120000L
+
+        then: "the window is empty"
+        window.count() == 0L
+        window.mean() == 0.0
+    }
+
+    def "a window that is not a multiple of the bucket count still spans the whole window"() {
+        given: "a 100 msec window asked to use 60 buckets"
+        def window = new RollingWindowAccumulator(100L, 60, { now })
+
+        when: "I add one sample a millisecond for 300 msec"
+        300.times {
+            window.addSample(it as double)
+            now += 1L
+        }
+
+        then: "50 buckets of 2 msec are used, which describe the last 100 msec but the bucket that just started"
+        window.getWindowMillis() == 100L
+        window.getBucketCount() == 50
+        window.count() == 98L
+        window.min() == 202.0
+        window.max() == 299.0
+    }
+
+    def "a rate meter decays toward the current rate"() {
+        given: "a rate meter"
+        def meter = new DecayingRateMeter({ now })
+
+        when: "it is marked 10 times a second for ten minutes"
+        600.times {
+            10.times { meter.mark() }
+            now += 1000L
+        }
+
+        then: "all the rates are 10 per second"
+        Math.abs(meter.oneMinuteRate - 10.0) < 0.001
+        Math.abs(meter.fifteenMinuteRate - 10.0) < 0.001
+
+        when: "it is idle for five minutes"
+        now += 300000L
+
+        then: "the one minute rate has decayed much more than the five minute rate"
+        meter.oneMinuteRate < 0.1
+        meter.fiveMinuteRate > 3.0
+    }
+
+    def "windows and rate meters are selected per stat in the service"() {
+        given: "a stats service where one counter is windowed and metered"
+        def service = new SimpleStatsService()
+        service.attachRollingWindows("windowed")
+        service.attachRateMeter("windowed")
+
+        when: "I increment it and another counter"
+        service.incStat("windowed", 5 as long)
+        service.incStat("plain", 5 as long)
+
+        then: "only the selected stat has windows and a meter"
+        service.getStat("windowed").rollingWindows*.windowMillis == [60000L, 300000L, 900000L]
+        service.getStat("windowed").rollingWindows[0].count() == 1L
+        service.getStat("windowed").rateMeter.count == 5.0
+        service.getStat("plain").rollingWindows == null
+        service.getStat("plain").rateMeter == null
+    }
+}
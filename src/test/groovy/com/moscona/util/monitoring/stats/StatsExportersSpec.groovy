@@ -0,0 +1,156 @@
+/*
+ *  Copyright (c) 2015. Arnon Moscona
+ *
+ *      This program is free software: you can redistribute it and/or modify
+ *      it under the terms of the GNU Lesser General Public License as published by
+ *      the Free Software Foundation, either version 3 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License
+ *      along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.util.monitoring.stats
+
+import groovy.transform.CompileStatic
+import spock.lang.*
+
+import java.lang.management.ManagementFactory
+import java.nio.ByteBuffer
+import java.util.concurrent.TimeUnit
+
+@Subject([PrometheusTextExporter, BinaryStatsExporter])
+@Title("Stats exporters specification")
+
+@Narrative("""
+Exporters write all the stats of a service into a reusable target:
+Prometheus text into an Appendable, and a compact binary format into a ByteBuffer.
+""")
+
+class StatsExportersSpec extends Specification {
+    ConcurrentStatsService service
+
+    def setup() {
+        given: "a stats service with a counter, a gauge and a timing stat"
+        service = new ConcurrentStatsService()
+        service.incStat("requests served", 42 as long)
+        service.setStat("load", 0.75 as double)
+        def timer = service.timer("fetch.time", TimeUnit.MILLISECONDS)
+        (1..10).each { timer.record(it as long) }
+    }
+
+    def "Prometheus text export"() {
+        given: "an exporter with a prefix"
+        def exporter = new PrometheusTextExporter("app_")
+        def out = new StringBuilder()
+
+        when: "I export the stats"
+        exporter.export(service, out)
+        def lines = out.toString().readLines()
+
+        then: "names are sanitized and values written as plain numbers"
+        lines.contains("# TYPE app_requests_served gauge")
+        lines.contains("app_requests_served 42")
+        lines.contains("app_load 0.75")
+
+        and: "timing stats are converted to seconds with a summary of their descriptive stats"
+        lines.contains("app_fetch_time_seconds 0.01")
+        lines.contains("app_fetch_time_seconds_stats{quantile=\"0.5\"} 0.005")
+        lines.contains("app_fetch_time_seconds_stats_sum 0.055")
+        lines.contains("app_fetch_time_seconds_stats_count 10")
+    }
+
+    def "exporting again into a reused target gives the same result"() {
+        given: "an exporter and a target"
+        def exporter = new PrometheusTextExporter()
+        def out = new StringBuilder()
+
+        when: "I export twice, clearing the target in between"
+        exporter.export(service, out)
+        def first = out.toString()
+        out.setLength(0)
+        exporter.export(service, out)
+
+        then: "the output is the same"
+        out.toString() == first
+    }
+
+    def "binary export can be decoded into a snapshot"() {
+        given: "an exporter and a buffer"
+        def exporter = new BinaryStatsExporter()
+        def buffer = ByteBuffer.allocate(4096)
+
+        when: "I export the stats and decode them"
+        exporter.export(service, buffer)
+        buffer.flip()
+        def snapshot = BinaryStatsExporter.decode(buffer)
+
+        then: "the snapshot has every stat"
+        snapshot.size() == 3
+        snapshot.getLong(snapshot.indexOf("requests served")) == 42L
+        snapshot.getDouble(snapshot.indexOf("load")) == 0.75
+
+        and: "the descriptive stats of the timing stat"
+        def timing = snapshot.indexOf("fetch.time")
+        snapshot.getTimeUnit(timing) == TimeUnit.MILLISECONDS
+        snapshot.getCount(timing) == 10L
+        snapshot.getSum(timing) == 55.0
+        snapshot.getP50(timing) == 5.0
+    }
+
+    def "Prometheus metric names that collide are made unique"() {
+        given: "stats whose names sanitize to the same metric name, or to the summary of another stat"
+        service.incStat("a b")
+        service.incStat("a_b")
+        service.incStat("fetch.time seconds stats")
+        def out = new StringBuilder()
+
+        when: "I export the stats"
+        new PrometheusTextExporter().export(service, out)
+        def families = out.toString().readLines().findAll { it.startsWith("# TYPE ") }.collect { it.split(" ")[2] }
+
+        then: "every metric family is declared once"
+        families.size() == families.toSet().size()
+        out.toString().readLines().contains("a_b 1")
+        out.toString().readLines().contains("a_b_2 1")
+        out.toString().readLines().contains("fetch_time_seconds_stats_2 1")
+    }
+
+    def "exporting into a reused target does not allocate"() {
+        given: "both exporters and their reused targets, warmed up"
+        def prometheus = new PrometheusTextExporter()
+        def text = new StringBuilder(8192)
+        def binary = new BinaryStatsExporter()
+        def buffer = ByteBuffer.allocate(8192)
+        exportRepeatedly(prometheus, text, binary, buffer, 20000)
+
+        when: "I measure the bytes this thread allocates while exporting a thousand times, a few times over"
+        def allocated = (1..3).collect { exportRepeatedly(prometheus, text, binary, buffer, 1000) }
+
+        then: "at least one round allocated nothing at all (a per export allocation would show in every round)"
+        allocated.min() == 0L
+    }
+
+    /**
+     * Statically compiled, so that only the exporters can allocate
+     * @return the number of bytes the current thread allocated
+     */
+    @CompileStatic
+    private long exportRepeatedly(PrometheusTextExporter prometheus, StringBuilder text, BinaryStatsExporter binary,
+                                  ByteBuffer buffer, int times) {
+        def threads = (com.sun.management.ThreadMXBean) ManagementFactory.threadMXBean
+        long id = Thread.currentThread().id
+        long before = threads.getThreadAllocatedBytes(id)
+        for (int i = 0; i < times; i++) {
+            text.setLength(0)
+            prometheus.export(service, text)
+            buffer.clear()
+            binary.export(service, buffer)
+        }
+        return threads.getThreadAllocatedBytes(id) - before
+    }
+}
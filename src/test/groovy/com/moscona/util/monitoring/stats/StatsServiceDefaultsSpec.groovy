@@ -0,0 +1,95 @@
+/*
+ *  Copyright (c) 2015. Arnon Moscona
+ *
+ *      This program is free software: you can redistribute it and/or modify
+ *      it under the terms of the GNU Lesser General Public License as published by
+ *      the Free Software Foundation, either version 3 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License
+ *      along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.moscona.util.monitoring.stats
+
+import com.moscona.exceptions.InvalidStateException
+import spock.lang.*
+
+import java.util.concurrent.TimeUnit
+
+@Subject(IStatsService)
+@Title("IStatsService default methods specification")
+
+@Narrative("""
+A stats service written against the original IStatsService, which implements none of the methods added later,
+gets handles and snapshots that fall back on its name based methods.
+""")
+
+class StatsServiceDefaultsSpec extends Specification {
+    /**
+     * Implements only the methods of the original interface
+     */
+    static class LegacyStatsService implements IStatsService {
+        private final SimpleStatsService delegate = new SimpleStatsService()
+
+        void turnOff() { delegate.turnOff() }
+        void turnOn() { delegate.turnOn() }
+        boolean isOn() { delegate.isOn() }
+        void setStat(String name, long value) { delegate.setStat(name, value) }
+        void incStat(String name, long value) { delegate.incStat(name, value) }
+        void incStat(String name) { delegate.incStat(name) }
+        void initStatWithDescriptiveStats(String name, long value) { delegate.initStatWithDescriptiveStats(name, value) }
+        void initStatWithDescriptiveStats(String name, double value) { delegate.initStatWithDescriptiveStats(name, value) }
+        void setStat(String name, double value) { delegate.setStat(name, value) }
+        void incStat(String name, double value) { delegate.incStat(name, value) }
+        void startTimerFor(String name) { delegate.startTimerFor(name) }
+        void pauseTimerFor(String name) { delegate.pauseTimerFor(name) }
+        void resumeTimerFor(String name) { delegate.resumeTimerFor(name) }
+        void stopTimerFor(String name) throws InvalidStateException { delegate.stopTimerFor(name) }
+        void measureTiming(String name, Runnable code) throws InvalidStateException { delegate.measureTiming(name, code) }
+        void addTimingSampleFor(String name, long millis) throws InvalidStateException { delegate.addTimingSampleFor(name, millis) }
+        IStatValue getStat(String name) { delegate.getStat(name) }
+        Set<String> getStatNames() { delegate.getStatNames() }
+    }
+
+    LegacyStatsService service
+
+    def setup() {
+        given: "a service that only implements the original interface"
+        service = new LegacyStatsService()
+    }
+
+    def "handles go through the name based methods"() {
+        when: "I use a counter, a gauge and a timer handle"
+        service.counter("count").inc()
+        service.counter("count").inc(2)
+        service.gauge("level").set(7L)
+        service.timer("timing", TimeUnit.NANOSECONDS).record(1500, TimeUnit.MICROSECONDS)
+
+        then: "the stats are set as incStat(), setStat() and addTimingSampleFor() would"
+        service.getStat("count").getLong() == 3L
+        service.getStat("level").getLong() == 7L
+        service.getStat("timing").isTiming()
+        service.getStat("timing").descriptiveStatistics.max() == 2.0
+    }
+
+    def "a snapshot copies the stats without resetting them"() {
+        given: "a counter"
+        service.incStat("count", 5L)
+
+        when: "I take a resetting snapshot"
+        def snapshot = service.snapshot(true)
+
+        then: "it has the counter, is not reset and the counter keeps its value"
+        snapshot.size() == 1
+        snapshot.getLong(snapshot.indexOf("count")) == 5L
+        !snapshot.isReset()
+        service.getStat("count").getLong() == 5L
+    }
+}
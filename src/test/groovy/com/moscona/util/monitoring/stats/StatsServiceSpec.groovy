@@ -18,6 +18,8 @@
 package com.moscona.util.monitoring.stats
 
 import spock.lang.*
+
+import java.util.concurrent.TimeUnit
 import static org.assertj.core.api.Assertions.*;
 
 /**
@@ -218,4 +220,80 @@ class StatsServiceSpec extends Specification {
         service.getStat("new stat").getLong().equals(1L)
     }
 
-}
\ No newline at end of file
+
+    def "a counter handle does not create the stat until it is used"() {
+        when: "I get a counter handle"
+        def counter = service.counter("handled")
+
+        then: "the stat does not exist yet"
+        service.getStat("handled") == null
+
+        when: "I increment it"
+        counter.inc()
+        counter.inc(2)
+
+        then: "the stat has the sum of the increments"
+        service.getStat("handled").getLong() == 3L
+    }
+
+    def "handles follow a stat that was re-initialized with descriptive stats"() {
+        given: "a counter handle that was already used"
+        def counter = service.counter("handled")
+        counter.inc(5)
+
+        when: "I re-initialize the stat and increment it through the handle"
+        service.initStatWithDescriptiveStats("handled", 10 as long)
+        counter.inc(2)
+
+        then: "the increment lands on the new value and its descriptive stats"
+        service.getStat("handled").getLong() == 12L
+        service.getStat("handled").descriptiveStatistics.count() == 2L
+    }
+
+    def "setting a double stat adds a descriptive stats sample, as setting a long stat does"() {
+        given: "a long and a double stat with descriptive stats"
+        service.initStatWithDescriptiveStats("long stat", 1 as long)
+        service.initStatWithDescriptiveStats("double stat", 1.5 as double)
+
+        when: "I set each of them twice"
+        service.setStat("long stat", 2 as long)
+        service.setStat("long stat", 4 as long)
+        service.setStat("double stat", 2.5 as double)
+        service.setStat("double stat", 4.5 as double)
+
+        then: "both have the initial value and the two set values as samples"
+        service.getStat("long stat").descriptiveStatistics.count() == 3L
+        service.getStat("double stat").descriptiveStatistics.count() == 3L
+        Math.abs(service.getStat("double stat").descriptiveStatistics.max() - 4.5) < 0.00001
+    }
+
+    def "a timer handle records the same way as addTimingSampleFor"() {
+        given: "a timer handle"
+        def timer = service.timer("timing")
+
+        when: "I record through the handle and through the service"
+        timer.record(210)
+        service.addTimingSampleFor("timing", 212)
+
+        then: "both samples are in the same timing stat"
+        def stat = service.getStat("timing")
+        stat.isTiming()
+        stat.descriptiveStatistics.count() == 2L
+        Math.abs(stat.descriptiveStatistics.mean() - 211.0) < 0.00001
+    }
+
+    def "short timings on a millisecond timer are rounded up rather than lost"() {
+        given: "a timer handle with the default resolution"
+        def timer = service.timer("short timing")
+
+        when: "I record a 300 usec timing and a 1.5 msec timing"
+        timer.record(300, TimeUnit.MICROSECONDS)
+        timer.record(1500000, TimeUnit.NANOSECONDS)
+
+        then: "they are recorded as 1 and 2 msec"
+        def stat = service.getStat("short timing")
+        stat.descriptiveStatistics.count() == 2L
+        stat.descriptiveStatistics.min() == 1.0
+        stat.descriptiveStatistics.max() == 2.0
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ *  Copyright (c) 2015. Arnon Moscona
+ *
+ *      This program is free software: you can redistribute it and/or modify
+ *      it under the terms of the GNU Lesser General Public License as published by
+ *      the Free Software Foundation, either version 3 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License
+ *      along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.util.monitoring.stats
+
+import com.moscona.util.app.lifecycle.events.stats.StatsSnapshotResponseEvent
+import spock.lang.*
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+@Subject(StatsSnapshot)
+@Title("StatsSnapshot specification")
+
+@Narrative("""
+A snapshot is an immutable copy of all the stats of a service.
+A resetting snapshot closes an interval, so that the next one reports deltas.
+""")
+
+class StatsSnapshotSpec extends Specification {
+    ConcurrentStatsService service
+
+    def setup() {
+        given: "a stats service with a counter, a gauge and a nanosecond timing stat"
+        service = new ConcurrentStatsService()
+        service.incStat("counter", 5 as long)
+        service.setStat("gauge", 2.5 as double)
+        service.timer("timing", TimeUnit.NANOSECONDS).record(1500, TimeUnit.NANOSECONDS)
+    }
+
+    def "a snapshot copies every stat, sorted by name"() {
+        when: "I take a snapshot"
+        def snapshot = service.snapshot()
+
+        then: "it has all the stats in name order"
+        snapshot.size() == 3
+        (0..<snapshot.size()).collect { snapshot.getName(it) } == ["counter", "gauge", "timing"]
+
+        and: "their values and types"
+        snapshot.getLong(snapshot.indexOf("counter")) == 5L
+        snapshot.getType(snapshot.indexOf("gauge")) == Double
+        snapshot.getDouble(snapshot.indexOf("gauge")) == 2.5
+
+        and: "the descriptive stats of the timing stat, with percentiles"
+        def timing = snapshot.indexOf("timing")
+        snapshot.getTimeUnit(timing) == TimeUnit.NANOSECONDS
+        snapshot.getCount(timing) == 1L
+        snapshot.getP99(timing) == 1500.0
+    }
+
+    def "a snapshot is not affected by later updates"() {
+        given: "a snapshot"
+        def snapshot = service.snapshot()
+
+        when: "I increment the counter"
+        service.incStat("counter")
+
+        then: "the snapshot still has the old value"
+        snapshot.getLong(snapshot.indexOf("counter")) == 5L
+        service.getStat("counter").getLong() == 6L
+    }
+
+    def "resetting snapshots report deltas"() {
+        when: "I take a resetting snapshot, increment the counter and take another"
+        def first = service.snapshot(true)
+        service.incStat("counter", 3 as long)
+        def second = service.snapshot(true)
+
+        then: "each one reports the increments of its own interval"
+        first.getLong(first.indexOf("counter")) == 5L
+        second.getLong(second.indexOf("counter")) == 3L
+        second.startMillis == first.endMillis
+
+        and: "the timing stat keeps its last value but its descriptive stats were cleared"
+        second.getLong(second.indexOf("timing")) == 1500L
+        second.getCount(second.indexOf("timing")) == 0L
+
+        and: "the gauge keeps its last value"
+        second.getDouble(second.indexOf("gauge")) == 2.5
+        service.getStat("gauge").getDouble() == 2.5
+    }
+
+    def "increments racing with resetting snapshots are never lost"() {
+        given: "a counter handle and several threads that start together"
+        def counter = service.counter("racing")
+        int threads = 4
+        int iterations = 50000
+        def start = new CountDownLatch(1)
+        def done = new CountDownLatch(threads)
+        (1..threads).each {
+            Thread.start {
+                start.await()
+                iterations.times { counter.inc() }
+                done.countDown()
+            }
+        }
+
+        when: "I keep taking resetting snapshots while they increment"
+        long reported = 0
+        start.countDown()
+        while (done.count > 0) {
+            def snapshot = service.snapshot(true)
+            int i = snapshot.indexOf("racing")
+            reported += i < 0 ? 0L : snapshot.getLong(i)
+        }
+        def last = service.snapshot(true)
+        reported += last.getLong(last.indexOf("racing"))
+
+        then: "the intervals add up to every increment"
+        reported == (long) threads * iterations
+    }
+
+    def "a snapshot can answer a stats update request"() {
+        when: "I wrap a snapshot in a response event"
+        def event = StatsSnapshotResponseEvent.of("my component", service, false)
+
+        then: "the event carries the snapshot"
+        event.name == "STATS_UPDATE_RESPONSE"
+        event.snapshot.size() == 3
+        event.metadata["my component"].is(event.snapshot)
+    }
+}
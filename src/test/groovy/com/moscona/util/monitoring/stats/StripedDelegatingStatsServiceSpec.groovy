@@ -0,0 +1,100 @@
+/*
+ *  Copyright (c) 2015. Arnon Moscona
+ *
+ *      This program is free software: you can redistribute it and/or modify
+ *      it under the terms of the GNU Lesser General Public License as published by
+ *      the Free Software Foundation, either version 3 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License
+ *      along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.moscona.util.monitoring.stats
+
+import spock.lang.*
+
+import java.util.concurrent.CountDownLatch
+
+@Subject(StripedDelegatingStatsService)
+@Title("StripedDelegatingStatsService specification")
+
+@Narrative("""
+The striped service wraps a stats service that is not thread safe, and must not lose updates
+when many threads write to the same or to different stats, even while snapshots are being taken.
+""")
+
+class StripedDelegatingStatsServiceSpec extends Specification {
+    StripedDelegatingStatsService service
+
+    def setup() {
+        given: "a striped service over a simple stats service"
+        service = new StripedDelegatingStatsService(new SimpleStatsService(), 4)
+    }
+
+    def "it behaves like its delegate"() {
+        when: "I set stat1 to 3, increment it and add timing samples"
+        service.setStat("stat1", 3 as long)
+        service.incStat("stat1", 2 as long)
+        service.addTimingSampleFor("timing", 10)
+        service.addTimingSampleFor("timing", 20)
+
+        then: "the values are the delegate's"
+        service.getStat("stat1").getLong() == 5L
+        service.getStat("timing").isTiming()
+        service.getStat("timing").descriptiveStatistics.count() == 2L
+        service.getStatNames() == ["stat1", "timing"] as Set
+    }
+
+    def "concurrent increments are never lost while snapshots are taken"() {
+        given: "several threads that start together and a counter handle"
+        int threads = 8
+        int iterations = 20000
+        def counter = service.counter("handle")
+        def start = new CountDownLatch(1)
+        def done = new CountDownLatch(threads)
+
+        when: "each thread increments shared stats while the main thread takes snapshots"
+        (1..threads).each { t ->
+            Thread.start {
+                start.await()
+                iterations.times {
+                    service.incStat("shared")
+                    service.incStat("shared by " + (t % 2), 2 as long)
+                    counter.inc()
+                }
+                done.countDown()
+            }
+        }
+        start.countDown()
+        while (done.count > 0) {
+            service.snapshot()
+        }
+        done.await()
+
+        then: "the counts are exact"
+        service.getStat("shared").getLong() == (long) threads * iterations
+        service.getStat("shared by 0").getLong() == (long) threads * iterations
+        service.getStat("handle").getLong() == (long) threads * iterations
+    }
+
+    def "a resetting snapshot closes the interval"() {
+        given: "a counter"
+        service.incStat("counter", 5 as long)
+
+        when: "I take a resetting snapshot and then a plain one"
+        def first = service.snapshot(true)
+        def second = service.snapshot()
+
+        then: "the first has the count and the second starts over"
+        first.getLong(first.indexOf("counter")) == 5L
+        second.getLong(second.indexOf("counter")) == 0L
+        second.startMillis == first.endMillis
+    }
+}
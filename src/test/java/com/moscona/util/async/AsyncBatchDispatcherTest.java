@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.moscona.util.async;
+
+import com.moscona.util.async.furtures.ExtendedCompletionStage;
+import com.moscona.util.monitoring.stats.ConcurrentStatsService;
+import org.assertj.core.api.SoftAssertions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * AsyncBatchDispatcher Tester.
+ */
+public class AsyncBatchDispatcherTest {
+    SoftAssertions soft = new SoftAssertions();
+    List<List<String>> batches = null;
+    AsyncFunctionFutureResults<String> results = null;
+    ConcurrentStatsService stats = null;
+    AsyncBatchDispatcher<String> dispatcher = null;
+
+    /**
+     * A call with a single argument, answered by the batch call
+     */
+    class UpperCaseCall extends BatchedAsyncFunctionCall<String> {
+        private final String arg;
+
+        UpperCaseCall(String arg) {
+            super(dispatcher);
+            this.arg = arg;
+        }
+
+        @Override
+        protected String computeArgumentsSignature() {
+            return arg;
+        }
+    }
+
+    @Before
+    public void before() throws Exception {
+        soft = new SoftAssertions();
+        batches = Collections.synchronizedList(new ArrayList<List<String>>());
+        results = new AsyncFunctionFutureResults<>();
+        stats = new ConcurrentStatsService();
+    }
+
+    @After
+    public void after() throws Exception {
+        if (dispatcher != null) {
+            dispatcher.stop();
+        }
+    }
+
+    private void startDispatcher(int maxBatchSize, long windowMillis, IBatchCall<String> batchCall) {
+        dispatcher = new AsyncBatchDispatcher<>("test", results, batchCall, maxBatchSize, windowMillis, stats);
+        dispatcher.start();
+    }
+
+    /**
+     * Answers every signature in the batch right away
+     */
+    private void upperCase(List<String> signatures, AsyncFunctionFutureResults<String> results) {
+        batches.add(new ArrayList<>(signatures));
+        for (String signature : signatures) {
+            results.returnToCallers(signature, signature.toUpperCase());
+        }
+    }
+
+    /**
+     * Makes the calls from separate threads, which are all released together once started
+     */
+    private List<Thread> callConcurrently(int count, List<String> answers, CountDownLatch done) {
+        CountDownLatch go = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String arg = "arg" + i;
+            Thread thread = new Thread(() -> {
+                try {
+                    go.await();
+                    answers.add(new UpperCaseCall(arg).call(5000, TimeUnit.MILLISECONDS));
+                }
+                catch (Exception e) {
+                    answers.add(e.toString());
+                }
+                done.countDown();
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        go.countDown();
+        return threads;
+    }
+
+    private void awaitBatches(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (batches.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertThat(batches).hasSize(count);
+    }
+
+    @Test
+    public void testCallsWithinTheWindowShareABatch() throws Exception {
+        startDispatcher(100, 1000, this::upperCase);
+        List<String> answers = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch done = new CountDownLatch(10);
+
+        callConcurrently(10, answers, done);
+
+        assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+        dispatcher.stop(); // the batch is counted after the batch call returns
+        soft.assertThat(answers).hasSize(10).contains("ARG0", "ARG9");
+        soft.assertThat(batches).hasSize(1);
+        soft.assertThat(dispatcher.getBatchCount()).isEqualTo(1);
+        soft.assertThat(dispatcher.getSignatureCount()).isEqualTo(10);
+        soft.assertThat(dispatcher.getLargestBatch()).isEqualTo(10);
+        soft.assertThat(stats.getStat("async_batch_test_batches").getLong()).isEqualTo(1);
+        soft.assertThat(stats.getStat("async_batch_test_signatures").getLong()).isEqualTo(10);
+        soft.assertThat(stats.getStat("async_batch_test_last_batch_size").getLong()).isEqualTo(10);
+        soft.assertAll();
+    }
+
+    @Test
+    public void testAFullBatchDoesNotWaitForTheWindow() throws Exception {
+        startDispatcher(5, 60000, this::upperCase);
+        List<String> answers = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch done = new CountDownLatch(10);
+
+        callConcurrently(10, answers, done);
+
+        assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+        dispatcher.stop();
+        soft.assertThat(answers).hasSize(10);
+        soft.assertThat(batches).hasSize(2);
+        soft.assertThat(dispatcher.getLargestBatch()).isEqualTo(5);
+        soft.assertAll();
+    }
+
+    @Test
+    public void testACallJoiningADispatchedCallIsNotDispatchedAgain() throws Exception {
+        startDispatcher(100, 10, (signatures, results) -> batches.add(new ArrayList<>(signatures))); // answered later
+        ExtendedCompletionStage<String> first = new UpperCaseCall("a").callAsync();
+        awaitBatches(1);
+
+        ExtendedCompletionStage<String> second = new UpperCaseCall("a").callAsync();
+        soft.assertThat(dispatcher.getPendingCount()).isEqualTo(0);
+        results.returnToCallers("a", "A");
+        dispatcher.stop();
+
+        soft.assertThat(first.get()).isEqualTo("A");
+        soft.assertThat(second.get()).isEqualTo("A");
+        soft.assertThat(batches).hasSize(1);
+        soft.assertThat(dispatcher.getBatchCount()).isEqualTo(1);
+        soft.assertAll();
+    }
+
+    @Test
+    public void testABatchCallMayKeepItsListAndAnswerLater() throws Exception {
+        List<List<String>> kept = Collections.synchronizedList(new ArrayList<List<String>>());
+        startDispatcher(2, 10, (signatures, results) -> kept.add(signatures)); // answered later, from the kept lists
+        List<String> answers = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch done = new CountDownLatch(4);
+        callConcurrently(4, answers, done);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (dispatcher.getSignatureCount() < 4 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+
+        for (List<String> signatures : kept) {
+            for (String signature : signatures) {
+                results.returnToCallers(signature, signature.toUpperCase());
+            }
+        }
+
+        assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+        soft.assertThat(kept).allMatch(signatures -> signatures.size() <= 2);
+        soft.assertThat(answers).containsExactlyInAnyOrder("ARG0", "ARG1", "ARG2", "ARG3");
+        soft.assertThatThrownBy(() -> kept.get(0).clear()).isInstanceOf(UnsupportedOperationException.class);
+        soft.assertAll();
+    }
+
+    @Test
+    public void testEqualSignaturesAreDispatchedOnce() throws Exception {
+        startDispatcher(100, 50, this::upperCase);
+        dispatcher.add("a");
+        dispatcher.add("b");
+        dispatcher.add("a");
+
+        dispatcher.stop();
+
+        assertThat(batches).containsExactly(java.util.Arrays.asList("a", "b"));
+    }
+
+    @Test
+    public void testStopDispatchesThePendingSignatures() throws Exception {
+        startDispatcher(100, 60000, this::upperCase);
+        dispatcher.add("a");
+
+        dispatcher.stop();
+
+        soft.assertThat(batches).hasSize(1);
+        soft.assertThat(dispatcher.getPendingCount()).isEqualTo(0);
+        soft.assertThatThrownBy(() -> dispatcher.add("b")).hasMessageContaining("not running");
+        soft.assertAll();
+    }
+
+    @Test
+    public void testAFailedBatchCallFailsAllItsCalls() throws Exception {
+        startDispatcher(100, 20, (signatures, results) -> {
+            throw new IllegalStateException("backend down");
+        });
+        List<String> answers = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch done = new CountDownLatch(3);
+
+        callConcurrently(3, answers, done);
+
+        assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(answers).hasSize(3).allMatch(answer -> answer.contains("backend down"));
+        assertThat(results).isEmpty();
+    }
+
+    @Test
+    public void testInterruptingTheDispatcherFailsThePendingCalls() throws Exception {
+        startDispatcher(100, 60000, this::upperCase);
+        ExtendedCompletionStage<String> call = new UpperCaseCall("a").callAsync();
+
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("batch dispatcher test")) {
+                thread.interrupt();
+            }
+        }
+
+        assertThatThrownBy(() -> call.get(5, TimeUnit.SECONDS)).hasCauseInstanceOf(InterruptedException.class);
+        assertThat(batches).isEmpty();
+        assertThat(dispatcher.getPendingCount()).isEqualTo(0);
+        assertThatThrownBy(() -> dispatcher.add("b")).hasMessageContaining("not running");
+    }
+
+    @Test
+    public void testDispatchingGoesOnAfterABatchCallError() throws Exception {
+        startDispatcher(100, 10, (signatures, results) -> {
+            if (signatures.contains("bad")) {
+                throw new LinkageError("backend broken");
+            }
+            upperCase(signatures, results);
+        });
+        ExtendedCompletionStage<String> bad = new UpperCaseCall("bad").callAsync();
+        assertThatThrownBy(() -> bad.get(5, TimeUnit.SECONDS)).hasMessageContaining("backend broken");
+
+        assertThat(new UpperCaseCall("good").call(5000, TimeUnit.MILLISECONDS)).isEqualTo("GOOD");
+    }
+
+    @Test
+    public void testDispatchingGoesOnAfterAnAssertionError() throws Exception {
+        startDispatcher(100, 10, (signatures, results) -> {
+            if (signatures.contains("bad")) {
+                throw new AssertionError("backend broken");
+            }
+            upperCase(signatures, results);
+        });
+        ExtendedCompletionStage<String> bad = new UpperCaseCall("bad").callAsync();
+        assertThatThrownBy(() -> bad.get(5, TimeUnit.SECONDS)).hasMessageContaining("backend broken");
+
+        assertThat(new UpperCaseCall("good").call(5000, TimeUnit.MILLISECONDS)).isEqualTo("GOOD");
+    }
+
+    @Test
+    public void testAVirtualMachineErrorStopsTheDispatcher() throws Exception {
+        CountDownLatch dispatching = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        startDispatcher(1, 10, (signatures, results) -> {
+            dispatching.countDown();
+            release.await(); // lets the next signature wait for a batch
+            throw new StackOverflowError("out of stack");
+        });
+        ExtendedCompletionStage<String> dispatched = new UpperCaseCall("a").callAsync();
+        assertThat(dispatching.await(5, TimeUnit.SECONDS)).isTrue();
+        ExtendedCompletionStage<String> waiting = new UpperCaseCall("b").callAsync();
+
+        release.countDown();
+
+        assertThatThrownBy(() -> dispatched.get(5, TimeUnit.SECONDS)).hasMessageContaining("out of stack");
+        assertThatThrownBy(() -> waiting.get(5, TimeUnit.SECONDS)).hasMessageContaining("out of stack");
+        assertThatThrownBy(() -> dispatcher.add("c")).hasMessageContaining("not running");
+    }
+}
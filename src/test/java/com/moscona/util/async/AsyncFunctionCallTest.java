@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.moscona.util.async;
+
+import com.moscona.util.async.furtures.ExtendedCompletionStage;
+import org.assertj.core.api.SoftAssertions;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * AsyncFunctionCall.callAsync() Tester.
+ */
+public class AsyncFunctionCallTest {
+    SoftAssertions soft = new SoftAssertions();
+    AsyncFunctionFutureResults<String> results = null;
+
+    static class TestCall extends AsyncFunctionCall<String> {
+        private final String arg;
+
+        TestCall(String arg) {
+            this.arg = arg;
+        }
+
+        @Override
+        protected void asyncCall() {
+        }
+
+        @Override
+        protected String computeArgumentsSignature() {
+            return arg;
+        }
+    }
+
+    @Before
+    public void before() throws Exception {
+        soft = new SoftAssertions();
+        results = new AsyncFunctionFutureResults<>();
+    }
+
+    @Test
+    public void testCallbacksOfCallsWithTheSameSignatureAllRun() throws Exception {
+        AtomicInteger callbacks = new AtomicInteger();
+        ExtendedCompletionStage<String> first = new TestCall("value").use(results).callAsync();
+        ExtendedCompletionStage<String> second = new TestCall("value").use(results).callAsync();
+        first.thenAccept(value -> callbacks.incrementAndGet());
+        second.thenAccept(value -> callbacks.incrementAndGet());
+
+        soft.assertThat(results.size()).isEqualTo(1);
+        soft.assertThat(first.isDone()).isFalse();
+
+        results.returnToCallers("value", "result");
+
+        soft.assertThat(callbacks.get()).isEqualTo(2);
+        soft.assertThat(first.get()).isEqualTo("result");
+        soft.assertThat(second.get()).isEqualTo("result");
+        soft.assertAll();
+    }
+
+    @Test
+    public void testExceptionIsPassedToCallbacks() throws Exception {
+        AtomicReference<Throwable> exception = new AtomicReference<>();
+        ExtendedCompletionStage<String> stage = new TestCall("value").use(results).callAsync();
+        stage.whenComplete((value, ex) -> exception.set(ex));
+
+        results.throwException("value", new Exception("boom!"));
+
+        assertThat(exception.get()).isInstanceOf(CompletionException.class);
+        assertThat(exception.get().getCause().getMessage()).isEqualTo("boom!");
+    }
+
+    @Test
+    public void testCallCompletedDuringAsyncCall() throws Exception {
+        TestCall call = new TestCall("value") {
+            @Override
+            protected void asyncCall() {
+                returnToCallers("immediate");
+            }
+        };
+        assertThat(call.use(results).callAsync().get(1, TimeUnit.SECONDS)).isEqualTo("immediate");
+    }
+
+    @Test
+    public void testCancellingOneStageDoesNotAffectOthers() throws Exception {
+        ExtendedCompletionStage<String> first = new TestCall("value").use(results).callAsync();
+        ExtendedCompletionStage<String> second = new TestCall("value").use(results).callAsync();
+
+        first.cancel(true);
+        results.returnToCallers("value", "result");
+
+        soft.assertThat(first.isCancelled()).isTrue();
+        soft.assertThat(second.get()).isEqualTo("result");
+        soft.assertAll();
+    }
+
+    @Test
+    public void testBlockingAndNonBlockingCallersShareTheFuture() throws Exception {
+        TestCall blocking = new TestCall("value");
+        blocking.use(results);
+        ExtendedCompletionStage<String> stage = new TestCall("value").use(results).callAsync();
+        Thread caller = new Thread(() -> {
+            try {
+                blocking.call();
+            } catch (Exception e) {
+                // reported through awaitReturn()
+            }
+        });
+        caller.start();
+        for (int i = 0; i < 200 && caller.getState() != Thread.State.WAITING; i++) {
+            Thread.sleep(10); // until the blocking caller parks in get()
+        }
+        results.returnToCallers("value", "result");
+        caller.join(2000);
+
+        soft.assertThat(stage.get()).isEqualTo("result");
+        soft.assertThat(caller.isAlive()).isFalse();
+        soft.assertAll();
+    }
+
+    @Test(expected = ExecutionException.class)
+    public void testCallWithoutResultsStoreFails() throws Exception {
+        new TestCall("value").callAsync().get();
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.moscona.util.async;
+
+import com.moscona.util.async.furtures.ExtendedCompletionStage;
+import org.assertj.core.api.SoftAssertions;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * AsyncResultCache Tester.
+ */
+public class AsyncResultCacheTest {
+    SoftAssertions soft = new SoftAssertions();
+    AtomicLong now = new AtomicLong();
+    AtomicInteger backendCalls = new AtomicInteger();
+    AsyncResultCache<String> cache = null;
+    AsyncFunctionFutureResults<String> results = null;
+
+    /**
+     * A call whose backend answers immediately, numbering its answers
+     */
+    class CountingCall extends AsyncFunctionCall<String> {
+        private final String arg;
+
+        CountingCall(String arg) {
+            this.arg = arg;
+        }
+
+        @Override
+        protected void asyncCall() {
+            returnToCallers(arg + backendCalls.incrementAndGet());
+        }
+
+        @Override
+        protected String computeArgumentsSignature() {
+            return arg;
+        }
+    }
+
+    /**
+     * A call whose backend is answered later, by the test
+     */
+    class SlowCall extends CountingCall {
+        SlowCall(String arg) {
+            super(arg);
+        }
+
+        @Override
+        protected void asyncCall() {
+            backendCalls.incrementAndGet();
+        }
+    }
+
+    @Before
+    public void before() throws Exception {
+        soft = new SoftAssertions();
+        // 100 msec TTL, refresh in the last 20 msec, stale results usable for 50 msec
+        cache = new AsyncResultCache<>(2, 100, 20, 50);
+        cache.setClock(now::get);
+        results = new AsyncFunctionFutureResults<String>().useCache(cache);
+    }
+
+    private String call(String arg) throws Exception {
+        return new CountingCall(arg).use(results).call();
+    }
+
+    private void setMillis(long millis) {
+        now.set(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    @Test
+    public void testResultIsCachedForItsTtl() throws Exception {
+        soft.assertThat(call("a")).isEqualTo("a1");
+        setMillis(50);
+        soft.assertThat(call("a")).isEqualTo("a1");
+        soft.assertThat(backendCalls.get()).isEqualTo(1);
+        soft.assertThat(cache.getHits()).isEqualTo(1);
+        soft.assertAll();
+    }
+
+    @Test
+    public void testRefreshAhead() throws Exception {
+        call("a");
+        setMillis(85);
+        soft.assertThat(call("a")).isEqualTo("a1"); // returns the cached result and refreshes it
+        soft.assertThat(call("a")).isEqualTo("a2");
+        soft.assertThat(backendCalls.get()).isEqualTo(2);
+        soft.assertAll();
+    }
+
+    @Test
+    public void testStaleWhileRevalidate() throws Exception {
+        call("a");
+        setMillis(120);
+        soft.assertThat(call("a")).isEqualTo("a1");
+        soft.assertThat(call("a")).isEqualTo("a2");
+        soft.assertThat(cache.getStaleHits()).isEqualTo(1);
+        soft.assertAll();
+    }
+
+    @Test
+    public void testTooStaleIsAMiss() throws Exception {
+        call("a");
+        setMillis(151);
+        assertThat(call("a")).isEqualTo("a2");
+    }
+
+    @Test
+    public void testOnlyOneRefreshIsStarted() throws Exception {
+        AsyncFunctionFutureResults<String> slowResults = new AsyncFunctionFutureResults<String>().useCache(cache);
+        AsyncFunctionCall<String> slow = new CountingCall("a") {
+            @Override
+            protected void asyncCall() {
+                backendCalls.incrementAndGet(); // answered later, by the test
+            }
+        };
+        cache.put("a", "cached");
+        setMillis(90);
+
+        soft.assertThat(slow.use(slowResults).call()).isEqualTo("cached");
+        soft.assertThat(slow.use(slowResults).call()).isEqualTo("cached");
+        soft.assertThat(backendCalls.get()).isEqualTo(1);
+        slowResults.returnToCallers("a", "fresh");
+        soft.assertThat(slow.use(slowResults).call()).isEqualTo("fresh");
+        soft.assertAll();
+    }
+
+    @Test
+    public void testACancelledRefreshCanBeStartedAgain() throws Exception {
+        cache.put("a", "cached");
+        setMillis(90);
+
+        soft.assertThat(new SlowCall("a").use(results).call()).isEqualTo("cached"); // starts a refresh
+        results.cancelAll("a");
+        soft.assertThat(new SlowCall("a").use(results).call()).isEqualTo("cached"); // starts another one
+        soft.assertThat(backendCalls.get()).isEqualTo(2);
+        soft.assertAll();
+    }
+
+    @Test
+    public void testConcurrentMissesMakeOneBackendCall() throws Exception {
+        ExtendedCompletionStage<String> first = new SlowCall("a").use(results).callAsync();
+        ExtendedCompletionStage<String> second = new SlowCall("a").use(results).callAsync();
+
+        soft.assertThat(backendCalls.get()).isEqualTo(1);
+        results.returnToCallers("a", "fresh");
+        soft.assertThat(first.get()).isEqualTo("fresh");
+        soft.assertThat(second.get()).isEqualTo("fresh");
+        soft.assertAll();
+    }
+
+    @Test
+    public void testRefreshJoinsAPendingCall() throws Exception {
+        ExtendedCompletionStage<String> miss = new SlowCall("a").use(results).callAsync();
+        cache.put("a", "cached");
+        setMillis(90);
+
+        soft.assertThat(new SlowCall("a").use(results).call()).isEqualTo("cached"); // the refresh joins the miss
+        soft.assertThat(backendCalls.get()).isEqualTo(1);
+        results.returnToCallers("a", "fresh");
+        soft.assertThat(miss.get()).isEqualTo("fresh");
+        soft.assertThat(new SlowCall("a").use(results).call()).isEqualTo("fresh");
+        soft.assertThat(backendCalls.get()).isEqualTo(1);
+        soft.assertAll();
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() throws Exception {
+        call("a");
+        setMillis(1); // use is tracked to a millisecond
+        call("b");
+        setMillis(2);
+        call("a");
+        setMillis(3);
+        call("c");
+
+        soft.assertThat(cache.size()).isEqualTo(2);
+        soft.assertThat(cache.get("b")).isNull();
+        soft.assertThat(cache.get("a")).isNotNull();
+        soft.assertAll();
+    }
+
+    @Test
+    public void testResultsTooStaleToUseAreEvictedFirst() throws Exception {
+        cache.put("a", "a");
+        setMillis(50);
+        cache.put("b", "b");
+        setMillis(60);
+        cache.get("a");
+        setMillis(160); // a is too stale to use, though b was used less recently
+        cache.put("c", "c");
+
+        soft.assertThat(cache.size()).isEqualTo(2);
+        soft.assertThat(cache.get("a")).isNull();
+        soft.assertThat(cache.get("b")).isNotNull();
+        soft.assertAll();
+    }
+
+    @Test
+    public void testPerSignatureTtl() throws Exception {
+        cache.withTtl(signature -> signature.startsWith("volatile") ? 0L : 100L);
+        call("volatile a");
+        call("volatile a");
+        call("b");
+        call("b");
+        assertThat(backendCalls.get()).isEqualTo(3);
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.moscona.util.async;
+
+import org.assertj.core.api.SoftAssertions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * FutureValue Tester.
+ */
+public class FutureValueTest {
+    SoftAssertions soft = new SoftAssertions();
+    ExecutorService executor = null;
+    FutureValue<String> future = null;
+
+    @Before
+    public void before() throws Exception {
+        soft = new SoftAssertions();
+        executor = Executors.newFixedThreadPool(8);
+        future = new FutureValue<>("test", null);
+    }
+
+    @After
+    public void after() throws Exception {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testSetWakesAllWaiters() throws Exception {
+        List<Future<String>> waiters = new ArrayList<>();
+        CountDownLatch started = new CountDownLatch(8);
+        for (int i = 0; i < 8; i++) {
+            final boolean timed = i % 2 == 0;
+            waiters.add(executor.submit(() -> {
+                started.countDown();
+                return timed ? future.get(10, TimeUnit.SECONDS) : future.get();
+            }));
+        }
+        started.await();
+        future.set("value");
+        for (Future<String> waiter : waiters) {
+            soft.assertThat(waiter.get(5, TimeUnit.SECONDS)).isEqualTo("value");
+        }
+        soft.assertAll();
+    }
+
+    @Test
+    public void testOnlyTheFirstCompletionTakes() throws Exception {
+        future.set("first");
+        future.set("second");
+        future.setException(new Exception("ignored"));
+
+        soft.assertThat(future.cancel(true)).isFalse();
+        soft.assertThat(future.isCancelled()).isFalse();
+        soft.assertThat(future.isDone()).isTrue();
+        soft.assertThat(future.get()).isEqualTo("first");
+        soft.assertAll();
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        Throwable exception = null;
+        try {
+            future.get(10, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            exception = e;
+        }
+        assertThat(exception).isNotNull();
+        assertThat(exception.getMessage()).isEqualTo("Timeout while waiting for return value in test");
+    }
+
+    @Test
+    public void testException() throws Exception {
+        Throwable exception = null;
+        future.setException(new Exception("boom!"));
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            exception = e;
+        }
+        soft.assertThat(exception).isNotNull();
+        soft.assertThat(exception.getCause().getMessage()).isEqualTo("boom!");
+        soft.assertAll();
+    }
+
+    @Test
+    public void testCancelReturnsNull() throws Exception {
+        soft.assertThat(future.cancel(true)).isTrue();
+        soft.assertThat(future.isCancelled()).isTrue();
+        soft.assertThat(future.get()).isNull();
+        soft.assertAll();
+    }
+
+    @Test
+    public void testInterruptedWaiter() throws Exception {
+        CountDownLatch interrupted = new CountDownLatch(1);
+        Thread waiter = new Thread(() -> {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+            } catch (ExecutionException e) {
+                // not expected
+            }
+        });
+        waiter.start();
+        Thread.sleep(50);
+        waiter.interrupt();
+
+        assertThat(interrupted.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(future.isDone()).isFalse();
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.moscona.util.async;
+
+import com.moscona.util.monitoring.stats.ConcurrentStatsService;
+import org.assertj.core.api.SoftAssertions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * PendingCallReaper Tester.
+ */
+public class PendingCallReaperTest {
+    SoftAssertions soft = new SoftAssertions();
+    AsyncFunctionFutureResults<String> results = null;
+    ConcurrentStatsService stats = null;
+    PendingCallReaper<String> reaper = null;
+
+    /**
+     * A call whose backend never answers
+     */
+    class SilentCall extends AsyncFunctionCall<String> {
+        private final String arg;
+
+        SilentCall(String arg) {
+            this.arg = arg;
+        }
+
+        @Override
+        protected void asyncCall() {
+        }
+
+        @Override
+        protected String computeArgumentsSignature() {
+            return arg;
+        }
+    }
+
+    @Before
+    public void before() throws Exception {
+        soft = new SoftAssertions();
+        results = new AsyncFunctionFutureResults<>();
+        stats = new ConcurrentStatsService();
+    }
+
+    @After
+    public void after() throws Exception {
+        if (reaper != null) {
+            reaper.stop();
+        }
+    }
+
+    private void startReaper(long timeoutMillis, int maxPending, PendingCallReaper.RejectionPolicy policy) {
+        reaper = new PendingCallReaper<>("test", results, timeoutMillis, maxPending, policy, stats, 10, 8);
+        reaper.start();
+    }
+
+    private CompletableFuture<String> callAsync(String arg) {
+        return new SilentCall(arg).use(results).callAsync().toCompletableFuture();
+    }
+
+    /**
+     * Polls until the condition holds, failing if it does not within 5 seconds
+     */
+    private void awaitCondition(String description, BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Timed out waiting until " + description);
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void testAnUnansweredCallTimesOut() throws Exception {
+        startReaper(200, 10, PendingCallReaper.RejectionPolicy.REJECT);
+        long started = System.nanoTime();
+
+        Throwable thrown = catchThrowable(() -> new SilentCall("a").use(results).call());
+
+        soft.assertThat(thrown).isInstanceOf(ExecutionException.class).hasCauseInstanceOf(TimeoutException.class);
+        soft.assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started)).isGreaterThanOrEqualTo(200);
+        soft.assertThat(results).isEmpty();
+        soft.assertThat(reaper.getExpiredCount()).isEqualTo(1);
+        soft.assertAll();
+    }
+
+    @Test
+    public void testTimeoutsLongerThanATurnOfTheWheel() throws Exception {
+        startReaper(300, 10, PendingCallReaper.RejectionPolicy.REJECT); // the wheel turns every 80 msec
+        long started = System.nanoTime();
+
+        CompletableFuture<String> call = callAsync("a");
+
+        soft.assertThat(catchThrowable(() -> call.get(5, TimeUnit.SECONDS))).hasCauseInstanceOf(TimeoutException.class);
+        soft.assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started)).isGreaterThanOrEqualTo(300);
+        soft.assertAll();
+    }
+
+    @Test
+    public void testAnsweredCallsAreNotExpired() throws Exception {
+        startReaper(100, 10, PendingCallReaper.RejectionPolicy.REJECT);
+
+        CompletableFuture<String> call = callAsync("a");
+        results.returnToCallers("a", "A");
+        CompletableFuture<String> later = callAsync("b");
+
+        // once the later call expired, the reaper went past the deadline of the answered one
+        soft.assertThat(catchThrowable(() -> later.get(5, TimeUnit.SECONDS))).hasCauseInstanceOf(TimeoutException.class);
+        soft.assertThat(call.get()).isEqualTo("A");
+        soft.assertThat(reaper.getExpiredCount()).isEqualTo(1);
+        soft.assertAll();
+    }
+
+    @Test
+    public void testNewCallsOverTheLimitAreRejected() throws Exception {
+        startReaper(60000, 2, PendingCallReaper.RejectionPolicy.REJECT);
+        callAsync("a");
+        callAsync("b");
+
+        CompletableFuture<String> joining = callAsync("a");
+        CompletableFuture<String> rejected = callAsync("c");
+
+        soft.assertThat(joining).isNotDone();
+        soft.assertThat(catchThrowable(rejected::get)).hasCauseInstanceOf(RejectedExecutionException.class);
+        soft.assertThat(results).containsOnlyKeys("a", "b");
+        soft.assertThat(reaper.getRejectedCount()).isEqualTo(1);
+        soft.assertAll();
+    }
+
+    @Test
+    public void testTheOldestCallCanBeExpiredToMakeRoom() throws Exception {
+        startReaper(60000, 2, PendingCallReaper.RejectionPolicy.EXPIRE_OLDEST);
+        AtomicBoolean failedHoldingTheStore = new AtomicBoolean(true);
+        CompletableFuture<String> oldest = callAsync("a");
+        oldest.whenComplete((value, ex) -> failedHoldingTheStore.set(Thread.holdsLock(results)));
+        callAsync("b");
+
+        callAsync("c");
+
+        soft.assertThat(catchThrowable(oldest::get)).hasCauseInstanceOf(TimeoutException.class);
+        soft.assertThat(failedHoldingTheStore.get()).isFalse();
+        soft.assertThat(results).containsOnlyKeys("b", "c");
+        soft.assertThat(reaper.getExpiredCount()).isEqualTo(1);
+        soft.assertAll();
+    }
+
+    @Test
+    public void testAnsweredOldestCallsAreSkipped() throws Exception {
+        startReaper(60000, 2, PendingCallReaper.RejectionPolicy.EXPIRE_OLDEST);
+        callAsync("a");
+        CompletableFuture<String> second = callAsync("b");
+        results.returnToCallers("a", "A");
+        callAsync("c");
+
+        CompletableFuture<String> fourth = callAsync("d");
+
+        soft.assertThat(fourth).isNotDone();
+        soft.assertThat(catchThrowable(second::get)).hasCauseInstanceOf(TimeoutException.class);
+        soft.assertThat(results).containsOnlyKeys("c", "d");
+        soft.assertThat(reaper.getExpiredCount()).isEqualTo(1);
+        soft.assertAll();
+    }
+
+    @Test
+    public void testGauges() throws Exception {
+        startReaper(300, 2, PendingCallReaper.RejectionPolicy.REJECT);
+        callAsync("a");
+        callAsync("b");
+        callAsync("c");
+
+        awaitCondition("two calls are reported pending",
+                () -> stats.getStat("async_pending_test_pending").getLong() == 2);
+        awaitCondition("two calls are reported expired",
+                () -> stats.getStat("async_pending_test_expired").getLong() == 2);
+        soft.assertThat(stats.getStat("async_pending_test_pending").getLong()).isEqualTo(0);
+        soft.assertThat(stats.getStat("async_pending_test_expired").getLong()).isEqualTo(2);
+        soft.assertThat(stats.getStat("async_pending_test_rejected").getLong()).isEqualTo(1);
+        soft.assertAll();
+    }
+
+    @Test
+    public void testARestartedReaperForgetsTheCallsItTracked() throws Exception {
+        startReaper(100, 10, PendingCallReaper.RejectionPolicy.REJECT);
+        CompletableFuture<String> before = callAsync("a");
+        reaper.stop();
+        reaper.start();
+
+        CompletableFuture<String> after = callAsync("b");
+
+        soft.assertThat(catchThrowable(() -> after.get(5, TimeUnit.SECONDS))).hasCauseInstanceOf(TimeoutException.class);
+        soft.assertThat(before).isNotDone();
+        soft.assertThat(reaper.getExpiredCount()).isEqualTo(1);
+        soft.assertAll();
+    }
+
+    @Test
+    public void testStoppingDetachesTheReaper() throws Exception {
+        startReaper(100, 1, PendingCallReaper.RejectionPolicy.REJECT);
+
+        reaper.stop();
+        callAsync("a");
+        callAsync("b");
+
+        soft.assertThat(results.getReaper()).isNull();
+        soft.assertThat(results).containsOnlyKeys("a", "b");
+        soft.assertAll();
+    }
+}